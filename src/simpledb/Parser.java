@@ -24,6 +24,7 @@ import simpledb.transaction.TransactionId;
 
 public class Parser {
     static boolean explain = false;
+    static boolean asyncCommit = false;
 
     public static Predicate.Op getOp(String s) throws simpledb.ParsingException {
         if (s.equals("="))
@@ -258,18 +259,15 @@ public class Parser {
         if (q.getOrderBy() != null) {
             @SuppressWarnings("unchecked")
             List<ZOrderBy> obys = q.getOrderBy();
-            if (obys.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "Multi-attribute ORDER BY is not supported.");
-            }
-            ZOrderBy oby = obys.get(0);
-            if (!(oby.getExpression() instanceof ZConstant)) {
-                throw new simpledb.ParsingException(
-                        "Complex ORDER BY's are not supported");
-            }
-            ZConstant f = (ZConstant) oby.getExpression();
+            for (ZOrderBy oby : obys) {
+                if (!(oby.getExpression() instanceof ZConstant)) {
+                    throw new simpledb.ParsingException(
+                            "Complex ORDER BY's are not supported");
+                }
+                ZConstant f = (ZConstant) oby.getExpression();
 
-            lp.addOrderBy(f.getValue(), oby.getAscOrder());
+                lp.addOrderBy(f.getValue(), oby.getAscOrder());
+            }
 
         }
         return lp;
@@ -453,6 +451,7 @@ public class Parser {
                     throw new ParsingException(
                             "Can't start new transactions until current transaction has been committed or rolledback.");
                 curtrans = new Transaction();
+                curtrans.setAsyncCommit(asyncCommit);
                 curtrans.start();
                 inUserTrans = true;
                 System.out.println("Started a new transaction tid = "
@@ -504,6 +503,7 @@ public class Parser {
             else {
                 if (!this.inUserTrans) {
                     curtrans = new Transaction();
+                    curtrans.setAsyncCommit(asyncCommit);
                     curtrans.start();
                     System.out.println("Started a new transaction tid = "
                             + curtrans.getId().getId());
@@ -581,7 +581,7 @@ public class Parser {
         p.start(argv);
     }
 
-    static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
+    static final String usage = "Usage: parser catalogFile [-explain] [-async-commit] [-f queryFile]";
     static final int SLEEP_TIME = 1000;
 
     protected void shutdown() {
@@ -602,6 +602,9 @@ public class Parser {
                 if (argv[i].equals("-explain")) {
                     explain = true;
                     System.out.println("Explain mode enabled.");
+                } else if (argv[i].equals("-async-commit")) {
+                    asyncCommit = true;
+                    System.out.println("Asynchronous commit enabled.");
                 } else if (argv[i].equals("-f")) {
                     interactive = false;
                     if (i++ == argv.length) {
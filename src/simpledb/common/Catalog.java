@@ -1,6 +1,7 @@
 package simpledb.common;
 
 import simpledb.common.Type;
+import simpledb.index.SecondaryIndex;
 import simpledb.storage.DbFile;
 import simpledb.storage.HeapFile;
 import simpledb.storage.TupleDesc;
@@ -30,6 +31,8 @@ public class Catalog {
     private HashMap<Integer,String> idToName;
     //建设表名称到tableid的映射
     private HashMap<String,Integer> nameToId;
+    //建设tableid到该表的二级索引的映射
+    private HashMap<Integer,List<SecondaryIndex>> idToIndexes;
     /**
      * Constructor.
      * Creates a new, empty catalog.
@@ -40,6 +43,7 @@ public class Catalog {
         idToKey=new HashMap<>();
         idToName=new HashMap<>();
         nameToId=new HashMap<>();
+        idToIndexes=new HashMap<>();
     }
 
     /**
@@ -63,6 +67,11 @@ public class Catalog {
             idToName.remove(id);
             idToKey.remove(id);
             nameToId.remove(name);
+            List<SecondaryIndex> indexes=idToIndexes.remove(id);
+            if(indexes!=null){
+                for(SecondaryIndex index:indexes)
+                    idToFile.remove(index.getFile().getId());
+            }
         }
         //插入表
         idToFile.put(tableid,file);
@@ -86,6 +95,30 @@ public class Catalog {
         addTable(file, (UUID.randomUUID()).toString());
     }
 
+    /**
+     * Add a secondary index on a table to the catalog. The file of the index
+     * can then be found with {@link #getDatabaseFile}, but it is not listed
+     * as a table by {@link #tableIdIterator}.
+     * @param index the index to add
+     * @throws IllegalArgumentException if the table of the index is not a HeapFile
+     */
+    public void addIndex(SecondaryIndex index) {
+        if (!(getDatabaseFile(index.getTableId()) instanceof HeapFile))
+            throw new IllegalArgumentException("only a HeapFile can have a secondary index");
+        idToFile.put(index.getFile().getId(),index.getFile());
+        idToIndexes.computeIfAbsent(index.getTableId(),k->new ArrayList<>()).add(index);
+    }
+
+    /**
+     * Returns the secondary indexes on the specified table, which may be empty
+     * @param tableid The id of the table, as specified by the DbFile.getId()
+     *     function passed to addTable
+     */
+    public List<SecondaryIndex> getIndexes(int tableid) {
+        List<SecondaryIndex> indexes=idToIndexes.get(tableid);
+        return indexes==null?Collections.emptyList():indexes;
+    }
+
     /**
      * Return the id of the table with a specified name,
      * @throws NoSuchElementException if the table doesn't exist
@@ -148,6 +181,7 @@ public class Catalog {
         idToKey.clear();
         idToFile.clear();
         nameToId.clear();
+        idToIndexes.clear();
     }
     
     /**
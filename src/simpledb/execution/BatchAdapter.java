@@ -0,0 +1,64 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+/**
+ * BatchAdapter returns the tuples of an OpIterator in batches, so that a
+ * tuple-at-a-time operator can feed a batch-at-a-time one.
+ *
+ * @see TupleAdapter
+ */
+public class BatchAdapter implements BatchIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final OpIterator child;
+    private transient TupleBatch batch;
+    private boolean isOpen = false;
+
+    /**
+     * @param child the iterator of the tuples to return in batches
+     */
+    public BatchAdapter(OpIterator child) {
+        this.child = child;
+    }
+
+    /**
+     * @return the iterator of the tuples this adapter returns in batches
+     */
+    public OpIterator getChild() {
+        return child;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child.open();
+        batch = new TupleBatch(child.getTupleDesc());
+        isOpen = true;
+    }
+
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (!isOpen)
+            throw new IllegalStateException("iterator is closed");
+        batch.clear();
+        while (!batch.isFull() && child.hasNext())
+            batch.addTuple(child.next());
+        return batch.numRows() > 0 ? batch : null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void close() {
+        child.close();
+        batch = null;
+        isOpen = false;
+    }
+}
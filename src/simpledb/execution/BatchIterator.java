@@ -0,0 +1,57 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.io.Serializable;
+
+/**
+ * BatchIterator is the iterator interface of the operators which return a
+ * batch of rows per call instead of a tuple, so that the per-tuple costs of
+ * OpIterator are paid once per batch and the operators loop over the column
+ * vectors of a TupleBatch. BatchAdapter and TupleAdapter convert between the
+ * two interfaces, so that a plan can mix both kinds of operators. If the
+ * iterator is not open, none of the methods should work, and should throw an
+ * IllegalStateException.
+ *
+ * @see TupleBatch
+ * @see BatchAdapter
+ * @see TupleAdapter
+ */
+public interface BatchIterator extends Serializable {
+    /**
+     * Opens the iterator. This must be called before any of the other methods.
+     * @throws DbException when there are problems opening/accessing the database.
+     */
+    void open() throws DbException, TransactionAbortedException;
+
+    /**
+     * Returns the next batch of rows. The batch belongs to the iterator: it is
+     * only valid until the next call of nextBatch, rewind or close, so a caller
+     * which keeps rows has to copy them.
+     *
+     * @return the next batch, which has at least one row, or null if there are
+     *         no more rows
+     * @throws IllegalStateException If the iterator has not been opened
+     */
+    TupleBatch nextBatch() throws DbException, TransactionAbortedException;
+
+    /**
+     * Resets the iterator to the start.
+     * @throws DbException when rewind is unsupported.
+     * @throws IllegalStateException If the iterator has not been opened
+     */
+    void rewind() throws DbException, TransactionAbortedException;
+
+    /**
+     * @return the TupleDesc of the rows of the batches of this iterator
+     */
+    TupleDesc getTupleDesc();
+
+    /**
+     * Closes the iterator.
+     */
+    void close();
+}
@@ -0,0 +1,37 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.Tuple;
+import simpledb.transaction.TransactionAbortedException;
+
+/**
+ * Reads a child of a join as a DbFileIterator, so that the join can treat it
+ * like its spill files or sorted runs. The join opens and closes the child
+ * itself.
+ */
+class ChildIterator implements DbFileIterator {
+    private final OpIterator child;
+
+    ChildIterator(OpIterator child) {
+        this.child = child;
+    }
+
+    public void open() {
+    }
+
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+        return child.hasNext();
+    }
+
+    public Tuple next() throws DbException, TransactionAbortedException {
+        return child.next();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+    }
+
+    public void close() {
+    }
+}
@@ -1,14 +1,39 @@
 package simpledb.execution;
 
+import simpledb.common.Type;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.SpillFile;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * HashEquiJoin is a hybrid hash join. It loads the rows of one child, the
+ * build side, into a hash table on the join field and looks the rows of the
+ * other child, the probe side, up in it. The build side is the child with the
+ * smaller estimated cardinality if these were set with setInputCardinalities,
+ * and child1 otherwise.
+ * <p>
+ * The hash table may hold as many rows as fit in the memory budget set with
+ * setMemoryPages. If the build side is larger, both sides are partitioned by a
+ * hash of the join field: the rows of the first partition stay in memory and
+ * are joined as the probe side is read, the other partitions are written to
+ * spill files and joined pairwise afterwards. Each partition being written
+ * takes one page of the budget, so the hash table holds fewer rows then. A partition which does not fit
+ * in memory either is partitioned again with another hash function. If that
+ * does not split it, e.g. because all its rows have the same key, the
+ * partition is joined a memory-sized chunk of build rows at a time instead.
+ * Every child is read exactly once, and a spilled row is written and read
+ * once per level of partitioning.
  */
 public class HashEquiJoin extends Operator {
 
@@ -16,13 +41,38 @@ public class HashEquiJoin extends Operator {
     private final JoinPredicate pred;
     private OpIterator child1, child2;
     private final TupleDesc comboTD;
-    transient private Tuple t1 = null;
-    transient private Tuple t2 = null;
+
+    /** The number of pages of memory the hash table may use unless set otherwise */
+    public static final int DEFAULT_MEMORY_PAGES = 2048;
+    // at most this many partitions per level, and this many levels before a
+    // partition is joined in chunks
+    private static final int MAX_FANOUT = 32;
+    private static final int MAX_DEPTH = 4;
+
+    // estimated cardinalities of the children, 0 if unknown
+    private int card1 = 0;
+    private int card2 = 0;
+    private int memoryPages = DEFAULT_MEMORY_PAGES;
+
+    transient private boolean buildLeft = true;
+    transient private int rowsPerPage;
+    // the rows the table may hold while the job is not partitioned
+    transient private int budgetRows;
+    transient private JoinTable table = null;
+    // the pair of inputs being joined and the spilled partitions left to join
+    transient private Job job = null;
+    transient private Deque<Job> pending = null;
+    // whether the table holds the whole build side, so that a rewind only reads the probe side again
+    transient private boolean inMemory = false;
+    transient private int spilledPartitions = 0;
+    // the row of the probe side being looked up and the next matching build row
+    transient private Tuple probe = null;
+    transient private int match = -1;
 
     /**
      * Constructor. Accepts to children to join and the predicate to join them
      * on
-     * 
+     *
      * @param p
      *            The predicate to use to join the children
      * @param child1
@@ -44,7 +94,7 @@ public class HashEquiJoin extends Operator {
     public TupleDesc getTupleDesc() {
         return comboTD;
     }
-    
+
     public String getJoinField1Name()
     {
 	return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
@@ -54,48 +104,139 @@ public class HashEquiJoin extends Operator {
     {
 	return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
     }
-    
-    final Map<Object, List<Tuple>> map = new HashMap<>();
-    public final static int MAP_SIZE = 20000;
 
-    private boolean loadMap() throws DbException, TransactionAbortedException {
-        int cnt = 0;
-        map.clear();
-        while (child1.hasNext()) {
-            t1 = child1.next();
-            List<Tuple> list = map.computeIfAbsent(t1.getField(pred.getField1()), k -> new ArrayList<>());
-            list.add(t1);
-            if (cnt++ == MAP_SIZE)
-                return true;
-        }
-        return cnt > 0;
+    /**
+     * Set the estimated cardinalities of the children, e.g. from TableStats,
+     * which choose the build side and size the hash table and the partitions.
+     * Takes effect at the next open.
+     *
+     * @param card1 the estimated number of rows of child1, 0 if unknown
+     * @param card2 the estimated number of rows of child2, 0 if unknown
+     */
+    public void setInputCardinalities(int card1, int card2) {
+        this.card1 = Math.max(card1, 0);
+        this.card2 = Math.max(card2, 0);
+    }
+
+    /**
+     * @return true if the hash table is built on child1, false if on child2
+     */
+    public boolean buildsOnLeft() {
+        return card1 == 0 || card2 == 0 || card1 <= card2;
+    }
+
+    /**
+     * Set the memory budget of the join, as a number of pages of rows of the
+     * build side, DEFAULT_MEMORY_PAGES by default. The budget covers the hash
+     * table and the pages being filled of the partitions. Takes effect at the
+     * next open.
+     *
+     * @param pages the number of pages the join may hold, at least 3
+     */
+    public void setMemoryPages(int pages) {
+        if (pages < 3)
+            throw new IllegalArgumentException("a hash join needs at least 3 pages, got " + pages);
+        this.memoryPages = pages;
+    }
+
+    /**
+     * @return the number of build partitions written to spill files since the
+     *         join was opened
+     */
+    public int numSpilledPartitions() {
+        return spilledPartitions;
+    }
+
+    private OpIterator buildChild() {
+        return buildLeft ? child1 : child2;
+    }
+
+    private OpIterator probeChild() {
+        return buildLeft ? child2 : child1;
+    }
+
+    private int buildField() {
+        return buildLeft ? pred.getField1() : pred.getField2();
+    }
 
+    private int probeField() {
+        return buildLeft ? pred.getField2() : pred.getField1();
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
         child2.open();
-        loadMap();
+        buildLeft = buildsOnLeft();
+        TupleDesc buildTD = buildChild().getTupleDesc();
+        rowsPerPage = Math.max(1, BufferPool.getPageSize() / buildTD.getSize());
+        budgetRows = memoryPages * rowsPerPage;
+        int expected = buildLeft ? card1 : card2;
+        boolean intKeys = buildTD.getFieldType(buildField()) == Type.INT_TYPE;
+        table = new JoinTable(intKeys, Math.min(expected, budgetRows));
+        pending = new ArrayDeque<>();
+        spilledPartitions = 0;
+        start();
         super.open();
     }
 
+    private void start() {
+        job = new Job(new ChildIterator(buildChild()), new ChildIterator(probeChild()), null, null, 0, false);
+        inMemory = false;
+        probe = null;
+        match = -1;
+    }
+
     public void close() {
         super.close();
         child2.close();
         child1.close();
-        this.t1=null;
-        this.t2=null;
-        this.listIt=null;
-        this.map.clear();
+        discardJobs();
+        this.table = null;
+        this.pending = null;
+        this.probe = null;
+    }
+
+    private void discardJobs() {
+        if (job != null)
+            job.discard();
+        job = null;
+        if (pending != null) {
+            for (Job j : pending)
+                j.discard();
+            pending.clear();
+        }
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        child1.rewind();
-        child2.rewind();
+        probeChild().rewind();
+        if (inMemory) {
+            // the table holds the whole build side, so only the probe side is read again
+            job = new Job(null, new ChildIterator(probeChild()), null, null, 0, false);
+            job.built = true;
+            probe = null;
+            match = -1;
+            return;
+        }
+        discardJobs();
+        buildChild().rewind();
+        start();
     }
 
-    transient Iterator<Tuple> listIt = null;
+    private Tuple joined(Tuple build, Tuple probe) {
+        Tuple left = buildLeft ? build : probe;
+        Tuple right = buildLeft ? probe : build;
+        int td1n = left.getTupleDesc().numFields();
+        int td2n = right.getTupleDesc().numFields();
+
+        // set fields in combined tuple
+        Tuple t = new Tuple(comboTD);
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, left.getField(i));
+        for (int i = 0; i < td2n; i++)
+            t.setField(td1n + i, right.getField(i));
+        return t;
+    }
 
     /**
      * Returns the next tuple generated by the join, or null if there are no
@@ -111,53 +252,208 @@ public class HashEquiJoin extends Operator {
      * <p>
      * For example, if one tuple is {1,2,3} and the other tuple is {1,5,6},
      * joined on equality of the first column, then this returns {1,2,3,1,5,6}.
-     * 
+     *
      * @return The next matching tuple.
      * @see JoinPredicate#filter
      */
-    private Tuple processList() {
-        t1 = listIt.next();
-
-        int td1n = t1.getTupleDesc().numFields();
-        int td2n = t2.getTupleDesc().numFields();
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        try {
+            while (true) {
+                if (match >= 0) {
+                    Tuple t = joined(table.row(match), probe);
+                    match = table.next(match);
+                    return t;
+                }
+                if (job == null) {
+                    job = pending.poll();
+                    if (job == null)
+                        return null;
+                }
+                if (!job.built) {
+                    if (job.chunked)
+                        loadChunk(job);
+                    else
+                        build(job);
+                    job.built = true;
+                }
 
-        // set fields in combined tuple
-        Tuple t = new Tuple(comboTD);
-        for (int i = 0; i < td1n; i++)
-            t.setField(i, t1.getField(i));
-        for (int i = 0; i < td2n; i++)
-            t.setField(td1n + i, t2.getField(i));
-        return t;
+                // loop around the probe side
+                if (job.probe.hasNext()) {
+                    probe = job.probe.next();
+                    Field key = probe.getField(probeField());
+                    if (job.buildParts != null) {
+                        int p = partition(key, job.level, job.buildParts.length);
+                        if (p != 0 || !job.memoryPart) {
+                            // rows without a build partition have no matches
+                            if (job.buildParts[p] != null)
+                                spill(job.probeParts, p, probe);
+                            continue;
+                        }
+                    }
+                    match = table.head(key);
+                    continue;
+                }
 
+                // the probe side is done: join it with the next chunk of a skewed
+                // partition, or go on with the spilled partitions
+                if (job.chunked && job.build.hasNext()) {
+                    loadChunk(job);
+                    job.probe.rewind();
+                    continue;
+                }
+                finish(job);
+                job = null;
+            }
+        } catch (IOException e) {
+            throw new DbException("could not spill hash join partition: " + e.getMessage());
+        }
     }
 
-    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (listIt != null && listIt.hasNext()) {
-            return processList();
+    /**
+     * Load the build side of a job into the table, and partition both sides
+     * if it does not fit in memory.
+     */
+    private void build(Job job) throws DbException, TransactionAbortedException, IOException {
+        table.clear();
+        job.build.open();
+        job.probe.open();
+        int field = buildField();
+        while (job.build.hasNext()) {
+            Tuple t = job.build.next();
+            Field key = t.getField(field);
+            job.buildRows++;
+            if (job.buildParts == null) {
+                if (table.size() < budgetRows) {
+                    table.add(t, key);
+                    continue;
+                }
+                partition(job);
+            }
+            int p = partition(key, job.level, job.buildParts.length);
+            if (p == 0 && job.memoryPart) {
+                if (table.size() < job.memoryRows) {
+                    table.add(t, key);
+                    continue;
+                }
+                // the in-memory partition does not fit either: spill it as well
+                for (int i = 0; i < table.size(); i++)
+                    spill(job.buildParts, 0, table.row(i));
+                table.clear();
+                job.memoryPart = false;
+            }
+            spill(job.buildParts, p, t);
+        }
+        if (job.buildParts != null) {
+            // the build partitions are complete: their pages go to the probe partitions
+            for (SpillFile f : job.buildParts) {
+                if (f != null)
+                    f.finish();
+            }
         }
+        inMemory = job.level == 0 && job.buildParts == null;
+    }
 
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
+    /**
+     * Split the rows of the table into partitions, keeping the first one in
+     * memory and writing the others to spill files. One page of the budget is
+     * reserved for the page being filled of each partition, and the table
+     * keeps the rest.
+     */
+    private void partition(Job job) throws IOException {
+        long expected = job.buildFile != null ? job.buildFile.numTuples() : (buildLeft ? card1 : card2);
+        expected = Math.max(expected, 2L * budgetRows);
+        int fanout = (int) Math.min(Math.min(MAX_FANOUT, memoryPages - 1), (expected + budgetRows - 1) / budgetRows + 1);
+        job.buildParts = new SpillFile[fanout];
+        job.probeParts = new SpillFile[fanout];
+        job.memoryPart = true;
+        job.memoryRows = (memoryPages - fanout) * rowsPerPage;
 
-            // if match, create a combined tuple and fill it with the values
-            // from both tuples
-            List<Tuple> l = map.get(t2.getField(pred.getField2()));
-            if (l == null)
-                continue;
-            listIt = l.iterator();
+        List<Tuple> kept = new ArrayList<>();
+        int field = buildField();
+        for (int i = 0; i < table.size(); i++) {
+            Tuple t = table.row(i);
+            int p = partition(t.getField(field), job.level, fanout);
+            if (p == 0)
+                kept.add(t);
+            else
+                spill(job.buildParts, p, t);
+        }
+        table.clear();
+        if (kept.size() > job.memoryRows) {
+            // the in-memory partition does not fit in what is left of the budget
+            for (Tuple t : kept)
+                spill(job.buildParts, 0, t);
+            job.memoryPart = false;
+            return;
+        }
+        for (Tuple t : kept)
+            table.add(t, t.getField(field));
+    }
 
-            return processList();
+    /**
+     * The partition of a key at a level of partitioning; each level hashes
+     * differently, so that a partition is split by the next level, and
+     * differently from the hash table, so that the keys of a partition do not
+     * crowd the same slots of it.
+     */
+    private static int partition(Field key, int level, int fanout) {
+        int h = key.hashCode() * 0x85EBCA6B + level * 0x27D4EB2F;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return Math.floorMod(h, fanout);
+    }
 
-        }
+    private static void spill(SpillFile[] parts, int p, Tuple t) throws IOException {
+        if (parts[p] == null)
+            parts[p] = new SpillFile(t.getTupleDesc());
+        parts[p].add(t);
+    }
 
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
+    /**
+     * Load the next chunk of rows of a skewed partition into the table.
+     */
+    private void loadChunk(Job job) throws DbException, TransactionAbortedException {
+        if (!job.built) {
+            job.build.open();
+            job.probe.open();
+        }
+        table.clear();
+        int field = buildField();
+        while (table.size() < budgetRows && job.build.hasNext()) {
+            Tuple t = job.build.next();
+            table.add(t, t.getField(field));
         }
+    }
 
-        return null;
+    /**
+     * Queue the pairs of spilled partitions of a finished job, and delete the
+     * spill files it was reading.
+     */
+    private void finish(Job job) throws IOException {
+        if (job.buildParts != null) {
+            for (int p = 0; p < job.buildParts.length; p++) {
+                SpillFile build = job.buildParts[p];
+                SpillFile probe = job.probeParts[p];
+                if (build != null)
+                    spilledPartitions++;
+                if (build != null && probe != null) {
+                    // a partition which has all the rows of its parent was not split by the
+                    // hash function, and will not be by the next one
+                    boolean skewed = build.numTuples() == job.buildRows || job.level + 1 >= MAX_DEPTH;
+                    pending.add(new Job(build.iterator(), probe.iterator(), build, probe, job.level + 1, skewed));
+                } else {
+                    if (build != null)
+                        build.delete();
+                    if (probe != null)
+                        probe.delete();
+                }
+            }
+            job.buildParts = null;
+            job.probeParts = null;
+        }
+        if (job.buildFile != null)
+            job.discard();
     }
 
     @Override
@@ -170,5 +466,174 @@ public class HashEquiJoin extends Operator {
         this.child1 = children[0];
         this.child2 = children[1];
     }
-    
+
+    /**
+     * A pair of inputs to join: the children, or the build and probe spill
+     * files of a partition
+     */
+    private static class Job {
+        final DbFileIterator build;
+        final DbFileIterator probe;
+        // the files the iterators read, null for the children
+        final SpillFile buildFile;
+        final SpillFile probeFile;
+        final int level;
+        // whether the build side is joined a chunk at a time instead of partitioned
+        final boolean chunked;
+        boolean built = false;
+        long buildRows = 0;
+        // the partitions of the job if the build side did not fit in memory,
+        // whether the first one is in memory instead of a spill file, and the
+        // rows the table may hold for it
+        SpillFile[] buildParts = null;
+        SpillFile[] probeParts = null;
+        boolean memoryPart = false;
+        int memoryRows = 0;
+
+        Job(DbFileIterator build, DbFileIterator probe, SpillFile buildFile, SpillFile probeFile,
+            int level, boolean chunked) {
+            this.build = build;
+            this.probe = probe;
+            this.buildFile = buildFile;
+            this.probeFile = probeFile;
+            this.level = level;
+            this.chunked = chunked;
+        }
+
+        /**
+         * Close the iterators of the job and delete all its spill files.
+         */
+        void discard() {
+            if (buildFile != null) {
+                build.close();
+                probe.close();
+                buildFile.delete();
+                probeFile.delete();
+            }
+            for (SpillFile[] parts : new SpillFile[][]{buildParts, probeParts}) {
+                if (parts == null)
+                    continue;
+                for (SpillFile f : parts) {
+                    if (f != null)
+                        f.delete();
+                }
+            }
+            buildParts = null;
+            probeParts = null;
+        }
+    }
+
+    /**
+     * The rows of the build side packed in arrays: row i is rows[i], and next[i]
+     * is the row with the same key added before it, or -1. The last row added
+     * with an INT_TYPE key is found in an open-addressing table of primitive
+     * keys, without a Field object per lookup; other keys go through a HashMap.
+     */
+    private static class JoinTable {
+        private Tuple[] rows;
+        private int[] next;
+        private int size = 0;
+
+        // linear probing over keys and the last row added per key; -1 is an empty slot
+        private int[] keys;
+        private int[] heads;
+        private final Map<Field, Integer> fieldHeads;
+
+        JoinTable(boolean intKeys, int expectedRows) {
+            int capacity = Math.max(16, expectedRows);
+            rows = new Tuple[capacity];
+            next = new int[capacity];
+            if (intKeys) {
+                allocate(tableSize(capacity));
+                fieldHeads = null;
+            } else {
+                fieldHeads = new HashMap<>();
+            }
+        }
+
+        // a power of two at least twice the number of rows, i.e. half full at most
+        private static int tableSize(int rows) {
+            return Integer.highestOneBit(Math.max(rows, 8) - 1) << 2;
+        }
+
+        private void allocate(int slots) {
+            keys = new int[slots];
+            heads = new int[slots];
+            Arrays.fill(heads, -1);
+        }
+
+        private int slot(int key) {
+            int mask = keys.length - 1;
+            int i = (key * 0x9E3779B9) >>> 7 & mask;
+            while (heads[i] >= 0 && keys[i] != key)
+                i = (i + 1) & mask;
+            return i;
+        }
+
+        int size() {
+            return size;
+        }
+
+        void add(Tuple t, Field key) {
+            if (size == rows.length) {
+                rows = Arrays.copyOf(rows, 2 * size);
+                next = Arrays.copyOf(next, 2 * size);
+            }
+            rows[size] = t;
+            if (fieldHeads != null) {
+                Integer head = fieldHeads.put(key, size);
+                next[size] = head == null ? -1 : head;
+            } else {
+                if (2 * (size + 1) > keys.length)
+                    rehash();
+                int k = ((IntField) key).getValue();
+                int i = slot(k);
+                keys[i] = k;
+                next[size] = heads[i];
+                heads[i] = size;
+            }
+            size++;
+        }
+
+        private void rehash() {
+            int[] oldKeys = keys;
+            int[] oldHeads = heads;
+            allocate(2 * oldKeys.length);
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldHeads[i] >= 0) {
+                    int j = slot(oldKeys[i]);
+                    keys[j] = oldKeys[i];
+                    heads[j] = oldHeads[i];
+                }
+            }
+        }
+
+        /**
+         * @return the last row added with the key, or -1 if there is none
+         */
+        int head(Field key) {
+            if (fieldHeads != null) {
+                Integer head = fieldHeads.get(key);
+                return head == null ? -1 : head;
+            }
+            return heads[slot(((IntField) key).getValue())];
+        }
+
+        int next(int row) {
+            return next[row];
+        }
+
+        Tuple row(int row) {
+            return rows[row];
+        }
+
+        void clear() {
+            Arrays.fill(rows, 0, size, null);
+            size = 0;
+            if (fieldHeads != null)
+                fieldHeads.clear();
+            else
+                Arrays.fill(heads, -1);
+        }
+    }
 }
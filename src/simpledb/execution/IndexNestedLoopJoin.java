@@ -0,0 +1,319 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.index.HashFile;
+import simpledb.index.HashScan;
+import simpledb.storage.DbFile;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+/**
+ * The IndexNestedLoopJoin operator implements an equality join whose inner
+ * relation is a BTreeFile or HashFile keyed on the join field. Instead of
+ * scanning the inner relation, every outer tuple looks its matches up in the
+ * B+ tree or hash table.
+ * <p>
+ * The outer tuples are read in batches of BATCH_SIZE and sorted on the join
+ * field. The keys of one batch are looked up together with a single batched
+ * probe, which walks the leaves from left to right and only goes back to the
+ * root for keys beyond the next leaf, or looks the keys up in the hash table
+ * one after another, and outer tuples with the same key share their matches.
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The number of outer tuples sorted and probed together */
+    public static final int BATCH_SIZE = 1000;
+
+    private final TransactionId tid;
+    private final JoinPredicate pred;
+    private OpIterator child1, child2;
+    private final TupleDesc comboTD;
+    private DbFile inner;
+    private List<Predicate> innerFilters;
+
+    transient private List<Tuple> batch = null;
+    transient private int batchPos = 0;
+    transient private DbFileIterator probeIt = null;
+    transient private Tuple pending = null;
+    transient private Field probeKey = null;
+    transient private List<Tuple> matches = null;
+    transient private Iterator<Tuple> matchIt = null;
+    transient private Tuple t1 = null;
+
+    /**
+     * Constructor. Accepts the outer relation and the inner relation to look
+     * up through its B+ tree or hash table, and the predicate to join them on.
+     *
+     * @param tid
+     *            The transaction the probes of the inner relation run as a
+     *            part of
+     * @param p
+     *            The predicate to use to join the children; its operator
+     *            must be EQUALS
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            The plan of the right(inner) relation: a SeqScan or
+     *            BTreeScan of a BTreeFile, or a SeqScan or HashScan of a
+     *            HashFile, keyed on the join field, under any number of
+     *            Filters
+     * @throws IllegalArgumentException
+     *             if the inner relation cannot be probed on the join field
+     * @see #canProbe
+     */
+    public IndexNestedLoopJoin(TransactionId tid, JoinPredicate p, OpIterator child1, OpIterator child2) {
+        if (p.getOperator() != Predicate.Op.EQUALS || !canProbe(child2, p.getField2()))
+            throw new IllegalArgumentException("inner relation cannot be probed on field " + p.getField2());
+        this.tid = tid;
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+        unwrapInner();
+    }
+
+    /**
+     * @return the BTreeFile or HashFile under the Filters of plan if it is
+     *         read by a SeqScan, BTreeScan or HashScan, or null
+     */
+    private static DbFile innerFile(OpIterator plan) {
+        while (plan instanceof Filter)
+            plan = ((Filter) plan).getChildren()[0];
+        String name;
+        if (plan instanceof SeqScan)
+            name = ((SeqScan) plan).getTableName();
+        else if (plan instanceof BTreeScan)
+            name = ((BTreeScan) plan).getTableName();
+        else if (plan instanceof HashScan)
+            name = ((HashScan) plan).getTableName();
+        else
+            return null;
+        DbFile f = Database.getCatalog().getDatabaseFile(Database.getCatalog().getTableId(name));
+        return f instanceof BTreeFile || f instanceof HashFile ? f : null;
+    }
+
+    /**
+     * @return the key field of a BTreeFile or HashFile
+     */
+    private static int keyField(DbFile f) {
+        return f instanceof BTreeFile ? ((BTreeFile) f).keyField() : ((HashFile) f).keyField();
+    }
+
+    /**
+     * Returns whether plan can be the inner relation of an index nested loop
+     * join on the given field: it has to read a BTreeFile keyed on that field
+     * through a SeqScan or BTreeScan, or a HashFile keyed on that field through
+     * a SeqScan or HashScan, with any number of Filters on top.
+     *
+     * @param plan
+     *            the plan of the inner relation
+     * @param field
+     *            the index of the join field in the tuples of plan
+     */
+    public static boolean canProbe(OpIterator plan, int field) {
+        DbFile f = innerFile(plan);
+        return f != null && keyField(f) == field;
+    }
+
+    /**
+     * Collect the BTreeFile or HashFile and the predicates the inner plan applies, which
+     * the probes have to apply as well.
+     */
+    private void unwrapInner() {
+        inner = innerFile(child2);
+        innerFilters = new ArrayList<>();
+        OpIterator plan = child2;
+        while (plan instanceof Filter) {
+            innerFilters.add(((Filter) plan).getPredicate());
+            plan = ((Filter) plan).getChildren()[0];
+        }
+        if (plan instanceof BTreeScan && ((BTreeScan) plan).getIndexPredicate() != null) {
+            IndexPredicate ipred = ((BTreeScan) plan).getIndexPredicate();
+            innerFilters.add(new Predicate(keyField(inner), ipred.getOp(), ipred.getField()));
+        } else if (plan instanceof HashScan && ((HashScan) plan).getIndexPredicate() != null) {
+            IndexPredicate ipred = ((HashScan) plan).getIndexPredicate();
+            innerFilters.add(new Predicate(keyField(inner), ipred.getOp(), ipred.getField()));
+        }
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public String getJoinField1Name() {
+        return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child1.close();
+        reset();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        reset();
+    }
+
+    private void reset() {
+        closeProbe();
+        batch = null;
+        batchPos = 0;
+        probeKey = null;
+        matches = null;
+        matchIt = null;
+        t1 = null;
+    }
+
+    private void closeProbe() {
+        if (probeIt != null)
+            probeIt.close();
+        probeIt = null;
+        pending = null;
+    }
+
+    /**
+     * Read the next batch of outer tuples, sort it on the join field and
+     * start the batched probe of its keys.
+     *
+     * @return false if the outer relation is exhausted
+     */
+    private boolean loadBatch() throws DbException, TransactionAbortedException {
+        closeProbe();
+        // the matches of the last key belong to the probe of the previous
+        // batch, even if this batch starts with the same key
+        probeKey = null;
+        matches = null;
+        batch = new ArrayList<>(BATCH_SIZE);
+        batchPos = 0;
+        while (batch.size() < BATCH_SIZE && child1.hasNext())
+            batch.add(child1.next());
+        int f1 = pred.getField1();
+        batch.sort((a, b) -> {
+            Field x = a.getField(f1), y = b.getField(f1);
+            if (x.compare(Predicate.Op.LESS_THAN, y))
+                return -1;
+            return x.compare(Predicate.Op.GREATER_THAN, y) ? 1 : 0;
+        });
+        if (batch.isEmpty())
+            return false;
+        List<Field> keys = new ArrayList<>();
+        for (Tuple t : batch) {
+            Field key = t.getField(f1);
+            if (keys.isEmpty() || !keys.get(keys.size() - 1).equals(key))
+                keys.add(key);
+        }
+        probeIt = inner instanceof BTreeFile ? ((BTreeFile) inner).indexIterator(tid, keys)
+                : ((HashFile) inner).indexIterator(tid, keys);
+        probeIt.open();
+        return true;
+    }
+
+    /**
+     * Collect the inner tuples with the given key from the batched probe,
+     * which returns the matches of the keys of the batch in key order.
+     */
+    private List<Tuple> probe(Field key) throws DbException, TransactionAbortedException {
+        List<Tuple> result = new ArrayList<>();
+        int keyField = keyField(inner);
+        outer:
+        while (pending != null || probeIt.hasNext()) {
+            Tuple t = pending != null ? pending : probeIt.next();
+            pending = null;
+            if (t.getField(keyField).compare(Predicate.Op.GREATER_THAN, key)) {
+                // the first match of the next key of the batch
+                pending = t;
+                break;
+            }
+            for (Predicate p : innerFilters) {
+                if (!p.filter(t))
+                    continue outer;
+            }
+            result.add(t);
+        }
+        return result;
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2) {
+        int td1n = t1.getTupleDesc().numFields();
+        int td2n = t2.getTupleDesc().numFields();
+
+        // set fields in combined tuple
+        Tuple t = new Tuple(comboTD);
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < td2n; i++)
+            t.setField(td1n + i, t2.getField(i));
+        return t;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. The tuples are the concatenation of the joining outer and
+     * inner tuples, ordered on the join field within each batch of outer
+     * tuples.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (matchIt != null && matchIt.hasNext())
+                return merge(t1, matchIt.next());
+            if (batch == null || batchPos == batch.size()) {
+                if (!loadBatch())
+                    return null;
+            }
+            t1 = batch.get(batchPos++);
+            Field key = t1.getField(pred.getField1());
+            // the batch is sorted, so equal keys are adjacent and share a probe
+            if (probeKey == null || !probeKey.equals(key)) {
+                probeKey = key;
+                matches = probe(key);
+            }
+            matchIt = matches.iterator();
+        }
+    }
+
+    /**
+     * The inner plan is returned as the second child to describe the join,
+     * but it is never opened: the join reads the inner relation through its
+     * B+ tree or hash table.
+     */
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+        unwrapInner();
+    }
+
+}
@@ -1,9 +1,8 @@
 package simpledb.execution;
 
-import simpledb.common.Type;
-import simpledb.storage.TupleIterator;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
+import simpledb.storage.Field;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
@@ -11,6 +10,14 @@ import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * Join is a block nested loops join which returns every joined tuple as soon
+ * as it finds it. It reads child1 a block of blockMemory bytes at a time and
+ * sorts the block on the join field; then it reads child2 once per block, and
+ * joins every tuple of child2 with the range of the block it matches, which a
+ * binary search finds for every comparison but NOT_EQUALS and LIKE. Only the
+ * current block and tuple of child2 are kept in memory, and fetchNext resumes
+ * where the last call stopped.
  */
 public class Join extends Operator {
 
@@ -19,12 +26,22 @@ public class Join extends Operator {
     private JoinPredicate joinPredicate;
     private TupleDesc td;
     private OpIterator child1,child2;
-    private TupleIterator joinRes;
     //131072是MySQL中BlockNestedLoopJoin算法的默认缓冲区大小
     //增大该参数可以更大程度减少磁盘IO，并充分利用已经优化过的内存中的Join算法
     //对于测试案例中的两个大表的Join，使用默认大小需要25s，使用2倍大小需要15s
     //5倍需要10s,10倍需要6s，所以权衡时间与空间的消耗来说，5倍比较合适
     public static final int blockMemory = 131072;
+
+    // the current block of child1, sorted on the join field
+    transient private Tuple[] block;
+    transient private int blockSize = 0;
+    // the current tuple of child2, and the next and end of the range of the block it matches
+    transient private Tuple right;
+    transient private int pos = 0;
+    transient private int end = 0;
+    // whether child2 was read for the current block, and has to be rewound for the next
+    transient private boolean rightRead = false;
+
     /**
      * Constructor. Accepts two children to join and the predicate to join them
      * on
@@ -41,10 +58,6 @@ public class Join extends Operator {
         joinPredicate=p;
         this.child1=child1;
         this.child2 =child2;
-        int len1=child1.getTupleDesc().numFields();
-        int len2=child2.getTupleDesc().numFields();
-        Type[] types=new Type[len1+len2];
-        String[] names=new String[len1+len2];
         td=TupleDesc.merge(child1.getTupleDesc(),child2.getTupleDesc());
     }
 
@@ -87,183 +100,104 @@ public class Join extends Operator {
         // some code goes here
         child1.open();
         child2.open();
+        block = new Tuple[Math.max(1, blockMemory / child1.getTupleDesc().getSize())];
+        reset();
         super.open();
-        joinRes=dbnlSortedJoin();
-        joinRes.open();
+    }
+
+    private void reset() {
+        if (block != null)
+            Arrays.fill(block, 0, blockSize, null);
+        blockSize = 0;
+        right = null;
+        pos = end = 0;
+        rightRead = false;
+    }
+
+    public void close() {
+        // some code goes here
+        super.close();
+        child2.close();
+        child1.close();
+        block = null;
+        right = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        // some code goes here
+        child1.rewind();
+        child2.rewind();
+        reset();
     }
 
     /**
-     * 传统的BlockNestedLoopJoin只是对左表做缓存，使用Block来减少对左表的访问带来的磁盘IO次数（每一个Page都要带来一次IO访问）
-     * DoubleBlockNestedJoin是对右表也做缓存处理，后来发现效果并不明显，
-     * 我一开始认为还是IO瓶颈，所以给HeapFile加了对多个Pages的缓存
-     * 然而除了对于（左部）大表Join（右部）小表有了一些不明显的效率提高之外，对于大表Join大表仍然效率极低
-     * 最后发现此时性能瓶颈在于对两个缓存区Block做Join操作，Block虽然比一个大表小，
-     * 但实际上也不小（测试案例中两个Block是长度为16384和963的数组）
-     * 在查阅了MergeJoin算法之后，觉得先排序再Join的思想挺好，就将两个Block的Join换成了先排序再Join的版本，得到了bnlSortedJoin
-     * PS: NestedLoopJoin，BlockNestedLoopJoin和DoubleBlockNestedJoin的源码见最后的注释
+     * Load the next block of child1 and sort it on the join field. (The
+     * earlier nested loops joins, which computed the whole join up front,
+     * are in the comment at the end of the file.)
+     *
+     * @return false if child1 has no more tuples
      */
-    private TupleIterator dbnlSortedJoin() throws DbException,TransactionAbortedException {
-        LinkedList<Tuple> tuples = new LinkedList<>();
-        int blockSize1 = blockMemory / child1.getTupleDesc().getSize();
-        int blockSize2 = blockMemory / child2.getTupleDesc().getSize();
-        Tuple[] leftCacheBlock = new Tuple[blockSize1];
-        Tuple[] rightCacheBlock = new Tuple[blockSize2];
-        int index1 = 0;
-        int index2 = 0;
-        int len1 = child1.getTupleDesc().numFields();
-        child1.rewind();
-        while (child1.hasNext()) {
-            Tuple left = child1.next();
-            leftCacheBlock[index1++] = left;//将左表的tuple放入左缓存区
-            if (index1 >= leftCacheBlock.length) {
-                //若左表缓冲区满了，就先出力缓存中的tuple
-                //以下为使用另一个数组作为缓存将右表分块处理的过程，就是缓存满了就Join一次，最后处理在缓存中剩下的
-                //即下面的for里面的并列的while和if块是对右表的处理过程
-                child2.rewind();//每处理完一整个左缓存区的tuples才rewind一次右表
-                while (child2.hasNext()) {
-                    Tuple right = child2.next();
-                    rightCacheBlock[index2++] = right;//将右表的tuple放入缓存区
-                    if (index2 >= rightCacheBlock.length) {//如果右缓冲区满了，就先处理缓存中的tuple
-                        sortedJoin(tuples, leftCacheBlock, rightCacheBlock, len1);
-                        Arrays.fill(rightCacheBlock, null);
-                        index2 = 0;
-                    }
-                    if (index2 > 0 && index2 < rightCacheBlock.length) {//处理缓冲区中剩下的tuple
-                        sortedJoin(tuples,leftCacheBlock,rightCacheBlock,len1);
-                        Arrays.fill(rightCacheBlock,null);
-                        index2=0;
-                    }
-                    Arrays.fill(leftCacheBlock,null);
-                    index1=0;
-                }
-            }
-        }
-        if(index1>0&&index1<leftCacheBlock.length){//处理缓冲区中剩下的tuple
-            child2.rewind();
-            while (child2.hasNext()){
-                Tuple right=child2.next();
-                rightCacheBlock[index2++]=right;//将右表的tuple放入缓存
-                if(index2>=rightCacheBlock.length){
-                    sortedJoin(tuples,leftCacheBlock,rightCacheBlock,len1);
-                    Arrays.fill(rightCacheBlock,null);
-                    index2=0;
-                }
-            }
-            if(index2>0&&index2<rightCacheBlock.length){//处理缓冲区中剩下的tuple
-                sortedJoin(tuples,leftCacheBlock,rightCacheBlock,len1);
-            }
+    private boolean loadBlock() throws DbException, TransactionAbortedException {
+        Arrays.fill(block, 0, blockSize, null);
+        blockSize = 0;
+        while (blockSize < block.length && child1.hasNext())
+            block[blockSize++] = child1.next();
+        Arrays.sort(block, 0, blockSize, new TupleComparator(joinPredicate.getField1(), true));
+        return blockSize > 0;
+    }
+
+    /**
+     * @return the index of the first tuple of the block whose join field
+     *         compares with key by op, given that these are a suffix of the block
+     */
+    private int search(Predicate.Op op, Field key) {
+        int field = joinPredicate.getField1();
+        int lo = 0, hi = blockSize;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (block[mid].getField(field).compare(op, key))
+                hi = mid;
+            else
+                lo = mid + 1;
         }
-        return new TupleIterator(getTupleDesc(),tuples);
+        return lo;
     }
-    private void sortedJoin(LinkedList<Tuple> tuples,Tuple[] lcd,Tuple[] rcd,int len){
-        //去掉两个Block的null值
-        int m=lcd.length-1;
-        int n=rcd.length-1;
-        for(;m>0&&lcd[m]==null;m--);
-        for(;n>0&&rcd[n]==null;n--);
-        Tuple[] leftCacheBlock=new Tuple[m+1];
-        Tuple[] rightCacheBlock=new Tuple[n+1];
-        System.arraycopy(lcd,0,leftCacheBlock,0,leftCacheBlock.length);
-        System.arraycopy(rcd,0,rightCacheBlock,0,rightCacheBlock.length);
-        int index1=joinPredicate.getField1();
-        int index2=joinPredicate.getField2();
-        //这几个predicate用于每个数组内部的tuple比较，故每个都要需要使用各自的index
-        JoinPredicate eqPredicate1=new JoinPredicate(index1,Predicate.Op.EQUALS,index1);
-        JoinPredicate eqPredicate2=new JoinPredicate(index2,Predicate.Op.EQUALS,index2);
-        JoinPredicate lessPredicate1=new JoinPredicate(index1,Predicate.Op.LESS_THAN,index1);
-        JoinPredicate lessPredicate2=new JoinPredicate(index2,Predicate.Op.LESS_THAN,index2);
-        JoinPredicate greaterPredicate1=new JoinPredicate(index1,Predicate.Op.GREATER_THAN,index1);
-        JoinPredicate greaterPredicate2=new JoinPredicate(index2,Predicate.Op.GREATER_THAN,index2);
-        //先对两个缓存区进行排序
-        Comparator<Tuple> comparator1=new Comparator<Tuple>() {
-            @Override
-            public int compare(Tuple o1, Tuple o2) {
-                if(lessPredicate1.filter(o1,o2)){
-                    return -1;
-                }else if(greaterPredicate1.filter(o1,o2)){
-                    return 1;
-                }else return 0;
 
-            }
-        };
-        Comparator<Tuple> comparator2=new Comparator<Tuple>() {
-            @Override
-            public int compare(Tuple o1, Tuple o2) {
-                if(lessPredicate2.filter(o1,o2)){
-                    return -1;
-                }else if(greaterPredicate2.filter(o1,o2)){
-                    return 1;
-                }else return 0;
-            }
-        };
-        Arrays.sort(leftCacheBlock,comparator1);
-        Arrays.sort(rightCacheBlock,comparator2);
-        //两个数组的当前访问到的索引位置
-        int pos1,pos2;
-        switch (joinPredicate.getOperator()){
-            case EQUALS :
-                pos1=pos2=0;
-                while (pos1<leftCacheBlock.length&&pos2<rightCacheBlock.length){
-                    Tuple left=leftCacheBlock[pos1];
-                    Tuple right=rightCacheBlock[pos2];
-                    //这两个Predicate用于来自两个数组的tuple比较，故使用index1和index2
-                    JoinPredicate eqPredicate=new JoinPredicate(index1,Predicate.Op.EQUALS,index2);
-                    JoinPredicate lessPredicate=new JoinPredicate(index1,Predicate.Op.LESS_THAN,index2);
-                    if(eqPredicate.filter(left,right)){
-                        int begin1,end1,begin2,end2;
-                        begin1=pos1;
-                        begin2=pos2;
-                        for(;pos1<leftCacheBlock.length&&eqPredicate1.filter(left,leftCacheBlock[pos1]);pos1++);
-                        for(;pos2<rightCacheBlock.length&&eqPredicate2.filter(right,rightCacheBlock[pos2]);pos2++);
-                        end1=pos1;
-                        end2=pos2;
-                        for(int i=begin1;i<end1;i++){
-                            for(int j=begin2;j<end2;j++){
-                                tuples.add(mergeTuples(len,leftCacheBlock[i],rightCacheBlock[j]));
-                            }
-                        }
-                    }else if(lessPredicate.filter(left,right))
-                        pos1++;
-                    else
-                        pos2++;
-                }
+    /**
+     * Set pos and end to the range of the block which right matches
+     */
+    private void matchRange() {
+        Field key = right.getField(joinPredicate.getField2());
+        pos = 0;
+        end = blockSize;
+        switch (joinPredicate.getOperator()) {
+            case EQUALS:
+                pos = search(Predicate.Op.GREATER_THAN_OR_EQ, key);
+                end = search(Predicate.Op.GREATER_THAN, key);
                 break;
             case LESS_THAN:
+                end = search(Predicate.Op.GREATER_THAN_OR_EQ, key);
+                break;
             case LESS_THAN_OR_EQ:
-                pos1=0;
-                while (pos1<leftCacheBlock.length){
-                    Tuple left=leftCacheBlock[pos1];
-                    pos2=rightCacheBlock.length-1;
-                    while (pos2>0){
-                        Tuple right=rightCacheBlock[pos2];
-                        pos2--;
-                        if(joinPredicate.filter(left,right)){
-                            tuples.add(mergeTuples(len,left,right));
-                        }
-                        else break;
-                    }
-                    pos1++;
-                }
+                end = search(Predicate.Op.GREATER_THAN, key);
+                break;
             case GREATER_THAN:
+                pos = search(Predicate.Op.GREATER_THAN, key);
+                break;
             case GREATER_THAN_OR_EQ:
-                pos1=0;
-                while (pos1<leftCacheBlock.length){
-                    Tuple left=leftCacheBlock[pos1];
-                    pos2=0;
-                    while (pos2<rightCacheBlock.length){
-                        Tuple right=rightCacheBlock[pos2];
-                        pos2++;
-                        if(joinPredicate.filter(left,right)){
-                            tuples.add(mergeTuples(len,left,right));
-                        }else break;
-                    }
-                    pos1++;
-                }
+                pos = search(Predicate.Op.GREATER_THAN_OR_EQ, key);
                 break;
             default:
-                throw new RuntimeException("JoinPredicate is Illegal");
+                // NOT_EQUALS and LIKE match no range: every tuple of the block is filtered
+                break;
         }
     }
+
+    private boolean rangeMatches() {
+        Predicate.Op op = joinPredicate.getOperator();
+        return op != Predicate.Op.NOT_EQUALS && op != Predicate.Op.LIKE;
+    }
+
     private Tuple mergeTuples(int length1,Tuple left,Tuple right){
         Tuple res=new Tuple(td);
         for(int i=0;i<length1;i++){
@@ -274,20 +208,6 @@ public class Join extends Operator {
         }
         return res;
     }
-    public void close() {
-        // some code goes here
-        super.close();
-        child2.close();
-        child1.close();
-        joinRes.close();
-    }
-
-    public void rewind() throws DbException, TransactionAbortedException {
-        // some code goes here
-        child1.rewind();
-        child2.rewind();
-        joinRes.rewind();
-    }
 
     /**
      * Returns the next tuple generated by the join, or null if there are no
@@ -309,10 +229,32 @@ public class Join extends Operator {
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
-        if(joinRes.hasNext())
-            return joinRes.next();
-        else
-            return null;
+        int len1 = child1.getTupleDesc().numFields();
+        while (true) {
+            // the rest of the range of the block the current tuple of child2 matches
+            while (right != null && pos < end) {
+                Tuple left = block[pos++];
+                if (rangeMatches() || joinPredicate.filter(left, right))
+                    return mergeTuples(len1, left, right);
+            }
+
+            // the next tuple of child2
+            if (blockSize > 0 && child2.hasNext()) {
+                right = child2.next();
+                rightRead = true;
+                matchRange();
+                continue;
+            }
+
+            // child2 is done with this block: read it again for the next one
+            if (!loadBlock())
+                return null;
+            if (rightRead)
+                child2.rewind();
+            rightRead = false;
+            right = null;
+            pos = end = 0;
+        }
     }
 
     @Override
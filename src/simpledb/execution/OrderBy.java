@@ -2,29 +2,41 @@ package simpledb.execution;
 
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
-import simpledb.storage.Field;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.ExternalSorter;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
  * OrderBy is an operator that implements a relational ORDER BY.
+ * <p>
+ * The tuples of the child are sorted with an ExternalSorter in memoryPages
+ * pages of memory: sorted runs of that size are written to spill files and
+ * merged, and the last merge streams its output. A rewind reads the sorted
+ * runs again without sorting the child again.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** The default number of pages of memory for the sort */
+    public final static int DEFAULT_MEMORY_PAGES = 1024;
+
     private OpIterator child;
     private final TupleDesc td;
-    private final List<Tuple> childTups = new ArrayList<>();
-    private final int orderByField;
+    private final int[] orderByFields;
+    private final boolean[] asc;
     private final String orderByFieldName;
-    private Iterator<Tuple> it;
-    private final boolean asc;
+    private int memoryPages = DEFAULT_MEMORY_PAGES;
+    private transient ExternalSorter sorter;
+    private transient DbFileIterator it;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
-     * 
+     *
      * @param orderbyField
      *            the field to which the sort is applied.
      * @param asc
@@ -33,28 +45,81 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, OpIterator child) {
+        this(new int[]{orderbyField}, new boolean[]{asc}, child);
+    }
+
+    /**
+     * Creates a new OrderBy node over the tuples from the iterator, sorted on
+     * several fields: tuples which are equal in the first field are ordered
+     * on the second, and so on.
+     *
+     * @param orderbyFields
+     *            the fields to which the sort is applied, at least one.
+     * @param asc
+     *            for every field, true if the sort order is ascending.
+     * @param child
+     *            the tuples to sort.
+     */
+    public OrderBy(int[] orderbyFields, boolean[] asc, OpIterator child) {
+        if (orderbyFields.length == 0 || orderbyFields.length != asc.length)
+            throw new IllegalArgumentException("need an order for each of at least one field");
         this.child = child;
         td = child.getTupleDesc();
-        this.orderByField = orderbyField;
-        this.orderByFieldName = td.getFieldName(orderbyField);
-        this.asc = asc;
+        this.orderByFields = orderbyFields.clone();
+        this.orderByFieldName = td.getFieldName(orderbyFields[0]);
+        this.asc = asc.clone();
     }
-    
+
     public boolean isASC()
     {
-	return this.asc;
+	return this.asc[0];
     }
-    
+
     public int getOrderByField()
     {
-        return this.orderByField;
+        return this.orderByFields[0];
     }
-    
+
     public String getOrderFieldName()
     {
 	return this.orderByFieldName;
     }
-    
+
+    /**
+     * @return the fields the sort is applied to, most significant first
+     */
+    public int[] getOrderByFields() {
+        return orderByFields.clone();
+    }
+
+    /**
+     * @return for every field of getOrderByFields, true if the sort order is
+     *         ascending
+     */
+    public boolean[] getAscOrders() {
+        return asc.clone();
+    }
+
+    /**
+     * Set the number of pages of memory the sort may use. Takes effect at the
+     * next open.
+     *
+     * @param pages the number of pages, at least 3
+     */
+    public void setMemoryPages(int pages) {
+        if (pages < 3)
+            throw new IllegalArgumentException("an external sort needs at least 3 pages, got " + pages);
+        this.memoryPages = pages;
+    }
+
+    /**
+     * @return the number of sorted runs on disk the output of the last open
+     *         is merged from, 0 if the child fit in memory
+     */
+    public int numRuns() {
+        return sorter == null ? 0 : sorter.numRuns();
+    }
+
     public TupleDesc getTupleDesc() {
         return td;
     }
@@ -62,31 +127,42 @@ public class OrderBy extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add(child.next());
-        childTups.sort(new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+        sorter = new ExternalSorter(td, new TupleComparator(orderByFields, asc), memoryPages);
+        try {
+            while (child.hasNext())
+                sorter.add(child.next());
+            it = sorter.iterator();
+        } catch (IOException e) {
+            sorter.close();
+            throw new DbException("could not sort: " + e.getMessage());
+        }
+        it.open();
         super.open();
     }
 
     public void close() {
         super.close();
+        if (it != null)
+            it.close();
         it = null;
+        if (sorter != null)
+            sorter.close();
+        child.close();
     }
 
-    public void rewind() {
-        it = childTups.iterator();
+    public void rewind() throws DbException, TransactionAbortedException {
+        it.rewind();
     }
 
     /**
      * Operator.fetchNext implementation. Returns tuples from the child operator
      * in order
-     * 
+     *
      * @return The next tuple in the ordering, or null if there are no more
      *         tuples
      */
-    protected Tuple fetchNext() throws NoSuchElementException {
+    protected Tuple fetchNext() throws NoSuchElementException, DbException,
+            TransactionAbortedException {
         if (it != null && it.hasNext()) {
             return it.next();
         } else
@@ -104,25 +180,3 @@ public class OrderBy extends Operator {
     }
 
 }
-
-class TupleComparator implements Comparator<Tuple> {
-    final int field;
-    final boolean asc;
-
-    public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
-    }
-
-    public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
-    }
-    
-}
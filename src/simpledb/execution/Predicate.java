@@ -66,7 +66,7 @@ public class Predicate implements Serializable {
      */
     public Predicate(int field, Op op, Field operand) {
         // some code goes here
-        this.index= index;
+        this.index=field;
         this.op=op;
         this.operand=operand;
     }
@@ -0,0 +1,366 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFile;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.ExternalSorter;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * The SortMergeJoin operator joins two children by reading them in the order
+ * of their join fields, and returns the joined tuples as it finds them.
+ * <p>
+ * An EQUALS join reads both children in ascending order and merges them,
+ * keeping the run of tuples of child2 with the current key in memory, which
+ * every tuple of child1 with that key is joined with.
+ * <p>
+ * The other comparisons read child2 in an order in which the tuples matching
+ * any tuple of child1 come first: ascending for GREATER_THAN(_OR_EQ) and
+ * descending for LESS_THAN(_OR_EQ). child1 is read in blocks, which are sorted
+ * in memory so that the tuples matching a tuple of child2 come first as well.
+ * For every block, child2 is read until a tuple matches no tuple of the block
+ * anymore, at which point no later tuple does either.
+ * <p>
+ * A child which is not read in the required order already, by a BTreeScan of
+ * a BTreeFile keyed on the join field in the right direction, or an OrderBy
+ * on the join field, is sorted with an ExternalSorter first.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The default number of pages of memory for sorts and blocks */
+    public final static int DEFAULT_MEMORY_PAGES = 1024;
+
+    private final JoinPredicate pred;
+    private OpIterator child1, child2;
+    private final TupleDesc comboTD;
+    private int memoryPages = DEFAULT_MEMORY_PAGES;
+
+    // the children in the order of the join, and the sorts producing that order
+    transient private DbFileIterator left = null;
+    transient private DbFileIterator right = null;
+    transient private List<ExternalSorter> sorters = null;
+
+    // EQUALS: the current tuple of child1, the tuples of child2 with its key,
+    // the next of these to join it with, and the first tuple of child2 after them
+    transient private Tuple leftRow = null;
+    transient private List<Tuple> run = null;
+    transient private int runPos = 0;
+    transient private Tuple nextRight = null;
+
+    // other comparisons: the current block of child1, the current tuple of
+    // child2, the number of tuples of the block it matches and the next of these
+    transient private Tuple[] block = null;
+    transient private int blockSize = 0;
+    transient private Tuple rightRow = null;
+    transient private int matchEnd = 0;
+    transient private int blockPos = 0;
+    transient private boolean rightRead = false;
+
+    /**
+     * Constructor. Accepts two children to join and the predicate to join them
+     * on
+     *
+     * @param p
+     *            The predicate to use to join the children, one of EQUALS,
+     *            LESS_THAN, LESS_THAN_OR_EQ, GREATER_THAN and GREATER_THAN_OR_EQ
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     */
+    public SortMergeJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        if (!canMerge(p.getOperator()))
+            throw new IllegalArgumentException("cannot merge join on " + p.getOperator());
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /**
+     * @return true if a SortMergeJoin can join on the comparison
+     */
+    public static boolean canMerge(Predicate.Op op) {
+        switch (op) {
+            case EQUALS:
+            case LESS_THAN:
+            case LESS_THAN_OR_EQ:
+            case GREATER_THAN:
+            case GREATER_THAN_OR_EQ:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return true if the merge reads child2 in ascending order of its join
+     *         field, false if in descending order
+     */
+    public static boolean rightAscending(Predicate.Op op) {
+        return op != Predicate.Op.LESS_THAN && op != Predicate.Op.LESS_THAN_OR_EQ;
+    }
+
+    /**
+     * @return true if plan returns its tuples ordered on the field, because
+     *         it reads a BTreeFile keyed on the field in that direction, or
+     *         is an OrderBy on the field
+     */
+    public static boolean isSorted(OpIterator plan, int field, boolean asc) {
+        // Filters keep the order of their child
+        while (plan instanceof Filter)
+            plan = ((Filter) plan).getChildren()[0];
+        if (plan instanceof OrderBy)
+            return ((OrderBy) plan).getOrderByField() == field && ((OrderBy) plan).isASC() == asc;
+        if (!(plan instanceof BTreeScan) || ((BTreeScan) plan).isDescending() == asc)
+            return false;
+        String name = ((BTreeScan) plan).getTableName();
+        DbFile f = Database.getCatalog().getDatabaseFile(Database.getCatalog().getTableId(name));
+        return f instanceof BTreeFile && ((BTreeFile) f).keyField() == field;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public String getJoinField1Name() {
+        return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
+    }
+
+    /**
+     * Set the number of pages of memory the join may use, which is split
+     * between the sorts of the children, or the sort of child2 and the blocks
+     * of child1. Takes effect at the next open.
+     *
+     * @param pages the number of pages, at least 6
+     */
+    public void setMemoryPages(int pages) {
+        if (pages < 6)
+            throw new IllegalArgumentException("a sort-merge join needs at least 6 pages, got " + pages);
+        this.memoryPages = pages;
+    }
+
+    /**
+     * @return true if child1 has to be sorted before the merge
+     */
+    public boolean sortsChild1() {
+        return pred.getOperator() == Predicate.Op.EQUALS && !isSorted(child1, pred.getField1(), true);
+    }
+
+    /**
+     * @return true if child2 has to be sorted before the merge
+     */
+    public boolean sortsChild2() {
+        return !isSorted(child2, pred.getField2(), rightAscending(pred.getOperator()));
+    }
+
+    /**
+     * Read child in the order of field, sorting it unless it is read in that
+     * order already
+     */
+    private DbFileIterator sorted(OpIterator child, int field, boolean asc, boolean sort)
+            throws DbException, TransactionAbortedException {
+        if (!sort)
+            return new ChildIterator(child);
+        ExternalSorter sorter = new ExternalSorter(child.getTupleDesc(),
+                new TupleComparator(field, asc), memoryPages / 2);
+        sorters.add(sorter);
+        try {
+            while (child.hasNext())
+                sorter.add(child.next());
+            return sorter.iterator();
+        } catch (IOException e) {
+            throw new DbException("could not sort join input: " + e.getMessage());
+        }
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        child2.open();
+        sorters = new ArrayList<>();
+        if (pred.getOperator() == Predicate.Op.EQUALS) {
+            left = sorted(child1, pred.getField1(), true, sortsChild1());
+            run = new ArrayList<>();
+        } else {
+            left = new ChildIterator(child1);
+            int pages = memoryPages - memoryPages / 2;
+            block = new Tuple[Math.max(1, pages * (BufferPool.getPageSize() / child1.getTupleDesc().getSize()))];
+        }
+        right = sorted(child2, pred.getField2(), rightAscending(pred.getOperator()), sortsChild2());
+        left.open();
+        right.open();
+        reset();
+        super.open();
+    }
+
+    private void reset() throws DbException, TransactionAbortedException {
+        leftRow = null;
+        if (run != null)
+            run.clear();
+        runPos = 0;
+        nextRight = pred.getOperator() == Predicate.Op.EQUALS ? readRight() : null;
+        blockSize = 0;
+        rightRow = null;
+        matchEnd = 0;
+        blockPos = 0;
+        rightRead = false;
+    }
+
+    public void close() {
+        super.close();
+        if (left != null)
+            left.close();
+        if (right != null)
+            right.close();
+        if (sorters != null) {
+            for (ExternalSorter sorter : sorters)
+                sorter.close();
+        }
+        child2.close();
+        child1.close();
+        left = right = null;
+        sorters = null;
+        run = null;
+        block = null;
+        leftRow = rightRow = nextRight = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        // sorted children are read again from their sorted runs
+        left.rewind();
+        right.rewind();
+        reset();
+    }
+
+    private Tuple readRight() throws DbException, TransactionAbortedException {
+        return right.hasNext() ? right.next() : null;
+    }
+
+    private Tuple joined(Tuple left, Tuple right) {
+        int td1n = left.getTupleDesc().numFields();
+        int td2n = right.getTupleDesc().numFields();
+
+        // set fields in combined tuple
+        Tuple t = new Tuple(comboTD);
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, left.getField(i));
+        for (int i = 0; i < td2n; i++)
+            t.setField(td1n + i, right.getField(i));
+        return t;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples.
+     * <p>
+     * Note that the tuples returned from this particular implementation of Join
+     * are simply the concatenation of joining tuples from the left and right
+     * relation. Therefore, if an equality predicate is used there will be two
+     * copies of the join attribute in the results.
+     *
+     * @return The next matching tuple.
+     * @see JoinPredicate#filter
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        return pred.getOperator() == Predicate.Op.EQUALS ? nextEqual() : nextInequal();
+    }
+
+    private Tuple nextEqual() throws TransactionAbortedException, DbException {
+        int f1 = pred.getField1();
+        int f2 = pred.getField2();
+        while (true) {
+            if (leftRow != null && runPos < run.size())
+                return joined(leftRow, run.get(runPos++));
+
+            if (!left.hasNext())
+                return null;
+            leftRow = left.next();
+            runPos = 0;
+            // a duplicate key of child1 joins the same run again
+            if (!run.isEmpty() && leftRow.getField(f1).compare(Predicate.Op.EQUALS, run.get(0).getField(f2)))
+                continue;
+
+            // skip the tuples of child2 with smaller keys, and collect the run with the key
+            run.clear();
+            while (nextRight != null && leftRow.getField(f1).compare(Predicate.Op.GREATER_THAN, nextRight.getField(f2)))
+                nextRight = readRight();
+            while (nextRight != null && leftRow.getField(f1).compare(Predicate.Op.EQUALS, nextRight.getField(f2))) {
+                run.add(nextRight);
+                nextRight = readRight();
+            }
+        }
+    }
+
+    /**
+     * Load the next block of child1, with the tuples matching the most
+     * tuples of child2 first
+     *
+     * @return false if child1 has no more tuples
+     */
+    private boolean loadBlock() throws TransactionAbortedException, DbException {
+        Arrays.fill(block, 0, blockSize, null);
+        blockSize = 0;
+        while (blockSize < block.length && left.hasNext())
+            block[blockSize++] = left.next();
+        Arrays.sort(block, 0, blockSize, new TupleComparator(pred.getField1(), !rightAscending(pred.getOperator())));
+        return blockSize > 0;
+    }
+
+    private Tuple nextInequal() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (rightRow != null && blockPos < matchEnd)
+                return joined(block[blockPos++], rightRow);
+
+            // the next tuple of child2 matches a prefix of the block no longer than the last one
+            if (matchEnd > 0 && right.hasNext()) {
+                rightRow = right.next();
+                rightRead = true;
+                while (matchEnd > 0 && !pred.filter(block[matchEnd - 1], rightRow))
+                    matchEnd--;
+                blockPos = 0;
+                continue;
+            }
+
+            // child2 is done with this block: read it again for the next one
+            if (!loadBlock())
+                return null;
+            if (rightRead)
+                right.rewind();
+            rightRead = false;
+            rightRow = null;
+            matchEnd = blockSize;
+            blockPos = 0;
+        }
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+}
@@ -0,0 +1,80 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+/**
+ * TupleAdapter returns the rows of the batches of a BatchIterator one tuple
+ * at a time, so that a batch-at-a-time operator can feed a tuple-at-a-time
+ * one, e.g. the root of a plan.
+ *
+ * @see BatchAdapter
+ */
+public class TupleAdapter extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final BatchIterator child;
+    private transient TupleBatch batch;
+    private int row;
+
+    /**
+     * @param child the iterator of the batches to return the rows of
+     */
+    public TupleAdapter(BatchIterator child) {
+        this.child = child;
+    }
+
+    /**
+     * @return the iterator of the batches this adapter returns the rows of
+     */
+    public BatchIterator getChild() {
+        return child;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child.open();
+        batch = null;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        batch = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+        batch = null;
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        if (batch == null || row == batch.numRows()) {
+            batch = child.nextBatch();
+            row = 0;
+            if (batch == null)
+                return null;
+        }
+        return batch.getTuple(row++);
+    }
+
+    /**
+     * @return no children, since the child of this operator is a BatchIterator
+     */
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[0];
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+    }
+}
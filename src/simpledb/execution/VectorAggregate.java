@@ -0,0 +1,241 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * VectorAggregate is the batch-at-a-time version of Aggregate. It keeps the
+ * running aggregate of every group in int arrays indexed by the number of the
+ * group, and updates them with a loop over the column vectors of each batch.
+ * As IntegerAggregator, it computes MIN, MAX, SUM, AVG and COUNT over an
+ * INT_TYPE column and, as StringAggregator, only COUNT over other columns.
+ *
+ * @see Aggregate
+ */
+public class VectorAggregate implements BatchIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final BatchIterator child;
+    private final int afield;
+    private final int gfield;
+    private final Aggregator.Op aop;
+    private final TupleDesc td;
+
+    // the group values in the order of the group numbers
+    private transient List<Field> groups;
+    private transient int[] values;
+    private transient int[] counts;
+    private transient TupleBatch result;
+    private int emitted;
+
+    /**
+     * @param child  The iterator of the batches to aggregate.
+     * @param afield The column over which we are computing an aggregate.
+     * @param gfield The column over which we are grouping the result, or -1 if
+     *               there is no grouping
+     * @param aop    The aggregation operator to use
+     * @throws UnsupportedOperationException if aop is not supported for the
+     *               type of the aggregate column
+     */
+    public VectorAggregate(BatchIterator child, int afield, int gfield, Aggregator.Op aop) {
+        this.child = child;
+        this.afield = afield;
+        this.gfield = gfield;
+        this.aop = aop;
+        TupleDesc childtd = child.getTupleDesc();
+        if (aop != Aggregator.Op.MIN && aop != Aggregator.Op.MAX && aop != Aggregator.Op.SUM
+                && aop != Aggregator.Op.AVG && aop != Aggregator.Op.COUNT)
+            throw new UnsupportedOperationException("unsupported aggregate operator " + aop);
+        if (childtd.getFieldType(afield) != Type.INT_TYPE && aop != Aggregator.Op.COUNT)
+            throw new UnsupportedOperationException("only COUNT is supported on a column of type "
+                    + childtd.getFieldType(afield));
+        String aggName = childtd.getFieldName(afield);
+        if (gfield == Aggregator.NO_GROUPING)
+            td = new TupleDesc(new Type[]{Type.INT_TYPE}, new String[]{aggName});
+        else
+            td = new TupleDesc(new Type[]{childtd.getFieldType(gfield), Type.INT_TYPE},
+                    new String[]{childtd.getFieldName(gfield), aggName});
+    }
+
+    /**
+     * @return the group by field in the input rows, or Aggregator.NO_GROUPING
+     */
+    public int groupField() {
+        return gfield;
+    }
+
+    /**
+     * @return the aggregate field in the input rows
+     */
+    public int aggregateField() {
+        return afield;
+    }
+
+    /**
+     * @return the aggregate operator
+     */
+    public Aggregator.Op aggregateOp() {
+        return aop;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child.open();
+        aggregate();
+        result = new TupleBatch(td);
+        emitted = 0;
+    }
+
+    private void aggregate() throws DbException, TransactionAbortedException {
+        groups = new ArrayList<>();
+        values = new int[16];
+        counts = new int[16];
+        Map<Field, Integer> groupIds = new HashMap<>();
+        boolean intValues = child.getTupleDesc().getFieldType(afield) == Type.INT_TYPE;
+        boolean intGroups = gfield != Aggregator.NO_GROUPING
+                && child.getTupleDesc().getFieldType(gfield) == Type.INT_TYPE;
+        int[] rowGroups = new int[TupleBatch.MAX_ROWS];
+
+        TupleBatch batch;
+        while ((batch = child.nextBatch()) != null) {
+            int n = batch.numRows();
+            if (rowGroups.length < n)
+                rowGroups = new int[n];
+
+            // first the number of the group of every row
+            if (gfield == Aggregator.NO_GROUPING) {
+                if (groups.isEmpty())
+                    groups.add(null);
+                Arrays.fill(rowGroups, 0, n, 0);
+            } else if (intGroups) {
+                int[] keys = batch.getIntColumn(gfield);
+                for (int i = 0; i < n; i++) {
+                    // runs of equal keys, e.g. of a sorted input, are looked up once
+                    if (i > 0 && keys[i] == keys[i - 1])
+                        rowGroups[i] = rowGroups[i - 1];
+                    else
+                        rowGroups[i] = groupId(groupIds, new IntField(keys[i]));
+                }
+            } else {
+                Field[] keys = batch.getFieldColumn(gfield);
+                for (int i = 0; i < n; i++)
+                    rowGroups[i] = groupId(groupIds, keys[i]);
+            }
+
+            // then the aggregates, in one loop per operator
+            if (!intValues) {
+                for (int i = 0; i < n; i++)
+                    counts[rowGroups[i]]++;
+                continue;
+            }
+            int[] column = batch.getIntColumn(afield);
+            switch (aop) {
+                case MIN:
+                    for (int i = 0; i < n; i++) {
+                        int g = rowGroups[i];
+                        if (counts[g]++ == 0 || column[i] < values[g])
+                            values[g] = column[i];
+                    }
+                    break;
+                case MAX:
+                    for (int i = 0; i < n; i++) {
+                        int g = rowGroups[i];
+                        if (counts[g]++ == 0 || column[i] > values[g])
+                            values[g] = column[i];
+                    }
+                    break;
+                default: // SUM, AVG and COUNT
+                    for (int i = 0; i < n; i++) {
+                        int g = rowGroups[i];
+                        values[g] += column[i];
+                        counts[g]++;
+                    }
+                    break;
+            }
+        }
+    }
+
+    private int groupId(Map<Field, Integer> groupIds, Field key) {
+        Integer id = groupIds.get(key);
+        if (id == null) {
+            id = groups.size();
+            groupIds.put(key, id);
+            groups.add(key);
+            if (id == values.length) {
+                values = Arrays.copyOf(values, 2 * id);
+                counts = Arrays.copyOf(counts, 2 * id);
+            }
+        }
+        return id;
+    }
+
+    private int aggregateValue(int g) {
+        switch (aop) {
+            case COUNT:
+                return counts[g];
+            case AVG:
+                return values[g] / counts[g];
+            default:
+                return values[g];
+        }
+    }
+
+    /**
+     * Returns the next batch of results. If there is a group by field, then
+     * the first column is the group by field, and the second is the aggregate
+     * value; otherwise the only column is the aggregate value. As Aggregate,
+     * returns no rows if there are no input rows.
+     */
+    public TupleBatch nextBatch() {
+        if (result == null)
+            throw new IllegalStateException("iterator is closed");
+        if (emitted == groups.size())
+            return null;
+        result.clear();
+        int[] aggregates = result.getIntColumn(td.numFields() - 1);
+        int n = Math.min(groups.size() - emitted, TupleBatch.MAX_ROWS);
+        for (int i = 0; i < n; i++)
+            aggregates[i] = aggregateValue(emitted + i);
+        if (gfield != Aggregator.NO_GROUPING) {
+            if (td.getFieldType(0) == Type.INT_TYPE) {
+                int[] keys = result.getIntColumn(0);
+                for (int i = 0; i < n; i++)
+                    keys[i] = ((IntField) groups.get(emitted + i)).getValue();
+            } else {
+                Field[] keys = result.getFieldColumn(0);
+                for (int i = 0; i < n; i++)
+                    keys[i] = groups.get(emitted + i);
+            }
+        }
+        result.setNumRows(n);
+        emitted += n;
+        return result;
+    }
+
+    public void rewind() {
+        emitted = 0;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void close() {
+        child.close();
+        groups = null;
+        values = null;
+        counts = null;
+        result = null;
+    }
+}
@@ -0,0 +1,142 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+/**
+ * VectorFilter is the batch-at-a-time version of Filter. It evaluates the
+ * predicate over a whole column vector of a batch and keeps the matching
+ * rows; on an INT_TYPE column this is a loop over an int[] with one
+ * comparison per row.
+ *
+ * @see Filter
+ */
+public class VectorFilter implements BatchIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Predicate predicate;
+    private final BatchIterator child;
+    private transient int[] selected;
+
+    /**
+     * @param p
+     *            The predicate to filter the rows with
+     * @param child
+     *            The iterator of the batches to filter
+     */
+    public VectorFilter(Predicate p, BatchIterator child) {
+        this.predicate = p;
+        this.child = child;
+    }
+
+    public Predicate getPredicate() {
+        return predicate;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child.open();
+        selected = new int[TupleBatch.MAX_ROWS];
+    }
+
+    /**
+     * Returns the rows of the next batches of the child which pass the
+     * predicate, skipping the batches without any.
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        TupleBatch batch;
+        while ((batch = child.nextBatch()) != null) {
+            if (selected.length < batch.numRows())
+                selected = new int[batch.numRows()];
+            int n;
+            if (getTupleDesc().getFieldType(predicate.getField()) == Type.INT_TYPE)
+                n = select(batch.getIntColumn(predicate.getField()), batch.numRows(),
+                        predicate.getOp(), ((IntField) predicate.getOperand()).getValue(), selected);
+            else
+                n = select(batch.getFieldColumn(predicate.getField()), batch.numRows(),
+                        predicate.getOp(), predicate.getOperand(), selected);
+            if (n > 0) {
+                batch.select(selected, n);
+                return batch;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find the values of a column which compare to the operand as op says.
+     *
+     * @return the number of matching rows, whose indexes are stored in selected
+     */
+    private static int select(int[] values, int numRows, Predicate.Op op, int operand, int[] selected) {
+        int n = 0;
+        // one loop per operator, so that the loops do not branch on it
+        switch (op) {
+            case EQUALS:
+            case LIKE:
+                for (int i = 0; i < numRows; i++) {
+                    if (values[i] == operand)
+                        selected[n++] = i;
+                }
+                break;
+            case NOT_EQUALS:
+                for (int i = 0; i < numRows; i++) {
+                    if (values[i] != operand)
+                        selected[n++] = i;
+                }
+                break;
+            case GREATER_THAN:
+                for (int i = 0; i < numRows; i++) {
+                    if (values[i] > operand)
+                        selected[n++] = i;
+                }
+                break;
+            case GREATER_THAN_OR_EQ:
+                for (int i = 0; i < numRows; i++) {
+                    if (values[i] >= operand)
+                        selected[n++] = i;
+                }
+                break;
+            case LESS_THAN:
+                for (int i = 0; i < numRows; i++) {
+                    if (values[i] < operand)
+                        selected[n++] = i;
+                }
+                break;
+            case LESS_THAN_OR_EQ:
+                for (int i = 0; i < numRows; i++) {
+                    if (values[i] <= operand)
+                        selected[n++] = i;
+                }
+                break;
+        }
+        return n;
+    }
+
+    private static int select(Field[] values, int numRows, Predicate.Op op, Field operand, int[] selected) {
+        int n = 0;
+        for (int i = 0; i < numRows; i++) {
+            if (values[i].compare(op, operand))
+                selected[n++] = i;
+        }
+        return n;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void close() {
+        child.close();
+        selected = null;
+    }
+}
@@ -0,0 +1,207 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * VectorHashEquiJoin is the batch-at-a-time version of HashEquiJoin. It
+ * copies the rows of child1 into batches of its own and chains the rows with
+ * equal keys through an int array, then probes the chains with the batches of
+ * child2. Like the table of HashEquiJoin, INT_TYPE keys are looked up in an
+ * open-addressing table straight from the int columns of the batches, without
+ * boxing them; other keys go through a HashMap. The output rows are those of
+ * HashEquiJoin: the columns of child1 followed by the columns of child2.
+ *
+ * @see HashEquiJoin
+ */
+public class VectorHashEquiJoin implements BatchIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final JoinPredicate pred;
+    private final BatchIterator child1, child2;
+    private final TupleDesc comboTD;
+    private final boolean intKeys;
+
+    // the rows of child1; row r is row r % MAX_ROWS of build.get(r / MAX_ROWS)
+    private transient List<TupleBatch> build;
+    // the first row of child1 with a key, and the next row with the same key of each row;
+    // linear probing over INT_TYPE keys, where -1 is an empty slot, or a map of other keys
+    private transient int[] keys;
+    private transient int[] heads;
+    private transient Map<Field, Integer> fieldHeads;
+    private transient int[] next;
+    private transient TupleBatch result;
+    // the batch of child2 being probed, the row of it and the next matching row of child1
+    private transient TupleBatch probe;
+    private int probeRow;
+    private int match = -1;
+
+    /**
+     * @param p
+     *            The predicate to use to join the children; its operator has
+     *            to be EQUALS
+     * @param child1
+     *            Iterator for the left relation to join, which is kept in memory
+     * @param child2
+     *            Iterator for the right relation to join
+     */
+    public VectorHashEquiJoin(JoinPredicate p, BatchIterator child1, BatchIterator child2) {
+        if (p.getOperator() != Predicate.Op.EQUALS)
+            throw new IllegalArgumentException("a hash join needs an EQUALS predicate");
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+        this.intKeys = child1.getTupleDesc().getFieldType(p.getField1()) == Type.INT_TYPE;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child1.open();
+        child2.open();
+        buildTable();
+        result = new TupleBatch(comboTD);
+        probe = null;
+        match = -1;
+    }
+
+    private void buildTable() throws DbException, TransactionAbortedException {
+        build = new ArrayList<>();
+        if (intKeys) {
+            allocate(2 * TupleBatch.MAX_ROWS);
+            fieldHeads = null;
+        } else {
+            fieldHeads = new HashMap<>();
+        }
+        next = new int[TupleBatch.MAX_ROWS];
+        int numRows = 0;
+        TupleBatch batch;
+        while ((batch = child1.nextBatch()) != null) {
+            for (int i = 0; i < batch.numRows(); i++) {
+                if (numRows % TupleBatch.MAX_ROWS == 0)
+                    build.add(new TupleBatch(child1.getTupleDesc()));
+                build.get(build.size() - 1).addRow(batch, i);
+                if (numRows == next.length)
+                    next = Arrays.copyOf(next, 2 * numRows);
+                if (intKeys) {
+                    if (2 * (numRows + 1) > keys.length)
+                        rehash();
+                    int k = batch.getIntColumn(pred.getField1())[i];
+                    int j = slot(k);
+                    keys[j] = k;
+                    next[numRows] = heads[j];
+                    heads[j] = numRows;
+                } else {
+                    Integer head = fieldHeads.put(batch.getFieldColumn(pred.getField1())[i], numRows);
+                    next[numRows] = head == null ? -1 : head;
+                }
+                numRows++;
+            }
+        }
+    }
+
+    private void allocate(int slots) {
+        keys = new int[slots];
+        heads = new int[slots];
+        Arrays.fill(heads, -1);
+    }
+
+    private int slot(int key) {
+        int mask = keys.length - 1;
+        int i = (key * 0x9E3779B9) >>> 7 & mask;
+        while (heads[i] >= 0 && keys[i] != key)
+            i = (i + 1) & mask;
+        return i;
+    }
+
+    private void rehash() {
+        int[] oldKeys = keys;
+        int[] oldHeads = heads;
+        allocate(2 * oldKeys.length);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldHeads[i] >= 0) {
+                int j = slot(oldKeys[i]);
+                keys[j] = oldKeys[i];
+                heads[j] = oldHeads[i];
+            }
+        }
+    }
+
+    /**
+     * @return the last row of child1 with the key of the row of child2, or -1 if there is none
+     */
+    private int head(TupleBatch batch, int row) {
+        if (intKeys)
+            return heads[slot(batch.getIntColumn(pred.getField2())[row])];
+        Integer head = fieldHeads.get(batch.getFieldColumn(pred.getField2())[row]);
+        return head == null ? -1 : head;
+    }
+
+    /**
+     * Returns the next batch of joined rows, or null if there are no more.
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (result == null)
+            throw new IllegalStateException("iterator is closed");
+        result.clear();
+        while (!result.isFull()) {
+            if (match >= 0) {
+                result.addJoinedRow(build.get(match / TupleBatch.MAX_ROWS), match % TupleBatch.MAX_ROWS,
+                        probe, probeRow);
+                match = next[match];
+                if (match < 0)
+                    probeRow++;
+                continue;
+            }
+            if (probe == null || probeRow == probe.numRows()) {
+                probe = child2.nextBatch();
+                probeRow = 0;
+                if (probe == null)
+                    break;
+                continue;
+            }
+            int head = head(probe, probeRow);
+            if (head < 0)
+                probeRow++;
+            else
+                match = head;
+        }
+        return result.numRows() > 0 ? result : null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child2.rewind();
+        probe = null;
+        match = -1;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public void close() {
+        child2.close();
+        child1.close();
+        build = null;
+        keys = null;
+        heads = null;
+        fieldHeads = null;
+        next = null;
+        result = null;
+        probe = null;
+    }
+}
@@ -0,0 +1,63 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.List;
+
+/**
+ * VectorProject is the batch-at-a-time version of Project. A batch of the
+ * projected columns shares their column vectors with the batch of the child,
+ * so no value is copied.
+ *
+ * @see Project
+ */
+public class VectorProject implements BatchIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final BatchIterator child;
+    private final TupleDesc td;
+    private final int[] outFieldIds;
+
+    /**
+     * @param fieldList The ids of the fields of the child's tupleDesc to project out
+     * @param types the types of the fields in the final projection
+     * @param child The iterator of the batches to project
+     */
+    public VectorProject(List<Integer> fieldList, Type[] types, BatchIterator child) {
+        this.child = child;
+        outFieldIds = new int[fieldList.size()];
+        String[] fieldAr = new String[fieldList.size()];
+        TupleDesc childtd = child.getTupleDesc();
+        for (int i = 0; i < fieldAr.length; i++) {
+            outFieldIds[i] = fieldList.get(i);
+            fieldAr[i] = childtd.getFieldName(fieldList.get(i));
+        }
+        td = new TupleDesc(types, fieldAr);
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child.open();
+    }
+
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        TupleBatch batch = child.nextBatch();
+        return batch == null ? null : batch.project(outFieldIds, td);
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void close() {
+        child.close();
+    }
+}
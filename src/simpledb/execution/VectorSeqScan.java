@@ -0,0 +1,90 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * VectorSeqScan is the batch-at-a-time version of SeqScan: it reads the
+ * tuples of a table in the order of the file and returns them in batches of
+ * column vectors.
+ *
+ * @see SeqScan
+ */
+public class VectorSeqScan implements BatchIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int tableid;
+    private final String tableAlias;
+    private final TupleDesc td;
+    private transient DbFileIterator it;
+    private transient TupleBatch batch;
+    private boolean isOpen = false;
+
+    /**
+     * Creates a sequential scan over the specified table as a part of the
+     * specified transaction.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableid
+     *            the table to scan.
+     * @param tableAlias
+     *            the alias of this table; the returned tupleDesc has fields
+     *            with name tableAlias.fieldName, as those of SeqScan
+     */
+    public VectorSeqScan(TransactionId tid, int tableid, String tableAlias) {
+        this.tableid = tableid;
+        this.tableAlias = tableAlias;
+        this.td = new SeqScan(tid, tableid, tableAlias).getTupleDesc();
+        this.it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
+    }
+
+    /**
+     * @return the actual name of the table in the catalog of the database
+     */
+    public String getTableName() {
+        return Database.getCatalog().getTableName(tableid);
+    }
+
+    /**
+     * @return the alias of the table this operator scans
+     */
+    public String getAlias() {
+        return tableAlias;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        it.open();
+        batch = new TupleBatch(td);
+        isOpen = true;
+    }
+
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (!isOpen)
+            throw new IllegalStateException("iterator is closed");
+        batch.clear();
+        while (!batch.isFull() && it.hasNext())
+            batch.addTuple(it.next());
+        return batch.numRows() > 0 ? batch : null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        it.rewind();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void close() {
+        it.close();
+        batch = null;
+        isOpen = false;
+    }
+}
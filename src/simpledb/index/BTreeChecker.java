@@ -63,7 +63,10 @@ public class BTreeChecker {
      * 2) sibling pointers.
      * 3) range invariants.
      * 4) record to page pointers.
-     * 5) occupancy invariants. (if enabled)
+     * 5) occupancy invariants, except for the right-most page of each level, which
+     *    splits at the right edge of the tree leave nearly empty, and for the leaves
+     *    whose merges are deferred to the compaction. (if enabled)
+     * 6) high keys.
      */
     public static void checkRep(BTreeFile bt, TransactionId tid, Map<PageId, Page> dirtypages,
                                 boolean checkOccupancy) throws
@@ -85,10 +88,13 @@ public class BTreeChecker {
             TransactionAbortedException, DbException {
         BTreePage page = (BTreePage )bt.getPage(tid, dirtypages, pageId, Permissions.READ_ONLY);
         assert(page.getParentId().equals(parentId));
+        // the high key is the upper bound the parent gives the page
+        assert(upperBound == null ? page.getHighKey() == null : upperBound.equals(page.getHighKey()));
 
         if (page.getId().pgcateg() == BTreePageId.LEAF) {
             BTreeLeafPage bpage = (BTreeLeafPage) page;
-            bpage.checkRep(bt.keyField(), lowerBound, upperBound, checkOccupancy, depth);
+            bpage.checkRep(bt.keyField(), lowerBound, upperBound,
+                    checkOccupancy && !bt.isPendingMerge(bpage.getId()), depth);
             return new SubtreeSummary(bpage, depth);
         } else if (page.getId().pgcateg() == BTreePageId.INTERNAL) {
 
@@ -2,6 +2,8 @@ package simpledb.index;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import simpledb.common.Database;
 import simpledb.common.Permissions;
@@ -34,6 +36,19 @@ public class BTreeFile implements DbFile {
 	private final int tableid ;
 	private final int keyField;
 
+	// latches on the internal pages and the root pointer page, see findLeafPage and publish
+	private final BTreeLatches latches = new BTreeLatches();
+	// incremented before and after a merge or redistribution is published, see findLeafPage
+	private final AtomicLong mergeVersion = new AtomicLong();
+
+	// leaves left below minimum occupancy by deletes while merges are deferred,
+	// see setDeferredMerges
+	private final Set<BTreePageId> pendingMerges = ConcurrentHashMap.newKeySet();
+	private final Object compactionLock = new Object();
+	private volatile int compactionBatch = 0;
+	private long compactionInterval = 0;
+	private Thread compactor;
+
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
 	 * 
@@ -170,66 +185,174 @@ public class BTreeFile implements DbFile {
 	}
 
 	/**
-	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
-	 * the left-most page possibly containing the key field f. It locks all internal
-	 * nodes along the path to the leaf node with READ_ONLY permission, and locks the 
-	 * leaf node with permission perm.
+	 * Finds and locks the leaf page in the B+ tree corresponding to the left-most page
+	 * possibly containing the key field f. Walks down from the root pointer the B-link
+	 * way: each internal page is latched in shared mode only while the child to descend
+	 * into is looked up, and no latch is held while moving on to the child. If a page
+	 * was split in the meantime and f is above its high key, the search moves right to
+	 * the right sibling instead of waiting for the split to be posted in the parent.
+	 * No transactional locks are taken on the way down, only the leaf page is locked,
+	 * with permission perm. Inserts and deletes change private copies of the internal
+	 * pages, see getPage, so a search never sees a page which is half changed.
+	 * 
+	 * Moving right does not help when keys move left, so the search starts over if a
+	 * merge or redistribution was published in the meantime, or if the page it came from
+	 * was rolled back by an aborting transaction.
 	 * 
 	 * If f is null, it finds the left-most leaf page -- used for the iterator
 	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
-	 * @param pid - the current page being searched
 	 * @param perm - the permissions with which to lock the leaf page
 	 * @param f - the field to search for
-	 * @return the left-most leaf page possibly containing the key field f
+	 * @return the left-most leaf page possibly containing the key field f, or null if the
+	 *         root pointer does not point to a root page yet
 	 * 
 	 */
-	private BTreeLeafPage findLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
+	private BTreeLeafPage findLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, Permissions perm,
                                        Field f)
 					throws DbException, TransactionAbortedException {
-		// some code goes here
-        switch (pid.pgcateg())
-		{
-			case BTreePageId.LEAF:
-				return (BTreeLeafPage)getPage(tid,dirtypages,pid,perm);
-				case BTreePageId.INTERNAL:
-					BTreeInternalPage page=(BTreeInternalPage) getPage(tid,dirtypages,pid,perm);
-					Iterator<BTreeEntry> iterator=page.iterator();
-					if(iterator==null||!iterator.hasNext())
-						throw new DbException("No that Entry");
-					if(f==null)
-						return findLeafPage(tid,dirtypages,iterator.next().getLeftChild(),perm,f);
-					BTreeEntry entry=null;
-					while (iterator.hasNext()){
-						entry=iterator.next();
-						if(entry.getKey().compare(Op.GREATER_THAN_OR_EQ,f))
-							return findLeafPage(tid,dirtypages,entry.getLeftChild(),perm,f);
-					}
-					return findLeafPage(tid,dirtypages,entry.getRightChild(),perm,f);
-					case BTreePageId.HEADER:
-						case BTreePageId.ROOT_PTR:
-			default:
+		search:
+		while(true) {
+			long merges = mergeVersion.get();
+			if((merges & 1) != 0) { // a merge is being published
+				Thread.yield();
+				continue;
+			}
+			BTreePageId prevId = BTreeRootPtrPage.getId(tableid);
+			Page prev;
+			BTreePageId pid;
+			latches.latchShared(prevId);
+			try {
+				prev = fetchPage(dirtypages, prevId);
+				pid = ((BTreeRootPtrPage) prev).getRootId();
+			} finally {
+				latches.unlatchShared(prevId);
+			}
+			while(pid != null && pid.pgcateg() == BTreePageId.INTERNAL) {
+				BTreeInternalPage page;
+				BTreePageId next;
+				latches.latchShared(pid);
+				try {
+					if(mergeVersion.get() != merges)
+						continue search;
+					page = (BTreeInternalPage) fetchPage(dirtypages, pid);
+					// binary search on the page, no BTreeEntry is created on the way down
+					next = page.isAboveHighKey(f) ? page.getRightSiblingId() : page.findChildId(f);
+				} finally {
+					latches.unlatchShared(pid);
+				}
+				if(next == null)
+					throw new DbException("No that Entry");
+				prevId = pid;
+				prev = page;
+				pid = next;
+			}
+			if(pid == null)
+				return null;
+			if(pid.pgcateg() != BTreePageId.LEAF)
 				throw new DbException("not valid page");
+
+			// the leaves are protected by the locks, so the high key of a locked leaf is stable
+			while(true) {
+				boolean cached = dirtypages.containsKey(pid);
+				BTreeLeafPage leaf = (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
+				boolean valid = mergeVersion.get() == merges && fetchPage(dirtypages, prevId) == prev;
+				if(valid && !leaf.isAboveHighKey(f))
+					return leaf;
+				if(!cached)
+					dirtypages.remove(pid);
+				if(!valid)
+					continue search;
+				prevId = pid;
+				prev = leaf;
+				pid = leaf.getRightSiblingId();
+			}
 		}
 	}
 
+	/**
+	 * Finds and locks the right-most leaf page in the B+ tree -- used for the reverse
+	 * iterator. Walks down from the root pointer like findLeafPage, descending into the
+	 * right-most child of each internal page, or into its right sibling if it has one,
+	 * and moves right from the leaf it reaches if that leaf was split in the meantime.
+	 * The search starts over if a merge or redistribution happened in the meantime.
+	 * 
+	 * @param tid - the transaction id
+	 * @return the right-most leaf page, or null if the root pointer does not point to
+	 *         a root page yet
+	 */
+	BTreeLeafPage findLastLeafPage(TransactionId tid) throws DbException, TransactionAbortedException {
+		Map<PageId, Page> dirtypages = new HashMap<>();
+		search:
+		while(true) {
+			long merges = mergeVersion.get();
+			if((merges & 1) != 0) { // a merge is being published
+				Thread.yield();
+				continue;
+			}
+			BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+			BTreePageId pid;
+			latches.latchShared(rootPtrId);
+			try {
+				pid = ((BTreeRootPtrPage) fetchPage(dirtypages, rootPtrId)).getRootId();
+			} finally {
+				latches.unlatchShared(rootPtrId);
+			}
+			while(pid != null && pid.pgcateg() == BTreePageId.INTERNAL) {
+				BTreePageId next;
+				latches.latchShared(pid);
+				try {
+					if(mergeVersion.get() != merges)
+						continue search;
+					BTreeInternalPage page = (BTreeInternalPage) fetchPage(dirtypages, pid);
+					Iterator<BTreeEntry> it = page.reverseIterator();
+					if(page.getRightSiblingId() != null)
+						next = page.getRightSiblingId();
+					else if(it.hasNext())
+						next = it.next().getRightChild();
+					else
+						throw new DbException("empty internal page");
+				} finally {
+					latches.unlatchShared(pid);
+				}
+				pid = next;
+			}
+			if(pid == null)
+				return null;
+			if(pid.pgcateg() != BTreePageId.LEAF)
+				throw new DbException("not valid page");
+
+			BTreeLeafPage leaf = (BTreeLeafPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+			while(leaf.getRightSiblingId() != null)
+				leaf = (BTreeLeafPage) getPage(tid, dirtypages, leaf.getRightSiblingId(), Permissions.READ_ONLY);
+			if(mergeVersion.get() == merges)
+				return leaf;
+		}
+	}
 
 	/**
 	 * Convenience method to find a leaf page when there is no dirtypages HashMap.
 	 * Used by the BTreeFile iterator.
-	 * @see #findLeafPage(TransactionId, Map, BTreePageId, Permissions, Field)
+	 * @see #findLeafPage(TransactionId, Map, Permissions, Field)
 	 * 
 	 * @param tid - the transaction id
-	 * @param pid - the current page being searched
 	 * @param f - the field to search for
 	 * @return the left-most leaf page possibly containing the key field f
 	 * 
 	 */
-	BTreeLeafPage findLeafPage(TransactionId tid, BTreePageId pid,
-                               Field f)
+	BTreeLeafPage findLeafPage(TransactionId tid, Field f)
 					throws DbException, TransactionAbortedException {
-		return findLeafPage(tid, new HashMap<>(), pid, Permissions.READ_ONLY, f);
+		return findLeafPage(tid, new HashMap<>(), Permissions.READ_ONLY, f);
+	}
+
+	/**
+	 * Get a page from the local cache ("dirtypages") or the buffer pool without locking it.
+	 * The caller must hold a latch on the page to read it.
+	 */
+	private Page fetchPage(Map<PageId, Page> dirtypages, BTreePageId pid) throws DbException {
+		Page p = dirtypages.get(pid);
+		return p != null ? p : Database.getBufferPool().fetchPage(pid);
 	}
 
 	/**
@@ -239,6 +362,11 @@ public class BTreeFile implements DbFile {
 	 * pointing to the two leaf pages resulting from the split.  Update sibling pointers and parent 
 	 * pointers as needed.  
 	 * 
+	 * If the page is the right-most leaf and the new key is above all of its keys, the tuples
+	 * are appended at the right edge of the tree, e.g. with increasing keys: only the last
+	 * tuple moves to the new page, so the page stays nearly full instead of half empty for
+	 * good, and the parent pages split the same way.
+	 * 
 	 * Return the leaf page into which a new tuple with key field "field" should be inserted.
 	 * 
 	 * @param tid - the transaction id
@@ -246,7 +374,7 @@ public class BTreeFile implements DbFile {
 	 * @param page - the leaf page to split
 	 * @param field - the key field of the tuple to be inserted after the split is complete. Necessary to know
 	 * which of the two pages to return.
-	 * @see #getParentWithEmptySlots(TransactionId, Map, BTreePageId, Field)
+	 * @see #getParentWithEmptySlots(TransactionId, Map, BTreePageId, Field, boolean)
 	 * 
 	 * @return the leaf page into which the new tuple should be inserted
 	 * @throws DbException
@@ -266,7 +394,10 @@ public class BTreeFile implements DbFile {
         BTreeLeafPage rightPage=(BTreeLeafPage)getEmptyPage(tid,dirtypages,BTreePageId.LEAF);
         Iterator<Tuple> tuples=page.reverseIterator();
         int tuplenum=page.getNumTuples();
-        for(int i=0;i<tuplenum/2;++i){
+        boolean rightEdge=page.getRightSiblingId()==null
+        		&&field.compare(Op.GREATER_THAN,page.reverseIterator().next().getField(keyField));
+        int moveCnt=rightEdge?1:tuplenum/2;
+        for(int i=0;i<moveCnt;++i){
         	Tuple tuple=tuples.next();
         	page.deleteTuple(tuple);
         	rightPage.insertTuple(tuple);
@@ -279,11 +410,19 @@ public class BTreeFile implements DbFile {
         rightPage.setLeftSiblingId(page.getId());
         rightPage.setRightSiblingId(page.getRightSiblingId());
         page.setRightSiblingId(rightPage.getId());
-        Field index=rightPage.iterator().next().getField(keyField);
+        // the shortest key between the two pages is enough to separate them
+        Field index=BTreeInternalPage.separator(page.reverseIterator().next().getField(keyField),
+        		rightPage.iterator().next().getField(keyField));
+        // a search that still goes by the old parent entry moves right past the high key
+        rightPage.setHighKey(page.getHighKey());
+        page.setHighKey(index);
         BTreeEntry entry=new BTreeEntry(index,page.getId(),rightPage.getId());
-        BTreeInternalPage parentPage=getParentWithEmptySlots(tid,dirtypages,page.getParentId(), index);
+        BTreeInternalPage parentPage=getParentWithEmptySlots(tid,dirtypages,page.getParentId(),index,rightEdge);
         parentPage.insertEntry(entry);
-        updateParentPointers(tid,dirtypages,parentPage);
+        // only the two halves can have a stale parent pointer, the other children of
+        // the parent are not locked
+        updateParentPointer(tid,dirtypages,parentPage.getId(),page.getId());
+        updateParentPointer(tid,dirtypages,parentPage.getId(),rightPage.getId());
         return (field.compare(Op.GREATER_THAN_OR_EQ,index)?rightPage:page);
 		
 	}
@@ -302,7 +441,7 @@ public class BTreeFile implements DbFile {
 	 * @param page - the internal page to split
 	 * @param field - the key field of the entry to be inserted after the split is complete. Necessary to know
 	 * which of the two pages to return.
-	 * @see #getParentWithEmptySlots(TransactionId, Map, BTreePageId, Field)
+	 * @see #getParentWithEmptySlots(TransactionId, Map, BTreePageId, Field, boolean)
 	 * @see #updateParentPointers(TransactionId, Map, BTreeInternalPage)
 	 * 
 	 * @return the internal page into which the new entry should be inserted
@@ -313,6 +452,21 @@ public class BTreeFile implements DbFile {
 	public BTreeInternalPage splitInternalPage(TransactionId tid, Map<PageId, Page> dirtypages,
 			BTreeInternalPage page, Field field) 
 					throws DbException, IOException, TransactionAbortedException {
+		return splitInternalPage(tid, dirtypages, page, field, false);
+	}
+
+	/**
+	 * Split an internal page, moving half of the entries to the new page, or only the
+	 * last one if the split was caused by a split at the right edge of the tree: the
+	 * page is then the right-most internal page of its level and the new entry goes
+	 * after all of its entries, so the page stays nearly full.
+	 * @see #splitInternalPage(TransactionId, Map, BTreeInternalPage, Field)
+	 * 
+	 * @param rightEdge - whether the new entry comes from a split at the right edge of the tree
+	 */
+	private BTreeInternalPage splitInternalPage(TransactionId tid, Map<PageId, Page> dirtypages,
+			BTreeInternalPage page, Field field, boolean rightEdge)
+					throws DbException, IOException, TransactionAbortedException {
 		// some code goes here
         //
         // Split the internal page by adding a new page on the right of the existing
@@ -323,8 +477,7 @@ public class BTreeFile implements DbFile {
 		// will be useful here.  Return the page into which an entry with the given key field
 		// should be inserted.
 		BTreeInternalPage rightPage=(BTreeInternalPage)getEmptyPage(tid,dirtypages,BTreePageId.INTERNAL);
-		int total=page.getNumEntries();
-		int moveCnt=total/2;
+		int moveCnt=rightEdge?1:page.getSplitCount();
 		Iterator<BTreeEntry> it=page.reverseIterator();
 		while (moveCnt>0){
 			BTreeEntry e=it.next();
@@ -335,10 +488,15 @@ public class BTreeFile implements DbFile {
 		BTreeEntry midEntry=it.next();
 		page.deleteKeyAndRightChild(midEntry);
 		Field index=midEntry.getKey();
+		rightPage.setHighKey(page.getHighKey());
+		rightPage.setRightSiblingId(page.getRightSiblingId());
+		page.setHighKey(index);
+		page.setRightSiblingId(rightPage.getId());
 		BTreeEntry newEntry=new BTreeEntry(index,page.getId(),rightPage.getId());
-		BTreeInternalPage parentPage=getParentWithEmptySlots(tid,dirtypages,page.getParentId(),index);
+		BTreeInternalPage parentPage=getParentWithEmptySlots(tid,dirtypages,page.getParentId(),index,rightEdge);
 		parentPage.insertEntry(newEntry);
-		updateParentPointers(tid,dirtypages,parentPage);
+		updateParentPointer(tid,dirtypages,parentPage.getId(),page.getId());
+		updateParentPointer(tid,dirtypages,parentPage.getId(),rightPage.getId());
 		updateParentPointers(tid,dirtypages,rightPage);
 		return field.compare(Op.GREATER_THAN_OR_EQ,index)?rightPage:page;
 	}
@@ -353,6 +511,7 @@ public class BTreeFile implements DbFile {
 	 * @param parentId - the id of the parent. May be an internal page or the RootPtr page
 	 * @param field - the key of the entry which will be inserted. Needed in case the parent must be split
 	 * to accommodate the new entry
+	 * @param rightEdge - whether the entry comes from a split at the right edge of the tree
 	 * @return the parent page, guaranteed to have at least one empty slot
 	 * @see #splitInternalPage(TransactionId, Map, BTreeInternalPage, Field)
 	 * 
@@ -361,7 +520,8 @@ public class BTreeFile implements DbFile {
 	 * @throws TransactionAbortedException
 	 */
 	private BTreeInternalPage getParentWithEmptySlots(TransactionId tid, Map<PageId, Page> dirtypages,
-			BTreePageId parentId, Field field) throws DbException, IOException, TransactionAbortedException {
+			BTreePageId parentId, Field field, boolean rightEdge)
+					throws DbException, IOException, TransactionAbortedException {
 		
 		BTreeInternalPage parent = null;
 		
@@ -387,8 +547,8 @@ public class BTreeFile implements DbFile {
 		}
 
 		// split the parent if needed
-		if(parent.getNumEmptySlots() == 0) {
-			parent = splitInternalPage(tid, dirtypages, parent, field);
+		if(!parent.hasRoomFor(field)) {
+			parent = splitInternalPage(tid, dirtypages, parent, field, rightEdge);
 		}
 
 		return parent;
@@ -447,7 +607,9 @@ public class BTreeFile implements DbFile {
 	 * Method to encapsulate the process of locking/fetching a page.  First the method checks the local 
 	 * cache ("dirtypages"), and if it can't find the requested page there, it fetches it from the buffer pool.  
 	 * It also adds pages to the dirtypages cache if they are fetched with read-write permission, since 
-	 * presumably they will soon be dirtied by this transaction.
+	 * presumably they will soon be dirtied by this transaction. The searches read the internal pages
+	 * and the root pointer page without locking them, so these are copied, and the copies replace
+	 * the pages in the buffer pool only when the insert or delete is done, see publish.
 	 * 
 	 * This method is needed to ensure that page updates are not lost if the same pages are
 	 * accessed multiple times.
@@ -468,19 +630,69 @@ public class BTreeFile implements DbFile {
 			return dirtypages.get(pid);
 		}
 		else {
-			Page p = null;
-			try {
-				p = Database.getBufferPool().getPage(tid, pid, perm);
-			} catch (Exception e) {
-				e.printStackTrace();
-			}
+			Page p = lockPage(tid, pid, perm);
 			if(perm == Permissions.READ_WRITE) {
+				if(pid.pgcateg() == BTreePageId.INTERNAL) {
+					p = ((BTreeInternalPage) p).copy();
+				}
+				else if(pid.pgcateg() == BTreePageId.ROOT_PTR) {
+					p = ((BTreeRootPtrPage) p).copy();
+				}
 				dirtypages.put(pid, p);
 			}
 			return p;
 		}
 	}
 
+	private Page lockPage(TransactionId tid, BTreePageId pid, Permissions perm)
+			throws DbException, TransactionAbortedException {
+		Page p = null;
+		try {
+			p = Database.getBufferPool().getPage(tid, pid, perm);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		return p;
+	}
+
+	/**
+	 * Put the pages an insert or delete has changed into the buffer pool and mark them
+	 * dirty. The copies of the internal pages replace the pages which the searches read,
+	 * each under an exclusive latch, in the order they were fetched -- from the bottom up
+	 * for a split -- and the root pointer page comes last, so that a search reaches a new
+	 * page only when it is complete. No lock is taken while a latch is held.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the pages changed by the insert or delete, in the order they were fetched
+	 * 
+	 * @throws DbException
+	 * @throws IOException
+	 */
+	private void publish(TransactionId tid, Map<PageId, Page> dirtypages)
+			throws DbException, IOException {
+		Page rootPtr = null;
+		for(Page p : dirtypages.values()) {
+			int pgcateg = ((BTreePageId) p.getId()).pgcateg();
+			if(pgcateg == BTreePageId.ROOT_PTR)
+				rootPtr = p;
+			else if(pgcateg == BTreePageId.INTERNAL)
+				publishPage(tid, p);
+			else
+				Database.getBufferPool().markDirty(tid, Collections.singletonList(p));
+		}
+		if(rootPtr != null)
+			publishPage(tid, rootPtr);
+	}
+
+	private void publishPage(TransactionId tid, Page p) throws DbException, IOException {
+		latches.latchExclusive(p.getId());
+		try {
+			Database.getBufferPool().markDirty(tid, Collections.singletonList(p));
+		} finally {
+			latches.unlatchExclusive(p.getId());
+		}
+	}
+
 	/**
 	 * Insert a tuple into this BTreeFile, keeping the tuples in sorted order. 
 	 * May cause pages to split if the page where tuple t belongs is full.
@@ -493,27 +705,35 @@ public class BTreeFile implements DbFile {
 	 */
 	public List<Page> insertTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
-		Map<PageId, Page> dirtypages = new HashMap<>();
+		Map<PageId, Page> dirtypages = new LinkedHashMap<>();
+		createFileIfNeeded();
 
-		// get a read lock on the root pointer page and use it to locate the root page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId rootId = rootPtr.getRootId();
+		// find and lock the left-most leaf page corresponding to the key field
+		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, Permissions.READ_WRITE, t.getField(keyField));
 
-		if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
-			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			rootPtr.setRootId(rootId);
-		}
+		try {
+			if(leafPage == null) { // the root has just been created, so set the root pointer to point to it
+				BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages,
+						BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+				if(rootPtr.getRootId() == null) {
+					rootPtr.setRootId(new BTreePageId(tableid, numPages(), BTreePageId.LEAF));
+				}
+				leafPage = findLeafPage(tid, dirtypages, Permissions.READ_WRITE, t.getField(keyField));
+			}
 
-		// find and lock the left-most leaf page corresponding to the key field,
-		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
-		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
-		}
+			// split the leaf page if there are no more slots available. The split
+			// takes all its locks before the searches can see any of its changes
+			if(leafPage.getNumEmptySlots() == 0) {
+				leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));
+			}
 
-		// insert the tuple into the leaf page
-		leafPage.insertTuple(t);
+			// insert the tuple into the leaf page
+			leafPage.insertTuple(t);
+		} finally {
+			// also if the split failed, so that the pages it has changed so far are
+			// rolled back with the transaction
+			publish(tid, dirtypages);
+		}
 
         return new ArrayList<>(dirtypages.values());
 	}
@@ -593,30 +813,56 @@ public class BTreeFile implements DbFile {
 		if(rightEntry != null) rightSiblingId = rightEntry.getRightChild();
 		
 		int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
+		BTreeLeafPage merged = null;
 		if(leftSiblingId != null) {
 			BTreeLeafPage leftSibling = (BTreeLeafPage) getPage(tid, dirtypages, leftSiblingId, Permissions.READ_WRITE);
-			// if the left sibling is at minimum occupancy, merge with it. Otherwise
-			// steal some tuples from it
-			if(leftSibling.getNumEmptySlots() >= maxEmptySlots) {
+			// if the left sibling is at minimum occupancy, or the two pages are too
+			// empty to both be half full, merge with it. Otherwise steal some tuples from it
+			if(leftSibling.getNumEmptySlots() >= maxEmptySlots || !canRedistribute(leftSibling, page)) {
 				mergeLeafPages(tid, dirtypages, leftSibling, page, parent, leftEntry);
+				merged = leftSibling;
 			}
-			else {
+			else if(canUpdateKey(parent)) {
 				stealFromLeafPage(page, leftSibling, parent, leftEntry, false);				
 			}
 		}
 		else if(rightSiblingId != null) {	
 			BTreeLeafPage rightSibling = (BTreeLeafPage) getPage(tid, dirtypages, rightSiblingId, Permissions.READ_WRITE);
-			// if the right sibling is at minimum occupancy, merge with it. Otherwise
-			// steal some tuples from it
-			if(rightSibling.getNumEmptySlots() >= maxEmptySlots) {
+			// if the right sibling is at minimum occupancy, or the two pages are too
+			// empty to both be half full, merge with it. Otherwise steal some tuples from it
+			if(rightSibling.getNumEmptySlots() >= maxEmptySlots || !canRedistribute(page, rightSibling)) {
 				mergeLeafPages(tid, dirtypages, page, rightSibling, parent, rightEntry);
+				merged = page;
 			}
-			else {
+			else if(canUpdateKey(parent)) {
 				stealFromLeafPage(page, rightSibling, parent, rightEntry, true);				
 			}
 		}
+
+		// a leaf which deferred merges left far below minimum occupancy may still be
+		// below it after merging with a sibling which is nearly empty as well
+		if(merged != null && isUnderfull(merged)) {
+			handleMinOccupancyPage(tid, dirtypages, merged);
+		}
+	}
+
+	/**
+	 * @return true if the tuples of two sibling leaves are enough for both to be
+	 *         half full after a redistribution
+	 */
+	private static boolean canRedistribute(BTreeLeafPage leftPage, BTreeLeafPage rightPage) {
+		return leftPage.getNumTuples() + rightPage.getNumTuples() >= 2 * (leftPage.getMaxTuples() / 2);
 	}
 	
+	/**
+	 * A redistribution replaces the key of the parent entry, which may be longer
+	 * than the old one if the parent has compressed keys. The parent then needs
+	 * room for a key of the largest size, or the pages are left as they are.
+	 */
+	private static boolean canUpdateKey(BTreeInternalPage parent) {
+		return !parent.hasCompressedKeys() || parent.getFreeBytes() >= BTreeInternalPage.MAX_COMPRESSED_KEY_SIZE;
+	}
+
 	/**
 	 * Steal tuples from a sibling and copy them to the given page so that both pages are at least
 	 * half full.  Update the parent's entry so that the key matches the key field of the first
@@ -648,8 +894,12 @@ public class BTreeFile implements DbFile {
 			page.insertTuple(t);
 		}
 		assert t!=null;
-		entry.setKey(t.getField(keyField));
+		BTreeLeafPage left=isRightSibling?page:sibling;
+		BTreeLeafPage right=isRightSibling?sibling:page;
+		entry.setKey(BTreeInternalPage.separator(left.reverseIterator().next().getField(keyField),
+				right.iterator().next().getField(keyField)));
 		parent.updateEntry(entry);
+		(isRightSibling?page:sibling).setHighKey(entry.getKey());
 	}
 
 	/**
@@ -684,10 +934,11 @@ public class BTreeFile implements DbFile {
 			BTreeInternalPage leftSibling = (BTreeInternalPage) getPage(tid, dirtypages, leftSiblingId, Permissions.READ_WRITE);
 			// if the left sibling is at minimum occupancy, merge with it. Otherwise
 			// steal some entries from it
-			if(leftSibling.getNumEmptySlots() >= maxEmptySlots) {
+			if(page.hasCompressedKeys() ? leftSibling.canMergeWith(page, leftEntry.getKey())
+					: leftSibling.getNumEmptySlots() >= maxEmptySlots) {
 				mergeInternalPages(tid, dirtypages, leftSibling, page, parent, leftEntry);
 			}
-			else {
+			else if(canUpdateKey(parent)) {
 				stealFromLeftInternalPage(tid, dirtypages, page, leftSibling, parent, leftEntry);
 			}
 		}
@@ -695,10 +946,11 @@ public class BTreeFile implements DbFile {
 			BTreeInternalPage rightSibling = (BTreeInternalPage) getPage(tid, dirtypages, rightSiblingId, Permissions.READ_WRITE);
 			// if the right sibling is at minimum occupancy, merge with it. Otherwise
 			// steal some entries from it
-			if(rightSibling.getNumEmptySlots() >= maxEmptySlots) {
+			if(page.hasCompressedKeys() ? page.canMergeWith(rightSibling, rightEntry.getKey())
+					: rightSibling.getNumEmptySlots() >= maxEmptySlots) {
 				mergeInternalPages(tid, dirtypages, page, rightSibling, parent, rightEntry);
 			}
-			else {
+			else if(canUpdateKey(parent)) {
 				stealFromRightInternalPage(tid, dirtypages, page, rightSibling, parent, rightEntry);
 			}
 		}
@@ -730,7 +982,10 @@ public class BTreeFile implements DbFile {
 		// the corresponding parent entry. Be sure to update the parent
 		// pointers of all children in the entries that were moved.
 		Iterator<BTreeEntry> moveEntry=leftSibling.reverseIterator();
-		int numSteal=(leftSibling.getNumEntries()-page.getNumEntries())/2;
+		int numSteal=page.hasCompressedKeys()?page.getStealCount(leftSibling,false)
+				:(leftSibling.getNumEntries()-page.getNumEntries())/2;
+		if(numSteal==0)
+			return;
 		//将parent的entry移动到page
 		BTreeEntry move=moveEntry.next();
 		BTreeEntry center=new BTreeEntry(parentEntry.getKey(),move.getRightChild(),page.iterator().next().getLeftChild());
@@ -743,6 +998,7 @@ public class BTreeFile implements DbFile {
 		leftSibling.deleteKeyAndRightChild(move);
 		parentEntry.setKey(move.getKey());
 		parent.updateEntry(parentEntry);
+		leftSibling.setHighKey(move.getKey());
 		updateParentPointers(tid,dirtypages,page);
 	}
 	
@@ -772,7 +1028,10 @@ public class BTreeFile implements DbFile {
 		// the corresponding parent entry. Be sure to update the parent
 		// pointers of all children in the entries that were moved.
 		Iterator<BTreeEntry> moveEntry=rightSibling.iterator();
-		int numSteal=(rightSibling.getNumEntries()-page.getNumEntries())/2;
+		int numSteal=page.hasCompressedKeys()?page.getStealCount(rightSibling,true)
+				:(rightSibling.getNumEntries()-page.getNumEntries())/2;
+		if(numSteal==0)
+			return;
 		BTreeEntry move=moveEntry.next();
 		BTreeEntry center=new BTreeEntry(parentEntry.getKey(),page.reverseIterator().next().getRightChild(),move.getLeftChild());
 		page.insertEntry(center);
@@ -784,6 +1043,7 @@ public class BTreeFile implements DbFile {
 		rightSibling.deleteKeyAndRightChild(move);
 		parentEntry.setKey(move.getKey());
 		parent.updateEntry(parentEntry);
+		page.setHighKey(move.getKey());
 		updateParentPointers(tid,dirtypages,page);
 	}
 	
@@ -828,6 +1088,7 @@ public class BTreeFile implements DbFile {
 			rightSibling.setLeftSiblingId(leftPage.getId());
 		}
 		leftPage.setRightSiblingId(rightPage.getRightSiblingId());
+		leftPage.setHighKey(rightPage.getHighKey());
 		setEmptyPage(tid,dirtypages,rightPage.getId().getPageNumber());
 		deleteParentEntry(tid,dirtypages,leftPage,parent,parentEntry);
 	}
@@ -874,6 +1135,8 @@ public class BTreeFile implements DbFile {
 			rightPage.deleteKeyAndLeftChild(entry);
 			leftPage.insertEntry(entry);
 		}
+		leftPage.setHighKey(rightPage.getHighKey());
+		leftPage.setRightSiblingId(rightPage.getRightSiblingId());
 		setEmptyPage(tid, dirtypages, rightPage.getId().getPageNumber());
 		//更新插入子页的对应父页
 		updateParentPointers(tid, dirtypages, leftPage);
@@ -906,7 +1169,6 @@ public class BTreeFile implements DbFile {
 		// the parent is below minimum occupancy, get some tuples from its siblings
 		// or merge with one of the siblings
 		parent.deleteKeyAndRightChild(parentEntry);
-		int maxEmptySlots = parent.getMaxEntries() - parent.getMaxEntries()/2; // ceiling
 		if(parent.getNumEmptySlots() == parent.getMaxEntries()) {
 			// This was the last entry in the parent.
 			// In this case, the parent (root node) should be deleted, and the merged 
@@ -922,7 +1184,7 @@ public class BTreeFile implements DbFile {
 			// release the parent page for reuse
 			setEmptyPage(tid, dirtypages, parent.getId().getPageNumber());
 		}
-		else if(parent.getNumEmptySlots() > maxEmptySlots) { 
+		else if(parent.isLessThanHalfFull()) { 
 			handleMinOccupancyPage(tid, dirtypages, parent);
 		}
 	}
@@ -940,7 +1202,7 @@ public class BTreeFile implements DbFile {
 	 */
 	public List<Page> deleteTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
-		Map<PageId, Page> dirtypages = new HashMap<>();
+		Map<PageId, Page> dirtypages = new LinkedHashMap<>();
 
 		BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().getPageNumber(),
 				BTreePageId.LEAF);
@@ -948,15 +1210,162 @@ public class BTreeFile implements DbFile {
 		page.deleteTuple(t);
 
 		// if the page is below minimum occupancy, get some tuples from its siblings
-		// or merge with one of the siblings
-		int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
-		if(page.getNumEmptySlots() > maxEmptySlots) { 
-			handleMinOccupancyPage(tid, dirtypages, page);
+		// or merge with one of the siblings, unless the merges are deferred to the
+		// compaction
+		if(compactionBatch > 0) {
+			if(isUnderfull(page)) {
+				pendingMerges.add(pageId);
+			}
+		}
+		else {
+			mergeIfUnderfull(tid, dirtypages, page);
 		}
 
         return new ArrayList<>(dirtypages.values());
 	}
 
+	private static boolean isUnderfull(BTreeLeafPage page) {
+		int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
+		return page.getNumEmptySlots() > maxEmptySlots;
+	}
+
+	private void mergeIfUnderfull(TransactionId tid, Map<PageId, Page> dirtypages, BTreeLeafPage page)
+			throws DbException, IOException, TransactionAbortedException {
+		if(isUnderfull(page)) {
+			try {
+				handleMinOccupancyPage(tid, dirtypages, page);
+			} finally {
+				// also if the merge failed, so that the pages it has changed so far are
+				// rolled back with the transaction. The searches which overlap with
+				// the publication start over
+				mergeVersion.incrementAndGet();
+				try {
+					publish(tid, dirtypages);
+				} finally {
+					mergeVersion.incrementAndGet();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Defer the redistributions and merges of the leaf pages which deletes leave
+	 * below minimum occupancy. A delete then only records the leaf, and the
+	 * leaves are merged later in batches by compact, in transactions of their own,
+	 * so that a mass delete does not restructure the tree once per tuple and a
+	 * leaf which is refilled soon is not merged at all. Until then the pending
+	 * leaves may be less than half full, which BTreeChecker allows for.
+	 *
+	 * @param intervalMillis - the time between two compactions by the background
+	 *            thread; 0 leaves the compaction to explicit calls of compact
+	 * @param batchSize - the number of pending leaves merged per compaction; 0
+	 *            merges on every delete again, as by default
+	 * @see #compact(int)
+	 */
+	public synchronized void setDeferredMerges(long intervalMillis, int batchSize) {
+		compactionBatch = Math.max(batchSize, 0);
+		compactionInterval = intervalMillis;
+		if(intervalMillis <= 0 || batchSize <= 0) {
+			stopCompactor();
+		}
+		else if(compactor == null) {
+			compactor = new Thread(this::runCompactor, "btree-compactor");
+			compactor.setDaemon(true);
+			compactor.start();
+		}
+	}
+
+	private synchronized void stopCompactor() {
+		if(compactor != null) {
+			compactor.interrupt();
+			compactor = null;
+		}
+	}
+
+	private void runCompactor() {
+		Thread self = Thread.currentThread();
+		while(true) {
+			long interval;
+			synchronized(this) {
+				if(compactor != self)
+					return;
+				interval = compactionInterval;
+			}
+			try {
+				Thread.sleep(interval);
+				compact(compactionBatch);
+			} catch (InterruptedException e) {
+				return;
+			} catch (DbException | IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * @return true if the leaf is below minimum occupancy and waits for the compaction
+	 */
+	public boolean isPendingMerge(BTreePageId pid) {
+		return pendingMerges.contains(pid);
+	}
+
+	/**
+	 * @return the number of leaves which wait for the compaction
+	 */
+	public int numPendingMerges() {
+		return pendingMerges.size();
+	}
+
+	/**
+	 * Redistribute or merge up to maxPages of the leaves which deletes left below
+	 * minimum occupancy while merges were deferred, in a transaction of its own.
+	 * A leaf which was refilled in the meantime is left as it is. If the
+	 * transaction is aborted, e.g. to resolve a deadlock with a user transaction,
+	 * the leaves stay pending for the next compaction.
+	 *
+	 * @param maxPages - the maximum number of pending leaves to handle
+	 * @return the number of pending leaves handled
+	 * @see #setDeferredMerges(long, int)
+	 */
+	public int compact(int maxPages) throws DbException, IOException {
+		synchronized(compactionLock) {
+			List<BTreePageId> batch = new ArrayList<>();
+			for(BTreePageId pid : pendingMerges) {
+				if(batch.size() >= maxPages)
+					break;
+				batch.add(pid);
+			}
+			if(batch.isEmpty())
+				return 0;
+
+			// the merges of an aborted compaction are rolled back, and so is the
+			// freeing of the leaves they merged away
+			Set<BTreePageId> pending = new HashSet<>(pendingMerges);
+			TransactionId tid = new TransactionId();
+			try {
+				for(BTreePageId pid : batch) {
+					// skip the leaves an earlier merge of the batch has freed
+					if(!pendingMerges.remove(pid))
+						continue;
+					Map<PageId, Page> dirtypages = new LinkedHashMap<>();
+					BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+					mergeIfUnderfull(tid, dirtypages, page);
+					Database.getBufferPool().markDirty(tid, dirtypages.values());
+				}
+				Database.getBufferPool().transactionComplete(tid);
+			} catch (TransactionAbortedException e) {
+				Database.getBufferPool().transactionComplete(tid, false);
+				pendingMerges.addAll(pending);
+				return 0;
+			} catch (DbException | IOException e) {
+				Database.getBufferPool().transactionComplete(tid, false);
+				pendingMerges.addAll(pending);
+				throw e;
+			}
+			return batch.size();
+		}
+	}
+
 	/**
 	 * Get a read lock on the root pointer page. Create the root pointer page and root page
 	 * if necessary.
@@ -969,6 +1378,17 @@ public class BTreeFile implements DbFile {
 	 * @throws TransactionAbortedException
 	 */
 	BTreeRootPtrPage getRootPtrPage(TransactionId tid, Map<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
+		createFileIfNeeded();
+
+		// get a read lock on the root pointer page
+		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+	}
+
+	/**
+	 * Create the root pointer page and the root page if the file is empty
+	 * @throws IOException
+	 */
+	private void createFileIfNeeded() throws IOException {
 		synchronized(this) {
 			if(f.length() == 0) {
 				// create the root pointer page and the root page
@@ -981,9 +1401,6 @@ public class BTreeFile implements DbFile {
 				bw.close();
 			}
 		}
-
-		// get a read lock on the root pointer page
-		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
 	}
 
 	/**
@@ -1078,7 +1495,11 @@ public class BTreeFile implements DbFile {
 		Database.getBufferPool().discardPage(newPageId);
 		dirtypages.remove(newPageId);
 		
-		return getPage(tid, dirtypages, newPageId, Permissions.READ_WRITE);
+		// the searches cannot reach the new page before it is published, so it is
+		// not copied like the internal pages they read
+		Page p = lockPage(tid, newPageId, Permissions.READ_WRITE);
+		dirtypages.put(newPageId, p);
+		return p;
 	}
 
 	/**
@@ -1165,6 +1586,7 @@ public class BTreeFile implements DbFile {
 		BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
 		int emptySlot = emptyPageNo - headerPageCount * BTreeHeaderPage.getNumSlots();
 		headerPage.markSlotUsed(emptySlot, false);
+		pendingMerges.remove(new BTreePageId(tableid, emptyPageNo, BTreePageId.LEAF));
 	}
 
 	/**
@@ -1181,6 +1603,20 @@ public class BTreeFile implements DbFile {
 		return new BTreeSearchIterator(this, tid, ipred);
 	}
 
+	/**
+	 * Get a read-locking iterator over the tuples whose key is one of the given keys,
+	 * in key order. The keys are looked up together: the search only descends from the
+	 * root for the first key and for keys beyond the leaf it is on and its right
+	 * sibling, so neighbouring keys share the leaves and the path down to them.
+	 * 
+	 * @param tid - the transaction id
+	 * @param keys - the keys to look up, in any order and possibly repeated
+	 * @return an iterator for the tuples with one of the keys
+	 */
+	public DbFileIterator indexIterator(TransactionId tid, List<Field> keys) {
+		return new BTreeMultiKeySearchIterator(this, tid, keys);
+	}
+
 	/**
 	 * Get an iterator for all tuples in this B+ tree file in sorted order. This method 
 	 * will acquire a read lock on the affected pages of the file, and may block until 
@@ -1193,6 +1629,32 @@ public class BTreeFile implements DbFile {
 		return new BTreeFileIterator(this, tid);
 	}
 
+	/**
+	 * Get an iterator for all tuples in this B+ tree file in descending key order,
+	 * walking the leaves from the right-most one along the left sibling pointers.
+	 * This method will acquire a read lock on the affected pages of the file, and
+	 * may block until the lock can be acquired.
+	 * 
+	 * @param tid - the transaction id
+	 * @return an iterator for all the tuples in this file, from the largest key
+	 */
+	public DbFileIterator reverseIterator(TransactionId tid) {
+		return new BTreeReverseSearchIterator(this, tid, null);
+	}
+
+	/**
+	 * Get a read-locking iterator over the tuples matching the predicate in
+	 * descending key order. A predicate bounding the keys from above starts the
+	 * search at the leaf holding the bound, any other at the right-most leaf.
+	 * 
+	 * @param tid - the transaction id
+	 * @param ipred - the index predicate value to filter on
+	 * @return an iterator for the filtered tuples, from the largest key
+	 */
+	public DbFileIterator reverseIndexIterator(TransactionId tid, IndexPredicate ipred) {
+		return new BTreeReverseSearchIterator(this, tid, ipred);
+	}
+
 }
 
 /**
@@ -1220,16 +1682,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = null;
-		try {
-			rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-					tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, null);
-		it = curp.iterator();
+		curp = f.findLeafPage(tid, null);
+		it = curp == null ? null : curp.iterator();
 	}
 
 	/**
@@ -1314,22 +1768,16 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = null;
-		try {
-			rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-					tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-		BTreePageId root = rootPtr.getRootId();
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, ipred.getField());
+			curp = f.findLeafPage(tid, ipred.getField());
+			// skip the smaller keys on the first leaf with a binary search
+			it = curp == null ? null : curp.iterator(ipred.getField(), ipred.getOp() != Op.GREATER_THAN);
 		}
 		else {
-			curp = f.findLeafPage(tid, root, null);
+			curp = f.findLeafPage(tid, null);
+			it = curp == null ? null : curp.iterator();
 		}
-		it = curp.iterator();
 	}
 
 	/**
@@ -1396,3 +1844,263 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 		it = null;
 	}
 }
+
+/**
+ * Helper class that implements the DbFileIterator for the tuples of a B+ Tree
+ * File in descending key order, optionally matching a predicate
+ */
+class BTreeReverseSearchIterator extends AbstractDbFileIterator {
+
+	Iterator<Tuple> it = null;
+	BTreeLeafPage curp = null;
+
+	final TransactionId tid;
+	final BTreeFile f;
+	final IndexPredicate ipred;
+
+	/**
+	 * Constructor for this iterator
+	 * @param f - the BTreeFile containing the tuples
+	 * @param tid - the transaction id
+	 * @param ipred - the predicate to filter on, or null for all tuples
+	 */
+	public BTreeReverseSearchIterator(BTreeFile f, TransactionId tid, IndexPredicate ipred) {
+		this.f = f;
+		this.tid = tid;
+		this.ipred = ipred;
+	}
+
+	/**
+	 * Open this iterator by getting a reverse iterator on the last leaf page
+	 * applicable for the given predicate operation
+	 */
+	public void open() throws DbException, TransactionAbortedException {
+		Op op = ipred == null ? null : ipred.getOp();
+		if(op == Op.EQUALS || op == Op.LESS_THAN || op == Op.LESS_THAN_OR_EQ) {
+			curp = f.findLeafPage(tid, ipred.getField());
+			if(curp != null && op != Op.LESS_THAN)
+				curp = lastLeafWithKey(curp);
+			// skip the larger keys on the first leaf with a binary search
+			it = curp == null ? null : curp.reverseIterator(ipred.getField(), op != Op.LESS_THAN);
+		}
+		else {
+			curp = f.findLastLeafPage(tid);
+			it = curp == null ? null : curp.reverseIterator();
+		}
+	}
+
+	/**
+	 * Tuples with a key equal to the predicate's field may go on past the
+	 * left-most leaf possibly containing it, so move right while the first
+	 * key of the right sibling is not greater than the field.
+	 */
+	private BTreeLeafPage lastLeafWithKey(BTreeLeafPage leaf)
+			throws DbException, TransactionAbortedException {
+		while(leaf.getRightSiblingId() != null) {
+			BTreeLeafPage next = (BTreeLeafPage) f.getPage(tid, new HashMap<>(),
+					leaf.getRightSiblingId(), Permissions.READ_ONLY);
+			Iterator<Tuple> first = next.iterator();
+			if(!first.hasNext()
+					|| first.next().getField(f.keyField()).compare(Op.GREATER_THAN, ipred.getField()))
+				break;
+			leaf = next;
+		}
+		return leaf;
+	}
+
+	/**
+	 * Read the next tuple either from the current page if it has more tuples matching
+	 * the predicate or from the previous page by following the left sibling pointer.
+	 * 
+	 * @return the next tuple matching the predicate, or null if none exists
+	 */
+	@Override
+	protected Tuple readNext() throws TransactionAbortedException, DbException,
+	NoSuchElementException {
+		while (it != null) {
+
+			while (it.hasNext()) {
+				Tuple t = it.next();
+				if (ipred == null || t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
+					return t;
+				}
+				else if(ipred.getOp() == Op.GREATER_THAN || ipred.getOp() == Op.GREATER_THAN_OR_EQ
+						|| ipred.getOp() == Op.EQUALS) {
+					// the keys only get smaller from here, so we have hit the end
+					return null;
+				}
+			}
+
+			BTreePageId prevp = curp.getLeftSiblingId();
+			// if there are no more pages to the left, end the iteration
+			if(prevp == null) {
+				return null;
+			}
+			curp = (BTreeLeafPage) f.getPage(tid, new HashMap<>(), prevp, Permissions.READ_ONLY);
+			it = curp.reverseIterator();
+		}
+
+		return null;
+	}
+
+	/**
+	 * rewind this iterator back to the beginning of the tuples
+	 */
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	/**
+	 * close the iterator
+	 */
+	public void close() {
+		super.close();
+		it = null;
+		curp = null;
+	}
+}
+
+/**
+ * Helper class that implements the DbFileIterator for the tuples of a B+ Tree
+ * File with one of a list of keys
+ */
+class BTreeMultiKeySearchIterator extends AbstractDbFileIterator {
+
+	Iterator<Tuple> it = null;
+	BTreeLeafPage curp = null;
+	int next = 0;
+
+	final TransactionId tid;
+	final BTreeFile f;
+	final List<Field> keys;
+
+	/**
+	 * Constructor for this iterator
+	 * @param f - the BTreeFile containing the tuples
+	 * @param tid - the transaction id
+	 * @param keys - the keys to look up
+	 */
+	public BTreeMultiKeySearchIterator(BTreeFile f, TransactionId tid, List<Field> keys) {
+		this.f = f;
+		this.tid = tid;
+		// sort the keys and drop the repeated ones
+		List<Field> sorted = new ArrayList<>(keys);
+		sorted.sort((a, b) -> a.compare(Op.LESS_THAN, b) ? -1 : a.compare(Op.GREATER_THAN, b) ? 1 : 0);
+		this.keys = new ArrayList<>();
+		for(Field key : sorted) {
+			if(this.keys.isEmpty() || !this.keys.get(this.keys.size() - 1).equals(key))
+				this.keys.add(key);
+		}
+	}
+
+	/**
+	 * Open this iterator by searching for the first key
+	 */
+	public void open() throws DbException, TransactionAbortedException {
+		next = 0;
+		if(!keys.isEmpty())
+			seek();
+	}
+
+	/**
+	 * @return the largest key on the page, or null if the page is empty
+	 */
+	private Field lastKey(BTreeLeafPage page) {
+		Iterator<Tuple> last = page.reverseIterator();
+		return last.hasNext() ? last.next().getField(f.keyField()) : null;
+	}
+
+	/**
+	 * @return whether the left-most tuple with a key equal to the given key is on
+	 * the page, given that the keys searched for before are on or left of it
+	 */
+	private boolean covers(BTreeLeafPage page, Field key) {
+		Field last = lastKey(page);
+		return last != null && !key.compare(Op.GREATER_THAN, last);
+	}
+
+	/**
+	 * Position the iterator at the first tuple not less than the current key: on
+	 * the current leaf or its right sibling if one of them covers the key, or on
+	 * the leaf found by a search from the root otherwise.
+	 */
+	private void seek() throws DbException, TransactionAbortedException {
+		Field key = keys.get(next);
+		if(curp == null || !covers(curp, key)) {
+			BTreeLeafPage right = null;
+			if(curp != null && curp.getRightSiblingId() != null)
+				right = (BTreeLeafPage) f.getPage(tid, new HashMap<>(), curp.getRightSiblingId(),
+						Permissions.READ_ONLY);
+			curp = right != null && covers(right, key) ? right : f.findLeafPage(tid, key);
+		}
+		// skip the smaller keys on the leaf with a binary search
+		it = curp == null ? null : curp.iterator(key, true);
+	}
+
+	/**
+	 * Read the next tuple with one of the keys, moving on to the next key when the
+	 * tuples with the current key run out.
+	 * 
+	 * @return the next tuple with one of the keys, or null if none exists
+	 */
+	@Override
+	protected Tuple readNext() throws TransactionAbortedException, DbException,
+	NoSuchElementException {
+		search:
+		// the keys may have run out at an earlier call
+		while (it != null && next < keys.size()) {
+
+			while (it.hasNext()) {
+				Tuple t = it.next();
+				Field tkey = t.getField(f.keyField());
+				// skip the keys which are not in the file
+				while (keys.get(next).compare(Op.LESS_THAN, tkey)) {
+					if (++next == keys.size())
+						return null;
+				}
+				if (keys.get(next).equals(tkey)) {
+					return t;
+				}
+				seek();
+				continue search;
+			}
+
+			BTreePageId nextp = curp.getRightSiblingId();
+			// if there are no more pages to the right, end the iteration
+			if(nextp == null) {
+				return null;
+			}
+			Field last = lastKey(curp);
+			if (last != null && last.compare(Op.LESS_THAN, keys.get(next))) {
+				// the current key is beyond this leaf, search for it
+				BTreeLeafPage prev = curp;
+				seek();
+				if (curp != prev)
+					continue;
+			}
+			// tuples with the current key may go on on the right sibling
+			curp = (BTreeLeafPage) f.getPage(tid, new HashMap<>(), nextp, Permissions.READ_ONLY);
+			it = curp.iterator();
+		}
+
+		return null;
+	}
+
+	/**
+	 * rewind this iterator back to the beginning of the tuples
+	 */
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	/**
+	 * close the iterator
+	 */
+	public void close() {
+		super.close();
+		it = null;
+		curp = null;
+	}
+}
@@ -205,36 +205,121 @@ public class BTreeFileEncoder {
 		HeapFileEncoder.convert(inFile, hFile, BufferPool.getPageSize(), numFields);
 		HeapFile heapf = Utility.openHeapFile(numFields, hFile);
 
-		// read all the tuples from the heap file and sort them on the keyField
-		List<Tuple> tuples = new ArrayList<>();
+		// sort the tuples of the heap file on the keyField and add them to the B+ tree file
+		BTreeFile bf = BTreeUtility.openBTreeFile(numFields, bFile, keyField);
 		TransactionId tid = new TransactionId();
-		DbFileIterator it = Database.getCatalog().getDatabaseFile(heapf.getId()).iterator(tid);
-		it.open();
-		while (it.hasNext()) {
-			Tuple tup = it.next();
-			tuples.add(tup);
-		}
-		it.close();
-		tuples.sort(new TupleComparator(keyField));
+		build(heapf.iterator(tid), bf, npagebytes, 1.0, BufferPool.DEFAULT_PAGES);
 
-		// add the tuples to B+ tree file
-		BTreeFile bf = BTreeUtility.openBTreeFile(numFields, bFile, keyField);
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		return bf;
+	}
+
+	/**
+	 * Bulk load a B+ tree index over all the tuples of a file. The tuples are sorted on
+	 * the key field with an external merge sort using at most sortPages pages of memory,
+	 * and the leaf and internal pages are then packed bottom-up, so the size of the file
+	 * is not limited by the size of the heap. The B+ tree file is added to the catalog.
+	 * 
+	 * @param tid - the transaction reading the source file
+	 * @param source - the file containing the tuples, e.g. a HeapFile
+	 * @param bFile - the file on disk to back the resulting BTreeFile; it is overwritten
+	 * @param keyField - the field of the tuples the B+ tree will be keyed on
+	 * @param fillFactor - the fraction of each page to fill, between 0.5 and 1. Pages which
+	 * are not full leave room for later inserts without splitting
+	 * @param sortPages - number of pages of memory for the sort, at least 3
+	 * @return the B+ tree file
+	 * @throws IOException
+	 * @throws DbException
+	 * @throws TransactionAbortedException
+	 */
+	public static BTreeFile bulkLoad(TransactionId tid, DbFile source, File bFile, int keyField,
+			double fillFactor, int sortPages) throws IOException, DbException, TransactionAbortedException {
+		new FileOutputStream(bFile).close(); // truncate
+		BTreeFile bf = new BTreeFile(bFile, keyField, source.getTupleDesc());
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+		build(source.iterator(tid), bf, BufferPool.getPageSize(), fillFactor, sortPages);
+		return bf;
+	}
+
+	/**
+	 * Sort the tuples of source and write them out to the empty B+ tree file bf,
+	 * leaf pages first and internal pages as they fill up. The tuples must match
+	 * the TupleDesc of bf.
+	 * 
+	 * @see #bulkLoad(TransactionId, DbFile, File, int, double, int)
+	 */
+	static void build(DbFileIterator source, BTreeFile bf, int npagebytes,
+			double fillFactor, int sortPages) throws IOException, DbException, TransactionAbortedException {
+		if(fillFactor < 0.5 || fillFactor > 1.0) {
+			throw new IllegalArgumentException("fill factor must be between 0.5 and 1, got " + fillFactor);
+		}
+		TupleDesc td = bf.getTupleDesc();
+		int numFields = td.numFields();
+		Type[] typeAr = new Type[numFields];
+		for (int i = 0; i < numFields; i++) {
+			typeAr[i] = td.getFieldType(i);
+		}
+		int keyField = bf.keyField();
 		Type keyType = typeAr[keyField];
 		int tableid = bf.getId();
 
-		int nrecbytes = 0;
-		for (int i = 0; i < numFields ; i++) {
-			nrecbytes += typeAr[i].getLen();
-		}
-		// pointerbytes: left sibling pointer, right sibling pointer, parent pointer
-		int leafpointerbytes = 3 * BTreeLeafPage.INDEX_SIZE; 
+		int nrecbytes = td.getSize();
+		// pointerbytes: left sibling pointer, right sibling pointer, parent pointer, high key
+		int leafpointerbytes = 3 * BTreeLeafPage.INDEX_SIZE + BTreePage.highKeySize(keyType);
 		int nrecords = (npagebytes * 8 - leafpointerbytes * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
 
 		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
-		// pointerbytes: one extra child pointer, parent pointer, child page category
-		int internalpointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
+		// pointerbytes: one extra child pointer, parent pointer, child page category,
+		// right sibling pointer, high key
+		int internalpointerbytes = BTreeInternalPage.pointerBytes(keyType) + BTreeInternalPage.INDEX_SIZE;
 		int nentries = (npagebytes * 8 - internalpointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
 
+		// the number of tuples and entries to put on each page
+		int leafFill = Math.max(1, (int) (nrecords * fillFactor));
+		int entryFill = Math.max(1, (int) (nentries * fillFactor));
+
+		// with compressed keys, the entries on a page are bounded by the bytes they take
+		int fillBytes = 0;
+		if(BTreeInternalPage.compressesKeys(keyType)) {
+			nentries = BTreeInternalPage.maxEntries(keyType);
+			entryFill = nentries;
+			// room for the two entries of the largest size a split of the last pages may add
+			int maxEntryBytes = BTreeInternalPage.INDEX_SIZE + BTreeInternalPage.MAX_COMPRESSED_KEY_SIZE;
+			fillBytes = Math.min((int) (compressedCapacity(npagebytes) * fillFactor),
+					compressedCapacity(npagebytes) - 2 * maxEntryBytes);
+		}
+
+		// sort the tuples on the keyField
+		ExternalSorter sorter = new ExternalSorter(td, new TupleComparator(keyField), sortPages);
+		try {
+			source.open();
+			while (source.hasNext()) {
+				sorter.add(source.next());
+			}
+			source.close();
+			DbFileIterator tuples = sorter.iterator();
+			tuples.open();
+			writePages(tuples, bf, npagebytes, numFields, typeAr, keyField, keyType, tableid,
+					nrecords, nentries, leafFill, entryFill, fillBytes);
+			tuples.close();
+		} finally {
+			sorter.close();
+		}
+	}
+
+	/**
+	 * Write out the B+ tree pages for the sorted tuples
+	 * 
+	 * @param nrecords - the number of tuples which fit on a leaf page
+	 * @param nentries - the number of entries which fit on an internal page
+	 * @param leafFill - the number of tuples to put on a leaf page
+	 * @param entryFill - the number of entries to put on an internal page
+	 * @param fillBytes - the number of bytes to fill on an internal page with compressed keys
+	 */
+	private static void writePages(DbFileIterator tuples, BTreeFile bf, int npagebytes, int numFields,
+			Type[] typeAr, int keyField, Type keyType, int tableid,
+			int nrecords, int nentries, int leafFill, int entryFill, int fillBytes)
+					throws IOException, DbException, TransactionAbortedException {
 		List<List<BTreeEntry>> entries = new ArrayList<>();
 
 		// first add some bytes for the root pointer page
@@ -249,11 +334,12 @@ public class BTreeFileEncoder {
 		List<Tuple> page1 = new ArrayList<>();
 		List<Tuple> page2 = new ArrayList<>();
 		BTreePageId leftSiblingId = null;
-		for(Tuple tup : tuples) {
-			if(page1.size() < nrecords) {
+		while(tuples.hasNext()) {
+			Tuple tup = tuples.next();
+			if(page1.size() < leafFill) {
 				page1.add(tup);
 			}
-			else if(page2.size() < nrecords) {
+			else if(page2.size() < leafFill) {
 				page2.add(tup);
 			}
 			else {
@@ -265,9 +351,11 @@ public class BTreeFileEncoder {
 				bf.writePage(leafPage);
 				leftSiblingId = leafPid;
 
-				// update the parent by "copying up" the next key
-				BTreeEntry copyUpEntry = new BTreeEntry(page2.get(0).getField(keyField), leafPid, null);
-				updateEntries(entries, bf, copyUpEntry, 0, nentries, npagebytes, 
+				// update the parent by "copying up" the shortest key separating the pages
+				Field separator = BTreeInternalPage.separator(page1.get(page1.size() - 1).getField(keyField),
+						page2.get(0).getField(keyField));
+				BTreeEntry copyUpEntry = new BTreeEntry(separator, leafPid, null);
+				updateEntries(entries, bf, copyUpEntry, 0, entryFill, fillBytes, npagebytes, 
 						keyType, tableid, keyField);
 
 				page1 = page2;
@@ -277,20 +365,25 @@ public class BTreeFileEncoder {
 		}
 
 		// now we need to deal with the end cases. There are two options:
-		// 1. We have less than or equal to a full page of records. Because of the way the code
-		//    was written above, we know this must be the only page
+		// 1. The remaining records fit on a page. With a full fill factor this can only
+		//    happen if it is the only page
 		// 2. We have somewhere between one and two pages of records remaining.
-		// For case (1), we write out the page 
+		// For case (1), we write out the page, and if it is not the only one, make it the
+		// right child of the last entry.
 		// For case (2), we divide the remaining records equally between the last two pages,
 		// write them out, and update the parent's child pointers.
 		BTreePageId lastPid = null;
-		if(page2.size() == 0) {
-			// write out a page of records - this is the root page
+		if(page1.size() + page2.size() <= nrecords) {
+			// write out a page of records - this is the root page if there are no others
+			page1.addAll(page2);
 			byte[] lastPageBytes = convertToLeafPage(page1, npagebytes, numFields, typeAr, keyField);
 			lastPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.LEAF);
 			BTreeLeafPage lastPage = new BTreeLeafPage(lastPid, lastPageBytes, keyField);
 			lastPage.setLeftSiblingId(leftSiblingId);
 			bf.writePage(lastPage);
+			if(leftSiblingId != null) {
+				setLastRightChild(entries.get(0), lastPid);
+			}
 		}
 		else {
 			// split the remaining tuples in half
@@ -313,14 +406,16 @@ public class BTreeFileEncoder {
 			lastPage.setLeftSiblingId(secondToLastPid);
 			bf.writePage(lastPage);
 
-			// update the parent by "copying up" the next key
-			BTreeEntry copyUpEntry = new BTreeEntry(lastPg.get(0).getField(keyField), secondToLastPid, lastPid);
-			updateEntries(entries, bf, copyUpEntry, 0, nentries, npagebytes, 
+			// update the parent by "copying up" the shortest key separating the pages
+			Field separator = BTreeInternalPage.separator(
+					secondToLastPg.get(secondToLastPg.size() - 1).getField(keyField), lastPg.get(0).getField(keyField));
+			BTreeEntry copyUpEntry = new BTreeEntry(separator, secondToLastPid, lastPid);
+			updateEntries(entries, bf, copyUpEntry, 0, entryFill, fillBytes, npagebytes, 
 					keyType, tableid, keyField);
 		}
 
 		// Write out the remaining internal pages
-		cleanUpEntries(entries, bf, nentries, npagebytes, keyType, tableid, keyField);
+		cleanUpEntries(entries, bf, nentries, entryFill, fillBytes, npagebytes, keyType, tableid, keyField);
 
 		// update the root pointer to point to the last page of the file
 		int root = bf.numPages();
@@ -328,64 +423,64 @@ public class BTreeFileEncoder {
 		byte[] rootPtrBytes = convertToRootPtrPage(root, rootCategory, 0);
 		bf.writePage(new BTreeRootPtrPage(BTreeRootPtrPage.getId(tableid), rootPtrBytes));
 
-		// set all the parent and sibling pointers
-		setParents(bf, new BTreePageId(tableid, root, rootCategory), BTreeRootPtrPage.getId(tableid));
-		setRightSiblingPtrs(bf, lastPid, null);
-
-		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
-		return bf;
+		// set all the parent and sibling pointers and the high keys
+		List<BTreePage> lastOnLevel = new ArrayList<>();
+		setParents(bf, new BTreePageId(tableid, root, rootCategory), BTreeRootPtrPage.getId(tableid), 
+				null, 0, lastOnLevel);
+		for(BTreePage page : lastOnLevel) {
+			bf.writePage(page);
+		}
 	}
 
 	/**
-	 * Set all the right sibling pointers by following the left sibling pointers
-	 * 
-	 * @param bf - the BTreeFile
-	 * @param pid - the id of the page to update with the right sibling pointer
-	 * @param rightSiblingId - the id of the page's right sibling
-	 * @throws IOException
-	 * @throws DbException
+	 * Make child the right child of the last entry of a level, which is still waiting for it
 	 */
-	private static void setRightSiblingPtrs(BTreeFile bf, BTreePageId pid, BTreePageId rightSiblingId) 
-			throws IOException, DbException {
-		BTreeLeafPage page = (BTreeLeafPage) bf.readPage(pid);
-		page.setRightSiblingId(rightSiblingId);
-		BTreePageId leftSiblingId = page.getLeftSiblingId();
-		bf.writePage(page);
-		if(leftSiblingId != null) {
-			setRightSiblingPtrs(bf, leftSiblingId, page.getId());
-		}
+	private static void setLastRightChild(List<BTreeEntry> levelEntries, BTreePageId child) {
+		BTreeEntry prev = levelEntries.get(levelEntries.size() - 1);
+		levelEntries.set(levelEntries.size() - 1, new BTreeEntry(prev.getKey(), prev.getLeftChild(), child));
 	}
 
 	/**
-	 * Recursive function to set all the parent pointers
+	 * Recursive function to set all the parent pointers, the high keys and the right
+	 * sibling pointers. The pages of each level are reached from left to right, and a
+	 * page is only written out once the next page on its level is known.
 	 * 
 	 * @param bf - the BTreeFile
 	 * @param pid - id of the page to update with the parent pointer
 	 * @param parent - the id of the page's parent
+	 * @param highKey - the high key of the page: the key of the parent entry right of it, 
+	 * or null for the right-most page of a level
+	 * @param level - the level of the page, 0 for the root page
+	 * @param lastOnLevel - holds the last page reached on each level, which has not been
+	 * written out yet
 	 * @throws IOException
 	 * @throws DbException
 	 */
-	private static void setParents(BTreeFile bf, BTreePageId pid, BTreePageId parent) 
-			throws IOException, DbException {
-		if(pid.pgcateg() == BTreePageId.INTERNAL) {
-			BTreeInternalPage page = (BTreeInternalPage) bf.readPage(pid);
-			page.setParentId(parent);
+	private static void setParents(BTreeFile bf, BTreePageId pid, BTreePageId parent, Field highKey,
+			int level, List<BTreePage> lastOnLevel) throws IOException, DbException {
+		BTreePage page = (BTreePage) bf.readPage(pid);
+		page.setParentId(parent);
+		page.setHighKey(highKey);
+		if(lastOnLevel.size() == level) {
+			lastOnLevel.add(page);
+		}
+		else {
+			BTreePage prev = lastOnLevel.get(level);
+			prev.setRightSiblingId(pid);
+			bf.writePage(prev);
+			lastOnLevel.set(level, page);
+		}
 
-			Iterator<BTreeEntry> it = page.iterator();
+		if(pid.pgcateg() == BTreePageId.INTERNAL) {
+			Iterator<BTreeEntry> it = ((BTreeInternalPage) page).iterator();
 			BTreeEntry e = null;
 			while(it.hasNext()) {
 				e = it.next();
-				setParents(bf, e.getLeftChild(), pid);
+				setParents(bf, e.getLeftChild(), pid, e.getKey(), level + 1, lastOnLevel);
 			}
 			if(e != null) {
-				setParents(bf, e.getRightChild(), pid);
+				setParents(bf, e.getRightChild(), pid, highKey, level + 1, lastOnLevel);
 			}
-			bf.writePage(page);
-		}
-		else { // pid.pgcateg() == BTreePageId.LEAF
-			BTreeLeafPage page = (BTreeLeafPage) bf.readPage(pid);
-			page.setParentId(parent);
-			bf.writePage(page);
 		}
 	}
 
@@ -394,7 +489,9 @@ public class BTreeFileEncoder {
 	 * 
 	 * @param entries - the list of remaining entries
 	 * @param bf - the BTreeFile
-	 * @param nentries - number of entries per page
+	 * @param nentries - number of entries which fit on a page
+	 * @param entryFill - number of entries to put on each page
+	 * @param fillBytes - number of bytes to fill on each page with compressed keys
 	 * @param npagebytes - number of bytes per page
 	 * @param keyType - the type of the key field
 	 * @param tableid - the table id of this BTreeFile
@@ -402,28 +499,34 @@ public class BTreeFileEncoder {
 	 * @throws IOException
 	 */
 	private static void cleanUpEntries(List<List<BTreeEntry>> entries,
-			BTreeFile bf, int nentries, int npagebytes, Type keyType, int tableid, 
+			BTreeFile bf, int nentries, int entryFill, int fillBytes, int npagebytes, Type keyType, int tableid, 
 			int keyField) throws IOException {
 		// As with the leaf pages, there are two options:
-		// 1. We have less than or equal to a full page of entries. Because of the way the code
-		//    was written, we know this must be the root page
+		// 1. We have less than or equal to a full page of entries. With a full fill factor
+		//    this must be the root page
 		// 2. We have somewhere between one and two pages of entries remaining.
-		// For case (1), we write out the page 
+		// For case (1), we write out the page, and if it is not the root page, make it the
+		// right child of the last entry on the level above.
 		// For case (2), we divide the remaining entries equally between the last two pages,
 		// write them out, and update the parent's child pointers.
 		for(int i = 0; i < entries.size(); i++) {
 			int childPageCategory = (i == 0 ? BTreePageId.LEAF : BTreePageId.INTERNAL);
 			int size = entries.get(i).size();
-			if(size <= nentries) {
+			int onePage = pageEntries(entries.get(i), 0, nentries, compressedCapacity(npagebytes), keyType);
+			if(onePage == -1 || onePage == size) {
 				// write out a page of entries
 				byte[] internalPageBytes = convertToInternalPage(entries.get(i), npagebytes, keyType, childPageCategory);
 				BTreePageId internalPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.INTERNAL);
 				bf.writePage(new BTreeInternalPage(internalPid, internalPageBytes, keyField));
+				if(entries.size() > i + 1) {
+					setLastRightChild(entries.get(i + 1), internalPid);
+				}
 			}
 			else {
 				// split the remaining entries in half
-                List<BTreeEntry> secondToLastPg = new ArrayList<>(entries.get(i).subList(0, size / 2));
-                List<BTreeEntry> lastPg = new ArrayList<>(entries.get(i).subList(size / 2 + 1, size));
+				int half = splitPoint(entries.get(i), keyType);
+                List<BTreeEntry> secondToLastPg = new ArrayList<>(entries.get(i).subList(0, half));
+                List<BTreeEntry> lastPg = new ArrayList<>(entries.get(i).subList(half + 1, size));
 
 				// write out the last two pages of entries
 				byte[] secondToLastPageBytes = convertToInternalPage(secondToLastPg, npagebytes, keyType, childPageCategory);
@@ -435,8 +538,8 @@ public class BTreeFileEncoder {
 				bf.writePage(new BTreeInternalPage(lastPid, lastPageBytes, keyField));
 
 				// update the parent by "pushing up" the next key
-				BTreeEntry pushUpEntry = new BTreeEntry(entries.get(i).get(size/2).getKey(), secondToLastPid, lastPid);
-				updateEntries(entries, bf, pushUpEntry, i+1, nentries, npagebytes, 
+				BTreeEntry pushUpEntry = new BTreeEntry(entries.get(i).get(half).getKey(), secondToLastPid, lastPid);
+				updateEntries(entries, bf, pushUpEntry, i+1, entryFill, fillBytes, npagebytes, 
 						keyType, tableid, keyField);
 			}
 
@@ -450,7 +553,8 @@ public class BTreeFileEncoder {
 	 * @param bf - the BTreefile
 	 * @param e - the new entry 
 	 * @param level - the level of the new entry (0 is closest to the leaf pages)
-	 * @param nentries - number of entries per page
+	 * @param nentries - number of entries to put on each page
+	 * @param fillBytes - number of bytes to fill on each page with compressed keys
 	 * @param npagebytes - number of bytes per page
 	 * @param keyType - the type of the key field
 	 * @param tableid - the table id of this BTreeFile
@@ -458,7 +562,7 @@ public class BTreeFileEncoder {
 	 * @throws IOException
 	 */
 	private static void updateEntries(List<List<BTreeEntry>> entries,
-			BTreeFile bf, BTreeEntry e, int level, int nentries, int npagebytes, Type keyType, 
+			BTreeFile bf, BTreeEntry e, int level, int nentries, int fillBytes, int npagebytes, Type keyType, 
 			int tableid, int keyField) throws IOException {
 		while(entries.size() <= level) {
 			entries.add(new ArrayList<>());
@@ -470,18 +574,20 @@ public class BTreeFileEncoder {
 		if(size > 0) {
 			BTreeEntry prev = entries.get(level).get(size-1);
 			entries.get(level).set(size-1, new BTreeEntry(prev.getKey(), prev.getLeftChild(), e.getLeftChild()));
-			if(size == nentries * 2 + 1) {
+			// wait until there are two pages of entries, like for the leaf pages
+			int onePage = pageEntries(entries.get(level), 0, nentries, fillBytes, keyType);
+			if(onePage != -1 && pageEntries(entries.get(level), onePage + 1, nentries, fillBytes, keyType) != -1) {
 				// write out a page of entries
-                ArrayList<BTreeEntry> pageEntries = new ArrayList<>(entries.get(level).subList(0, nentries));
+                ArrayList<BTreeEntry> pageEntries = new ArrayList<>(entries.get(level).subList(0, onePage));
 				byte[] internalPageBytes = convertToInternalPage(pageEntries, npagebytes, keyType, childPageCategory);
 				BTreePageId internalPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.INTERNAL);
 				bf.writePage(new BTreeInternalPage(internalPid, internalPageBytes, keyField));
 
 				// update the parent by "pushing up" the next key
-				BTreeEntry pushUpEntry = new BTreeEntry(entries.get(level).get(nentries).getKey(), internalPid, null);
-				updateEntries(entries, bf, pushUpEntry, level + 1, nentries, npagebytes, 
+				BTreeEntry pushUpEntry = new BTreeEntry(entries.get(level).get(onePage).getKey(), internalPid, null);
+				updateEntries(entries, bf, pushUpEntry, level + 1, nentries, fillBytes, npagebytes, 
 						keyType, tableid, keyField);
-                List<BTreeEntry> remainingEntries = new ArrayList<>(entries.get(level).subList(nentries + 1, size));
+                List<BTreeEntry> remainingEntries = new ArrayList<>(entries.get(level).subList(onePage + 1, size));
 				entries.get(level).clear();
 				entries.get(level).addAll(remainingEntries);
 			}
@@ -507,8 +613,8 @@ public class BTreeFileEncoder {
 		for (int i = 0; i < numFields ; i++) {
 			nrecbytes += typeAr[i].getLen();
 		}
-		// pointerbytes: left sibling pointer, right sibling pointer, parent pointer
-		int pointerbytes = 3 * BTreeLeafPage.INDEX_SIZE; 
+		// pointerbytes: left sibling pointer, right sibling pointer, parent pointer, high key
+		int pointerbytes = 3 * BTreeLeafPage.INDEX_SIZE + BTreePage.highKeySize(typeAr[keyField]);
 		int nrecords = (npagebytes * 8 - pointerbytes * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
 
 		//  per record, we need one bit; there are nrecords per page, so we need
@@ -534,6 +640,7 @@ public class BTreeFileEncoder {
 		dos.writeInt(0); // parent pointer
 		dos.writeInt(0); // left sibling pointer
 		dos.writeInt(0); // right sibling pointer
+		BTreePage.writeHighKey(dos, typeAr[keyField], null); // high key, set with the sibling pointers
 
 		int i = 0;
 		byte headerbyte = 0;
@@ -608,6 +715,75 @@ public class BTreeFileEncoder {
 		}
 	}
 
+	/**
+	 * The number of bytes of an internal page with compressed keys the entries
+	 * may take, leaving room for a key update
+	 */
+	private static int compressedCapacity(int npagebytes) {
+		return npagebytes - BTreeInternalPage.MAX_COMPRESSED_KEY_SIZE;
+	}
+
+	/**
+	 * The number of bytes the pointers, the header and the first child pointer of an
+	 * internal page with compressed keys take
+	 */
+	private static int compressedPageOverhead(Type keyType) {
+		int nheaderbytes = (BTreeInternalPage.maxEntries(keyType) + 8) / 8;
+		return BTreeInternalPage.pointerBytes(keyType) + BTreeInternalPage.INDEX_SIZE + nheaderbytes;
+	}
+
+	/**
+	 * The number of entries of a level, starting at from, which fill a page:
+	 * nentries, or with compressed keys as many as take at most fillBytes.
+	 * 
+	 * @param levelEntries - the entries of the level
+	 * @param from - the index of the first entry for the page
+	 * @param nentries - the number of entries to put on a page
+	 * @param fillBytes - the number of bytes to fill with compressed keys
+	 * @param keyType - the type of the key field
+	 * @return the number of entries, or -1 if the entries from from on do not fill a page
+	 */
+	private static int pageEntries(List<BTreeEntry> levelEntries, int from, int nentries,
+			int fillBytes, Type keyType) {
+		if(!BTreeInternalPage.compressesKeys(keyType)) {
+			return levelEntries.size() - from >= nentries ? nentries : -1;
+		}
+		int bytes = compressedPageOverhead(keyType);
+		Field prev = null;
+		for(int i = from; i < levelEntries.size(); i++) {
+			Field key = levelEntries.get(i).getKey();
+			bytes += BTreeInternalPage.INDEX_SIZE + BTreeInternalPage.compressedKeySize(prev, key);
+			if(bytes > fillBytes || i - from == nentries) {
+				return i - from;
+			}
+			prev = key;
+		}
+		return -1;
+	}
+
+	/**
+	 * The index of the entry to push up when the last entries of a level are
+	 * split between two pages: the middle entry, or with compressed keys the
+	 * first entry where the keys before it take half of the bytes.
+	 */
+	private static int splitPoint(List<BTreeEntry> levelEntries, Type keyType) {
+		if(!BTreeInternalPage.compressesKeys(keyType)) {
+			return levelEntries.size() / 2;
+		}
+		int total = 0;
+		for(BTreeEntry e : levelEntries) {
+			total += BTreeInternalPage.compressedKeySize(null, e.getKey());
+		}
+		int bytes = 0;
+		for(int i = 0; i < levelEntries.size(); i++) {
+			bytes += BTreeInternalPage.compressedKeySize(null, levelEntries.get(i).getKey());
+			if(2 * bytes >= total) {
+				return Math.max(1, i);
+			}
+		}
+		return levelEntries.size() / 2;
+	}
+
 	/**
 	 * Convert a set of entries to a byte array in the format of a BTreeInternalPage
 	 * 
@@ -622,9 +798,13 @@ public class BTreeFileEncoder {
 			Type keyType, int childPageCategory)
 					throws IOException {
 		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
-		// pointerbytes: one extra child pointer, parent pointer, child page category
-		int pointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
+		// pointerbytes: one extra child pointer, parent pointer, child page category,
+		// right sibling pointer, high key
+		int pointerbytes = BTreeInternalPage.pointerBytes(keyType) + BTreeInternalPage.INDEX_SIZE;
 		int nentries = (npagebytes * 8 - pointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
+		boolean compressed = BTreeInternalPage.compressesKeys(keyType);
+		if (compressed)
+			nentries = BTreeInternalPage.maxEntries(keyType);
 
 		//  per entry, we need one bit; there are nentries per page, so we need
 		// nentries bits, plus 1 for the extra child pointer.
@@ -646,7 +826,9 @@ public class BTreeFileEncoder {
 			entrycount = nentries;
 
 		dos.writeInt(0); // parent pointer
-		dos.writeByte((byte) childPageCategory);
+		dos.writeByte((byte) (compressed ? childPageCategory | BTreeInternalPage.COMPRESSED_KEYS : childPageCategory));
+		dos.writeInt(0); // right sibling pointer
+		BTreePage.writeHighKey(dos, keyType, null); // high key, set with the sibling pointers
 
 		int i = 0;
 		byte headerbyte = 0;
@@ -665,6 +847,18 @@ public class BTreeFileEncoder {
 			dos.writeByte(headerbyte);
 
 		entries.sort(new EntryComparator());
+		if (compressed) {
+			// the used slots in order, each with its child pointer and compressed key
+			dos.writeInt(entries.get(0).getLeftChild().getPageNumber());
+			Field prev = null;
+			for(int e = 0; e < entrycount; e++) {
+				dos.writeInt(entries.get(e).getRightChild().getPageNumber());
+				BTreeInternalPage.writeCompressedKey(dos, prev, entries.get(e).getKey());
+				prev = entries.get(e).getKey();
+			}
+			dos.write(new byte[npagebytes - dos.size()]);
+			return baos.toByteArray();
+		}
 		for(int e = 0; e < entrycount; e++) {
 			entries.get(e).getKey().serialize(dos);
 		}
@@ -710,7 +904,7 @@ public class BTreeFileEncoder {
 		DataOutputStream dos = new DataOutputStream(baos);
 
 		dos.writeInt(root); // root pointer
-		dos.writeByte((byte) rootCategory); // root page category
+		dos.writeByte((byte) (rootCategory | BTreeRootPtrPage.LINKED_PAGES)); // root page category
 
 		dos.writeInt(header); // header pointer
 
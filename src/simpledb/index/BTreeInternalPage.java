@@ -13,10 +13,22 @@ import simpledb.storage.BufferPool;
 import simpledb.storage.Field;
 import simpledb.storage.IntField;
 import simpledb.storage.RecordId;
+import simpledb.storage.StringField;
 
 /**
  * Each instance of BTreeInternalPage stores data for one page of a BTreeFile and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * STRING keys are stored compressed: every key only stores the characters it
+ * does not share with the key before it on the page. Together with the short
+ * separators BTreeFile copies up from the leaves (see {@link #separator}),
+ * this lets a page hold many more entries than fixed-width keys would, so the
+ * number of entries on such a page is bounded by the bytes the keys take.
+ * <p>
+ * Pages with compressed keys mark their child page category byte with
+ * {@link #COMPRESSED_KEYS}. Internal pages of STRING keyed files written
+ * before keys were compressed hold fixed-width keys without the mark, and
+ * cannot be read anymore: such files have to be loaded again.
  *
  * @see BTreeFile
  * @see BufferPool
@@ -29,6 +41,14 @@ public class BTreeInternalPage extends BTreePage {
 	private final int numSlots;
 	
 	private int childCategory; // either leaf or internal
+	private int rightSibling; // internal node or 0, the B-link right-link
+
+	/** The bytes of a compressed key on top of its characters: the shared and the stored length */
+	private static final int KEY_LENGTH_BYTES = 2;
+	/** The most bytes a compressed key can take, which every page keeps free for a key update */
+	static final int MAX_COMPRESSED_KEY_SIZE = KEY_LENGTH_BYTES + Type.STRING_LEN;
+	/** The bit set in the child page category byte of a page with compressed keys */
+	static final int COMPRESSED_KEYS = 0x80;
 
 	public void checkRep(Field lowerBound, Field upperBound, boolean checkOccupancy, int depth) {
 		Field prev = lowerBound;
@@ -43,7 +63,12 @@ public class BTreeInternalPage extends BTreePage {
 
         assert null == upperBound || null == prev || (prev.compare(Op.LESS_THAN_OR_EQ, upperBound));
 
-        assert !checkOccupancy || depth <= 0 || (getNumEntries() >= getMaxEntries() / 2);
+        // the occupancy of pages with compressed keys depends on the keys, and a
+        // redistribution which would not leave room in the parent is skipped; the
+        // right-most page, without an upper bound, may be nearly empty after a split
+        // at the right edge
+        assert !checkOccupancy || depth <= 0 || upperBound == null || hasCompressedKeys()
+                || (getNumEntries() >= getMaxEntries() / 2);
 	}
 	
 	/**
@@ -51,8 +76,9 @@ public class BTreeInternalPage extends BTreePage {
 	 * The format of a BTreeInternalPage is a set of header bytes indicating
 	 * the slots of the page that are in use, some number of entry slots, and extra
 	 * bytes for the parent pointer, one extra child pointer (a node with m entries 
-	 * has m+1 pointers to children), and the category of all child pages (either 
-	 * leaf or internal).
+	 * has m+1 pointers to children), the category of all child pages (either 
+	 * leaf or internal), the right sibling pointer and the high key (see
+	 * {@link BTreePage#getHighKey()}).
 	 *  Specifically, the number of entries is equal to: <p>
 	 *          floor((BufferPool.getPageSize()*8 - extra bytes*8) / (entry size * 8 + 1))
 	 * <p> where entry size is the size of entries in this index node
@@ -62,6 +88,11 @@ public class BTreeInternalPage extends BTreePage {
 	 * <p>
 	 *      ceiling((no. entry slots + 1) / 8)
 	 * <p>
+	 * With compressed keys, the header is followed by the used slots in order,
+	 * each with its child pointer and, from slot 1 on, its key as the number
+	 * of characters shared with the previous key, the number of characters
+	 * stored and these characters, and the child page category byte is marked
+	 * with {@link #COMPRESSED_KEYS}.
 	 * @see Database#getCatalog
 	 * @see Catalog#getTupleDesc
 	 * @see BufferPool#getPageSize()
@@ -69,6 +100,8 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param id - the id of this page
 	 * @param data - the raw data of this page
 	 * @param key - the field which the index is keyed on
+	 * @throws IOException if the page has STRING keys in the fixed-width
+	 * format of earlier versions
 	 */
 	public BTreeInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
 		super(id, key);
@@ -84,14 +117,33 @@ public class BTreeInternalPage extends BTreePage {
 		}
 
 		// read the child page category
-		childCategory = dis.readByte();
+		int category = dis.readUnsignedByte();
+		childCategory = category & ~COMPRESSED_KEYS;
+
+		// read the right sibling pointer and the high key
+		this.rightSibling = dis.readInt();
+		readHighKey(dis);
 
 		// allocate and read the header slots of this page
 		header = new byte[getHeaderSize()];
-		for (int i=0; i<header.length; i++)
+		boolean empty = true;
+		for (int i=0; i<header.length; i++) {
 			header[i] = dis.readByte();
+			empty &= header[i] == 0;
+		}
 
 		keys = new Field[numSlots];
+		children = new int[numSlots];
+		if(hasCompressedKeys()) {
+			// a new page is all zeros, so only a page with entries has to be marked
+			if((category & COMPRESSED_KEYS) == 0 && !empty)
+				throw new IOException("internal page " + id + " has STRING keys in the fixed-width format"
+						+ " of an earlier version; the file has to be loaded again");
+			readCompressedEntries(dis);
+			dis.close();
+			setBeforeImage();
+			return;
+		}
 		try{
 			// allocate and read the keys of this page
 			// start from 1 because the first key slot is not used
@@ -103,7 +155,6 @@ public class BTreeInternalPage extends BTreePage {
 			e.printStackTrace();
 		}
 
-		children = new int[numSlots];
 		try{
 			// allocate and read the child pointers of this page
 			for (int i=0; i<children.length; i++)
@@ -120,14 +171,38 @@ public class BTreeInternalPage extends BTreePage {
 	 * Retrieve the maximum number of entries this page can hold. (The number of keys)
  	 */
 	public int getMaxEntries() {        
-		int keySize = td.getFieldType(keyField).getLen();
+		return maxEntries(td.getFieldType(keyField));
+	}
+
+	/**
+	 * The maximum number of entries of a page with keys of the given type. A
+	 * compressed key takes at least its two length bytes.
+	 */
+	static int maxEntries(Type keyType) {
+		int keySize = compressesKeys(keyType) ? KEY_LENGTH_BYTES : keyType.getLen();
 		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
-		// extraBits are: one parent pointer, 1 byte for child page category, 
-		// one extra child pointer (node with m entries has m+1 pointers to children), 1 bit for extra header
-		int extraBits = 2 * INDEX_SIZE * 8 + 8 + 1;
+		// extraBits are: the pointer bytes, one extra child pointer (node with m entries 
+		// has m+1 pointers to children), 1 bit for extra header
+		int extraBits = (pointerBytes(keyType) + INDEX_SIZE) * 8 + 1;
         return (BufferPool.getPageSize()*8 - extraBits) / bitsPerEntryIncludingHeader;
 	}
 
+	/**
+	 * The number of bytes in front of the header of a page with keys of the given type:
+	 * the parent pointer, 1 byte for child page category, the right sibling pointer
+	 * and the high key.
+	 */
+	static int pointerBytes(Type keyType) {
+		return 2 * INDEX_SIZE + 1 + highKeySize(keyType);
+	}
+
+	/**
+	 * @return the number of bytes in front of the entries of this page
+	 */
+	private int headerEnd() {
+		return pointerBytes(td.getFieldType(keyField)) + header.length;
+	}
+
 	/**
 	 * Computes the number of bytes in the header of a B+ internal page with each entry occupying entrySize bytes
 	 * @return the number of bytes in the header
@@ -158,6 +233,29 @@ public class BTreeInternalPage extends BTreePage {
 		return null;
 	}
 
+	/**
+	 * Return a copy of this page with the same before image and dirty state,
+	 * for an insert or delete to change while searches still read this page
+	 * -- used by BTreeFile
+	 */
+	BTreeInternalPage copy() {
+		try {
+			BTreeInternalPage copy = new BTreeInternalPage(pid,getPageData(),keyField);
+			synchronized(oldDataLock)
+			{
+				copy.oldData = oldData;
+			}
+			copy.dirty = dirty;
+			copy.dirtier = dirtier;
+			return copy;
+		} catch (IOException e) {
+			e.printStackTrace();
+			//should never happen -- we parsed it OK before!
+			System.exit(1);
+		}
+		return null;
+	}
+
 	public void setBeforeImage() {
 		synchronized(oldDataLock)
 		{
@@ -194,6 +292,229 @@ public class BTreeInternalPage extends BTreePage {
 		return f;
 	}
 
+	/**
+	 * Read the child pointers and compressed keys of the used slots.
+	 */
+	private void readCompressedEntries(DataInputStream dis) throws IOException {
+		String prev = "";
+		for (int i=0; i<numSlots; i++) {
+			if (!isSlotUsed(i))
+				continue;
+			children[i] = dis.readInt();
+			if (i == 0)
+				continue;
+			int shared = dis.readUnsignedByte();
+			byte[] rest = new byte[dis.readUnsignedByte()];
+			dis.readFully(rest);
+			prev = prev.substring(0, shared) + new String(rest);
+			keys[i] = new StringField(prev, Type.STRING_LEN);
+		}
+	}
+
+	/**
+	 * Write the child pointers and compressed keys of the used slots.
+	 */
+	private void writeCompressedEntries(DataOutputStream dos) throws IOException {
+		Field prev = null;
+		for (int i=0; i<numSlots; i++) {
+			if (!isSlotUsed(i))
+				continue;
+			dos.writeInt(children[i]);
+			if (i == 0)
+				continue;
+			writeCompressedKey(dos, prev, keys[i]);
+			prev = keys[i];
+		}
+	}
+
+	/**
+	 * Write a compressed key following the key prev on a page.
+	 * @param prev - the previous key on the page, or null if it is the first
+	 * @param key - the key to write
+	 */
+	static void writeCompressedKey(DataOutputStream dos, Field prev, Field key) throws IOException {
+		int shared = sharedPrefix(prev, key);
+		String value = ((StringField) key).getValue();
+		dos.writeByte(shared);
+		dos.writeByte(value.length() - shared);
+		dos.writeBytes(value.substring(shared));
+	}
+
+	/**
+	 * @return whether keys of the given type are stored compressed
+	 */
+	static boolean compressesKeys(Type keyType) {
+		return keyType == Type.STRING_TYPE;
+	}
+
+	/**
+	 * @return whether the keys of this page are stored compressed, so that the
+	 *         number of entries it holds depends on the keys
+	 */
+	public boolean hasCompressedKeys() {
+		return compressesKeys(td.getFieldType(keyField));
+	}
+
+	/**
+	 * The number of characters two STRING keys start with in common.
+	 * @param prev - the previous key, or null
+	 * @param key - the key
+	 */
+	private static int sharedPrefix(Field prev, Field key) {
+		if(prev == null)
+			return 0;
+		String a = ((StringField) prev).getValue();
+		String b = ((StringField) key).getValue();
+		int n = Math.min(a.length(), b.length());
+		int i = 0;
+		while(i < n && a.charAt(i) == b.charAt(i))
+			i++;
+		return i;
+	}
+
+	/**
+	 * The number of bytes a compressed key takes after the key prev.
+	 * @param prev - the previous key on the page, or null if it is the first
+	 * @param key - the key
+	 */
+	static int compressedKeySize(Field prev, Field key) {
+		return KEY_LENGTH_BYTES + ((StringField) key).getValue().length() - sharedPrefix(prev, key);
+	}
+
+	/**
+	 * @return the number of bytes the data of this page takes with compressed keys
+	 */
+	private int compressedSize() {
+		int size = headerEnd();
+		Field prev = null;
+		for (int i=0; i<numSlots; i++) {
+			if (!isSlotUsed(i))
+				continue;
+			size += INDEX_SIZE;
+			if (i > 0) {
+				size += compressedKeySize(prev, keys[i]);
+				prev = keys[i];
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * @return the number of unused bytes of a page with compressed keys
+	 */
+	int getFreeBytes() {
+		return BufferPool.getPageSize() - compressedSize();
+	}
+
+	/**
+	 * Returns whether an entry with the given key can be inserted into this page.
+	 * A page with compressed keys is full once inserting the key would leave
+	 * less than MAX_COMPRESSED_KEY_SIZE bytes, so that a key on it can always
+	 * be replaced by a longer one when entries are redistributed. Inserting a
+	 * key never lengthens the others, as the key after it shares at least as
+	 * much with it as with the key before it.
+	 * @param key - the key of the entry to insert
+	 */
+	public boolean hasRoomFor(Field key) {
+		if(getNumEmptySlots() == 0)
+			return false;
+		if(!hasCompressedKeys())
+			return true;
+		return INDEX_SIZE + compressedKeySize(null, key) + MAX_COMPRESSED_KEY_SIZE <= getFreeBytes();
+	}
+
+	/**
+	 * Returns whether this page is below minimum occupancy: less than half of
+	 * its entries are used or, with compressed keys, less than half of its bytes
+	 * less the room kept for two entries of the largest size.
+	 */
+	public boolean isLessThanHalfFull() {
+		if(hasCompressedKeys())
+			return compressedSize() < BufferPool.getPageSize() / 2 - 2 * (INDEX_SIZE + MAX_COMPRESSED_KEY_SIZE);
+		int maxEmptySlots = getMaxEntries() - getMaxEntries()/2; // ceiling
+		return getNumEmptySlots() > maxEmptySlots;
+	}
+
+	/**
+	 * Returns whether the entries of this page and of its right sibling, with
+	 * the key pulled down from their parent entry in between, fit on one page
+	 * with compressed keys and still leave room for a key update.
+	 * @param right - the right sibling of this page
+	 * @param parentKey - the key of the parent entry pointing to both pages
+	 */
+	public boolean canMergeWith(BTreeInternalPage right, Field parentKey) {
+		if(getNumEntries() + right.getNumEntries() + 1 > getMaxEntries())
+			return false;
+		// the first key of right is stored whole, so it cannot grow after parentKey
+		int merged = compressedSize() + compressedKeySize(null, parentKey)
+				+ right.compressedSize() - headerEnd();
+		return merged + MAX_COMPRESSED_KEY_SIZE <= BufferPool.getPageSize();
+	}
+
+	/**
+	 * Returns the number of entries a split moves to the new right page: half
+	 * of the entries, or with compressed keys the entries at the end holding
+	 * half of the key bytes.
+	 */
+	public int getSplitCount() {
+		if(!hasCompressedKeys())
+			return getNumEntries()/2;
+		int half = (compressedSize() - headerEnd()) / 2;
+		int moved = 0, count = 0;
+		Iterator<BTreeEntry> it = reverseIterator();
+		// leave at least one entry to push up and one to keep
+		while(moved < half && count < getNumEntries() - 2) {
+			moved += INDEX_SIZE + compressedKeySize(null, it.next().getKey());
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the number of entries to steal from a sibling with compressed keys
+	 * so that both pages take about the same number of bytes: the entries moved
+	 * to this page, counting the key pulled down from the parent in place of
+	 * the last one, which is pushed up.
+	 * @param sibling - the sibling to steal from
+	 * @param isRightSibling - whether the sibling is the right sibling
+	 * @return the number of entries to steal, or 0 if the sibling has none to spare
+	 */
+	public int getStealCount(BTreeInternalPage sibling, boolean isRightSibling) {
+		int mine = compressedSize();
+		int theirs = sibling.compressedSize();
+		int count = 0;
+		Iterator<BTreeEntry> it = isRightSibling ? sibling.iterator() : sibling.reverseIterator();
+		while(it.hasNext() && count < sibling.getNumEntries() - 1) {
+			int size = INDEX_SIZE + compressedKeySize(null, it.next().getKey());
+			if(mine + size >= theirs - size || mine + size + MAX_COMPRESSED_KEY_SIZE > BufferPool.getPageSize())
+				break;
+			mine += size;
+			theirs -= size;
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the shortest STRING key which separates two adjacent leaf pages:
+	 * it is greater than the last key left of it and at most the first key right
+	 * of it, so searches go to the same pages, but it only keeps the characters
+	 * of the right key up to the first one which differs from the left key.
+	 * Keys of other types and equal keys are returned as the right key.
+	 * @param left - the last key of the left page
+	 * @param right - the first key of the right page
+	 * @return the key to copy up into the parent page
+	 */
+	public static Field separator(Field left, Field right) {
+		if(!(left instanceof StringField) || !left.compare(Op.LESS_THAN, right))
+			return right;
+		String r = ((StringField) right).getValue();
+		int shared = sharedPrefix(left, right);
+		if(shared + 1 >= r.length())
+			return right;
+		return new StringField(r.substring(0, shared + 1), Type.STRING_LEN);
+	}
+
 	/**
 	 * Read child pointers from the source file.
 	 */
@@ -250,8 +571,16 @@ public class BTreeInternalPage extends BTreePage {
 
 		// write out the child page category
 		try {
-			dos.writeByte((byte) childCategory);
+			dos.writeByte((byte) (hasCompressedKeys() ? childCategory | COMPRESSED_KEYS : childCategory));
+
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
 
+		// write out the right sibling pointer and the high key
+		try {
+			dos.writeInt(rightSibling);
+			writeHighKey(dos, td.getFieldType(keyField), highKey);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -266,6 +595,17 @@ public class BTreeInternalPage extends BTreePage {
             }
         }
 
+		if(hasCompressedKeys()) {
+			try {
+				writeCompressedEntries(dos);
+				dos.write(new byte[len - dos.size()]);
+				dos.flush();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return baos.toByteArray();
+		}
+
 		// create the keys
 		// start from 1 because the first key slot is not used
 		// since a node with m keys has m+1 pointers
@@ -319,7 +659,7 @@ public class BTreeInternalPage extends BTreePage {
 		}
 
 		// padding
-		int zerolen = BufferPool.getPageSize() - (INDEX_SIZE + 1 + header.length + 
+		int zerolen = BufferPool.getPageSize() - (headerEnd() + 
 				td.getFieldType(keyField).getLen() * (keys.length - 1) + INDEX_SIZE * children.length); 
 		byte[] zeroes = new byte[zerolen];
 		try {
@@ -423,6 +763,14 @@ public class BTreeInternalPage extends BTreePage {
 				break;
 			}	
 		}
+		if(hasCompressedKeys()) {
+			Field old = keys[rid.getTupleNumber()];
+			keys[rid.getTupleNumber()] = e.getKey();
+			int free = getFreeBytes();
+			keys[rid.getTupleNumber()] = old;
+			if(free < 0)
+				throw new DbException("no room on the page to update entry with key " + e.getKey());
+		}
 		for(int i = rid.getTupleNumber() - 1; i >= 0; i--) {
 			if(isSlotUsed(i)) {
 				if(i > 0 && keys[i].compare(Op.GREATER_THAN, e.getKey())) {
@@ -460,6 +808,9 @@ public class BTreeInternalPage extends BTreePage {
 		else if(e.getLeftChild().pgcateg() != childCategory || e.getRightChild().pgcateg() != childCategory)
 			throw new DbException("child page category mismatch in insertEntry");
 
+		if(hasCompressedKeys() && INDEX_SIZE + compressedKeySize(null, e.getKey()) > getFreeBytes())
+			throw new DbException("called insertEntry on page with no room for the key.");
+
 		// if this is the first entry, add it and return
 		if(getNumEmptySlots() == getMaxEntries()) {
 			children[0] = e.getLeftChild().getPageNumber();
@@ -562,6 +913,97 @@ public class BTreeInternalPage extends BTreePage {
 		}
 	}
 
+	/**
+	 * Binary search for the first used slot whose key is greater than or equal to f.
+	 * Empty slots between entries are skipped, so the search works on pages with
+	 * holes left by deletions.
+	 * @param f - the key to search for
+	 * @return the slot of the first key greater than or equal to f, or -1 if
+	 *         every key on this page is less than f
+	 */
+	int findKeySlot(Field f) {
+		int lo = 1;
+		int hi = numSlots - 1;
+		int found = -1;
+		while(lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int slot = nextUsedSlot(mid, hi);
+			if(slot == -1) {
+				hi = mid - 1;
+			}
+			else if(compareKeys(keys[slot], f) >= 0) {
+				found = slot;
+				hi = mid - 1;
+			}
+			else {
+				lo = slot + 1;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Find the child page to descend into when searching for the key f: the left
+	 * child of the first entry whose key is greater than or equal to f, or the
+	 * right child of the last entry if there is no such entry. If f is null,
+	 * the left-most child is returned. Unlike walking {@link #iterator()}, this
+	 * does not create any BTreeEntry objects.
+	 * @param f - the key to search for, or null
+	 * @return the id of the child page, or null if this page has no entries
+	 */
+	BTreePageId findChildId(Field f) {
+		if(!isSlotUsed(0)) {
+			return null;
+		}
+		int child;
+		if(f == null) {
+			child = 0;
+		}
+		else {
+			int slot = findKeySlot(f);
+			if(slot == -1) {
+				child = prevUsedSlot(numSlots - 1, 0);
+			}
+			else {
+				child = prevUsedSlot(slot - 1, 0);
+			}
+		}
+		return new BTreePageId(pid.getTableId(), children[child], childCategory);
+	}
+
+	/**
+	 * Get the id of the right sibling of this page. Like the high key, the right
+	 * sibling lets a search which lands on this page in the middle of a split move right.
+	 * @return the id of the right sibling, or null if this is the right-most page of its level
+	 * @see BTreePage#getHighKey()
+	 */
+	public BTreePageId getRightSiblingId() {
+		if(rightSibling == 0) {
+			return null;
+		}
+		return new BTreePageId(pid.getTableId(), rightSibling, BTreePageId.INTERNAL);
+	}
+
+	/**
+	 * Set the right sibling id of this page
+	 * @param id - the new right sibling id
+	 * @throws DbException if the id is not valid
+	 */
+	public void setRightSiblingId(BTreePageId id) throws DbException {
+		if(id == null) {
+			rightSibling = 0;
+		}
+		else {
+			if(id.getTableId() != pid.getTableId()) {
+				throw new DbException("table id mismatch in setRightSiblingId");
+			}
+			if(id.pgcateg() != BTreePageId.INTERNAL) {
+				throw new DbException("rightSibling must be an internal node");
+			}
+			rightSibling = id.getPageNumber();
+		}
+	}
+
 	/**
 	 * Returns the number of entries (keys) currently stored on this page
 	 */
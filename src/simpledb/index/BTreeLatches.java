@@ -0,0 +1,43 @@
+package simpledb.index;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import simpledb.storage.PageId;
+
+/**
+ * Short-term latches on the internal pages and the root pointer page of a
+ * BTreeFile.
+ * <p>
+ * Unlike the locks of the LockManager, which are held until the transaction
+ * ends, a latch is only held while a thread reads or replaces the page in
+ * memory: a search holds one shared latch at a time, while it looks for the
+ * child to descend into, and an insert or delete holds an exclusive latch
+ * only while it puts its changed copy of one page into the buffer pool, see
+ * BTreeFile.publish.  No thread waits for a lock, or for another latch, while
+ * it holds a latch, so latch waits are short and cannot deadlock.
+ */
+class BTreeLatches {
+	private final Map<PageId, ReentrantReadWriteLock> latches = new ConcurrentHashMap<>();
+
+	private ReentrantReadWriteLock latch(PageId pid) {
+		return latches.computeIfAbsent(pid, k -> new ReentrantReadWriteLock());
+	}
+
+	void latchShared(PageId pid) {
+		latch(pid).readLock().lock();
+	}
+
+	void unlatchShared(PageId pid) {
+		latch(pid).readLock().unlock();
+	}
+
+	void latchExclusive(PageId pid) {
+		latch(pid).writeLock().lock();
+	}
+
+	void unlatchExclusive(PageId pid) {
+		latch(pid).writeLock().unlock();
+	}
+}
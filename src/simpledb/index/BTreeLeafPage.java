@@ -41,14 +41,16 @@ public class BTreeLeafPage extends BTreePage {
 
         assert null == upperBound || null == prev || (prev.compare(Predicate.Op.LESS_THAN_OR_EQ, upperBound));
 
-        assert !checkoccupancy || depth <= 0 || (getNumTuples() >= getMaxTuples() / 2);
+        // the right-most leaf, without an upper bound, may be nearly empty after a split at the right edge
+        assert !checkoccupancy || depth <= 0 || upperBound == null || (getNumTuples() >= getMaxTuples() / 2);
 	}
 
 	/**
 	 * Create a BTreeLeafPage from a set of bytes of data read from disk.
 	 * The format of a BTreeLeafPage is a set of header bytes indicating
 	 * the slots of the page that are in use, and some number of tuple slots, 
-	 * as well as some extra bytes for the parent and sibling pointers.
+	 * as well as some extra bytes for the parent and sibling pointers and the
+	 * high key (see {@link BTreePage#getHighKey()}).
 	 *  Specifically, the number of tuples is equal to: <p>
 	 *          floor((BufferPool.getPageSize()*8 - extra bytes*8) / (tuple size * 8 + 1))
 	 * <p> where tuple size is the size of tuples in this
@@ -92,6 +94,9 @@ public class BTreeLeafPage extends BTreePage {
 			e.printStackTrace();
 		}
 
+		// Read the high key
+		readHighKey(dis);
+
 		// allocate and read the header slots of this page
 		header = new byte[getHeaderSize()];
 		for (int i=0; i<header.length; i++)
@@ -115,8 +120,8 @@ public class BTreeLeafPage extends BTreePage {
 	 */
 	public int getMaxTuples() {        
 		int bitsPerTupleIncludingHeader = td.getSize() * 8 + 1;
-		// extraBits are: left sibling pointer, right sibling pointer, parent pointer
-		int extraBits = 3 * INDEX_SIZE * 8;
+		// extraBits are: left sibling pointer, right sibling pointer, parent pointer, high key
+		int extraBits = 3 * INDEX_SIZE * 8 + highKeySize(td.getFieldType(keyField)) * 8;
         return (BufferPool.getPageSize()*8 - extraBits) / bitsPerTupleIncludingHeader;
 	}
 
@@ -226,6 +231,13 @@ public class BTreeLeafPage extends BTreePage {
 			e.printStackTrace();
 		}
 
+		// write out the high key
+		try {
+			writeHighKey(dos, td.getFieldType(keyField), highKey);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
 		// create the header of the page
         for (byte b : header) {
             try {
@@ -265,7 +277,8 @@ public class BTreeLeafPage extends BTreePage {
 		}
 
 		// padding
-		int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length + 3 * INDEX_SIZE); //- numSlots * td.getSize();
+		int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length + 3 * INDEX_SIZE
+				+ highKeySize(td.getFieldType(keyField))); //- numSlots * td.getSize();
 		byte[] zeroes = new byte[zerolen];
 		try {
 			dos.write(zeroes, 0, zerolen);
@@ -326,16 +339,9 @@ public class BTreeLeafPage extends BTreePage {
 			throw new DbException("called addTuple on page with no empty slots.");
 
 		// find the last key less than or equal to the key being inserted
-		int lessOrEqKey = -1;
 		Field key = t.getField(keyField);
-		for (int i=0; i<numSlots; i++) {
-			if(isSlotUsed(i)) {
-				if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
-					lessOrEqKey = i;
-				else
-					break;	
-			}
-		}
+		int greater = findSlot(key, false);
+		int lessOrEqKey = prevUsedSlot((greater == -1 ? numSlots : greater) - 1, 0);
 
 		// shift records back or forward to fill empty slot and make room for new record
 		// while keeping records in sorted order
@@ -361,6 +367,37 @@ public class BTreeLeafPage extends BTreePage {
 		tuples[goodSlot] = t;
 	}
 
+	/**
+	 * Binary search for the first used slot whose key is greater than or equal to f
+	 * (or strictly greater than f if inclusive is false). Empty slots between tuples
+	 * are skipped, so the search works on pages with holes left by deletions.
+	 * @param f - the key to search for
+	 * @param inclusive - whether a key equal to f matches
+	 * @return the matching slot, or -1 if no key on this page matches
+	 */
+	int findSlot(Field f, boolean inclusive) {
+		int lo = 0;
+		int hi = numSlots - 1;
+		int found = -1;
+		while(lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int slot = nextUsedSlot(mid, hi);
+			if(slot == -1) {
+				hi = mid - 1;
+				continue;
+			}
+			int cmp = compareKeys(tuples[slot].getField(keyField), f);
+			if(cmp > 0 || (inclusive && cmp == 0)) {
+				found = slot;
+				hi = mid - 1;
+			}
+			else {
+				lo = slot + 1;
+			}
+		}
+		return found;
+	}
+
 	/**
 	 * Move a record from one slot to another slot, and update the corresponding
 	 * headers and RecordId
@@ -486,6 +523,17 @@ public class BTreeLeafPage extends BTreePage {
 		return new BTreeLeafPageIterator(this);
 	}
 
+	/**
+	 * @param f - the key to start from
+	 * @param inclusive - whether tuples with a key equal to f are included
+	 * @return an iterator over the tuples on this page whose key is greater than
+	 * (or equal to) f, found by binary search instead of scanning from the first slot
+	 */
+	public Iterator<Tuple> iterator(Field f, boolean inclusive) {
+		int slot = findSlot(f, inclusive);
+		return new BTreeLeafPageIterator(this, slot == -1 ? numSlots : slot);
+	}
+
 	/**
 	 * @return a reverse iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return tuples in empty slots!)
@@ -494,6 +542,17 @@ public class BTreeLeafPage extends BTreePage {
 		return new BTreeLeafPageReverseIterator(this);
 	}
 
+	/**
+	 * @param f - the key to start from
+	 * @param inclusive - whether tuples with a key equal to f are included
+	 * @return a reverse iterator over the tuples on this page whose key is less than
+	 * (or equal to) f, found by binary search instead of scanning from the last slot
+	 */
+	public Iterator<Tuple> reverseIterator(Field f, boolean inclusive) {
+		int slot = findSlot(f, !inclusive);
+		return new BTreeLeafPageReverseIterator(this, (slot == -1 ? numSlots : slot) - 1);
+	}
+
 	/**
 	 * protected method used by the iterator to get the ith tuple out of this page
 	 * @param i - the index of the tuple
@@ -532,6 +591,11 @@ class BTreeLeafPageIterator implements Iterator<Tuple> {
 		this.p = p;
 	}
 
+	public BTreeLeafPageIterator(BTreeLeafPage p, int start) {
+		this.p = p;
+		this.curTuple = start;
+	}
+
 	public boolean hasNext() {
 		if (nextToReturn != null)
 			return true;
@@ -581,6 +645,11 @@ class BTreeLeafPageReverseIterator implements Iterator<Tuple> {
 		this.curTuple = p.getMaxTuples() - 1;
 	}
 
+	public BTreeLeafPageReverseIterator(BTreeLeafPage p, int start) {
+		this.p = p;
+		this.curTuple = start;
+	}
+
 	public boolean hasNext() {
 		if (nextToReturn != null)
 			return true;
@@ -4,11 +4,19 @@ import simpledb.common.Catalog;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
+import simpledb.execution.Predicate.Op;
 import simpledb.storage.BufferPool;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
 import simpledb.storage.Page;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionId;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.text.ParseException;
+
 /**
  * Each instance of BTreeInternalPage stores data for one page of a BTreeFile and 
  * implements the Page interface that is used by BufferPool.
@@ -28,6 +36,7 @@ public abstract class BTreePage implements Page {
 	protected final int keyField;
 
 	protected int parent; // parent is always internal node or 0 for root node
+	protected Field highKey; // B-link high key, or null for the right-most page of a level
 	protected byte[] oldData;
 	protected final Byte oldDataLock= (byte) 0;
 
@@ -115,6 +124,87 @@ public abstract class BTreePage implements Page {
 		}
 	}
 
+	/**
+	 * Get the high key of this page. No key on the page is greater than the high key,
+	 * and keys greater than it have moved to the right sibling, so a search which is
+	 * looking for such a key and lands on this page in the middle of a split moves right.
+	 * The high key is null if the page is the right-most page on its level.
+	 * @return the high key, or null
+	 */
+	public Field getHighKey() {
+		return highKey;
+	}
+
+	/**
+	 * Set the high key of this page
+	 * @param highKey - the new high key, or null if it is not bounded
+	 */
+	public void setHighKey(Field highKey) {
+		this.highKey = highKey;
+	}
+
+	/**
+	 * The number of bytes the high key takes on a page with keys of the given type:
+	 * a byte which tells whether the page has a high key, followed by the key.
+	 * @param keyType - the type of the key field
+	 */
+	static int highKeySize(Type keyType) {
+		return 1 + keyType.getLen();
+	}
+
+	/**
+	 * Read the high key of this page in the format of {@link #writeHighKey}
+	 */
+	protected void readHighKey(DataInputStream dis) throws IOException {
+		Type keyType = td.getFieldType(keyField);
+		if(!dis.readBoolean()) {
+			highKey = null;
+			dis.skipBytes(keyType.getLen());
+			return;
+		}
+		try {
+			highKey = keyType.parse(dis);
+		} catch (ParseException e) {
+			throw new IOException("couldn't parse the high key of page " + pid, e);
+		}
+	}
+
+	/**
+	 * Write a high key in the format of a BTreePage, taking {@link #highKeySize} bytes
+	 * @param keyType - the type of the key field
+	 * @param highKey - the high key, or null
+	 */
+	static void writeHighKey(DataOutputStream dos, Type keyType, Field highKey) throws IOException {
+		dos.writeBoolean(highKey != null);
+		if(highKey != null) {
+			highKey.serialize(dos);
+		}
+		else {
+			dos.write(new byte[keyType.getLen()]);
+		}
+	}
+
+	/**
+	 * Get the id of the right sibling of this page
+	 * @return the id of the right sibling, or null
+	 */
+	public abstract BTreePageId getRightSiblingId();
+
+	/**
+	 * Set the right sibling id of this page
+	 * @param id - the new right sibling id, or null
+	 * @throws DbException if the id is not valid
+	 */
+	public abstract void setRightSiblingId(BTreePageId id) throws DbException;
+
+	/**
+	 * Whether a search for the key f has to move right to the right sibling
+	 * @param f - the key to search for, or null for the left-most key
+	 */
+	boolean isAboveHighKey(Field f) {
+		return f != null && highKey != null && compareKeys(f, highKey) > 0;
+	}
+
 	/**
 	 * Marks this page as dirty/not dirty and record that transaction
 	 * that did the dirtying
@@ -144,5 +234,44 @@ public abstract class BTreePage implements Page {
 	 */
 	public abstract boolean isSlotUsed(int i);
 
+	/**
+	 * Three-way comparison of two keys, used by the binary searches on the pages.
+	 * Integer keys are compared directly instead of going through
+	 * {@link Field#compare}, which needs up to two calls per probe.
+	 * @return a negative number, zero or a positive number as a is less than,
+	 *         equal to or greater than b
+	 */
+	static int compareKeys(Field a, Field b) {
+		if(a instanceof IntField && b instanceof IntField) {
+			return Integer.compare(((IntField) a).getValue(), ((IntField) b).getValue());
+		}
+		if(a.compare(Op.LESS_THAN, b)) {
+			return -1;
+		}
+		return a.compare(Op.EQUALS, b) ? 0 : 1;
+	}
+
+	/**
+	 * Returns the first used slot in [from, to], or -1 if all of them are empty
+	 */
+	int nextUsedSlot(int from, int to) {
+		for(int i = from; i <= to; i++) {
+			if(isSlotUsed(i))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the last used slot in [to, from], or -1 if all of them are empty
+	 */
+	int prevUsedSlot(int from, int to) {
+		for(int i = from; i >= to; i--) {
+			if(isSlotUsed(i))
+				return i;
+		}
+		return -1;
+	}
+
 }
 
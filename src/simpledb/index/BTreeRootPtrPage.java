@@ -17,6 +17,12 @@ public class BTreeRootPtrPage implements Page {
 	// size of this page
 	public final static int PAGE_SIZE = 9;
 
+	/**
+	 * The bit set in the root page category byte of files whose pages store their
+	 * high keys and right sibling pointers
+	 */
+	static final int LINKED_PAGES = 0x40;
+
 	private boolean dirty = false;
 	private TransactionId dirtier = null;
 
@@ -35,7 +41,13 @@ public class BTreeRootPtrPage implements Page {
 	 * The format of an BTreeRootPtrPage is an integer for the page number
 	 * of the root node, followed by a byte to encode the category of the root page
 	 * (either leaf or internal), followed by an integer for the page number
-	 * of the first header page
+	 * of the first header page.
+	 * <p>
+	 * The root page category byte is marked with {@link #LINKED_PAGES}. Files
+	 * written before the B+ tree pages stored their high keys and right sibling
+	 * pointers lack the mark and cannot be read anymore: such files have to be
+	 * loaded again.
+	 * @throws IOException if the file has a root page in the format of earlier versions
 	 */
 	public BTreeRootPtrPage(BTreePageId id, byte[] data) throws IOException {
 		this.pid = id;
@@ -43,7 +55,12 @@ public class BTreeRootPtrPage implements Page {
 
 		// read in the root pointer
 		root = dis.readInt();
-		rootCategory = dis.readByte();
+		int category = dis.readUnsignedByte();
+		rootCategory = category & ~LINKED_PAGES;
+		// a new root pointer page is all zeros, so only a file with a root has to be marked
+		if((category & LINKED_PAGES) == 0 && root != 0)
+			throw new IOException("B+ tree file " + id.getTableId() + " has pages in the format"
+					+ " of an earlier version without high keys; the file has to be loaded again");
 
 		// read in the header pointer
 		header = dis.readInt();
@@ -94,7 +111,7 @@ public class BTreeRootPtrPage implements Page {
 
 		// write out the category of the root page (leaf or internal)
 		try{
-			dos.writeByte((byte) rootCategory);
+			dos.writeByte((byte) (rootCategory | LINKED_PAGES));
 		}catch(IOException e){
 			e.printStackTrace();
 		}
@@ -153,6 +170,26 @@ public class BTreeRootPtrPage implements Page {
 		return null;
 	}
 
+	/**
+	 * Return a copy of this page with the same before image and dirty state,
+	 * for an insert or delete to change while searches still read this page
+	 * -- used by BTreeFile
+	 */
+	BTreeRootPtrPage copy() {
+		try {
+			BTreeRootPtrPage copy = new BTreeRootPtrPage(pid,getPageData());
+			copy.oldData = oldData;
+			copy.dirty = dirty;
+			copy.dirtier = dirtier;
+			return copy;
+		} catch (IOException e) {
+			e.printStackTrace();
+			//should never happen -- we parsed it OK before!
+			System.exit(1);
+		}
+		return null;
+	}
+
 	/**
 	 * Get the id of the root page in this B+ tree
 	 * @return the id of the root page
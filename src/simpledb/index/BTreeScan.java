@@ -15,7 +15,7 @@ import java.util.*;
 
 /**
  * BTreeScan is an operator which reads tuples in sorted order 
- * according to a predicate
+ * according to a predicate, in ascending or descending key order
  */
 public class BTreeScan implements OpIterator {
 
@@ -28,6 +28,8 @@ public class BTreeScan implements OpIterator {
 	private transient DbFileIterator it;
 	private String tablename;
 	private String alias;
+	private int keyField;
+	private final boolean descending;
 
 	/**
 	 * Creates a B+ tree scan over the specified table as a part of the
@@ -49,8 +51,31 @@ public class BTreeScan implements OpIterator {
 	 *            in sorted order
 	 */
 	public BTreeScan(TransactionId tid, int tableid, String tableAlias, IndexPredicate ipred) {
+		this(tid, tableid, tableAlias, ipred, false);
+	}
+
+	/**
+	 * Creates a B+ tree scan over the specified table which returns the
+	 * tuples in ascending or descending key order.
+	 * 
+	 * @param tid
+	 *            The transaction this scan is running as a part of.
+	 * @param tableid
+	 *            the table to scan.
+	 * @param tableAlias
+	 *            the alias of this table (needed by the parser)
+	 * @param ipred
+	 * 			  The index predicate to match. If null, the scan will return all tuples
+	 *            in sorted order
+	 * @param descending
+	 *            whether to return the tuples from the largest key to the
+	 *            smallest, walking the leaves from right to left
+	 */
+	public BTreeScan(TransactionId tid, int tableid, String tableAlias, IndexPredicate ipred,
+			boolean descending) {
 		this.tid = tid;
 		this.ipred = ipred;
+		this.descending = descending;
 		reset(tableid,tableAlias);
 	}
 
@@ -71,6 +96,27 @@ public class BTreeScan implements OpIterator {
 		return this.alias;
 	}
 
+	/**
+	 * @return the predicate the scan matches, or null if it returns all tuples
+	 */
+	public IndexPredicate getIndexPredicate() {
+		return this.ipred;
+	}
+
+	/**
+	 * @return whether the scan returns the tuples in descending key order
+	 */
+	public boolean isDescending() {
+		return this.descending;
+	}
+
+	/**
+	 * @return the key field the predicate is matched against, if there is one
+	 */
+	public int getKeyField() {
+		return this.keyField;
+	}
+
 	/**
 	 * Reset the tableid, and tableAlias of this operator.
 	 * @param tableid
@@ -87,11 +133,17 @@ public class BTreeScan implements OpIterator {
 		this.isOpen=false;
 		this.alias = tableAlias;
 		this.tablename = Database.getCatalog().getTableName(tableid);
-		if(ipred == null) {
+		if(descending) {
+			BTreeFile f = (BTreeFile) Database.getCatalog().getDatabaseFile(tableid);
+			this.it = ipred == null ? f.reverseIterator(tid) : f.reverseIndexIterator(tid, ipred);
+			this.keyField = f.keyField();
+		}
+		else if(ipred == null) {
 			this.it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
 		}
 		else {
 			this.it = ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).indexIterator(tid, ipred);
+			this.keyField = ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).keyField();
 		}
 		myTd = Database.getCatalog().getTupleDesc(tableid);
 		String[] newNames = new String[myTd.numFields()];
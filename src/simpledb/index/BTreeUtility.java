@@ -281,7 +281,9 @@ public class BTreeUtility {
 	 */
 	public static int getNumTuplesPerPage(int columns) {
 		int bytesPerTuple = Type.INT_TYPE.getLen() * columns * 8;
-        return (BufferPool.getPageSize() * 8 - 3 * BTreeLeafPage.INDEX_SIZE * 8) /  (bytesPerTuple + 1);
+		// pointerbytes: left sibling pointer, right sibling pointer, parent pointer, high key
+		int leafpointerbytes = 3 * BTreeLeafPage.INDEX_SIZE + BTreePage.highKeySize(Type.INT_TYPE);
+        return (BufferPool.getPageSize() * 8 - leafpointerbytes * 8) /  (bytesPerTuple + 1);
 	}
 	
 	/**
@@ -324,8 +326,9 @@ public class BTreeUtility {
 	 */
 	public static int getNumEntriesPerPage() {
 		int nentrybytes = Type.INT_TYPE.getLen() + BTreeInternalPage.INDEX_SIZE;
-		// pointerbytes: one extra child pointer, parent pointer, child page category
-		int internalpointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1;
+		// pointerbytes: one extra child pointer, parent pointer, child page category,
+		// right sibling pointer, high key
+		int internalpointerbytes = BTreeInternalPage.pointerBytes(Type.INT_TYPE) + BTreeInternalPage.INDEX_SIZE;
         return (BufferPool.getPageSize() * 8 - internalpointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);
 	}
 	
@@ -0,0 +1,282 @@
+package simpledb.index;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Each instance of HashBucketPage stores the tuples of one bucket, or of
+ * one overflow page of a bucket, of a HashFile and implements the Page
+ * interface that is used by BufferPool.
+ *
+ * @see HashFile
+ * @see BufferPool
+ */
+public class HashBucketPage implements Page {
+
+	private final static int INDEX_SIZE = Type.INT_TYPE.getLen();
+
+	private boolean dirty = false;
+	private TransactionId dirtier = null;
+
+	private final HashPageId pid;
+	private final TupleDesc td;
+	private final int numSlots;
+
+	private int localDepth;
+	private int next;
+	private final byte[] header;
+	private final Tuple[] tuples;
+
+	private byte[] oldData;
+
+	/**
+	 * Create a HashBucketPage from a set of bytes of data read from disk.
+	 * The format of a HashBucketPage is an integer for the local depth of
+	 * the bucket, an integer for the page number of the next overflow page
+	 * (0 if there is none), a set of header bytes indicating the slots of the
+	 * page that are in use, and some number of tuple slots. The number of
+	 * tuples is equal to: <p>
+	 *          floor(((BufferPool.getPageSize() - 8) * 8) / (tuple size * 8 + 1))
+	 * <p> and the number of header bytes is ceiling(no. tuple slots / 8).
+	 */
+	public HashBucketPage(HashPageId id, byte[] data) throws IOException {
+		this.pid = id;
+		this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+		this.numSlots = getMaxTuples(td);
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+
+		localDepth = dis.readInt();
+		next = dis.readInt();
+
+		header = new byte[(numSlots + 7) / 8];
+		dis.readFully(header);
+
+		tuples = new Tuple[numSlots];
+		for (int i = 0; i < numSlots; i++)
+			tuples[i] = readNextTuple(dis, i);
+		dis.close();
+
+		setBeforeImage();
+	}
+
+	/**
+	 * @return the number of tuples of the given TupleDesc a bucket page holds
+	 */
+	public static int getMaxTuples(TupleDesc td) {
+		return ((BufferPool.getPageSize() - 2 * INDEX_SIZE) * 8) / (td.getSize() * 8 + 1);
+	}
+
+	private Tuple readNextTuple(DataInputStream dis, int slotId) throws IOException {
+		if (!isSlotUsed(slotId)) {
+			dis.skipBytes(td.getSize());
+			return null;
+		}
+
+		Tuple t = new Tuple(td);
+		t.setRecordId(new RecordId(pid, slotId));
+		try {
+			for (int j = 0; j < td.numFields(); j++)
+				t.setField(j, td.getFieldType(j).parse(dis));
+		} catch (java.text.ParseException e) {
+			e.printStackTrace();
+			throw new NoSuchElementException("parsing error!");
+		}
+		return t;
+	}
+
+	public void setBeforeImage() {
+		oldData = getPageData().clone();
+	}
+
+	/** Return a view of this page before it was modified
+        -- used by recovery */
+	public HashBucketPage getBeforeImage() {
+		try {
+			return new HashBucketPage(pid, oldData);
+		} catch (IOException e) {
+			e.printStackTrace();
+			//should never happen -- we parsed it OK before!
+			System.exit(1);
+		}
+		return null;
+	}
+
+	/**
+	 * @return the PageId associated with this page.
+	 */
+	public HashPageId getId() {
+		return pid;
+	}
+
+	/**
+	 * Generates a byte array representing the contents of this page.
+	 * Used to serialize this page to disk.
+	 * The invariant here is that it should be possible to pass the byte array
+	 * generated by getPageData to the HashBucketPage constructor and have it
+	 * produce an identical HashBucketPage object.
+	 *
+	 * @return A byte array corresponding to the bytes of this page.
+	 */
+	public byte[] getPageData() {
+		int len = BufferPool.getPageSize();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
+		DataOutputStream dos = new DataOutputStream(baos);
+		try {
+			dos.writeInt(localDepth);
+			dos.writeInt(next);
+			dos.write(header);
+			for (int i = 0; i < numSlots; i++) {
+				if (!isSlotUsed(i)) {
+					dos.write(new byte[td.getSize()]);
+					continue;
+				}
+				for (int j = 0; j < td.numFields(); j++)
+					tuples[i].getField(j).serialize(dos);
+			}
+			dos.write(new byte[len - dos.size()]);
+			dos.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Static method to generate a byte array corresponding to an empty
+	 * HashBucketPage of local depth 0 without overflow pages.
+	 *
+	 * @return The returned ByteArray.
+	 */
+	public static byte[] createEmptyPageData() {
+		return new byte[BufferPool.getPageSize()]; //all 0
+	}
+
+	public void markDirty(boolean dirty, TransactionId tid) {
+		this.dirty = dirty;
+		if (dirty) this.dirtier = tid;
+	}
+
+	public TransactionId isDirty() {
+		if (this.dirty)
+			return this.dirtier;
+		else
+			return null;
+	}
+
+	/**
+	 * @return the number of low bits of the hash shared by all keys in this bucket
+	 */
+	public int getLocalDepth() {
+		return localDepth;
+	}
+
+	/**
+	 * @param localDepth - the number of low bits of the hash shared by all keys in this bucket
+	 */
+	public void setLocalDepth(int localDepth) {
+		this.localDepth = localDepth;
+	}
+
+	/**
+	 * @return the id of the next overflow page of this bucket, or null if
+	 * this is the last page of the bucket
+	 */
+	public HashPageId getNextPageId() {
+		if (next == 0)
+			return null;
+		return new HashPageId(pid.getTableId(), next);
+	}
+
+	/**
+	 * @param id - the id of the next overflow page of this bucket
+	 * @throws DbException if the id is not a bucket page of this table
+	 */
+	public void setNextPageId(HashPageId id) throws DbException {
+		if (id == null) {
+			next = 0;
+			return;
+		}
+		if (id.getTableId() != pid.getTableId() || id.isDirectory())
+			throw new DbException("next page must be a bucket page of the same table");
+		next = id.getPageNumber();
+	}
+
+	/**
+	 * Delete the specified tuple from the page.
+	 * @throws DbException if this tuple is not on this page, or tuple slot is
+	 *         already empty.
+	 * @param t The tuple to delete
+	 */
+	public void deleteTuple(Tuple t) throws DbException {
+		RecordId rid = t.getRecordId();
+		if (rid == null || !pid.equals(rid.getPageId()) || !isSlotUsed(rid.getTupleNumber()))
+			throw new DbException("tried to delete tuple that is not on this page");
+		tuples[rid.getTupleNumber()] = null;
+		markSlotUsed(rid.getTupleNumber(), false);
+	}
+
+	/**
+	 * Adds the specified tuple to the page; the tuple is updated to reflect
+	 * that it is now stored on this page.
+	 * @throws DbException if the page is full or tupledesc is mismatch.
+	 * @param t The tuple to add.
+	 */
+	public void insertTuple(Tuple t) throws DbException {
+		if (!td.equals(t.getTupleDesc()))
+			throw new DbException("type mismatch, in addTuple");
+		for (int i = 0; i < numSlots; i++) {
+			if (!isSlotUsed(i)) {
+				tuples[i] = t;
+				t.setRecordId(new RecordId(pid, i));
+				markSlotUsed(i, true);
+				return;
+			}
+		}
+		throw new DbException("called addTuple on page with no empty slots.");
+	}
+
+	/**
+	 * Returns the number of empty slots on this page.
+	 */
+	public int getNumEmptySlots() {
+		int empty = 0;
+		for (int i = 0; i < numSlots; i++) {
+			if (!isSlotUsed(i))
+				empty++;
+		}
+		return empty;
+	}
+
+	/**
+	 * Returns true if associated slot on this page is filled.
+	 */
+	public boolean isSlotUsed(int i) {
+		return (header[i / 8] >> (i % 8) & 1) == 1;
+	}
+
+	private void markSlotUsed(int i, boolean value) {
+		if (value)
+			header[i / 8] |= (byte) (1 << (i % 8));
+		else
+			header[i / 8] &= (byte) ~(1 << (i % 8));
+	}
+
+	/**
+	 * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
+	 */
+	public Iterator<Tuple> iterator() {
+		List<Tuple> used = new ArrayList<>();
+		for (int i = 0; i < numSlots; i++) {
+			if (isSlotUsed(i))
+				used.add(tuples[i]);
+		}
+		return Collections.unmodifiableList(used).iterator();
+	}
+
+}
@@ -0,0 +1,187 @@
+package simpledb.index;
+
+import simpledb.storage.BufferPool;
+import simpledb.storage.Page;
+import simpledb.transaction.TransactionId;
+
+import java.io.*;
+
+/**
+ * HashDirectoryPage is the first page of a HashFile. It maps the low
+ * globalDepth bits of the hash of a key to the page number of the bucket
+ * holding the key, and implements the Page interface that is used by
+ * BufferPool.
+ *
+ * @see HashFile
+ * @see BufferPool
+ */
+public class HashDirectoryPage implements Page {
+
+	private boolean dirty = false;
+	private TransactionId dirtier = null;
+
+	private final HashPageId pid;
+
+	private int globalDepth;
+	private int[] buckets;
+
+	private byte[] oldData;
+
+	/**
+	 * Constructor.
+	 * Construct the HashDirectoryPage from a set of bytes of data read from
+	 * disk.
+	 * The format of a HashDirectoryPage is an integer for the global depth,
+	 * followed by 2^globalDepth integers, the page numbers of the buckets
+	 * for each hash suffix, padded with zeros to the page size. Buckets
+	 * with a local depth below the global depth appear more than once.
+	 */
+	public HashDirectoryPage(HashPageId id, byte[] data) throws IOException {
+		this.pid = id;
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+
+		globalDepth = dis.readInt();
+		buckets = new int[1 << globalDepth];
+		for (int i = 0; i < buckets.length; i++)
+			buckets[i] = dis.readInt();
+		dis.close();
+
+		setBeforeImage();
+	}
+
+	public void setBeforeImage() {
+		oldData = getPageData().clone();
+	}
+
+	/**
+	 * @return the PageId associated with this page.
+	 */
+	public HashPageId getId() {
+		return pid;
+	}
+
+	/**
+	 * There is only one directory page per table. This static method is
+	 * separate from getId() in order to maintain the Page interface
+	 * @param tableid - the tableid of this table
+	 * @return the directory page id for the given table
+	 */
+	public static HashPageId getId(int tableid) {
+		return new HashPageId(tableid, 0);
+	}
+
+	/**
+	 * @return the largest global depth whose bucket numbers fit on a page
+	 */
+	public static int getMaxDepth() {
+		int entries = (BufferPool.getPageSize() - 4) / 4;
+		return 31 - Integer.numberOfLeadingZeros(entries);
+	}
+
+	/**
+	 * Generates a byte array representing the contents of this page.
+	 * Used to serialize this page to disk.
+	 * The invariant here is that it should be possible to pass the byte array
+	 * generated by getPageData to the HashDirectoryPage constructor and have it
+	 * produce an identical HashDirectoryPage object.
+	 *
+	 * @return A byte array corresponding to the bytes of this page.
+	 */
+	public byte[] getPageData() {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize());
+		DataOutputStream dos = new DataOutputStream(baos);
+		try {
+			dos.writeInt(globalDepth);
+			for (int bucket : buckets)
+				dos.writeInt(bucket);
+			dos.write(new byte[BufferPool.getPageSize() - 4 * (buckets.length + 1)]);
+			dos.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Static method to generate a byte array corresponding to the directory
+	 * of an empty HashFile, of global depth 0 with a single bucket on page 1.
+	 *
+	 * @return The returned ByteArray.
+	 */
+	public static byte[] createEmptyPageData() {
+		byte[] data = new byte[BufferPool.getPageSize()];
+		data[7] = 1;
+		return data;
+	}
+
+	public void markDirty(boolean dirty, TransactionId tid) {
+		this.dirty = dirty;
+		if (dirty) this.dirtier = tid;
+	}
+
+	public TransactionId isDirty() {
+		if (this.dirty)
+			return this.dirtier;
+		else
+			return null;
+	}
+
+	/** Return a view of this page before it was modified
+        -- used by recovery */
+	public HashDirectoryPage getBeforeImage() {
+		try {
+			return new HashDirectoryPage(pid, oldData);
+		} catch (IOException e) {
+			e.printStackTrace();
+			//should never happen -- we parsed it OK before!
+			System.exit(1);
+		}
+		return null;
+	}
+
+	/**
+	 * @return the number of low bits of the hash the directory is indexed by
+	 */
+	public int getGlobalDepth() {
+		return globalDepth;
+	}
+
+	/**
+	 * @param hash - the hash of a key
+	 * @return the page number of the bucket the key belongs to
+	 */
+	public int getBucket(int hash) {
+		return buckets[hash & (buckets.length - 1)];
+	}
+
+	/**
+	 * Double the directory, so that the two entries for each hash suffix of
+	 * the old global depth point to its bucket.
+	 * @throws IllegalStateException if the directory is at its maximum depth
+	 */
+	public void doubleDirectory() {
+		if (globalDepth == getMaxDepth())
+			throw new IllegalStateException("directory is at its maximum depth");
+		int[] doubled = new int[buckets.length * 2];
+		System.arraycopy(buckets, 0, doubled, 0, buckets.length);
+		System.arraycopy(buckets, 0, doubled, buckets.length, buckets.length);
+		buckets = doubled;
+		globalDepth++;
+	}
+
+	/**
+	 * Point the entries of a bucket whose hash has bit depth set to its
+	 * split image, after the bucket was split from local depth depth to
+	 * depth + 1.
+	 * @param bucket - the page number of the bucket that was split
+	 * @param depth - the local depth of the bucket before the split
+	 * @param image - the page number of the new bucket
+	 */
+	public void splitBucket(int bucket, int depth, int image) {
+		for (int i = 0; i < buckets.length; i++) {
+			if (buckets[i] == bucket && (i >>> depth & 1) == 1)
+				buckets[i] = image;
+		}
+	}
+
+}
@@ -0,0 +1,452 @@
+package simpledb.index;
+
+import java.io.*;
+import java.util.*;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * HashFile is an implementation of a DbFile that stores its tuples in an
+ * extendible hash table keyed on one field, for equality lookups that do not
+ * need the keys in order. Page 0 is a HashDirectoryPage mapping the low bits
+ * of the hash of a key to a HashBucketPage; all other pages are buckets or
+ * their overflow pages. A lookup reads the directory and the bucket of the
+ * key, however many tuples the file holds.
+ * <p>
+ * A full bucket is split in two by one more bit of the hash, doubling the
+ * directory if the bucket was already split by as many bits as the directory
+ * is indexed by. Once the directory is as large as a page can hold, full
+ * buckets get chains of overflow pages instead. Buckets are not merged or
+ * reclaimed when tuples are deleted.
+ * <p>
+ * All pages are read and written through the BufferPool, so they are locked
+ * and logged like the pages of any other DbFile. Readers lock the directory
+ * in shared mode, and a split locks it exclusively.
+ *
+ * @see HashDirectoryPage#HashDirectoryPage
+ * @see HashBucketPage#HashBucketPage
+ */
+public class HashFile implements DbFile {
+
+	private final File f;
+	private final TupleDesc td;
+	private final int tableid;
+	private final int keyField;
+
+	/**
+	 * Constructs a hash file backed by the specified file.
+	 *
+	 * @param f - the file that stores the on-disk backing store for this hash
+	 *            file.
+	 * @param key - the field which index is keyed on
+	 * @param td - the tuple descriptor of tuples in the file
+	 */
+	public HashFile(File f, int key, TupleDesc td) {
+		this.f = f;
+		this.tableid = f.getAbsoluteFile().hashCode();
+		this.keyField = key;
+		this.td = td;
+	}
+
+	/**
+	 * Returns the File backing this HashFile on disk.
+	 */
+	public File getFile() {
+		return f;
+	}
+
+	/**
+	 * Returns an ID uniquely identifying this HashFile, the hash of the
+	 * absolute file name of the file underlying the HashFile.
+	 *
+	 * @return an ID uniquely identifying this HashFile.
+	 */
+	public int getId() {
+		return tableid;
+	}
+
+	/**
+	 * Returns the TupleDesc of the table stored in this DbFile.
+	 *
+	 * @return TupleDesc of this DbFile.
+	 */
+	public TupleDesc getTupleDesc() {
+		return td;
+	}
+
+	/**
+	 * Returns the index of the field that this hash file is keyed on
+	 */
+	public int keyField() {
+		return keyField;
+	}
+
+	/**
+	 * Read a page from the file on disk. This should not be called directly
+	 * but should be called from the BufferPool via getPage()
+	 *
+	 * @param pid - the id of the page to read from disk
+	 * @return the page constructed from the contents on disk
+	 */
+	public Page readPage(PageId pid) {
+		HashPageId id = (HashPageId) pid;
+		byte[] data = new byte[BufferPool.getPageSize()];
+		try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+			raf.seek((long) id.getPageNumber() * BufferPool.getPageSize());
+			raf.readFully(data);
+			if (id.isDirectory())
+				return new HashDirectoryPage(id, data);
+			return new HashBucketPage(id, data);
+		} catch (IOException e) {
+			throw new IllegalArgumentException("unable to read page " + id + " of HashFile", e);
+		}
+	}
+
+	/**
+	 * Write a page to disk.  This should not be called directly but should
+	 * be called from the BufferPool when pages are flushed to disk
+	 *
+	 * @param page - the page to write to disk
+	 */
+	public void writePage(Page page) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+			raf.seek((long) page.getId().getPageNumber() * BufferPool.getPageSize());
+			raf.write(page.getPageData());
+		}
+	}
+
+	/**
+	 * Returns the number of pages in this HashFile, including the directory.
+	 */
+	public int numPages() {
+		return (int) (f.length() / BufferPool.getPageSize());
+	}
+
+	/**
+	 * Create the directory page and the first bucket page if the file is empty
+	 */
+	private void createFileIfNeeded() throws IOException {
+		synchronized (this) {
+			if (f.length() == 0) {
+				try (BufferedOutputStream bw = new BufferedOutputStream(new FileOutputStream(f, true))) {
+					bw.write(HashDirectoryPage.createEmptyPageData());
+					bw.write(HashBucketPage.createEmptyPageData());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Hash a key, spreading the bits of Field.hashCode over the low bits the
+	 * directory is indexed by.
+	 */
+	static int hash(Field key) {
+		int h = key.hashCode();
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		return h ^ (h >>> 16);
+	}
+
+	private Page getPage(TransactionId tid, HashPageId pid, Permissions perm)
+			throws DbException, TransactionAbortedException {
+		try {
+			return Database.getBufferPool().getPage(tid, pid, perm);
+		} catch (InterruptedException e) {
+			throw new TransactionAbortedException();
+		}
+	}
+
+	/**
+	 * Get the directory page of this file, creating the file if it is empty
+	 */
+	private HashDirectoryPage getDirectory(TransactionId tid, Permissions perm)
+			throws DbException, IOException, TransactionAbortedException {
+		createFileIfNeeded();
+		return (HashDirectoryPage) getPage(tid, HashDirectoryPage.getId(tableid), perm);
+	}
+
+	/**
+	 * Append an empty bucket page to the file and return it locked with
+	 * read-write permission. Like new HeapFile pages, the page stays in the
+	 * file if the transaction aborts, empty and unreachable from the directory.
+	 */
+	private HashBucketPage newBucketPage(TransactionId tid, int localDepth)
+			throws DbException, IOException, TransactionAbortedException {
+		HashPageId pid;
+		synchronized (this) {
+			try (BufferedOutputStream bw = new BufferedOutputStream(new FileOutputStream(f, true))) {
+				bw.write(HashBucketPage.createEmptyPageData());
+			}
+			pid = new HashPageId(tableid, numPages() - 1);
+		}
+		Database.getBufferPool().discardPage(pid);
+		HashBucketPage page = (HashBucketPage) getPage(tid, pid, Permissions.READ_WRITE);
+		page.setLocalDepth(localDepth);
+		page.markDirty(true, tid);
+		return page;
+	}
+
+	/**
+	 * Insert a tuple into the bucket of its key, splitting the bucket if it
+	 * is full, or adding an overflow page to it if the directory cannot grow
+	 * any more.
+	 *
+	 * @param tid - the transaction id
+	 * @param t - the tuple to insert
+	 * @return a list of all pages that were dirtied by this operation. Pages
+	 * are marked dirty as soon as they are changed, since a split may read
+	 * more pages before the insert is done.
+	 * @see #splitBucket(TransactionId, HashBucketPage, List)
+	 */
+	public List<Page> insertTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		List<Page> dirtied = new ArrayList<>();
+		int h = hash(t.getField(keyField));
+		while (true) {
+			HashDirectoryPage dir = getDirectory(tid, Permissions.READ_ONLY);
+			HashBucketPage bucket = (HashBucketPage) getPage(tid,
+					new HashPageId(tableid, dir.getBucket(h)), Permissions.READ_WRITE);
+			HashBucketPage page = bucket;
+			while (page.getNumEmptySlots() == 0 && page.getNextPageId() != null)
+				page = (HashBucketPage) getPage(tid, page.getNextPageId(), Permissions.READ_WRITE);
+			if (page.getNumEmptySlots() > 0) {
+				page.insertTuple(t);
+				page.markDirty(true, tid);
+				dirtied.add(page);
+				return dirtied;
+			}
+			if (bucket.getNextPageId() == null && bucket.getLocalDepth() < HashDirectoryPage.getMaxDepth()) {
+				// the keys of the bucket may all go to the same half, so look again
+				splitBucket(tid, bucket, dirtied);
+				continue;
+			}
+			HashBucketPage overflow = newBucketPage(tid, bucket.getLocalDepth());
+			page.setNextPageId(overflow.getId());
+			page.markDirty(true, tid);
+			overflow.insertTuple(t);
+			dirtied.add(page);
+			dirtied.add(overflow);
+			return dirtied;
+		}
+	}
+
+	/**
+	 * Split a full bucket without overflow pages by the next bit of the hash:
+	 * the tuples with the bit set move to a new bucket, and the directory
+	 * entries with the bit set point to the new bucket. The directory is
+	 * doubled first if the bucket is split by as many bits as the directory.
+	 *
+	 * @param tid - the transaction id
+	 * @param bucket - the bucket to split
+	 * @param dirtied - the list the pages dirtied by the split are added to
+	 */
+	private void splitBucket(TransactionId tid, HashBucketPage bucket, List<Page> dirtied)
+			throws DbException, IOException, TransactionAbortedException {
+		HashDirectoryPage dir = getDirectory(tid, Permissions.READ_WRITE);
+		int depth = bucket.getLocalDepth();
+		if (depth == dir.getGlobalDepth())
+			dir.doubleDirectory();
+		HashBucketPage image = newBucketPage(tid, depth + 1);
+		bucket.setLocalDepth(depth + 1);
+		Iterator<Tuple> it = bucket.iterator();
+		while (it.hasNext()) {
+			Tuple t = it.next();
+			if ((hash(t.getField(keyField)) >>> depth & 1) == 1) {
+				bucket.deleteTuple(t);
+				image.insertTuple(t);
+			}
+		}
+		dir.splitBucket(bucket.getId().getPageNumber(), depth, image.getId().getPageNumber());
+		dir.markDirty(true, tid);
+		bucket.markDirty(true, tid);
+		dirtied.add(dir);
+		dirtied.add(bucket);
+		dirtied.add(image);
+	}
+
+	/**
+	 * Delete a tuple from its bucket page.
+	 *
+	 * @param tid - the transaction id
+	 * @param t - the tuple to delete
+	 * @return a list of all pages that were dirtied by this operation
+	 * @throws DbException if the tuple is not in this file
+	 */
+	public List<Page> deleteTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		RecordId rid = t.getRecordId();
+		if (rid == null || !(rid.getPageId() instanceof HashPageId)
+				|| rid.getPageId().getTableId() != tableid || ((HashPageId) rid.getPageId()).isDirectory())
+			throw new DbException("tuple " + t + " is not in this table");
+		HashBucketPage page = (HashBucketPage) getPage(tid, (HashPageId) rid.getPageId(), Permissions.READ_WRITE);
+		page.deleteTuple(t);
+		page.markDirty(true, tid);
+		List<Page> dirtied = new ArrayList<>();
+		dirtied.add(page);
+		return dirtied;
+	}
+
+	/**
+	 * Get an iterator for all tuples in this hash file, in no particular
+	 * order. It reads the bucket pages in page order and does not lock the
+	 * directory.
+	 */
+	public DbFileIterator iterator(TransactionId tid) {
+		return new HashFileIterator(this, tid);
+	}
+
+	/**
+	 * Return an iterator that looks up the tuples with the key of an equality
+	 * predicate in the bucket of the key.
+	 *
+	 * @param tid - the transaction id
+	 * @param ipred - the predicate, whose operator must be EQUALS
+	 * @throws IllegalArgumentException if the operator is not EQUALS
+	 */
+	public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred) {
+		if (ipred.getOp() != Op.EQUALS)
+			throw new IllegalArgumentException("a hash index only supports equality lookups, not " + ipred.getOp());
+		return indexIterator(tid, Collections.singletonList(ipred.getField()));
+	}
+
+	/**
+	 * Return an iterator that looks up the tuples with any of the given keys.
+	 * The keys are looked up one after another in ascending order, so the
+	 * tuples are returned grouped by key in key order, like the batched
+	 * probes of {@link BTreeFile#indexIterator(TransactionId, List)}.
+	 *
+	 * @param tid - the transaction id
+	 * @param keys - the keys to look up, in any order and possibly repeated
+	 */
+	public DbFileIterator indexIterator(TransactionId tid, List<Field> keys) {
+		return new HashLookupIterator(this, tid, keys);
+	}
+
+	/**
+	 * Helper class that implements the Java Iterator for all tuples of a
+	 * HashFile, page by page.
+	 */
+	private static class HashFileIterator extends AbstractDbFileIterator {
+
+		private final HashFile f;
+		private final TransactionId tid;
+		private int pgNo;
+		private Iterator<Tuple> it = null;
+
+		public HashFileIterator(HashFile f, TransactionId tid) {
+			this.f = f;
+			this.tid = tid;
+		}
+
+		public void open() {
+			pgNo = 0;
+			it = Collections.emptyIterator();
+		}
+
+		@Override
+		protected Tuple readNext() throws DbException, TransactionAbortedException {
+			if (it == null)
+				return null;
+			while (!it.hasNext()) {
+				if (++pgNo >= f.numPages())
+					return null;
+				it = ((HashBucketPage) f.getPage(tid, new HashPageId(f.getId(), pgNo),
+						Permissions.READ_ONLY)).iterator();
+			}
+			return it.next();
+		}
+
+		public void rewind() {
+			close();
+			open();
+		}
+
+		public void close() {
+			super.close();
+			it = null;
+		}
+	}
+
+	/**
+	 * Helper class that implements the DbFileIterator for equality lookups
+	 * of one or more keys. Each key reads the directory, which usually stays
+	 * in the buffer pool, and the pages of its bucket.
+	 */
+	private static class HashLookupIterator extends AbstractDbFileIterator {
+
+		private final HashFile f;
+		private final TransactionId tid;
+		private final List<Field> keys;
+		private int next;
+		private Field key;
+		private HashPageId nextPage;
+		private Iterator<Tuple> it = null;
+
+		public HashLookupIterator(HashFile f, TransactionId tid, List<Field> keys) {
+			this.f = f;
+			this.tid = tid;
+			// sort the keys and drop the repeated ones
+			List<Field> sorted = new ArrayList<>(keys);
+			sorted.sort((a, b) -> a.compare(Op.LESS_THAN, b) ? -1 : a.compare(Op.GREATER_THAN, b) ? 1 : 0);
+			this.keys = new ArrayList<>();
+			for (Field k : sorted) {
+				if (this.keys.isEmpty() || !this.keys.get(this.keys.size() - 1).equals(k))
+					this.keys.add(k);
+			}
+		}
+
+		public void open() {
+			next = 0;
+			key = null;
+			nextPage = null;
+			it = Collections.emptyIterator();
+		}
+
+		@Override
+		protected Tuple readNext() throws DbException, TransactionAbortedException {
+			if (it == null)
+				return null;
+			while (true) {
+				while (it.hasNext()) {
+					Tuple t = it.next();
+					if (t.getField(f.keyField()).equals(key))
+						return t;
+				}
+				if (nextPage == null) {
+					if (next == keys.size())
+						return null;
+					key = keys.get(next++);
+					try {
+						nextPage = new HashPageId(f.getId(),
+								f.getDirectory(tid, Permissions.READ_ONLY).getBucket(hash(key)));
+					} catch (IOException e) {
+						throw new DbException("unable to create HashFile: " + e.getMessage());
+					}
+				}
+				HashBucketPage page = (HashBucketPage) f.getPage(tid, nextPage, Permissions.READ_ONLY);
+				nextPage = page.getNextPageId();
+				it = page.iterator();
+			}
+		}
+
+		public void rewind() {
+			close();
+			open();
+		}
+
+		public void close() {
+			super.close();
+			it = null;
+		}
+	}
+
+}
@@ -0,0 +1,146 @@
+package simpledb.index;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+/**
+ * IndexOnlyScan is an operator which answers a query from the leaves of a
+ * secondary index alone, without reading the table. It returns the key and
+ * the included columns of the entries matching a predicate, in the order of
+ * the index key; the other columns of the table are not available.
+ *
+ * @see SecondaryIndex#covers
+ */
+public class IndexOnlyScan implements OpIterator {
+
+	private static final long serialVersionUID = 1L;
+
+	private boolean isOpen = false;
+	private final SecondaryIndex index;
+	private final IndexPredicate ipred;
+	private final TupleDesc myTd;
+	private final String alias;
+	private transient DbFileIterator it;
+
+	/**
+	 * Creates a scan over the entries of a secondary index matching ipred,
+	 * as a part of the specified transaction.
+	 *
+	 * @param tid
+	 *            The transaction this scan is running as a part of.
+	 * @param index
+	 *            the secondary index to read the entries of
+	 * @param tableAlias
+	 *            the alias of the indexed table; the returned tupleDesc has
+	 *            fields with name tableAlias.fieldName for the key column and
+	 *            the included columns, in this order
+	 * @param ipred
+	 *            The index predicate to match. If null, the scan returns all
+	 *            entries in the order of the index
+	 */
+	public IndexOnlyScan(TransactionId tid, SecondaryIndex index, String tableAlias, IndexPredicate ipred) {
+		this.index = index;
+		this.ipred = ipred;
+		this.alias = tableAlias;
+		this.it = ipred == null ? index.getFile().iterator(tid) : index.getFile().indexIterator(tid, ipred);
+		TupleDesc td = Database.getCatalog().getTupleDesc(index.getTableId());
+		int[] included = index.getIncluded();
+		String[] newNames = new String[1 + included.length];
+		Type[] newTypes = new Type[1 + included.length];
+		newNames[0] = tableAlias + "." + td.getFieldName(index.getField());
+		newTypes[0] = td.getFieldType(index.getField());
+		for (int i = 0; i < included.length; i++) {
+			newNames[1 + i] = tableAlias + "." + td.getFieldName(included[i]);
+			newTypes[1 + i] = td.getFieldType(included[i]);
+		}
+		myTd = new TupleDesc(newTypes, newNames);
+	}
+
+	/**
+	 * @return the name of the table the operator scans
+	 */
+	public String getTableName() {
+		return Database.getCatalog().getTableName(index.getTableId());
+	}
+
+	/**
+	 * @return the alias of the table the operator scans
+	 */
+	public String getAlias() {
+		return alias;
+	}
+
+	/**
+	 * @return the index the operator reads the entries of
+	 */
+	public SecondaryIndex getIndex() {
+		return index;
+	}
+
+	/**
+	 * @return the predicate the index entries are matched against, or null
+	 */
+	public IndexPredicate getIndexPredicate() {
+		return ipred;
+	}
+
+	public void open() throws DbException, TransactionAbortedException {
+		if (isOpen)
+			throw new DbException("double open on one OpIterator.");
+
+		it.open();
+		isOpen = true;
+	}
+
+	/**
+	 * Returns the TupleDesc of the key column and the included columns, with
+	 * field names prefixed with the tableAlias string from the constructor.
+	 */
+	public TupleDesc getTupleDesc() {
+		return myTd;
+	}
+
+	public boolean hasNext() throws TransactionAbortedException, DbException {
+		if (!isOpen)
+			throw new IllegalStateException("iterator is closed");
+		return it.hasNext();
+	}
+
+	/**
+	 * Returns the key and included columns of the next entry, with the
+	 * RecordId of the tuple of the table the entry points to.
+	 */
+	public Tuple next() throws NoSuchElementException,
+	TransactionAbortedException, DbException {
+		if (!isOpen)
+			throw new IllegalStateException("iterator is closed");
+		Tuple entry = it.next();
+		Tuple t = new Tuple(myTd);
+		t.setField(0, entry.getField(0));
+		for (int i = 1; i < myTd.numFields(); i++)
+			t.setField(i, entry.getField(2 + i));
+		t.setRecordId(index.recordId(entry));
+		return t;
+	}
+
+	public void close() {
+		it.close();
+		isOpen = false;
+	}
+
+	public void rewind() throws DbException, NoSuchElementException,
+	TransactionAbortedException {
+		close();
+		open();
+	}
+}
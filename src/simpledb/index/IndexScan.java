@@ -0,0 +1,160 @@
+package simpledb.index;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapPage;
+import simpledb.storage.RecordId;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+/**
+ * IndexScan is an operator which looks up the tuples matching a predicate in
+ * a secondary index and reads them from the table by their RecordId, in the
+ * order of the index key.
+ */
+public class IndexScan implements OpIterator {
+
+	private static final long serialVersionUID = 1L;
+
+	private boolean isOpen = false;
+	private final TransactionId tid;
+	private final SecondaryIndex index;
+	private final IndexPredicate ipred;
+	private final TupleDesc myTd;
+	private final String alias;
+	private transient DbFileIterator it;
+	private Tuple next = null;
+
+	/**
+	 * Creates a scan over the tuples of the indexed table matching ipred, as
+	 * a part of the specified transaction.
+	 *
+	 * @param tid
+	 *            The transaction this scan is running as a part of.
+	 * @param index
+	 *            the secondary index to look the tuples up in
+	 * @param tableAlias
+	 *            the alias of the indexed table; the returned tupleDesc has
+	 *            fields with name tableAlias.fieldName
+	 * @param ipred
+	 *            The index predicate to match. If null, the scan returns all
+	 *            tuples in the order of the index
+	 */
+	public IndexScan(TransactionId tid, SecondaryIndex index, String tableAlias, IndexPredicate ipred) {
+		this.tid = tid;
+		this.index = index;
+		this.ipred = ipred;
+		this.alias = tableAlias;
+		if(ipred == null) {
+			this.it = index.getFile().iterator(tid);
+		}
+		else {
+			this.it = index.getFile().indexIterator(tid, ipred);
+		}
+		TupleDesc td = Database.getCatalog().getTupleDesc(index.getTableId());
+		String[] newNames = new String[td.numFields()];
+		Type[] newTypes = new Type[td.numFields()];
+		for (int i = 0; i < td.numFields(); i++) {
+			newNames[i] = tableAlias + "." + td.getFieldName(i);
+			newTypes[i] = td.getFieldType(i);
+		}
+		myTd = new TupleDesc(newTypes, newNames);
+	}
+
+	/**
+	 * @return the name of the table the operator scans
+	 */
+	public String getTableName() {
+		return Database.getCatalog().getTableName(index.getTableId());
+	}
+
+	/**
+	 * @return the alias of the table the operator scans
+	 */
+	public String getAlias() {
+		return alias;
+	}
+
+	/**
+	 * @return the index the operator looks the tuples up in
+	 */
+	public SecondaryIndex getIndex() {
+		return index;
+	}
+
+	/**
+	 * @return the predicate the index entries are matched against, or null
+	 */
+	public IndexPredicate getIndexPredicate() {
+		return ipred;
+	}
+
+	public void open() throws DbException, TransactionAbortedException {
+		if (isOpen)
+			throw new DbException("double open on one OpIterator.");
+
+		it.open();
+		isOpen = true;
+	}
+
+	public TupleDesc getTupleDesc() {
+		return myTd;
+	}
+
+	/**
+	 * Read the tuple the next index entry points to
+	 */
+	private Tuple fetchNext() throws DbException, TransactionAbortedException {
+		while(it.hasNext()) {
+			RecordId rid = index.recordId(it.next());
+			HeapPage page;
+			try {
+				page = (HeapPage) Database.getBufferPool().getPage(tid, rid.getPageId(), Permissions.READ_ONLY);
+			} catch (InterruptedException e) {
+				throw new TransactionAbortedException();
+			}
+			Tuple t = page.getTuple(rid.getTupleNumber());
+			if(t != null)
+				return t;
+		}
+		return null;
+	}
+
+	public boolean hasNext() throws TransactionAbortedException, DbException {
+		if (!isOpen)
+			throw new IllegalStateException("iterator is closed");
+		if(next == null)
+			next = fetchNext();
+		return next != null;
+	}
+
+	public Tuple next() throws NoSuchElementException,
+	TransactionAbortedException, DbException {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		Tuple t = next;
+		next = null;
+		return t;
+	}
+
+	public void close() {
+		it.close();
+		next = null;
+		isOpen = false;
+	}
+
+	public void rewind() throws DbException, NoSuchElementException,
+	TransactionAbortedException {
+		close();
+		open();
+	}
+}
@@ -0,0 +1,259 @@
+package simpledb.index;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.NoSuchElementException;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * A secondary index on one column of a table, which must be a HeapFile.
+ * <p>
+ * The index is a BTreeFile of (key, page number, tuple number) entries keyed
+ * on the first field; the page and tuple numbers form the RecordId of the
+ * tuple in the table. Once the index is added to the catalog with
+ * {@link simpledb.common.Catalog#addIndex}, BufferPool.insertTuple and
+ * BufferPool.deleteTuple keep it up to date, and the entries they change are
+ * locked and rolled back like any other page of the transaction.
+ * <p>
+ * An index may include other columns of the table in its entries, after the
+ * RecordId. They are only stored in the leaves, and let an IndexOnlyScan
+ * answer queries which reference no other columns without reading the table.
+ * <p>
+ * Only HeapFile tables can be indexed: the RecordIds are read back as
+ * HeapPageIds, and the tuples of a BTreeFile move to other pages when its
+ * leaves split, which would leave the entries pointing at the wrong tuples.
+ */
+public class SecondaryIndex {
+
+	private final int tableid;
+	private final int field;
+	private final int[] included;
+	private final BTreeFile file;
+
+	/**
+	 * @param tableid - the table the index is on
+	 * @param field - the column of the table the index is keyed on
+	 * @param file - the BTreeFile holding the entries, with the TupleDesc
+	 * returned by {@link #entryDesc(Type)}
+	 */
+	public SecondaryIndex(int tableid, int field, BTreeFile file) {
+		this(tableid, field, new int[0], file);
+	}
+
+	/**
+	 * @param tableid - the table the index is on
+	 * @param field - the column of the table the index is keyed on
+	 * @param included - the other columns of the table stored in the entries
+	 * @param file - the BTreeFile holding the entries, with the TupleDesc
+	 * returned by {@link #entryDesc(Type, Type[])}
+	 */
+	public SecondaryIndex(int tableid, int field, int[] included, BTreeFile file) {
+		this.tableid = tableid;
+		this.field = field;
+		this.included = included.clone();
+		this.file = file;
+	}
+
+	/**
+	 * @return the TupleDesc of the index entries for a key of the given type
+	 */
+	public static TupleDesc entryDesc(Type keyType) {
+		return entryDesc(keyType, new Type[0]);
+	}
+
+	/**
+	 * @return the TupleDesc of the index entries for a key of the given type
+	 * which include columns of the given types
+	 */
+	public static TupleDesc entryDesc(Type keyType, Type[] includedTypes) {
+		Type[] types = new Type[3 + includedTypes.length];
+		String[] names = new String[types.length];
+		types[0] = keyType;
+		names[0] = "key";
+		types[1] = types[2] = Type.INT_TYPE;
+		names[1] = "pageNo";
+		names[2] = "tupleNo";
+		for (int i = 0; i < includedTypes.length; i++) {
+			types[3 + i] = includedTypes[i];
+			names[3 + i] = "included" + i;
+		}
+		return new TupleDesc(types, names);
+	}
+
+	/**
+	 * Build a secondary index over the current contents of a table by bulk
+	 * loading the entries of all its tuples, and add it to the catalog.
+	 *
+	 * @param tid - the transaction reading the table
+	 * @param tableid - the table to index
+	 * @param field - the column to index
+	 * @param f - the file on disk to back the index; it is overwritten
+	 * @param sortPages - number of pages of memory for sorting the entries, at least 3
+	 * @return the index
+	 */
+	public static SecondaryIndex create(TransactionId tid, int tableid, int field, File f, int sortPages)
+			throws IOException, DbException, TransactionAbortedException {
+		return create(tid, tableid, field, new int[0], f, sortPages);
+	}
+
+	/**
+	 * Build a secondary index which includes other columns of the table in
+	 * its entries, like {@link #create(TransactionId, int, int, File, int)}.
+	 *
+	 * @param included - the columns to store in the entries besides the key
+	 * @throws IllegalArgumentException if the table is not a HeapFile
+	 */
+	public static SecondaryIndex create(TransactionId tid, int tableid, int field, int[] included,
+			File f, int sortPages) throws IOException, DbException, TransactionAbortedException {
+		DbFile table = Database.getCatalog().getDatabaseFile(tableid);
+		if(!(table instanceof HeapFile))
+			throw new IllegalArgumentException("only a HeapFile can have a secondary index");
+		Type[] includedTypes = new Type[included.length];
+		for (int i = 0; i < included.length; i++)
+			includedTypes[i] = table.getTupleDesc().getFieldType(included[i]);
+		TupleDesc td = entryDesc(table.getTupleDesc().getFieldType(field), includedTypes);
+		new FileOutputStream(f).close(); // truncate
+		SecondaryIndex index = new SecondaryIndex(tableid, field, included, new BTreeFile(f, 0, td));
+		Database.getCatalog().addIndex(index);
+		BTreeFileEncoder.build(index.new EntryIterator(table.iterator(tid)), index.file,
+				BufferPool.getPageSize(), 1.0, sortPages);
+		return index;
+	}
+
+	/**
+	 * @return the id of the table the index is on
+	 */
+	public int getTableId() {
+		return tableid;
+	}
+
+	/**
+	 * @return the column of the table the index is keyed on
+	 */
+	public int getField() {
+		return field;
+	}
+
+	/**
+	 * @return the columns of the table stored in the entries besides the key
+	 */
+	public int[] getIncluded() {
+		return included.clone();
+	}
+
+	/**
+	 * @return whether the entries hold all the given columns of the table,
+	 * as the key or as included columns
+	 */
+	public boolean covers(Collection<Integer> columns) {
+		for (int column : columns) {
+			if (column == field)
+				continue;
+			boolean found = false;
+			for (int c : included)
+				found |= c == column;
+			if (!found)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the BTreeFile holding the entries
+	 */
+	public BTreeFile getFile() {
+		return file;
+	}
+
+	/**
+	 * Make the index entry of a tuple stored in the table
+	 */
+	private Tuple entry(Tuple t) {
+		RecordId rid = t.getRecordId();
+		Tuple e = new Tuple(file.getTupleDesc());
+		e.setField(0, t.getField(field));
+		e.setField(1, new IntField(rid.getPageId().getPageNumber()));
+		e.setField(2, new IntField(rid.getTupleNumber()));
+		for (int i = 0; i < included.length; i++)
+			e.setField(3 + i, t.getField(included[i]));
+		return e;
+	}
+
+	/**
+	 * Add the entry of a tuple which has just been inserted into the table
+	 */
+	public void insert(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		Database.getBufferPool().insertTuple(tid, file.getId(), entry(t));
+	}
+
+	/**
+	 * Remove the entry of a tuple which has just been deleted from the table
+	 * @throws DbException if the tuple has no entry in the index
+	 */
+	public void delete(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		RecordId rid = t.getRecordId();
+		Tuple match = null;
+		DbFileIterator it = file.indexIterator(tid, new IndexPredicate(Op.EQUALS, t.getField(field)));
+		it.open();
+		while(it.hasNext()) {
+			Tuple e = it.next();
+			if(((IntField) e.getField(1)).getValue() == rid.getPageId().getPageNumber()
+					&& ((IntField) e.getField(2)).getValue() == rid.getTupleNumber()) {
+				match = e;
+				break;
+			}
+		}
+		it.close();
+		if(match == null)
+			throw new DbException("tuple " + t + " has no entry in the index");
+		Database.getBufferPool().deleteTuple(tid, match);
+	}
+
+	/**
+	 * @return the RecordId of the tuple an index entry points to
+	 */
+	public RecordId recordId(Tuple entry) {
+		return new RecordId(new HeapPageId(tableid, ((IntField) entry.getField(1)).getValue()),
+				((IntField) entry.getField(2)).getValue());
+	}
+
+	/**
+	 * Turns the tuples of the table into their index entries
+	 */
+	private class EntryIterator extends AbstractDbFileIterator {
+		private final DbFileIterator child;
+
+		EntryIterator(DbFileIterator child) {
+			this.child = child;
+		}
+
+		public void open() throws DbException, TransactionAbortedException {
+			child.open();
+		}
+
+		public void rewind() throws DbException, TransactionAbortedException {
+			child.rewind();
+		}
+
+		public void close() {
+			super.close();
+			child.close();
+		}
+
+		protected Tuple readNext() throws DbException, TransactionAbortedException, NoSuchElementException {
+			return child.hasNext() ? entry(child.next()) : null;
+		}
+	}
+}
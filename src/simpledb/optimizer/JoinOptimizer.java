@@ -1,9 +1,15 @@
 package simpledb.optimizer;
 
 import simpledb.common.Database;
+import simpledb.common.Type;
 import simpledb.ParsingException;
 import simpledb.execution.*;
+import simpledb.index.BTreeFile;
+import simpledb.index.HashFile;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFile;
 import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionId;
 
 import java.util.*;
 
@@ -49,6 +55,48 @@ public class JoinOptimizer {
      */
     public static OpIterator instantiateJoin(LogicalJoinNode lj,
                                              OpIterator plan1, OpIterator plan2) throws ParsingException {
+        return instantiateJoin(null, lj, plan1, plan2, false);
+    }
+
+    /**
+     * Return best iterator for computing a given logical join, like
+     * {@link #instantiateJoin(LogicalJoinNode, OpIterator, OpIterator)}, or
+     * an IndexNestedLoopJoin which probes plan2 for the tuples of plan1 if
+     * indexJoin is set and plan2 reads a BTreeFile or HashFile keyed on the
+     * join field.
+     * 
+     * @param tid
+     *            The transaction the probes of an index join run as a part of
+     * @param lj
+     *            The join being considered
+     * @param plan1
+     *            The left join node's child
+     * @param plan2
+     *            The right join node's child
+     * @param indexJoin
+     *            Whether to probe plan2 through its B+ tree or hash table if
+     *            possible
+     * @see #useIndexJoin
+     */
+    public static OpIterator instantiateJoin(TransactionId tid, LogicalJoinNode lj,
+                                             OpIterator plan1, OpIterator plan2, boolean indexJoin) throws ParsingException {
+        return instantiateJoin(tid, lj, plan1, plan2, indexJoin, false);
+    }
+
+    /**
+     * Return best iterator for computing a given logical join, like
+     * {@link #instantiateJoin(TransactionId, LogicalJoinNode, OpIterator, OpIterator, boolean)},
+     * or a SortMergeJoin if sortMergeJoin is set and the join compares its
+     * fields with something other than NOT_EQUALS or LIKE.
+     * 
+     * @param sortMergeJoin
+     *            Whether to merge plan1 and plan2 in the order of their join
+     *            fields if no index join is made
+     * @see #useSortMergeJoin
+     */
+    public static OpIterator instantiateJoin(TransactionId tid, LogicalJoinNode lj,
+                                             OpIterator plan1, OpIterator plan2, boolean indexJoin,
+                                             boolean sortMergeJoin) throws ParsingException {
 
         int t1id = 0, t2id = 0;
         OpIterator j;
@@ -73,7 +121,12 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        if (lj.p == Predicate.Op.EQUALS) {
+        if (indexJoin && lj.p == Predicate.Op.EQUALS && !(lj instanceof LogicalSubplanJoinNode)
+                && IndexNestedLoopJoin.canProbe(plan2, t2id)) {
+            j = new IndexNestedLoopJoin(tid, p, plan1, plan2);
+        } else if (sortMergeJoin && SortMergeJoin.canMerge(lj.p)) {
+            j = new SortMergeJoin(p, plan1, plan2);
+        } else if (lj.p == Predicate.Op.EQUALS) {
 
             try {
                 // dynamically load HashEquiJoin -- if it doesn't exist, just
@@ -102,6 +155,9 @@ public class JoinOptimizer {
      * well as the number of CPU opertions performed by your join. Assume that
      * the cost of a single predicate application is roughly 1.
      * 
+     * This is the cheapest of a block nested loops join, a sort-merge join
+     * and, if the right-hand table is a BTreeFile or HashFile keyed on the
+     * join field, an index nested loops join.
      * 
      * @param j
      *            A LogicalJoinNode representing the join operation being
@@ -121,6 +177,18 @@ public class JoinOptimizer {
      */
     public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
                                    double cost1, double cost2) {
+        return Math.min(estimateNestedLoopJoinCost(j, card1, card2, cost1, cost2),
+                Math.min(estimateIndexJoinCost(j, card1, card2, cost1, cost2),
+                        estimateSortMergeJoinCost(j, card1, card2, cost1, cost2)));
+    }
+
+    /**
+     * Estimate the cost of a join computed by a nested loops join.
+     * 
+     * @see #estimateJoinCost
+     */
+    private double estimateNestedLoopJoinCost(LogicalJoinNode j, int card1, int card2,
+                                              double cost1, double cost2) {
         if (j instanceof LogicalSubplanJoinNode) {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Lab 4.
@@ -142,6 +210,180 @@ public class JoinOptimizer {
         }
     }
 
+    /**
+     * Estimate the cost of a join computed by an IndexNestedLoopJoin, which
+     * looks the tuples of the left-hand side up in the B+ tree or hash table
+     * of the right-hand table. The outer tuples are probed in sorted batches,
+     * so a page is read at most once per batch. Every probe of a B+ tree
+     * costs a binary search of the tree, while a hash probe costs a constant.
+     * 
+     * @param j
+     *            A LogicalJoinNode representing the join operation being
+     *            performed.
+     * @param card1
+     *            Estimated cardinality of the left-hand side of the query
+     * @param card2
+     *            Estimated cardinality of the right-hand side of the query
+     * @param cost1
+     *            Estimated cost of one full scan of the table on the left-hand
+     *            side of the query
+     * @param cost2
+     *            Estimated cost of one full scan of the table on the right-hand
+     *            side of the query
+     * @return An estimate of the cost of the index join, or infinity if the
+     *         right-hand table is not a BTreeFile or HashFile keyed on the
+     *         join field
+     */
+    public double estimateIndexJoinCost(LogicalJoinNode j, int card1, int card2,
+                                        double cost1, double cost2) {
+        if (j instanceof LogicalSubplanJoinNode || j.p != Predicate.Op.EQUALS)
+            return Double.POSITIVE_INFINITY;
+        Integer t2id = p.getTableId(j.t2Alias);
+        if (t2id == null)
+            return Double.POSITIVE_INFINITY;
+        DbFile f = Database.getCatalog().getDatabaseFile(t2id);
+        int keyField, pages;
+        double probeCpu;
+        if (f instanceof BTreeFile) {
+            keyField = ((BTreeFile) f).keyField();
+            pages = ((BTreeFile) f).numPages();
+            probeCpu = 1 + Math.log(Math.max(card2, 2)) / Math.log(2);
+        } else if (f instanceof HashFile) {
+            keyField = ((HashFile) f).keyField();
+            pages = ((HashFile) f).numPages();
+            probeCpu = 1;
+        } else {
+            return Double.POSITIVE_INFINITY;
+        }
+        try {
+            if (f.getTupleDesc().fieldNameToIndex(j.f2PureName) != keyField)
+                return Double.POSITIVE_INFINITY;
+        } catch (NoSuchElementException e) {
+            return Double.POSITIVE_INFINITY;
+        }
+        pages = Math.max(1, pages);
+        double batches = Math.ceil((double) card1 / IndexNestedLoopJoin.BATCH_SIZE);
+        double probePages = Math.min((double) card1, pages * batches);
+        return cost1 + probePages * (cost2 / pages) + card1 * probeCpu;
+    }
+
+    /**
+     * Return true if an IndexNestedLoopJoin is estimated to compute a join
+     * more cheaply than a HashEquiJoin.
+     * 
+     * @see #estimateIndexJoinCost
+     * @see #estimateHashJoinCost
+     */
+    public boolean useIndexJoin(LogicalJoinNode j, int card1, int card2,
+                                double cost1, double cost2) {
+        return estimateIndexJoinCost(j, card1, card2, cost1, cost2)
+                < estimateHashJoinCost(j, card1, card2, cost1, cost2);
+    }
+
+    /**
+     * Estimate the cost of a join computed by a HashEquiJoin, which builds
+     * its hash table on the smaller side and reads each side once. If the
+     * build side does not fit in HashEquiJoin.DEFAULT_MEMORY_PAGES, the part
+     * of both sides which does not is written to spill files and read back
+     * once more.
+     * 
+     * @see #estimateJoinCost
+     */
+    public double estimateHashJoinCost(LogicalJoinNode j, int card1, int card2,
+                                       double cost1, double cost2) {
+        boolean buildLeft = card1 <= card2;
+        int buildCard = Math.max(1, Math.min(card1, card2));
+        double budgetRows = (double) HashEquiJoin.DEFAULT_MEMORY_PAGES
+                * Math.max(1, BufferPool.getPageSize() / tupleSize(buildLeft ? j.t1Alias : j.t2Alias));
+        double spilled = Math.max(0, 1 - budgetRows / buildCard);
+        return (cost1 + cost2) * (1 + 2 * spilled) + card1 + card2;
+    }
+
+    /**
+     * Estimate the cost of a join computed by a SortMergeJoin. A side is read
+     * in the order of its join field for free if its table is a BTreeFile
+     * keyed on the field; otherwise it is sorted in half of
+     * SortMergeJoin.DEFAULT_MEMORY_PAGES, which costs a write and a read of
+     * the side per merge pass if it does not fit. An EQUALS join then reads
+     * both sides once; the other comparisons read the right-hand side once
+     * per block of the left-hand side, and produce about half of the cross
+     * product.
+     * 
+     * @return An estimate of the cost of the sort-merge join, or infinity if
+     *         the join cannot be merged
+     * @see #estimateJoinCost
+     */
+    public double estimateSortMergeJoinCost(LogicalJoinNode j, int card1, int card2,
+                                            double cost1, double cost2) {
+        if (j instanceof LogicalSubplanJoinNode || !SortMergeJoin.canMerge(j.p))
+            return Double.POSITIVE_INFINITY;
+        int memoryPages = SortMergeJoin.DEFAULT_MEMORY_PAGES / 2;
+        double sort2 = estimateSortCost(j.t2Alias, j.f2PureName, card2, cost2, memoryPages);
+        if (j.p == Predicate.Op.EQUALS)
+            return estimateSortCost(j.t1Alias, j.f1PureName, card1, cost1, memoryPages)
+                    + sort2 + card1 + card2;
+        double blockRows = (double) memoryPages
+                * Math.max(1, BufferPool.getPageSize() / tupleSize(j.t1Alias));
+        double blocks = Math.ceil(card1 / blockRows);
+        return cost1 + card1 * log2(Math.min(card1, blockRows)) + sort2
+                + Math.max(0, blocks - 1) * cost2 + blocks * card2 + (double) card1 * card2 / 2;
+    }
+
+    /**
+     * Estimate the cost of reading a table in the order of one of its
+     * fields, either through its B+ tree or with an external sort
+     */
+    private double estimateSortCost(String alias, String field, int card, double cost, int memoryPages) {
+        Integer tableid = p.getTableId(alias);
+        if (tableid != null) {
+            DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+            try {
+                if (f instanceof BTreeFile
+                        && f.getTupleDesc().fieldNameToIndex(field) == ((BTreeFile) f).keyField())
+                    return cost;
+            } catch (NoSuchElementException e) {
+                // sorted like any other field
+            }
+        }
+        double pages = Math.ceil((double) card * tupleSize(alias) / BufferPool.getPageSize());
+        double passes = 0;
+        if (pages > memoryPages) {
+            double runs = Math.ceil(pages / memoryPages);
+            passes = Math.ceil(Math.log(runs) / Math.log(memoryPages - 1));
+        }
+        return cost * (1 + 2 * passes) + card * log2(card);
+    }
+
+    private int tupleSize(String alias) {
+        try {
+            return p.getTupleDesc(alias).getSize();
+        } catch (IllegalArgumentException e) {
+            // a subquery, without a table of its own
+            return Type.INT_TYPE.getLen();
+        }
+    }
+
+    private static double log2(double n) {
+        return Math.log(Math.max(n, 2)) / Math.log(2);
+    }
+
+    /**
+     * Return true if a SortMergeJoin is estimated to compute a join more
+     * cheaply than the join which would be made otherwise: a HashEquiJoin or
+     * IndexNestedLoopJoin for EQUALS, a nested loops join for the other
+     * comparisons.
+     * 
+     * @see #estimateSortMergeJoinCost
+     */
+    public boolean useSortMergeJoin(LogicalJoinNode j, int card1, int card2,
+                                    double cost1, double cost2) {
+        double other = j.p == Predicate.Op.EQUALS
+                ? Math.min(estimateHashJoinCost(j, card1, card2, cost1, cost2),
+                        estimateIndexJoinCost(j, card1, card2, cost1, cost2))
+                : estimateNestedLoopJoinCost(j, card1, card2, cost1, cost2);
+        return estimateSortMergeJoinCost(j, card1, card2, cost1, cost2) < other;
+    }
+
     /**
      * Estimate the cardinality of a join. The cardinality of a join is the
      * number of tuples produced by the join.
@@ -324,7 +566,7 @@ public class JoinOptimizer {
         CostCard bestCostCard=new CostCard();
         PlanCache planCache=new PlanCache();
         int size=joins.size();
-        for(int i=0;i<size;i++){
+        for(int i=1;i<=size;i++){
             //找出给定size的所有子集全排列的方式
             Set<Set<LogicalJoinNode>> subsets=enumerateSubsets(joins,i);
             for(Set<LogicalJoinNode> set:subsets){
@@ -473,6 +715,14 @@ public class JoinOptimizer {
 
         LogicalJoinNode j2 = j.swapInnerOuter();
         double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+        // an index join needs the inner side to be the base table, not the
+        // result of the joins in prevBest
+        if (!news.isEmpty()) {
+            if (doesJoin(prevBest, j.t2Alias))
+                cost1 = estimateNestedLoopJoinCost(j, t1card, t2card, t1cost, t2cost);
+            else
+                cost2 = estimateNestedLoopJoinCost(j2, t2card, t1card, t2cost, t1cost);
+        }
         if (cost2 < cost1) {
             boolean tmp;
             j = j2;
@@ -4,6 +4,13 @@ import simpledb.common.Database;
 import simpledb.ParsingException;
 import simpledb.common.Type;
 import simpledb.execution.*;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.index.HashFile;
+import simpledb.index.HashScan;
+import simpledb.index.IndexOnlyScan;
+import simpledb.index.IndexScan;
+import simpledb.index.SecondaryIndex;
 import simpledb.storage.*;
 import simpledb.transaction.TransactionId;
 
@@ -36,8 +43,9 @@ public class LogicalPlan {
     private boolean hasAgg = false;
     private String aggOp;
     private String aggField;
-    private boolean oByAsc, hasOrderBy = false;
-    private String oByField;
+    private boolean hasOrderBy = false;
+    private final List<String> oByFields = new ArrayList<>();
+    private final List<Boolean> oByAscs = new ArrayList<>();
     private String query;
 //    private Query owner;
 
@@ -206,16 +214,16 @@ public class LogicalPlan {
         hasAgg = true;
     }
 
-    /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
-        a single ORDER BY field.
+    /** Add an ORDER BY expression in the specified order on the specified field.  If several fields
+        are added, tuples which are equal in the fields added first are ordered on the next one.
         @param field the field to order by
         @param asc true if should be ordered in ascending order, false for descending order
      * @throws ParsingException 
     */
     public void addOrderBy(String field, boolean asc) throws ParsingException {
         field=disambiguateName(field);
-        oByField = field;
-        oByAsc = asc;
+        oByFields.add(field);
+        oByAscs.add(asc);
         hasOrderBy = true;
     }
 
@@ -274,6 +282,203 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /** Convert the constant of a filter to a field of the filtered column's type */
+    private static Field filterConstant(Type ftyp, String c) {
+        if (ftyp == Type.INT_TYPE)
+            return new IntField(new Integer(c));
+        else
+            return new StringField(c, Type.STRING_LEN);
+    }
+
+    /**
+     * Choose how to read a table: with a sequential scan, with a range scan
+     * of a BTreeFile table when a filter is on its key field, with a lookup in
+     * a HashFile table when an equality filter is on its key field, or through
+     * one of the table's secondary indexes when a filter is on the indexed
+     * column. A secondary index which holds every column of the table the
+     * query references answers the query from its entries alone, reading only
+     * the entries matching a filter on its key if there is one.
+     * An index is used when the pages it reads for the filter's estimated
+     * selectivity cost less than reading the whole table.  The filters are
+     * applied on top of either.
+     *
+     * @param stats the statistics of the table, or null if there are none
+     * @param explain whether to print the chosen access path
+     */
+    private OpIterator chooseScan(TransactionId t, LogicalScanNode table, TableStats stats, boolean explain) {
+        if (stats == null)
+            return new SeqScan(t, table.t, table.alias);
+        OpIterator best = null;
+        String bestPath = "sequential scan";
+        double scanCost = stats.estimateScanCost();
+        double bestCost = scanCost;
+        DbFile file = Database.getCatalog().getDatabaseFile(table.t);
+        TupleDesc td = file.getTupleDesc();
+        // the most selective filter on each column, for index-only scans
+        Map<Integer, IndexPredicate> columnPreds = new HashMap<>();
+        Map<Integer, Double> columnSels = new HashMap<>();
+        for (LogicalFilterNode lf : filters) {
+            if (!lf.tableAlias.equals(table.alias)
+                    || lf.p == Predicate.Op.LIKE || lf.p == Predicate.Op.NOT_EQUALS)
+                continue;
+            int field;
+            Field f;
+            try {
+                field = td.fieldNameToIndex(lf.fieldPureName);
+                f = filterConstant(td.getFieldType(field), lf.c);
+            } catch (NoSuchElementException | NumberFormatException e) {
+                continue; // reported when the filter itself is planned
+            }
+            double sel = stats.estimateSelectivity(field, lf.p, f);
+            String path = lf.fieldPureName + " " + lf.p + " " + lf.c;
+            if (!columnSels.containsKey(field) || sel < columnSels.get(field)) {
+                columnSels.put(field, sel);
+                columnPreds.put(field, new IndexPredicate(lf.p, f));
+            }
+            if (file instanceof BTreeFile && ((BTreeFile) file).keyField() == field) {
+                double cost = stats.estimateIndexRangeScanCost(sel);
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    bestPath = "B+tree range scan on " + path;
+                    best = new BTreeScan(t, table.t, table.alias, new IndexPredicate(lf.p, f));
+                }
+            }
+            if (file instanceof HashFile && ((HashFile) file).keyField() == field
+                    && lf.p == Predicate.Op.EQUALS) {
+                double cost = stats.estimateHashLookupCost(sel);
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    bestPath = "hash lookup on " + path;
+                    best = new HashScan(t, table.t, table.alias, new IndexPredicate(lf.p, f));
+                }
+            }
+            for (SecondaryIndex index : Database.getCatalog().getIndexes(table.t)) {
+                if (index.getField() != field)
+                    continue;
+                double cost = stats.estimateIndexScanCost(sel, index.getFile().numPages());
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    bestPath = "secondary index scan on " + path;
+                    best = new IndexScan(t, index, table.alias, new IndexPredicate(lf.p, f));
+                }
+            }
+        }
+        Set<Integer> columns = referencedColumns(table.alias, td);
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(table.t)) {
+            if (columns == null || !index.covers(columns))
+                continue;
+            IndexPredicate ipred = columnPreds.get(index.getField());
+            double sel = ipred == null ? 1.0 : columnSels.get(index.getField());
+            double cost = stats.estimateIndexOnlyScanCost(sel, index.getFile().numPages());
+            if (cost < bestCost) {
+                bestCost = cost;
+                bestPath = "index-only scan on " + td.getFieldName(index.getField())
+                        + (ipred == null ? "" : " " + ipred.getOp() + " " + ipred.getField());
+                best = new IndexOnlyScan(t, index, table.alias, ipred);
+            }
+        }
+        if (explain) {
+            System.out.println("Access path for " + table.alias + ": " + bestPath
+                    + " (cost " + bestCost + ", sequential scan " + scanCost + ")");
+        }
+        return best != null ? best : new SeqScan(t, table.t, table.alias);
+    }
+
+    /**
+     * Collect the columns of the table scanned as alias that the query
+     * references in its select list, filters, joins, aggregate, grouping or
+     * ordering.
+     *
+     * @return the indexes of the columns in td, or null if the query
+     *         references all columns or a name that cannot be resolved
+     */
+    private Set<Integer> referencedColumns(String alias, TupleDesc td) {
+        List<String> names = new ArrayList<>();
+        for (LogicalSelectListNode si : selectList)
+            names.add(si.fname);
+        for (LogicalFilterNode lf : filters)
+            names.add(lf.fieldQuantifiedName);
+        for (LogicalJoinNode lj : joins) {
+            names.add(lj.f1QuantifiedName);
+            names.add(lj.f2QuantifiedName);
+        }
+        names.add(aggField);
+        names.add(groupByField);
+        names.addAll(oByFields);
+        Set<Integer> columns = new HashSet<>();
+        for (String name : names) {
+            if (name == null)
+                continue;
+            String[] parts = name.split("[.]");
+            if (parts.length != 2 || parts[1].equals("*"))
+                return null;
+            if (!parts[0].equals(alias))
+                continue;
+            try {
+                columns.add(td.fieldNameToIndex(parts[1]));
+            } catch (NoSuchElementException e) {
+                return null;
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * Rewrite a plan of Filters over a scan of a BTreeFile table so that it
+     * returns its tuples ordered on the given field, without sorting them:
+     * if the field is the key field of the table, the scan becomes a
+     * BTreeScan in the requested direction, keeping the index predicate of
+     * the scan if it has one.  Filters keep the order of their child.
+     *
+     * @param field the index of the field to order on in the tuples of plan
+     * @param asc whether to order the tuples in ascending order
+     * @return the rewritten plan, or null if the plan cannot return the order
+     */
+    private static OpIterator scanInKeyOrder(TransactionId t, OpIterator plan, int field, boolean asc) {
+        if (plan instanceof Filter) {
+            Filter filter = (Filter) plan;
+            OpIterator child = scanInKeyOrder(t, filter.getChildren()[0], field, asc);
+            if (child == null)
+                return null;
+            filter.setChildren(new OpIterator[]{child});
+            return plan;
+        }
+        String tableName, alias;
+        IndexPredicate ipred = null;
+        if (plan instanceof SeqScan) {
+            tableName = ((SeqScan) plan).getTableName();
+            alias = ((SeqScan) plan).getAlias();
+        } else if (plan instanceof BTreeScan) {
+            tableName = ((BTreeScan) plan).getTableName();
+            alias = ((BTreeScan) plan).getAlias();
+            ipred = ((BTreeScan) plan).getIndexPredicate();
+        } else {
+            return null;
+        }
+        int tableid = Database.getCatalog().getTableId(tableName);
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        if (!(file instanceof BTreeFile) || ((BTreeFile) file).keyField() != field)
+            return null;
+        return new BTreeScan(t, tableid, alias, ipred, !asc);
+    }
+
+    /**
+     * Rewrite plan with {@link #scanInKeyOrder} to return its tuples ordered
+     * on a join field if it can, so that a SortMergeJoin does not sort it.
+     *
+     * @return the rewritten plan, or plan itself if it cannot return the order
+     */
+    private static OpIterator inJoinOrder(TransactionId t, OpIterator plan, String fieldName, boolean asc) {
+        int field;
+        try {
+            field = plan.getTupleDesc().fieldNameToIndex(fieldName);
+        } catch (NoSuchElementException e) {
+            return plan;
+        }
+        OpIterator sorted = scanInKeyOrder(t, plan, field, asc);
+        return sorted != null ? sorted : plan;
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link OpIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned OpIterator will run as a part of
@@ -295,15 +500,16 @@ public class LogicalPlan {
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
-            SeqScan ss = null;
+            OpIterator ss = null;
+            String baseTableName;
             try {
-                 ss = new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias);
+                 baseTableName = Database.getCatalog().getTableName(table.t);
+                 ss = chooseScan(t, table, baseTableStats.get(baseTableName), explain);
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
             
             subplanMap.put(table.alias,ss);
-            String baseTableName = Database.getCatalog().getTableName(table.t);
             statsMap.put(baseTableName, baseTableStats.get(baseTableName));
             filterSelectivities.put(table.alias, 1.0);
 
@@ -324,10 +530,7 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
             }
-            if (ftyp == Type.INT_TYPE)
-                f = new IntField(new Integer(lf.c));
-            else
-                f = new StringField(lf.c, Type.STRING_LEN);
+            f = filterConstant(ftyp, lf.c);
 
             Predicate p = null;
             try {
@@ -339,15 +542,29 @@ public class LogicalPlan {
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
 
-            double sel = s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
+            // the stats are by column of the table, which an index only scan may reorder
+            int tableField = Database.getCatalog().getTupleDesc(this.getTableId(lf.tableAlias))
+                    .fieldNameToIndex(lf.fieldPureName);
+            double sel = s.estimateSelectivity(tableField, lf.p, f);
             filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
         
-        JoinOptimizer jo = new JoinOptimizer(this,joins);
+        // estimated cost and cardinality of every subplan, to choose between
+        // a hash join and an index join when the joins are instantiated
+        Map<String,CostCard> subplanCosts = new HashMap<>();
+        for (LogicalScanNode table : tables) {
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(table.t));
+            if (s == null)
+                continue;
+            CostCard cc = new CostCard();
+            cc.cost = s.estimateScanCost();
+            cc.card = s.estimateTableCardinality(filterSelectivities.get(table.alias));
+            subplanCosts.put(table.alias, cc);
+        }
 
-        joins = jo.orderJoins(statsMap,filterSelectivities,explain);
+        JoinOptimizer jo = new JoinOptimizer(this,joins);
 
         if (joins.size() != 0) {//课程给的原方法没有这个判断，加上后防止没有join时optimizer被调用而返回null
             joins = jo.orderJoins(statsMap,filterSelectivities,explain);
@@ -386,9 +603,37 @@ public class LogicalPlan {
             if (plan2 == null)
                 throw new ParsingException("Unknown table in WHERE clause " + lj.t2Alias);
 
+            CostCard cc1 = subplanCosts.remove(t1name);
+            CostCard cc2 = isSubqueryJoin ? null : subplanCosts.remove(t2name);
+            boolean indexJoin = cc1 != null && cc2 != null
+                    && jo.useIndexJoin(lj, cc1.card, cc2.card, cc1.cost, cc2.cost);
+
+            boolean sortMergeJoin = !indexJoin && cc1 != null && cc2 != null
+                    && jo.useSortMergeJoin(lj, cc1.card, cc2.card, cc1.cost, cc2.cost);
+            if (sortMergeJoin) {
+                // read tables with a B+ tree on the join field in the order of the merge
+                if (lj.p == Predicate.Op.EQUALS)
+                    plan1 = inJoinOrder(t, plan1, lj.f1QuantifiedName, true);
+                plan2 = inJoinOrder(t, plan2, lj.f2QuantifiedName, SortMergeJoin.rightAscending(lj.p));
+            }
+
             OpIterator j;
-            j = JoinOptimizer.instantiateJoin(lj, plan1, plan2);
+            j = JoinOptimizer.instantiateJoin(t, lj, plan1, plan2, indexJoin, sortMergeJoin);
+            if (j instanceof HashEquiJoin && cc1 != null && cc2 != null)
+                ((HashEquiJoin) j).setInputCardinalities(cc1.card, cc2.card);
             subplanMap.put(t1name, j);
+            if (cc1 != null && cc2 != null) {
+                CostCard cc = new CostCard();
+                cc.cost = jo.estimateJoinCost(lj, cc1.card, cc2.card, cc1.cost, cc2.cost);
+                cc.card = jo.estimateJoinCardinality(lj, cc1.card, cc2.card, false, false, statsMap);
+                subplanCosts.put(t1name, cc);
+            }
+            if (explain && j instanceof IndexNestedLoopJoin)
+                System.out.println("Join " + lj.f1QuantifiedName + " = " + lj.f2QuantifiedName
+                        + ": index nested loop join probing " + lj.t2Alias);
+            if (explain && j instanceof SortMergeJoin)
+                System.out.println("Join " + lj.f1QuantifiedName + " " + lj.p + " " + lj.f2QuantifiedName
+                        + ": sort-merge join");
 
             if (!isSubqueryJoin) {
                 subplanMap.remove(t2name);
@@ -478,7 +723,23 @@ public class LogicalPlan {
         }
 
         if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+            int[] oByIndexes = new int[oByFields.size()];
+            boolean[] oByAsc = new boolean[oByFields.size()];
+            for (int i = 0; i < oByIndexes.length; i++) {
+                oByIndexes[i] = node.getTupleDesc().fieldNameToIndex(oByFields.get(i));
+                oByAsc[i] = oByAscs.get(i);
+            }
+            // the key order of a B+ tree only orders on a single field
+            OpIterator ordered = hasAgg || oByIndexes.length > 1 ? null
+                    : scanInKeyOrder(t, node, oByIndexes[0], oByAsc[0]);
+            if (ordered != null) {
+                node = ordered;
+                if (explain)
+                    System.out.println("Order by " + oByFields.get(0) + ": B+tree scan in "
+                            + (oByAsc[0] ? "ascending" : "descending") + " key order, no sort");
+            } else {
+                node = new OrderBy(oByIndexes, oByAsc, node);
+            }
         }
 
         return new Project(outFields, outTypes, node);
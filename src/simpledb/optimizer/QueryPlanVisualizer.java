@@ -5,6 +5,10 @@ import java.util.Arrays;
 import java.util.Iterator;
 
 import simpledb.execution.*;
+import simpledb.index.BTreeScan;
+import simpledb.index.HashScan;
+import simpledb.index.IndexOnlyScan;
+import simpledb.index.IndexScan;
 import simpledb.storage.TupleDesc;
 import simpledb.storage.TupleDesc.TDItem;
 
@@ -12,10 +16,15 @@ public class QueryPlanVisualizer {
 
     static final String JOIN = "⨝";
     static final String HASH_JOIN = "⨝(hash)";
+    static final String INDEX_JOIN = "⨝(index)";
     static final String SELECT = "σ";
     static final String PROJECT = "π";
     static final String RENAME = "ρ";
     static final String SCAN = "scan";
+    static final String BTREE_SCAN = "btree";
+    static final String INDEX_SCAN = "index";
+    static final String INDEX_ONLY_SCAN = "index-only";
+    static final String HASH_SCAN = "hash";
     static final String ORDERBY = "o";
     static final String GROUPBY = "g";
     static final String SPACE = "  ";
@@ -29,7 +38,7 @@ public class QueryPlanVisualizer {
         Operator o = (Operator) root;
         OpIterator[] children = o.getChildren();
 
-        if (o instanceof Join || o instanceof HashEquiJoin) {
+        if (o instanceof Join || o instanceof HashEquiJoin || o instanceof IndexNestedLoopJoin) {
             int d1 = this.calculateQueryPlanTreeDepth(children[0]);
             int d2 = this.calculateQueryPlanTreeDepth(children[1]);
             return Math.max(d1, d2) + 3;
@@ -67,24 +76,65 @@ public class QueryPlanVisualizer {
         int adjustDepth = currentDepth == 0 ? -1 : 0;
         SubTreeDescriptor thisNode = new SubTreeDescriptor(null);
 
-        if (queryPlan instanceof SeqScan) {
-            SeqScan s = (SeqScan) queryPlan;
-            String tableName = s.getTableName();
-            String alias = s.getAlias();
-//            TupleDesc td = s.getTupleDesc();
+        if (queryPlan instanceof SeqScan || queryPlan instanceof BTreeScan || queryPlan instanceof IndexScan
+                || queryPlan instanceof HashScan || queryPlan instanceof IndexOnlyScan) {
+            String scan, tableName, alias, pred = "";
+            IndexPredicate ipred = null;
+            if (queryPlan instanceof SeqScan) {
+                SeqScan s = (SeqScan) queryPlan;
+                scan = SCAN;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+            } else if (queryPlan instanceof BTreeScan) {
+                BTreeScan s = (BTreeScan) queryPlan;
+                scan = BTREE_SCAN;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+                ipred = s.getIndexPredicate();
+                if (ipred != null)
+                    pred = "," + s.getTupleDesc().getFieldName(s.getKeyField());
+                if (s.isDescending())
+                    pred = ",desc" + pred;
+            } else if (queryPlan instanceof HashScan) {
+                HashScan s = (HashScan) queryPlan;
+                scan = HASH_SCAN;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+                ipred = s.getIndexPredicate();
+                if (ipred != null)
+                    pred = "," + s.getTupleDesc().getFieldName(s.getKeyField());
+            } else if (queryPlan instanceof IndexOnlyScan) {
+                IndexOnlyScan s = (IndexOnlyScan) queryPlan;
+                scan = INDEX_ONLY_SCAN;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+                ipred = s.getIndexPredicate();
+                if (ipred != null)
+                    pred = "," + s.getTupleDesc().getFieldName(0);
+            } else {
+                IndexScan s = (IndexScan) queryPlan;
+                scan = INDEX_SCAN;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+                ipred = s.getIndexPredicate();
+                if (ipred != null)
+                    pred = "," + s.getTupleDesc().getFieldName(s.getIndex().getField());
+            }
+            if (ipred != null)
+                pred += ipred.getOp().toString() + ipred.getField();
             if (!tableName.equals(alias))
                 alias = " " + alias;
             else
                 alias = "";
             thisNode.text = String
-                    .format("%1$s(%2$s)", SCAN, tableName + alias);
-            if (SCAN.length() / 2 < parentUpperBarStartShift) {
+                    .format("%1$s(%2$s%3$s)", scan, tableName + alias, pred);
+            if (scan.length() / 2 < parentUpperBarStartShift) {
                 thisNode.upBarPosition = currentStartPosition
                         + parentUpperBarStartShift;
                 thisNode.textStartPosition = thisNode.upBarPosition
-                        - SCAN.length() / 2;
+                        - scan.length() / 2;
             } else {
-                thisNode.upBarPosition = currentStartPosition + SCAN.length()
+                thisNode.upBarPosition = currentStartPosition + scan.length()
                         / 2;
                 thisNode.textStartPosition = currentStartPosition;
             }
@@ -138,18 +188,19 @@ public class QueryPlanVisualizer {
                 thisNode.leftChild = left;
                 thisNode.rightChild = right;
                 thisNode.height = currentDepth;
-            } else if (plan instanceof HashEquiJoin) {
-                HashEquiJoin j = (HashEquiJoin) plan;
-                JoinPredicate jp = j.getJoinPredicate();
-                TupleDesc td = j.getTupleDesc();
+            } else if (plan instanceof HashEquiJoin || plan instanceof IndexNestedLoopJoin) {
+                String label = plan instanceof HashEquiJoin ? HASH_JOIN : INDEX_JOIN;
+                JoinPredicate jp = plan instanceof HashEquiJoin ? ((HashEquiJoin) plan).getJoinPredicate()
+                        : ((IndexNestedLoopJoin) plan).getJoinPredicate();
+                TupleDesc td = plan.getTupleDesc();
                 String field1 = td.getFieldName(jp.getField1());
                 String field2 = td.getFieldName(jp.getField2()
                         + children[0].getTupleDesc().numFields());
-                thisNode.text = String.format("%1$s(%2$s),card:%3$d", HASH_JOIN, field1
-                        + jp.getOperator() + field2,j.getEstimatedCardinality());
+                thisNode.text = String.format("%1$s(%2$s),card:%3$d", label, field1
+                        + jp.getOperator() + field2,plan.getEstimatedCardinality());
                 int upBarShift = parentUpperBarStartShift;
-                if (HASH_JOIN.length() / 2 > parentUpperBarStartShift)
-                    upBarShift = HASH_JOIN.length() / 2;
+                if (label.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = label.length() / 2;
                 SubTreeDescriptor left = this.buildTree(queryPlanDepth,
                         currentDepth + 3 + adjustDepth, children[0],
                         currentStartPosition, upBarShift);
@@ -158,7 +209,7 @@ public class QueryPlanVisualizer {
                         currentStartPosition + left.width + SPACE.length(), 0);
                 thisNode.upBarPosition = (left.upBarPosition + right.upBarPosition) / 2;
                 thisNode.textStartPosition = thisNode.upBarPosition
-                        - HASH_JOIN.length() / 2;
+                        - label.length() / 2;
                 thisNode.width = Math.max(
                         left.width + right.width + SPACE.length(),
                         thisNode.textStartPosition + thisNode.text.length()
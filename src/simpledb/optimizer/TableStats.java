@@ -4,6 +4,8 @@ import simpledb.common.Database;
 import simpledb.common.Type;
 import simpledb.execution.Predicate;
 import simpledb.execution.SeqScan;
+import simpledb.index.BTreeFile;
+import simpledb.index.HashFile;
 import simpledb.storage.*;
 import simpledb.transaction.Transaction;
 
@@ -71,7 +73,7 @@ public class TableStats {
     //Key是该表的每一列的FieldName,Value是最小值和最大值数组
     private HashMap<String,Integer[]> attrs;
     private HashMap<String,Object> name2hist;
-    private HeapFile table;
+    private DbFile table;
     private int ntups;
     private int ioCostPerPage;
     private TupleDesc td;
@@ -95,7 +97,7 @@ public class TableStats {
         // in a single scan of the table.
         // some code goes here
         this.ioCostPerPage=ioCostPerPage;
-        table=(HeapFile)Database.getCatalog().getDatabaseFile(tableid);
+        table=Database.getCatalog().getDatabaseFile(tableid);
         td=table.getTupleDesc();
         attrs=new HashMap<>();
         name2hist=new HashMap<>();
@@ -182,7 +184,80 @@ public class TableStats {
      */
     public double estimateScanCost() {
         // some code goes here
-        return table.numPages()*ioCostPerPage*2;
+        return numPages()*ioCostPerPage*2;
+    }
+
+    /**
+     * @return the number of pages of the table, a HeapFile, BTreeFile or HashFile
+     */
+    private int numPages() {
+        if(table instanceof BTreeFile)
+            return ((BTreeFile)table).numPages();
+        if(table instanceof HashFile)
+            return ((HashFile)table).numPages();
+        return ((HeapFile)table).numPages();
+    }
+
+    /**
+     * Estimates the cost of a range scan of a BTreeFile table on its key
+     * field: the search descends to the first matching leaf and reads the
+     * leaves holding the matching tuples one after the other, at the same
+     * cost per page as a sequential scan.
+     *
+     * @param selectivityFactor
+     *            The selectivity of the predicate on the key field
+     * @return The estimated cost of the range scan.
+     */
+    public double estimateIndexRangeScanCost(double selectivityFactor) {
+        return estimateScanCost()*selectivityFactor+ioCostPerPage;
+    }
+
+    /**
+     * Estimates the cost of looking the tuples with a key up in a HashFile
+     * table: the lookup reads the directory page and the pages of the bucket
+     * of the key, however large the table is.
+     *
+     * @param selectivityFactor
+     *            The selectivity of the equality predicate on the key field
+     * @return The estimated cost of the lookup.
+     */
+    public double estimateHashLookupCost(double selectivityFactor) {
+        double bucketPages=Math.max(1,Math.ceil(numPages()*selectivityFactor));
+        return (1+bucketPages)*ioCostPerPage;
+    }
+
+    /**
+     * Estimates the cost of reading the tuples which satisfy a predicate with
+     * the given selectivity through a secondary index of indexPages pages:
+     * the search reads the index pages holding the matching entries, and every
+     * matching tuple is a random read of its page in the table.
+     *
+     * @param selectivityFactor
+     *            The selectivity of the predicate the index is searched with
+     * @param indexPages
+     *            The number of pages of the index
+     * @return The estimated cost of the index scan.
+     */
+    public double estimateIndexScanCost(double selectivityFactor, int indexPages) {
+        double entryPages=Math.ceil(indexPages*selectivityFactor)+1;
+        return (entryPages+estimateTableCardinality(selectivityFactor))*ioCostPerPage;
+    }
+
+    /**
+     * Estimates the cost of answering a query from the entries of a secondary
+     * index of indexPages pages alone: the search reads the index pages
+     * holding the matching entries, like {@link #estimateIndexScanCost}, but
+     * never reads the table.
+     *
+     * @param selectivityFactor
+     *            The selectivity of the predicate the index is searched with,
+     *            1 if all entries are read
+     * @param indexPages
+     *            The number of pages of the index
+     * @return The estimated cost of the index-only scan.
+     */
+    public double estimateIndexOnlyScanCost(double selectivityFactor, int indexPages) {
+        return (Math.ceil(indexPages*selectivityFactor)+1)*ioCostPerPage;
     }
 
     /**
@@ -4,6 +4,7 @@ import simpledb.common.Database;
 import simpledb.common.Permissions;
 import simpledb.common.DbException;
 import simpledb.common.DeadlockException;
+import simpledb.index.SecondaryIndex;
 import simpledb.transaction.LockManager;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
@@ -11,9 +12,12 @@ import simpledb.transaction.TransactionId;
 import java.io.*;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
@@ -36,6 +40,10 @@ public class BufferPool {
      other classes. BufferPool should use the numPages argument to the
      constructor instead. */
     public static final int DEFAULT_PAGES = 50;
+
+    /** Default time, in milliseconds, an asynchronous commit may stay
+     only in the log buffer before the flusher makes it durable. */
+    public static final long DEFAULT_ASYNC_COMMIT_INTERVAL = 10;
     //页最大数量
     public final int Pages_NUM;
     //当前缓存页
@@ -43,6 +51,23 @@ public class BufferPool {
     private final LockManager lockManager;
     //获取不到锁的等待时长
     private final long SLEEP_INTERVAL;
+    //脏页表：脏页 -> 该页第一次变脏时的日志偏移(recLSN)，用于模糊检查点
+    private final Map<PageId, Long> dirtyPageTable = new ConcurrentHashMap<>();
+    //异步提交：已提交但日志尚未刷盘的页，日志刷盘后由flusher写出 //protected by this
+    private final Map<PageId, AsyncWrite> asyncCommitted = new LinkedHashMap<>();
+    private long asyncCommitInterval = DEFAULT_ASYNC_COMMIT_INTERVAL;
+    private Thread asyncFlusher;
+
+    // the committed image of a page whose commit is not durable yet
+    private static class AsyncWrite {
+        final TransactionId tid;
+        final Page image;
+
+        AsyncWrite(TransactionId tid, Page image) {
+            this.tid = tid;
+            this.image = image;
+        }
+    }
 
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -131,24 +156,41 @@ public class BufferPool {
             result = (perm == Permissions.READ_ONLY) ? lockManager.grantSLock(tid, pid)
                     : lockManager.grantXLock(tid, pid);
         }
+        return fetchPage(pid);
+    }
 
+    /**
+     * Retrieve the specified page without acquiring a lock on it.
+     * Only for callers that protect the page themselves, like BTreeFile,
+     * which latches its internal pages while it walks down the tree instead
+     * of locking them until the transaction ends.
+     *
+     * @param pid the ID of the requested page
+     */
+    public Page fetchPage(PageId pid) throws DbException {
         Page page = lruPagesPool.get(pid);
         if (page != null) {//直接命中
             return page;
         }
         //未命中，访问磁盘并将其缓存
-        DbFile table =  Database.getCatalog().getDatabaseFile(pid.getTableId());
-        Page newPage = table.readPage(pid);
-        Page removedPage = lruPagesPool.put(pid, newPage);
-        if (removedPage != null) {
-            try {
-                flushPage(removedPage);
-            } catch (IOException e) {
-                e.printStackTrace();
+        //加锁后再检查一次，避免两个线程各自读入同一页而得到两个不同的对象
+        synchronized (this) {
+            page = lruPagesPool.get(pid);
+            if (page != null) {
+                return page;
             }
+            DbFile table = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            Page newPage = table.readPage(pid);
+            Page removedPage = lruPagesPool.put(pid, newPage);
+            if (removedPage != null) {
+                try {
+                    flushPage(removedPage);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            return newPage;
         }
-        return newPage;
-
     }
 
     /**
@@ -195,7 +237,8 @@ public class BufferPool {
     public void transactionComplete(TransactionId tid, boolean commit) {
         // some code goes here
         // not necessary for lab1|lab2
-        lockManager.releaseTransactionLocks(tid);
+        // the locks are released last, so that no other transaction sees the
+        // pages before they are flushed or rolled back
         if(commit){
             try {
                 flushPages(tid);
@@ -205,6 +248,7 @@ public class BufferPool {
         }else{
             revertTransactionAction(tid);
         }
+        lockManager.releaseTransactionLocks(tid);
     }
     /**
      * 事务回滚时，撤销该事务对page造成的改变
@@ -212,12 +256,164 @@ public class BufferPool {
      */
     public synchronized void revertTransactionAction(TransactionId tid){
         Iterator<Page> it=lruPagesPool.iterator();
+        List<PageId> reverted=new ArrayList<>();
         while (it.hasNext()){
             Page p=it.next();
             if(p.isDirty()!=null&&p.isDirty().equals(tid)){
-                lruPagesPool.reCachePage(p.getId());
+                reverted.add(p.getId());
+            }
+        }
+        for(PageId pid:reverted){
+            AsyncWrite pending=asyncCommitted.get(pid);
+            if(pending!=null){
+                //磁盘上还不是最新提交的版本，恢复为异步提交的镜像，并继续保持为脏直到flusher写出
+                Page committed=pending.image.getBeforeImage();
+                committed.markDirty(true,pending.tid);
+                try {
+                    lruPagesPool.put(pid,committed);
+                } catch (CacheException e) {
+                    e.printStackTrace();
+                }
+            }else {
+                lruPagesPool.reCachePage(pid);
+                dirtyPageTable.remove(pid);
+            }
+        }
+    }
+
+    /**
+     * Commit a transaction without waiting for the log to reach disk.
+     * The after images of its dirty pages and its commit record are only
+     * appended to the log buffer; the pages stay dirty (so they cannot be
+     * evicted) until the async flusher has forced the log and written
+     * them, which happens within the async commit interval.  A crash
+     * before that loses the commit, but recovery still sees a consistent
+     * state since no page reaches disk before its log records.
+     * Releases the locks of the transaction.
+     *
+     * @param tid the ID of the committing transaction
+     */
+    public void transactionCompleteAsync(TransactionId tid) throws IOException {
+        synchronized (this) {
+            LogFile log=Database.getLogFile();
+            Iterator<Page> it=lruPagesPool.iterator();
+            while (it.hasNext()){
+                Page p=it.next();
+                if(p.isDirty()!=null&&p.isDirty().equals(tid)){
+                    log.logWrite(tid,p.getBeforeImage(),p);
+                    p.setBeforeImage();
+                    asyncCommitted.put(p.getId(),new AsyncWrite(tid,p.getBeforeImage()));
+                }
+            }
+            log.logCommitAsync(tid);
+            if(asyncFlusher==null){
+                asyncFlusher=new Thread(this::runAsyncFlusher,"async-commit-flusher");
+                asyncFlusher.setDaemon(true);
+                asyncFlusher.start();
+            }
+        }
+        lockManager.releaseTransactionLocks(tid);
+    }
+
+    /**
+     * Make all asynchronous commits durable: force the log, then write the
+     * committed images of their pages.  Pages that were not modified again
+     * since become clean.
+     */
+    public synchronized void flushAsyncCommits() throws IOException {
+        if(asyncCommitted.isEmpty())
+            return;
+        Database.getLogFile().force();
+        for(Map.Entry<PageId,AsyncWrite> e:asyncCommitted.entrySet()){
+            PageId pid=e.getKey();
+            AsyncWrite pending=e.getValue();
+            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(pending.image);
+            Page live=lruPagesPool.get(pid);
+            if(live!=null&&pending.tid.equals(live.isDirty())){
+                live.markDirty(false,null);
+                dirtyPageTable.remove(pid);
+            }
+        }
+        asyncCommitted.clear();
+    }
+
+    /** Set how long an asynchronous commit may stay in the log buffer. */
+    public synchronized void setAsyncCommitInterval(long millis) {
+        asyncCommitInterval=millis;
+    }
+
+    public synchronized long getAsyncCommitInterval() {
+        return asyncCommitInterval;
+    }
+
+    // runs while there are asynchronous commits that are not durable yet
+    private void runAsyncFlusher() {
+        while (true) {
+            long interval;
+            synchronized (this) {
+                if(asyncCommitted.isEmpty()){
+                    asyncFlusher=null;
+                    return;
+                }
+                interval=asyncCommitInterval;
+            }
+            try {
+                Thread.sleep(interval);
+                flushAsyncCommits();
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Return a snapshot of the dirty page table, mapping each dirty page to
+     * its recLSN, the log offset at which it first became dirty.  Does not
+     * need the buffer pool lock, so checkpoints can take it without stalling
+     * other transactions.
+     */
+    public Map<PageId, Long> getDirtyPageTable() {
+        return new HashMap<>(dirtyPageTable);
+    }
+
+    /**
+     * Record that a page became dirty, keeping the oldest recLSN if the
+     * page was dirty already.  A page which the file did not get through
+     * the buffer pool replaces the cached version, so later requests see it.
+     */
+    private void markDirty(Page page, TransactionId tid) throws DbException, IOException {
+        page.markDirty(true, tid);
+        synchronized (this) {
+            if (lruPagesPool.get(page.getId()) != page) {
+                try {
+                    Page removedPage = lruPagesPool.put(page.getId(), page);
+                    if (removedPage != null)
+                        flushPage(removedPage);
+                } catch (CacheException e) {
+                    throw new DbException("could not cache dirty page: " + e.getMessage());
+                }
             }
         }
+        LogFile log = Database.getLogFile();
+        synchronized (log) {
+            dirtyPageTable.putIfAbsent(page.getId(), log.getCurrentOffset());
+        }
+    }
+
+    /**
+     * Mark pages which a file changed on behalf of transaction tid outside
+     * of insertTuple and deleteTuple dirty, e.g. the merges of a B+ tree
+     * compaction, so that they are logged and flushed when tid commits.
+     *
+     * @param tid the transaction which changed the pages
+     * @param pages the changed pages
+     */
+    public void markDirty(TransactionId tid, Collection<Page> pages) throws DbException, IOException {
+        for (Page page : pages) {
+            markDirty(page, tid);
+        }
     }
 
     /**
@@ -229,7 +425,8 @@ public class BufferPool {
      * Marks any pages that were dirtied by the operation as dirty by calling
      * their markDirty bit, and adds versions of any pages that have
      * been dirtied to the cache (replacing any existing versions of those pages) so
-     * that future requests see up-to-date pages.
+     * that future requests see up-to-date pages. The secondary indexes on the
+     * table get an entry for the tuple.
      *
      * @param tid the transaction adding the tuple
      * @param tableId the table to add the tuple to
@@ -242,7 +439,11 @@ public class BufferPool {
         DbFile table=Database.getCatalog().getDatabaseFile(tableId);
         List<Page> affectedPages=table.insertTuple(tid,t);
         for(Page page:affectedPages){
-            page.markDirty(true,tid);
+            markDirty(page,tid);
+        }
+        //t已经带上了插入位置的RecordId，再把它加入该表的二级索引
+        for(SecondaryIndex index:Database.getCatalog().getIndexes(tableId)){
+            index.insert(tid,t);
         }
     }
 
@@ -254,7 +455,8 @@ public class BufferPool {
      * Marks any pages that were dirtied by the operation as dirty by calling
      * their markDirty bit, and adds versions of any pages that have
      * been dirtied to the cache (replacing any existing versions of those pages) so
-     * that future requests see up-to-date pages.
+     * that future requests see up-to-date pages. The entries of the tuple are
+     * removed from the secondary indexes on its table.
      *
      * @param tid the transaction deleting the tuple.
      * @param t the tuple to delete
@@ -267,7 +469,10 @@ public class BufferPool {
         DbFile table=Database.getCatalog().getDatabaseFile(tableId);
         List<Page> affectedPages=table.deleteTuple(tid,t);
         for(Page page:affectedPages){
-            page.markDirty(true,tid);
+            markDirty(page,tid);
+        }
+        for(SecondaryIndex index:Database.getCatalog().getIndexes(tableId)){
+            index.delete(tid,t);
         }
     }
 
@@ -299,6 +504,7 @@ public class BufferPool {
     public synchronized void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
+        dirtyPageTable.remove(pid);
     }
 
     /**
@@ -309,9 +515,19 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1
         Page dirty_page=page;
+        TransactionId dirtier=dirty_page.isDirty();
+        if(dirtier!=null){
+            //WAL：检查点不再刷脏页，恢复只能依赖日志，写页之前先写日志
+            LogFile log=Database.getLogFile();
+            log.logWrite(dirtier,dirty_page.getBeforeImage(),dirty_page);
+            log.force();
+        }
         DbFile table=Database.getCatalog().getDatabaseFile(page.getId().getTableId());
         table.writePage(dirty_page);
         dirty_page.markDirty(false,null);
+        dirtyPageTable.remove(dirty_page.getId());
+        //日志已刷盘且写出了更新的版本，异步提交的镜像不必再写
+        asyncCommitted.remove(dirty_page.getId());
     }
 
     /** Write all pages of the specified transaction to disk.
@@ -0,0 +1,242 @@
+package simpledb.storage;
+
+import simpledb.common.DbException;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Sorts tuples in a bounded amount of memory with an external merge sort.
+ * <p>
+ * Tuples are collected in a buffer of sortPages pages. Whenever the buffer is
+ * full it is sorted and written out to a SpillFile as a sorted run. When
+ * all tuples have been added, the runs are merged sortPages - 1 at a time
+ * (one page is left for the output) until that many runs are left, and the
+ * last merge is streamed to the caller, reading every run one page at a time.
+ * If all tuples fit in the buffer, nothing is written to disk.
+ * <p>
+ * The sort is stable: tuples that compare equal come out in the order they
+ * were added.
+ */
+public class ExternalSorter {
+
+    private final TupleDesc td;
+    private final Comparator<Tuple> comparator;
+    private final int sortPages;
+    private final int bufferTuples;
+
+    private final List<Tuple> buffer = new ArrayList<>();
+    private final List<SpillFile> runs = new ArrayList<>();
+
+    /**
+     * @param td - the TupleDesc of the tuples to sort
+     * @param comparator - the order to sort the tuples in
+     * @param sortPages - the number of pages of memory the sort may use, at least 3
+     */
+    public ExternalSorter(TupleDesc td, Comparator<Tuple> comparator, int sortPages) {
+        if (sortPages < 3)
+            throw new IllegalArgumentException("an external sort needs at least 3 pages, got " + sortPages);
+        this.td = td;
+        this.comparator = comparator;
+        this.sortPages = sortPages;
+        this.bufferTuples = sortPages * Math.max(1, BufferPool.getPageSize() / td.getSize());
+    }
+
+    /**
+     * Add a tuple to the sort, writing out a sorted run if the buffer is full
+     */
+    public void add(Tuple t) throws IOException {
+        buffer.add(t);
+        if (buffer.size() >= bufferTuples)
+            spill();
+    }
+
+    /**
+     * @return the number of sorted runs written to disk so far
+     */
+    public int numRuns() {
+        return runs.size();
+    }
+
+    /**
+     * Finish the sort.  No more tuples may be added afterwards.
+     * @return an iterator over all the added tuples in sorted order
+     */
+    public DbFileIterator iterator() throws IOException {
+        if (runs.isEmpty()) {
+            buffer.sort(comparator);
+            return new BufferIterator(buffer);
+        }
+        if (!buffer.isEmpty())
+            spill();
+        // merge passes until the remaining runs can be merged in one go
+        int fanIn = sortPages - 1;
+        while (runs.size() > fanIn) {
+            List<SpillFile> inputs = new ArrayList<>(runs);
+            runs.clear();
+            for (int i = 0; i < inputs.size(); i += fanIn) {
+                int end = Math.min(i + fanIn, inputs.size());
+                writeRun(new MergeIterator(inputs.subList(i, end)));
+                for (SpillFile f : inputs.subList(i, end))
+                    f.delete();
+            }
+        }
+        return new MergeIterator(runs);
+    }
+
+    /**
+     * Delete the temporary files of the sorted runs
+     */
+    public void close() {
+        for (SpillFile f : runs)
+            f.delete();
+        runs.clear();
+        buffer.clear();
+    }
+
+    private void spill() throws IOException {
+        buffer.sort(comparator);
+        writeRun(new BufferIterator(buffer));
+        buffer.clear();
+    }
+
+    private void writeRun(DbFileIterator it) throws IOException {
+        SpillFile run = new SpillFile(td);
+        try {
+            it.open();
+            while (it.hasNext())
+                run.add(it.next());
+            it.close();
+        } catch (DbException | TransactionAbortedException e) {
+            run.delete();
+            throw new IOException("could not write sorted run: " + e.getMessage());
+        }
+        runs.add(run);
+    }
+
+    /**
+     * Iterates over the in-memory buffer
+     */
+    private static class BufferIterator extends AbstractDbFileIterator {
+        private final List<Tuple> tuples;
+        private Iterator<Tuple> it;
+
+        BufferIterator(List<Tuple> tuples) {
+            this.tuples = tuples;
+        }
+
+        public void open() {
+            it = tuples.iterator();
+        }
+
+        public void rewind() {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            it = null;
+        }
+
+        protected Tuple readNext() {
+            return it != null && it.hasNext() ? it.next() : null;
+        }
+    }
+
+    /**
+     * Reads one sorted run back from its SpillFile, one page at a time
+     */
+    private static class RunReader {
+        final int index;
+        private final DbFileIterator it;
+        Tuple current;
+
+        RunReader(int index, SpillFile run) throws IOException, DbException {
+            this.index = index;
+            this.it = run.iterator();
+            try {
+                it.open();
+            } catch (TransactionAbortedException e) {
+                // a spill file belongs to no transaction
+                throw new DbException("could not open sorted run: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Read the next tuple into current
+         * @return false if the run is exhausted
+         */
+        boolean advance() throws DbException {
+            try {
+                current = it.hasNext() ? it.next() : null;
+            } catch (TransactionAbortedException e) {
+                throw new DbException("could not read sorted run: " + e.getMessage());
+            }
+            return current != null;
+        }
+
+        void close() {
+            it.close();
+        }
+    }
+
+    /**
+     * Merges sorted runs with a priority queue holding the current tuple of every run
+     */
+    private class MergeIterator extends AbstractDbFileIterator {
+        private final List<SpillFile> files;
+        private List<RunReader> readers;
+        private PriorityQueue<RunReader> queue;
+
+        MergeIterator(List<SpillFile> files) {
+            this.files = new ArrayList<>(files);
+        }
+
+        public void open() throws DbException {
+            readers = new ArrayList<>();
+            // ties go to the earlier run, which keeps the sort stable
+            queue = new PriorityQueue<>(Math.max(1, files.size()), (a, b) -> {
+                int cmp = comparator.compare(a.current, b.current);
+                return cmp != 0 ? cmp : Integer.compare(a.index, b.index);
+            });
+            try {
+                for (int i = 0; i < files.size(); i++) {
+                    RunReader r = new RunReader(i, files.get(i));
+                    readers.add(r);
+                    if (r.advance())
+                        queue.add(r);
+                }
+            } catch (IOException | DbException e) {
+                close();
+                throw new DbException("could not open sorted run: " + e.getMessage());
+            }
+        }
+
+        public void rewind() throws DbException {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            if (readers != null) {
+                for (RunReader r : readers)
+                    r.close();
+            }
+            readers = null;
+            queue = null;
+        }
+
+        protected Tuple readNext() throws DbException {
+            if (queue == null || queue.isEmpty())
+                return null;
+            RunReader r = queue.poll();
+            Tuple t = r.current;
+            if (r.advance())
+                queue.add(r);
+            return t;
+        }
+    }
+}
@@ -25,7 +25,6 @@ public class HeapFile implements DbFile {
 
     private TupleDesc tupleDesc;
     private File file;
-    private int numPage;
     /**
      * Constructs a heap file backed by the specified file.
      * 
@@ -36,7 +35,6 @@ public class HeapFile implements DbFile {
     public HeapFile(File f, TupleDesc td) {
         // some code goes here
         file=f;
-        numPage=(int)(file.length()/BufferPool.getPageSize());
         tupleDesc=td;
     }
 
@@ -110,7 +108,8 @@ public class HeapFile implements DbFile {
      */
     public int numPages() {
         // some code goes here
-        return numPage;
+        //页也可能被直接写入文件(writePage)，所以每次都按文件长度计算
+        return (int)(file.length()/BufferPool.getPageSize());
     }
 
     // see DbFile.java for javadocs
@@ -139,7 +138,6 @@ public class HeapFile implements DbFile {
             //创建新的page
             HeapPageId newHeapPage=new HeapPageId(getId(),numPages());
             HeapPage blankPage=new HeapPage(newHeapPage,HeapPage.createEmptyPageData());
-            numPage++;
             writePage(blankPage);//写入磁盘
             //通过BufferPool来访问该新的page
             HeapPage newPage= null;
@@ -223,13 +221,15 @@ public class HeapFile implements DbFile {
                 return false;
             if(tupleInPage.hasNext())
                 return true;
-            if(pagePos<numPages()-1){
+            //这时不能直接return true,有可能返回的新的迭代器不含有tuple的，跳过这些空页
+            while(pagePos<numPages()-1){
                 pagePos++;
                 HeapPageId pid=new HeapPageId(getId(),pagePos);
                 tupleInPage=getTupleInPage(pid);
-                //这时不能直接return true,有可能返回的新的迭代器不含有tuple的
-                return tupleInPage.hasNext();
-            }else return false;
+                if(tupleInPage.hasNext())
+                    return true;
+            }
+            return false;
         }
 
         @Override
@@ -369,6 +369,15 @@ public class HeapPage implements Page {
         }
     }
 
+    /**
+     * @return the tuple in slot i, or null if the slot is empty
+     */
+    public Tuple getTuple(int i) {
+        if(i<0||i>=numSlots||!isSlotUsed(i))
+            return null;
+        return tuples[i];
+    }
+
     /**
      * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
      * (note that this iterator shouldn't return tuples in empty slots!)
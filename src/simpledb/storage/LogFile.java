@@ -7,6 +7,10 @@ import simpledb.common.Debug;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.lang.reflect.*;
 
 /*
@@ -43,17 +47,23 @@ must not be declared synchronized and must begin with a block like:
 
  <ul>
 
- <li> The first long integer of the file represents the offset of the
- last written checkpoint, or -1 if there are no checkpoints
+ <li> The log is stored in fixed-size segment files next to a small
+ control file (see LogSegments).  Records are addressed by their log
+ sequence number (LSN), their position in the log; LSNs never change, so
+ truncating the log does not rewrite any record.
 
- <li> All additional data in the log consists of log records.  Log
+ <li> The control file holds the LSN of the last written checkpoint, or
+ -1 if there are no checkpoints, and the LSN of the oldest record that is
+ still kept.
+
+ <li> All data in the segments consists of log records.  Log
  records are variable length.
 
  <li> Each log record begins with an integer type and a long integer
  transaction id.
 
- <li> Each log record ends with a long integer file offset representing
- the position in the log file where the record began.
+ <li> Each log record ends with a long integer LSN representing
+ the position in the log where the record began.
 
  <li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
  CHECKPOINT
@@ -66,17 +76,24 @@ must not be declared synchronized and must begin with a block like:
  methods.  See LogFile.print() for an example.
 
  <li> CHECKPOINT records consist of active transactions at the time
- the checkpoint was taken and their first log record on disk.  The format
- of the record is an integer count of the number of transactions, as well
- as a long integer transaction id and a long integer first record offset
- for each active transaction.
+ the checkpoint was taken and their first log record on disk, followed by
+ the dirty pages of the buffer pool.  The format of the record is an
+ integer count of the number of transactions, as well as a long integer
+ transaction id and a long integer first record offset for each active
+ transaction; then an integer count of dirty pages, as well as an integer
+ table id, an integer page number and a long integer recLSN (the log
+ offset at which the page first became dirty) for each dirty page.
+
+ <li> Checkpoints are fuzzy: they do not flush the buffer pool, so the
+ log can only be truncated up to the smallest first record offset of the
+ active transactions and the smallest recLSN of the dirty pages.
 
  </ul>
  */
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    private LogSegments segments;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -89,12 +106,40 @@ public class LogFile {
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
+    /** Default size of a log segment file, in bytes. */
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 20;
+    private static int segmentSize = DEFAULT_SEGMENT_SIZE;
+
+    // records are assembled here and appended to the log in one write
+    private final RecordBuffer recordBytes = new RecordBuffer();
+    private final DataOutputStream record = new DataOutputStream(recordBytes);
+
+    // lets a finished record be appended without copying it first
+    private static class RecordBuffer extends ByteArrayOutputStream {
+        byte[] buffer() {
+            return buf;
+        }
+    }
+
     long currentOffset = -1;//protected by this
     //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     final Map<Long,Long> tidToFirstLogRecord = new HashMap<>();
 
+    /** How often the checkpoint thread wakes up to check its triggers. */
+    static final long CHECKPOINT_POLL_MILLIS = 100;
+
+    // checkpoint triggers, 0 disables the trigger //protected by this
+    long checkpointInterval = 0;
+    long checkpointThreshold = 0;
+    long lastCheckpointTime = System.currentTimeMillis();
+    long lastCheckpointOffset = 0;
+    private Thread checkpointer;
+
+    // number of threads used by recover() //protected by this
+    int recoveryThreads = Runtime.getRuntime().availableProcessors();
+
     /** Constructor.
      Initialize and back the log file with the specified file.
      We're not sure yet whether the caller is creating a brand new DB,
@@ -108,7 +153,7 @@ public class LogFile {
      */
     public LogFile(File f) throws IOException {
         this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        segments = new LogSegments(f, segmentSize);
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -129,18 +174,62 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            segments.reset();
+            currentOffset = segments.getEnd();
         }
     }
 
+    public static int getSegmentSize() {
+        return segmentSize;
+    }
+
+    // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+    public static void setSegmentSize(int segmentSize) {
+        LogFile.segmentSize = segmentSize;
+    }
+
+    // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+    public static void resetSegmentSize() {
+        LogFile.segmentSize = DEFAULT_SEGMENT_SIZE;
+    }
+
+    // start assembling a new log record
+    private DataOutputStream beginRecord(int type, long tid) throws IOException {
+        recordBytes.reset();
+        record.writeInt(type);
+        record.writeLong(tid);
+        return record;
+    }
+
+    // finish the record with its start LSN and append it to the log
+    private void endRecord() throws IOException {
+        record.writeLong(currentOffset);
+        segments.append(recordBytes.buffer(), recordBytes.size());
+        currentOffset = segments.getEnd();
+    }
+
+    // read the type of the next record; the end marker after the last
+    // record reads as type 0
+    private static int readRecordType(DataInput in) throws IOException {
+        int type = in.readInt();
+        if (type == 0)
+            throw new EOFException();
+        return type;
+    }
+
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
 
+    /** Return the offset at which the next log record will be written.
+     Used by the buffer pool as the recLSN of a page that becomes dirty.
+     If nothing has been appended yet the log will be reset on the first
+     append, so the next record will start right after the header.
+     */
+    public synchronized long getCurrentOffset() {
+        return recoveryUndecided ? 0 : currentOffset;
+    }
+
     /** Write an abort record to the log for the specified tid, force
      the log to disk, and perform a rollback
      @param tid The aborting transaction.
@@ -160,10 +249,8 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                beginRecord(ABORT_RECORD, tid.getId());
+                endRecord();
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
             }
@@ -180,14 +267,28 @@ public class LogFile {
         Debug.log("COMMIT " + tid.getId());
         //should we verify that this is a live transaction?
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        beginRecord(COMMIT_RECORD, tid.getId());
+        endRecord();
         force();
         tidToFirstLogRecord.remove(tid.getId());
     }
 
+    /** Write a commit record for the specified tid to the log buffer
+     without forcing the log.  The commit becomes durable with the next
+     force of the log; until then a crash loses it.
+
+     @param tid The committing transaction.
+     @see BufferPool#transactionCompleteAsync
+     */
+    public synchronized void logCommitAsync(TransactionId tid) throws IOException {
+        preAppend();
+        Debug.log("ASYNC COMMIT " + tid.getId());
+
+        beginRecord(COMMIT_RECORD, tid.getId());
+        endRecord();
+        tidToFirstLogRecord.remove(tid.getId());
+    }
+
     /** Write an UPDATE record to disk for the specified tid and page
      (with provided         before and after images.)
      @param tid The transaction performing the write
@@ -199,8 +300,8 @@ public class LogFile {
     public  synchronized void logWrite(TransactionId tid, Page before,
                                        Page after)
             throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
         preAppend();
+        Debug.log("WRITE, offset = " + currentOffset);
         /* update record conists of
 
            record type
@@ -209,18 +310,16 @@ public class LogFile {
            after page data
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+        DataOutputStream out = beginRecord(UPDATE_RECORD, tid.getId());
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        writePageData(out,before);
+        writePageData(out,after);
+        endRecord();
 
         Debug.log("WRITE OFFSET = " + currentOffset);
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
+    void writePageData(DataOutput raf, Page p) throws IOException{
         PageId pid = p.getId();
         int[] pageInfo = pid.serialize();
 
@@ -248,9 +347,14 @@ public class LogFile {
         //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
+    Page readPageData(DataInput raf) throws IOException {
+        return readPageImage(raf).toPage();
+    }
+
+    // read page data without building the Page itself, so that recovery
+    // only pays for deserializing the images it actually installs
+    PageImage readPageImage(DataInput raf) throws IOException {
         PageId pid;
-        Page newPage = null;
 
         String pageClassName = raf.readUTF();
         String idClassName = raf.readUTF();
@@ -271,21 +375,37 @@ public class LogFile {
             int pageSize = raf.readInt();
 
             byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+            raf.readFully(pageData); //read before image
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
-
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
-
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
+            return new PageImage(pid, pageConsts[0], pageData);
         } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e){
             e.printStackTrace();
             throw new IOException();
         }
-        return newPage;
+    }
 
+    /** The serialized data of a page read from the log. */
+    static class PageImage {
+        final PageId pid;
+        private final Constructor<?> pageConst;
+        private final byte[] pageData;
+
+        PageImage(PageId pid, Constructor<?> pageConst, byte[] pageData) {
+            this.pid = pid;
+            this.pageConst = pageConst;
+            this.pageData = pageData;
+        }
+
+        Page toPage() throws IOException {
+            try {
+                Page newPage = (Page)pageConst.newInstance(pid, pageData);
+                //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
+                return newPage;
+            } catch (InvocationTargetException | IllegalAccessException | InstantiationException e){
+                e.printStackTrace();
+                throw new IOException();
+            }
+        }
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -300,67 +420,133 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
+        beginRecord(BEGIN_RECORD, tid.getId());
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        endRecord();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.
+     The checkpoint is fuzzy: it records the active transactions and the
+     dirty page table of the buffer pool instead of flushing the buffer
+     pool, so transactions are not stalled while it is taken.
+     */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        // the dirty page table is a concurrent map, so snapshotting it does
+        // not need the buffer pool lock
+        Map<PageId, Long> dirtyPages = Database.getBufferPool().getDirtyPageTable();
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, offset = " + currentOffset);
+            preAppend();
+            long startCpOffset;
+            Set<Long> keys = tidToFirstLogRecord.keySet();
+            Iterator<Long> els = keys.iterator();
+            startCpOffset = currentOffset;
+            DataOutputStream raf = beginRecord(CHECKPOINT_RECORD, -1); //no tid , but leave space for convenience
+
+            //write list of outstanding transactions
+            raf.writeInt(keys.size());
+            while (els.hasNext()) {
+                Long key = els.next();
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
+                raf.writeLong(key);
+                //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
+                raf.writeLong(tidToFirstLogRecord.get(key));
+            }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+            //write the dirty page table
+            raf.writeInt(dirtyPages.size());
+            for (Map.Entry<PageId, Long> e : dirtyPages.entrySet()) {
+                raf.writeInt(e.getKey().getTableId());
+                raf.writeInt(e.getKey().getPageNumber());
+                raf.writeLong(e.getValue());
             }
+
+            endRecord();
+            force();
+
+            //once the CP is on disk, make sure the CP location in the
+            // control file is updated
+            segments.setCheckpoint(startCpOffset);
+            //Debug.log("CP OFFSET = " + currentOffset);
+
+            logTruncate();
+            lastCheckpointTime = System.currentTimeMillis();
+            lastCheckpointOffset = currentOffset;
         }
+    }
 
-        logTruncate();
+    /** Take checkpoints in the background, either every intervalMillis
+     milliseconds or whenever more than thresholdBytes bytes have been
+     appended to the log since the last checkpoint.  A value of 0 disables
+     the corresponding trigger; disabling both stops the checkpoint thread.
+
+     @param intervalMillis The time between two checkpoints
+     @param thresholdBytes The log growth that triggers a checkpoint
+     */
+    public synchronized void setCheckpointPolicy(long intervalMillis, long thresholdBytes) {
+        checkpointInterval = intervalMillis;
+        checkpointThreshold = thresholdBytes;
+        if (intervalMillis <= 0 && thresholdBytes <= 0) {
+            stopCheckpointer();
+        } else if (checkpointer == null) {
+            checkpointer = new Thread(this::runCheckpointer, "log-checkpointer");
+            checkpointer.setDaemon(true);
+            checkpointer.start();
+        }
+    }
+
+    private synchronized void stopCheckpointer() {
+        if (checkpointer != null) {
+            checkpointer.interrupt();
+            checkpointer = null;
+        }
+    }
+
+    private synchronized boolean checkpointDue() {
+        if (recoveryUndecided)
+            return false;
+        if (checkpointInterval > 0
+                && System.currentTimeMillis() - lastCheckpointTime >= checkpointInterval)
+            return true;
+        return checkpointThreshold > 0
+                && currentOffset - lastCheckpointOffset >= checkpointThreshold;
+    }
+
+    private void runCheckpointer() {
+        Thread self = Thread.currentThread();
+        while (true) {
+            synchronized (this) {
+                if (checkpointer != self)
+                    return;
+            }
+            try {
+                Thread.sleep(CHECKPOINT_POLL_MILLIS);
+                if (checkpointDue())
+                    logCheckpoint();
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
     }
 
     /** Truncate any unneeded portion of the log to reduce its space
-     consumption */
+     consumption.  Records before the oldest first record of an active
+     transaction, or before the oldest recLSN of a page that is still
+     dirty, are not needed anymore.  Since records keep their LSN, this
+     only moves the start of the log forward and recycles the segments
+     that fall entirely below it. */
     public synchronized void logTruncate() throws IOException {
         preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
+        long cpLoc = segments.getCheckpoint();
 
         long minLogRecord = cpLoc;
 
         if (cpLoc != -1L) {
-            raf.seek(cpLoc);
+            DataInputStream raf = segments.reader(cpLoc);
             int cpType = raf.readInt();
             @SuppressWarnings("unused")
             long cpTid = raf.readLong();
@@ -379,70 +565,37 @@ public class LogFile {
                     minLogRecord = firstLogRecord;
                 }
             }
-        }
-
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
 
-                Debug.log("NEW START = " + newStart);
+            int numDirty = raf.readInt();
 
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                    case UPDATE_RECORD:
-                        Page before = readPageData(raf);
-                        Page after = readPageData(raf);
-
-                        writePageData(logNew, before);
-                        writePageData(logNew, after);
-                        break;
-                    case CHECKPOINT_RECORD:
-                        int numXactions = raf.readInt();
-                        logNew.writeInt(numXactions);
-                        while (numXactions-- > 0) {
-                            long xid = raf.readLong();
-                            long xoffset = raf.readLong();
-                            logNew.writeLong(xid);
-                            logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                        }
-                        break;
-                    case BEGIN_RECORD:
-                        tidToFirstLogRecord.put(record_tid,newStart);
-                        break;
+            for (int i = 0; i < numDirty; i++) {
+                raf.readInt();
+                raf.readInt();
+                long recLSN = raf.readLong();
+                if (recLSN < minLogRecord) {
+                    minLogRecord = recLSN;
                 }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
             }
         }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
+        // pages dirtied after the checkpoint was taken are not in the record
+        for (long recLSN : Database.getBufferPool().getDirtyPageTable().values()) {
+            if (recLSN < minLogRecord) {
+                minLogRecord = recLSN;
+            }
+        }
+        // transactions that began after the checkpoint are not in it either
+        for (long firstLogRecord : tidToFirstLogRecord.values()) {
+            if (firstLogRecord < minLogRecord) {
+                minLogRecord = firstLogRecord;
+            }
+        }
 
-        currentOffset = raf.getFilePointer();
+        // we can truncate everything before minLogRecord
+        Debug.log("TRUNCATING LOG; NEW START : " + minLogRecord + " END : " + currentOffset);
+        if (minLogRecord > segments.getStart()) {
+            segments.truncate(minLogRecord);
+        }
         //print();
     }
 
@@ -462,13 +615,13 @@ public class LogFile {
                 // some code goes here
                 Long firstLogRecord = tidToFirstLogRecord.get(tid.getId());
                 //移动到日志开始的地方
-                raf.seek(firstLogRecord);
+                DataInputStream raf = segments.reader(firstLogRecord);
                 Set<PageId> set = new HashSet<>();
                 while (true) {
                     try {
                         //Each log record begins with an integer type and a long integer
                         //transaction id.
-                        int type = raf.readInt();
+                        int type = readRecordType(raf);
                         long txid = raf.readLong();
                         switch (type) {
                             case UPDATE_RECORD :
@@ -496,6 +649,9 @@ public class LogFile {
                                     raf.readLong();
                                     raf.readLong();
                                 }
+                                //followed by the dirty page table
+                                int dirtyCnt = raf.readInt();
+                                raf.skipBytes(dirtyCnt * (INT_SIZE + INT_SIZE + LONG_SIZE));
                                 break;
                             default:
                                 //others
@@ -518,108 +674,200 @@ public class LogFile {
      extensive recovery.)
      */
     public synchronized void shutdown() {
+        stopCheckpointer();
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            segments.close();
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
         }
     }
 
+    /** Set the number of worker threads recover() uses to redo and undo
+     pages in parallel.
+     @param n The number of threads, at least 1
+     */
+    public synchronized void setRecoveryThreads(int n) {
+        if (n < 1)
+            throw new IllegalArgumentException("need at least one recovery thread");
+        recoveryThreads = n;
+    }
+
+    public synchronized int getRecoveryThreads() {
+        return recoveryThreads;
+    }
+
     /** Recover the database system by ensuring that the updates of
      committed transactions are installed and that the
      updates of uncommitted transactions are not installed.
+     <p>
+     An analysis pass scans the log once and groups the UPDATE records by
+     page.  Pages are then partitioned across getRecoveryThreads() worker
+     threads: redo replays each page's records in LSN order, and only once
+     every page has been redone does undo restore the pages touched by
+     transactions that neither committed nor aborted.
      */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
                 // some code goes here
-                raf = new RandomAccessFile(logFile, "rw");
-                //已提交的事务id集合
+                //已提交 / 已回滚的事务id集合
                 Set<Long> committedId = new HashSet<>();
-                //存放事务id对应的beforePage和afterPage
-                Map<Long, List<Page>> beforePages = new HashMap<>();
-                Map<Long, List<Page>> afterPages = new HashMap<>();
-                //获取checkpoint
-                Long checkpoint = raf.readLong();
-                if (checkpoint != -1) {
-//                    raf.seek(checkpoint);
-                }
+                Set<Long> abortedId = new HashSet<>();
+                //每个页上的更新，按LSN顺序
+                Map<PageId, List<PageUpdate>> pageUpdates = new HashMap<>();
+                //从日志中最早仍保留的记录开始扫描，检查点之前被截断的部分不再需要
+                LogSegments.Reader raf = segments.reader(segments.getStart());
+                //日志末尾：最后一条完整记录之后
+                long end = segments.getStart();
                 while (true) {
                     try {
-                        int type = raf.readInt();
+                        long start = raf.getFilePointer();
+                        int type = readRecordType(raf);
+                        if (type > CHECKPOINT_RECORD) {
+                            break;
+                        }
                         long txid = raf.readLong();
                         switch (type) {
                             case UPDATE_RECORD:
-                                Page beforeImage = readPageData(raf);
-                                Page afterImage = readPageData(raf);
-                                List<Page> l1 = beforePages.getOrDefault(txid, new ArrayList<>());
-                                l1.add(beforeImage);
-                                beforePages.put(txid, l1);
-                                List<Page> l2 = afterPages.getOrDefault(txid, new ArrayList<>());
-                                l2.add(afterImage);
-                                afterPages.put(txid, l2);
+                                PageImage beforeImage = readPageImage(raf);
+                                PageImage afterImage = readPageImage(raf);
+                                pageUpdates.computeIfAbsent(beforeImage.pid, k -> new ArrayList<>())
+                                        .add(new PageUpdate(txid, beforeImage, afterImage));
                                 break;
                             case COMMIT_RECORD:
                                 committedId.add(txid);
                                 break;
+                            case ABORT_RECORD:
+                                abortedId.add(txid);
+                                break;
                             case CHECKPOINT_RECORD:
                                 int numTxs = raf.readInt();
                                 while (numTxs -- > 0) {
                                     raf.readLong();
                                     raf.readLong();
                                 }
+                                int numDirty = raf.readInt();
+                                raf.skipBytes(numDirty * (INT_SIZE + INT_SIZE + LONG_SIZE));
                                 break;
                             default:
                                 break;
                         }
-                        //end
-                        raf.readLong();
+                        //end，回收的段里可能残留旧记录，起始位置对不上说明已到日志末尾
+                        if (raf.readLong() != start) {
+                            break;
+                        }
+                        end = raf.getFilePointer();
 
                     } catch (EOFException e) {
                         break;
                     }
                 }
+                segments.setEnd(end);
+                currentOffset = end;
 
-                //处理未提交事务，直接写before-image
-                for (long txid :beforePages.keySet()) {
-                    if (!committedId.contains(txid)) {
-                        List<Page> pages = beforePages.get(txid);
-                        for (Page p : pages) {
-                            Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
-                        }
-                    }
+                //按页划分给各个工作线程，同一页只由一个线程按LSN顺序处理
+                List<List<PageId>> partitions = new ArrayList<>();
+                for (int i = 0; i < recoveryThreads; i++) {
+                    partitions.add(new ArrayList<>());
+                }
+                for (PageId pid : pageUpdates.keySet()) {
+                    partitions.get(Math.floorMod(pid.hashCode(), recoveryThreads)).add(pid);
                 }
 
-                //处理已提交事务，直接写after-image
-                for (long txid : committedId) {
-                    if (afterPages.containsKey(txid)) {
-                        List<Page> pages = afterPages.get(txid);
-                        for (Page page : pages) {
-                            Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
+                ExecutorService workers = Executors.newFixedThreadPool(recoveryThreads);
+                try {
+                    //redo：已提交事务装入after-image，已回滚事务在回滚时已恢复为before-image
+                    runPartitions(workers, partitions, pid -> {
+                        PageImage current = null;
+                        Set<Long> seen = new HashSet<>();
+                        for (PageUpdate u : pageUpdates.get(pid)) {
+                            if (committedId.contains(u.tid)) {
+                                current = u.after;
+                            } else if (abortedId.contains(u.tid) && seen.add(u.tid)) {
+                                current = u.before;
+                            }
                         }
-                    }
+                        //整页镜像，按LSN顺序应用后只需写最后一个
+                        if (current != null) {
+                            writeRecoveredPage(current.toPage());
+                        }
+                    });
+                    //undo：redo全部结束后，未提交事务的页恢复为其第一次修改前的before-image
+                    runPartitions(workers, partitions, pid -> {
+                        Set<Long> seen = new HashSet<>();
+                        for (PageUpdate u : pageUpdates.get(pid)) {
+                            if (!committedId.contains(u.tid) && !abortedId.contains(u.tid) && seen.add(u.tid)) {
+                                writeRecoveredPage(u.before.toPage());
+                            }
+                        }
+                    });
+                } finally {
+                    workers.shutdown();
                 }
+            }
+        }
+    }
+
+    // one UPDATE record found by the analysis pass of recover()
+    private static class PageUpdate {
+        final long tid;
+        final PageImage before;
+        final PageImage after;
+
+        PageUpdate(long tid, PageImage before, PageImage after) {
+            this.tid = tid;
+            this.before = before;
+            this.after = after;
+        }
+    }
 
+    private interface PageTask {
+        void run(PageId pid) throws IOException;
+    }
 
+    // run task on every page, one partition per worker, and wait for all of them
+    private static void runPartitions(ExecutorService workers, List<List<PageId>> partitions, PageTask task)
+            throws IOException {
+        List<Future<?>> futures = new ArrayList<>();
+        for (List<PageId> partition : partitions) {
+            futures.add(workers.submit(() -> {
+                for (PageId pid : partition) {
+                    task.run(pid);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> f : futures) {
+            try {
+                f.get();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException)
+                    throw (IOException) e.getCause();
+                throw new RuntimeException(e.getCause());
             }
         }
     }
 
+    private static void writeRecoveredPage(Page p) throws IOException {
+        Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
+    }
+
 
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
-        long curOffset = raf.getFilePointer();
-
-        raf.seek(0);
+        LogSegments.Reader raf = segments.reader(segments.getStart());
 
-        System.out.println("0: checkpoint record at offset " + raf.readLong());
+        System.out.println("control: checkpoint record at offset " + segments.getCheckpoint());
+        System.out.println("control: log starts at offset " + segments.getStart());
 
         while (true) {
             try {
-                int cpType = raf.readInt();
+                int cpType = readRecordType(raf);
                 long cpTid = raf.readLong();
 
                 System.out.println((raf.getFilePointer() - (INT_SIZE + LONG_SIZE)) + ": RECORD TYPE " + cpType);
@@ -650,6 +898,16 @@ public class LogFile {
                             System.out.println((raf.getFilePointer() - (LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
                             System.out.println((raf.getFilePointer() - LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
                         }
+                        int numDirty = raf.readInt();
+                        System.out.println((raf.getFilePointer() - INT_SIZE) + ": NUMBER OF DIRTY PAGES: " + numDirty);
+
+                        while (numDirty-- > 0) {
+                            int tableId = raf.readInt();
+                            int pageNo = raf.readInt();
+                            long recLSN = raf.readLong();
+                            System.out.println((raf.getFilePointer() - (INT_SIZE + INT_SIZE + LONG_SIZE)) + ": DIRTY PAGE: table " + tableId + ", page " + pageNo);
+                            System.out.println((raf.getFilePointer() - LONG_SIZE) + ": RECLSN: " + recLSN);
+                        }
                         System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
                         break;
                     case UPDATE_RECORD:
@@ -678,13 +936,12 @@ public class LogFile {
                 break;
             }
         }
-
-        // Return the file pointer to its original position
-        raf.seek(curOffset);
     }
 
+    /** Force the log to disk.  The segments are preallocated, so only
+     their data is synced, not the file metadata. */
     public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        segments.force();
     }
 
 }
@@ -2,9 +2,11 @@ package simpledb.storage;
 
 import simpledb.common.Database;
 
+import java.io.DataInput;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 
 //用于读取每条log记录
 //根据不同的record，读取不同的raf长度
@@ -12,7 +14,7 @@ public class LogRecord {
     protected long tid;
     protected long offset;
 
-    public LogRecord(RandomAccessFile raf) throws IOException {
+    public LogRecord(DataInput raf) throws IOException {
         tid = raf.readLong();
     }
 
@@ -26,7 +28,7 @@ public class LogRecord {
         return offset;
     }
 
-    public static LogRecord readNext(RandomAccessFile raf) throws IOException
+    public static LogRecord readNext(DataInput raf) throws IOException
     {
         int record = raf.readInt();
         switch(record)
@@ -57,7 +59,7 @@ public class LogRecord {
 
 class AbortRecord extends LogRecord{
 
-    public AbortRecord(RandomAccessFile raf) throws IOException {
+    public AbortRecord(DataInput raf) throws IOException {
         super(raf);
         offset = raf.readLong();
     }
@@ -72,7 +74,7 @@ class AbortRecord extends LogRecord{
 }
 
 class CommitRecord extends LogRecord{
-    public CommitRecord(RandomAccessFile raf) throws IOException {
+    public CommitRecord(DataInput raf) throws IOException {
         super(raf);
         offset = raf.readLong();
     }
@@ -88,7 +90,7 @@ class CommitRecord extends LogRecord{
 
 class BeginRecord extends LogRecord{
 
-    public BeginRecord(RandomAccessFile raf) throws IOException {
+    public BeginRecord(DataInput raf) throws IOException {
         super(raf);
         offset = raf.readLong();
     }
@@ -107,7 +109,7 @@ class UpdateRecord extends LogRecord{
     private final Page before;
     private final Page after;
 
-    public UpdateRecord(RandomAccessFile raf) throws IOException {
+    public UpdateRecord(DataInput raf) throws IOException {
         super(raf);
         before = Database.getLogFile().readPageData(raf);
         after = Database.getLogFile().readPageData(raf);
@@ -136,8 +138,10 @@ class UpdateRecord extends LogRecord{
 class CheckPointRecord extends LogRecord{
 
     private final HashMap<Long, Long> tidToFirstLogRecord;
+    //脏页表：(tableId, pageNo) -> recLSN
+    private final HashMap<List<Integer>, Long> dirtyPageTable;
 
-    public CheckPointRecord(RandomAccessFile raf) throws IOException {
+    public CheckPointRecord(DataInput raf) throws IOException {
         super(raf);
         int keySize = raf.readInt();
         tidToFirstLogRecord = new HashMap<>();
@@ -145,6 +149,12 @@ class CheckPointRecord extends LogRecord{
         {
             tidToFirstLogRecord.put(raf.readLong(), raf.readLong());
         }
+        int dirtySize = raf.readInt();
+        dirtyPageTable = new HashMap<>();
+        for(int i=0; i<dirtySize; ++i)
+        {
+            dirtyPageTable.put(Arrays.asList(raf.readInt(), raf.readInt()), raf.readLong());
+        }
         offset = raf.readLong();
     }
 
@@ -153,6 +163,11 @@ class CheckPointRecord extends LogRecord{
         return tidToFirstLogRecord;
     }
 
+    public HashMap<List<Integer>, Long> getDirtyPageTable()
+    {
+        return dirtyPageTable;
+    }
+
     @Override
     public String toString()
     {
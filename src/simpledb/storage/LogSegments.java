@@ -0,0 +1,467 @@
+package simpledb.storage;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * LogSegments stores the log of a {@link LogFile} as a sequence of
+ * fixed-size segment files, so that truncating the log never has to copy
+ * the records that survive.
+ * <p>
+ * Log records are addressed by a log sequence number (LSN): the byte
+ * position of the record in the (unbounded) log.  The bytes of LSN
+ * <tt>lsn</tt> live in the segment file <tt>&lt;log&gt;.&lt;lsn / segmentSize&gt;</tt>
+ * at offset <tt>lsn % segmentSize</tt>; records may span two segments.
+ * <p>
+ * The log file itself is a small control file holding the LSN of the last
+ * checkpoint record, the LSN of the oldest record still needed (the
+ * recovery horizon) and the segment size.  Truncation only moves the
+ * horizon forward; segments that fall entirely below it are renamed to
+ * <tt>&lt;log&gt;.free.&lt;n&gt;</tt> and reused when a new segment is
+ * needed, so a busy log stops creating and deleting files.
+ * <p>
+ * Segments are preallocated to their full size by writing zeros when they
+ * are created, so appending never changes the size or the block map of a
+ * file, and forcing the log only needs to sync data
+ * ({@link FileChannel#force(boolean) force(false)}), not file metadata.
+ * All I/O goes through positional FileChannel reads and writes of whole
+ * buffers.
+ * <p>
+ * Appended records first go to an in-memory log buffer, which is written
+ * to the segments when the log is forced or when the buffer fills up; so
+ * a record is only guaranteed to survive a crash once {@link #force()}
+ * returned.  Since the end of the log is not the end of the file, every
+ * write of the buffer is followed by an end marker (an integer 0, which
+ * is not a valid record type) written together with it, so that recovery
+ * can find where the log stops.
+ * <p>
+ * Not thread safe; callers synchronize on the owning LogFile.
+ */
+class LogSegments {
+
+    static final String FREE_INFIX = ".free.";
+    static final int END_MARKER_SIZE = 4;
+    /** Number of retired segments kept around for reuse; more are deleted. */
+    static final int MAX_FREE_SEGMENTS = 4;
+    static final int CONTROL_SIZE = 2 * LogFile.LONG_SIZE + LogFile.INT_SIZE;
+    /** Size of the zero-filled chunks written to preallocate a segment. */
+    static final int PREALLOCATE_CHUNK = 64 * 1024;
+
+    private final File controlFile;
+    private final FileChannel control;
+    private final int segmentSize;
+    private final ByteBuffer controlBuffer = ByteBuffer.allocate(CONTROL_SIZE);
+    /** Size of the log buffer; a full buffer is written without a force. */
+    static final int LOG_BUFFER_SIZE = 256 * 1024;
+
+    // the log buffer: records from tailStart to end that are not written yet
+    private ByteBuffer tail = ByteBuffer.allocateDirect(LOG_BUFFER_SIZE + END_MARKER_SIZE);
+    private long tailStart = 0;
+
+    // open segment files, keyed by segment number
+    private final TreeMap<Long, FileChannel> segments = new TreeMap<>();
+    // segments written since the last force
+    private final Set<Long> unforced = new HashSet<>();
+    private final Deque<File> freeSegments = new ArrayDeque<>();
+    private long nextFreeId = 0;
+
+    private long checkpoint = LogFile.NO_CHECKPOINT_ID;
+    private long start = 0;
+    private long end = 0;
+
+    /**
+     * Open the segmented log whose control file is f.  If the control file
+     * is missing or was written with a different segment size, the log is
+     * treated as empty.  The end of the log is not known until
+     * {@link #setEnd(long)} is called, so until then reads stop only at the
+     * first missing segment.
+     */
+    LogSegments(File f, int segmentSize) throws IOException {
+        this.controlFile = f.getAbsoluteFile();
+        this.segmentSize = segmentSize;
+        this.control = FileChannel.open(controlFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (control.size() >= CONTROL_SIZE) {
+            readFully(control, controlBuffer, 0);
+            controlBuffer.flip();
+            long cp = controlBuffer.getLong();
+            long horizon = controlBuffer.getLong();
+            if (controlBuffer.getInt() == segmentSize) {
+                checkpoint = cp;
+                start = horizon;
+            }
+        }
+        end = Long.MAX_VALUE;
+        tailStart = Long.MAX_VALUE;
+
+        File[] files = controlFile.getParentFile().listFiles();
+        String prefix = controlFile.getName() + ".";
+        String freePrefix = controlFile.getName() + FREE_INFIX;
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(freePrefix)) {
+                    freeSegments.add(file);
+                    try {
+                        nextFreeId = Math.max(nextFreeId, Long.parseLong(name.substring(freePrefix.length())) + 1);
+                    } catch (NumberFormatException ignored) {
+                    }
+                } else if (name.startsWith(prefix)) {
+                    try {
+                        long seq = Long.parseLong(name.substring(prefix.length()));
+                        if ((seq + 1) * segmentSize <= start)
+                            retire(seq, file);
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+            }
+        }
+    }
+
+    int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /** The LSN of the last checkpoint record, or -1 if there is none. */
+    long getCheckpoint() {
+        return checkpoint;
+    }
+
+    /** The LSN of the oldest record still kept in the log. */
+    long getStart() {
+        return start;
+    }
+
+    /** The LSN at which the next record will be appended. */
+    long getEnd() {
+        return end;
+    }
+
+    /** Set the end of the log, once recovery has found it. */
+    void setEnd(long lsn) {
+        end = lsn;
+        tailStart = lsn;
+        tail.clear();
+    }
+
+    /** Throw away the whole log, recycling all of its segments. */
+    void reset() throws IOException {
+        for (Long seq : new ArrayList<>(segments.keySet()))
+            retire(seq, segmentFile(seq));
+        String prefix = controlFile.getName() + ".";
+        File[] files = controlFile.getParentFile().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(prefix) && !name.contains(FREE_INFIX)) {
+                    try {
+                        retire(Long.parseLong(name.substring(prefix.length())), file);
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+            }
+        }
+        checkpoint = LogFile.NO_CHECKPOINT_ID;
+        start = 0;
+        end = 0;
+        tailStart = 0;
+        tail.clear();
+        writeControl();
+        write(0, ByteBuffer.allocate(END_MARKER_SIZE));
+    }
+
+    /**
+     * Append a record at the end of the log buffer.  The record is not on
+     * disk before the next {@link #force()}.
+     * @return the LSN of the record
+     */
+    long append(byte[] record, int len) throws IOException {
+        long lsn = end;
+        if (tail.remaining() < len + END_MARKER_SIZE) {
+            writeTail();
+            if (tail.capacity() < len + END_MARKER_SIZE)
+                tail = ByteBuffer.allocateDirect(len + END_MARKER_SIZE);
+        }
+        tail.put(record, 0, len);
+        end = lsn + len;
+        if (tail.position() >= LOG_BUFFER_SIZE)
+            writeTail();
+        return lsn;
+    }
+
+    // write the log buffer, followed by an end marker, to the segments
+    private void writeTail() throws IOException {
+        if (tail.position() == 0)
+            return;
+        tail.putInt(0);
+        tail.flip();
+        write(tailStart, tail);
+        tail.clear();
+        tailStart = end;
+    }
+
+    /** Record the LSN of the latest checkpoint in the control file. */
+    void setCheckpoint(long lsn) throws IOException {
+        checkpoint = lsn;
+        writeControl();
+    }
+
+    /**
+     * Drop every record before horizon.  Whole segments below the horizon
+     * are recycled; the control file is updated first, so a crash can never
+     * leave it pointing into a recycled segment.
+     */
+    void truncate(long horizon) throws IOException {
+        if (horizon <= start)
+            return;
+        long firstDropped = start / segmentSize;
+        start = horizon;
+        writeControl();
+        for (long seq = firstDropped; seq < start / segmentSize; seq++) {
+            File file = segmentFile(seq);
+            if (segments.containsKey(seq) || file.exists())
+                retire(seq, file);
+        }
+    }
+
+    /** Read len bytes starting at lsn, which must lie inside the log. */
+    void read(long lsn, byte[] b, int off, int len) throws IOException {
+        if (lsn < start || lsn + len > end)
+            throw new EOFException();
+        if (lsn + len > tailStart) {
+            // the end of the range is still in the log buffer
+            int inTail = (int) Math.min(len, lsn + len - tailStart);
+            ByteBuffer view = tail.duplicate();
+            view.position((int) (lsn + len - inTail - tailStart));
+            view.get(b, off + len - inTail, inTail);
+            len -= inTail;
+        }
+        while (len > 0) {
+            long seq = lsn / segmentSize;
+            int segOff = (int) (lsn % segmentSize);
+            int n = Math.min(len, segmentSize - segOff);
+            FileChannel seg = openSegment(seq, false);
+            if (seg == null)
+                throw new EOFException();
+            readFully(seg, ByteBuffer.wrap(b, off, n), segOff);
+            lsn += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /** Return a stream reading the log sequentially from lsn. */
+    Reader reader(long lsn) {
+        return new Reader(lsn);
+    }
+
+    /**
+     * Force every segment written since the last force to disk.  Segments
+     * are preallocated, so only their data has to be synced.
+     */
+    void force() throws IOException {
+        writeTail();
+        for (long seq : unforced) {
+            FileChannel seg = segments.get(seq);
+            if (seg != null)
+                seg.force(false);
+        }
+        unforced.clear();
+    }
+
+    void close() throws IOException {
+        force();
+        for (FileChannel seg : segments.values())
+            seg.close();
+        segments.clear();
+        control.close();
+    }
+
+    // write the remaining bytes of buf at lsn, splitting it across segments
+    private void write(long lsn, ByteBuffer buf) throws IOException {
+        int limit = buf.limit();
+        while (buf.hasRemaining()) {
+            long seq = lsn / segmentSize;
+            int segOff = (int) (lsn % segmentSize);
+            int n = Math.min(buf.remaining(), segmentSize - segOff);
+            FileChannel seg = openSegment(seq, true);
+            buf.limit(buf.position() + n);
+            writeFully(seg, buf, segOff);
+            buf.limit(limit);
+            unforced.add(seq);
+            lsn += n;
+        }
+    }
+
+    private void writeControl() throws IOException {
+        boolean grows = control.size() < CONTROL_SIZE;
+        controlBuffer.clear();
+        controlBuffer.putLong(checkpoint);
+        controlBuffer.putLong(start);
+        controlBuffer.putInt(segmentSize);
+        controlBuffer.flip();
+        writeFully(control, controlBuffer, 0);
+        // the control file only needs its metadata synced when it is created
+        control.force(grows);
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            pos += ch.write(buf, pos);
+        }
+    }
+
+    private static void readFully(FileChannel ch, ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = ch.read(buf, pos);
+            if (n < 0)
+                throw new EOFException();
+            pos += n;
+        }
+    }
+
+    File segmentFile(long seq) {
+        return new File(controlFile.getParentFile(), controlFile.getName() + "." + seq);
+    }
+
+    private FileChannel openSegment(long seq, boolean create) throws IOException {
+        FileChannel seg = segments.get(seq);
+        if (seg != null)
+            return seg;
+        File file = segmentFile(seq);
+        if (!file.exists()) {
+            if (!create)
+                return null;
+            File free = freeSegments.poll();
+            if (free == null || !free.renameTo(file)) {
+                seg = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+                preallocate(seg);
+            } else {
+                seg = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+                if (seg.size() < segmentSize)
+                    preallocate(seg);
+            }
+            // make the new name durable before records are forced into it
+            syncDirectory();
+            segments.put(seq, seg);
+            return seg;
+        }
+        seg = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segments.put(seq, seg);
+        return seg;
+    }
+
+    // fill the segment with zeros, so that its blocks are allocated once
+    // here rather than on every append, and sync it including metadata
+    private void preallocate(FileChannel seg) throws IOException {
+        ByteBuffer zeros = ByteBuffer.allocateDirect(PREALLOCATE_CHUNK);
+        for (long pos = seg.size(); pos < segmentSize; ) {
+            zeros.clear();
+            zeros.limit((int) Math.min(PREALLOCATE_CHUNK, segmentSize - pos));
+            pos += seg.write(zeros, pos);
+        }
+        seg.force(true);
+    }
+
+    private void syncDirectory() {
+        try (FileChannel dir = FileChannel.open(controlFile.getParentFile().toPath(), StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException e) {
+            // not every platform can sync a directory; the rename is still
+            // made durable by the next sync of the file system
+        }
+    }
+
+    private void retire(long seq, File file) throws IOException {
+        FileChannel seg = segments.remove(seq);
+        unforced.remove(seq);
+        if (seg != null)
+            seg.close();
+        if (freeSegments.size() >= MAX_FREE_SEGMENTS) {
+            file.delete();
+            return;
+        }
+        File free = new File(controlFile.getParentFile(), controlFile.getName() + FREE_INFIX + nextFreeId++);
+        if (file.renameTo(free))
+            freeSegments.add(free);
+        else
+            file.delete();
+    }
+
+    /**
+     * A sequential reader over the log that knows the LSN it is at, used
+     * to scan records the way the old single-file log was scanned.
+     */
+    class Reader extends DataInputStream {
+        private final Position in;
+
+        private Reader(long lsn) {
+            this(new Position(lsn));
+        }
+
+        private Reader(Position in) {
+            super(in);
+            this.in = in;
+        }
+
+        /** The LSN of the next byte to be read. */
+        long getFilePointer() {
+            return in.lsn;
+        }
+    }
+
+    private class Position extends InputStream {
+        private static final int BUFFER_SIZE = 8192;
+        private final byte[] buf = new byte[BUFFER_SIZE];
+        private long bufStart;
+        private int bufLen = 0;
+        private long lsn;
+
+        private Position(long lsn) {
+            this.lsn = lsn;
+            this.bufStart = lsn;
+        }
+
+        private boolean fill() throws IOException {
+            long limit = Math.min(end, (lsn / segmentSize + 1) * segmentSize);
+            int n = (int) Math.min(BUFFER_SIZE, limit - lsn);
+            if (n <= 0)
+                return false;
+            try {
+                LogSegments.this.read(lsn, buf, 0, n);
+            } catch (EOFException e) {
+                return false;
+            }
+            bufStart = lsn;
+            bufLen = n;
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (lsn < bufStart || lsn >= bufStart + bufLen) {
+                if (!fill())
+                    return -1;
+            }
+            return buf[(int) (lsn++ - bufStart)] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (lsn < bufStart || lsn >= bufStart + bufLen) {
+                if (!fill())
+                    return -1;
+            }
+            int n = (int) Math.min(len, bufStart + bufLen - lsn);
+            System.arraycopy(buf, (int) (lsn - bufStart), b, off, n);
+            lsn += n;
+            return n;
+        }
+    }
+}
@@ -99,8 +99,8 @@ public synchronized Page put(PageId key, Page value) throws CacheException {
         if(!isCached(pid))
             throw new IllegalArgumentException();
         //访问磁盘获取该page
-        HeapFile table=(HeapFile) Database.getCatalog().getDatabaseFile(pid.getTableId());
-        HeapPage originalPage=(HeapPage)table.readPage(pid);
+        DbFile table=Database.getCatalog().getDatabaseFile(pid.getTableId());
+        Page originalPage=table.readPage(pid);
         Node node=new Node(pid,originalPage);
         cachedEntries.put(pid,node);
         Node toRemoved=head;
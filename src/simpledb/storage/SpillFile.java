@@ -0,0 +1,186 @@
+package simpledb.storage;
+
+import simpledb.common.DbException;
+
+import java.io.*;
+import java.text.ParseException;
+
+/**
+ * A temporary file of tuples of one TupleDesc, for operators which run out of
+ * memory and have to put some of their input aside, e.g. the partitions of a
+ * hash join.
+ * <p>
+ * Like a HeapFile, the file is a sequence of pages of BufferPool.getPageSize()
+ * bytes, each holding a fixed number of tuples, and is written and read one
+ * page at a time. Tuples are only ever appended, so the pages need no header:
+ * every page but the last is full. While it is written, the file takes one
+ * page of memory, the page being filled, which finish releases. The file is
+ * deleted by delete, or when the JVM exits at the latest.
+ */
+public class SpillFile {
+
+    private final TupleDesc td;
+    private final File file;
+    private final int pageSize;
+    private final int tuplesPerPage;
+
+    private final FileOutputStream out;
+    // the page being filled, null once the file is finished
+    private ByteArrayOutputStream page;
+    private DataOutputStream pageOut;
+    private long numTuples = 0;
+    private int numPages = 0;
+    private boolean finished = false;
+
+    /**
+     * Create an empty spill file.
+     *
+     * @param td the TupleDesc of the tuples of the file
+     */
+    public SpillFile(TupleDesc td) throws IOException {
+        this.td = td;
+        this.pageSize = Math.max(BufferPool.getPageSize(), td.getSize());
+        this.tuplesPerPage = pageSize / td.getSize();
+        this.file = File.createTempFile("spill", ".tmp");
+        file.deleteOnExit();
+        this.out = new FileOutputStream(file);
+        this.page = new ByteArrayOutputStream(pageSize);
+        this.pageOut = new DataOutputStream(page);
+    }
+
+    /**
+     * @return the TupleDesc of the tuples of this file
+     */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * @return the number of tuples added to this file
+     */
+    public long numTuples() {
+        return numTuples;
+    }
+
+    /**
+     * @return the number of pages of this file, counting a page which is not
+     *         full yet
+     */
+    public int numPages() {
+        return numPages + (page != null && page.size() > 0 ? 1 : 0);
+    }
+
+    /**
+     * Append a tuple to the file, writing out the current page when it is full
+     */
+    public void add(Tuple t) throws IOException {
+        if (finished)
+            throw new IllegalStateException("spill file was already finished");
+        for (int i = 0; i < td.numFields(); i++)
+            t.getField(i).serialize(pageOut);
+        numTuples++;
+        if (numTuples % tuplesPerPage == 0)
+            writePage();
+    }
+
+    private void writePage() throws IOException {
+        // pad the page, so that every page starts at a multiple of the page size
+        while (page.size() < pageSize)
+            page.write(0);
+        page.writeTo(out);
+        page.reset();
+        numPages++;
+    }
+
+    /**
+     * Write out the last page and release the page buffer. No more tuples may
+     * be added afterwards.
+     */
+    public void finish() throws IOException {
+        if (finished)
+            return;
+        if (page.size() > 0)
+            writePage();
+        out.close();
+        page = null;
+        pageOut = null;
+        finished = true;
+    }
+
+    /**
+     * Returns an iterator over the tuples of the file in the order they were
+     * added, after finishing the file. Any number of iterators may be created.
+     */
+    public DbFileIterator iterator() throws IOException {
+        finish();
+        return new SpillIterator();
+    }
+
+    /**
+     * Delete the file. The file cannot be used afterwards.
+     */
+    public void delete() {
+        try {
+            out.close();
+        } catch (IOException e) {
+            // nothing left to write
+        }
+        file.delete();
+    }
+
+    /**
+     * Reads the tuples of the file back one page at a time
+     */
+    private class SpillIterator extends AbstractDbFileIterator {
+        private DataInputStream in;
+        private final byte[] pageData = new byte[pageSize];
+        private DataInputStream pageIn;
+        private long read;
+
+        public void open() throws DbException {
+            try {
+                in = new DataInputStream(new FileInputStream(file));
+            } catch (FileNotFoundException e) {
+                throw new DbException("could not open spill file: " + e.getMessage());
+            }
+            read = 0;
+            pageIn = null;
+        }
+
+        public void rewind() throws DbException {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing left to read
+                }
+            }
+            in = null;
+            pageIn = null;
+        }
+
+        protected Tuple readNext() throws DbException {
+            if (in == null || read == numTuples)
+                return null;
+            try {
+                if (read % tuplesPerPage == 0) {
+                    in.readFully(pageData);
+                    pageIn = new DataInputStream(new ByteArrayInputStream(pageData));
+                }
+                Tuple t = new Tuple(td);
+                for (int i = 0; i < td.numFields(); i++)
+                    t.setField(i, td.getFieldType(i).parse(pageIn));
+                read++;
+                return t;
+            } catch (IOException | ParseException e) {
+                throw new DbException("could not read spill file: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package simpledb.storage;
+
+import simpledb.common.Type;
+
+import java.io.Serializable;
+
+/**
+ * TupleBatch holds up to a fixed number of rows of one TupleDesc column by
+ * column, for the operators which process a batch of rows per call instead of
+ * a tuple. The values of an INT_TYPE column are kept in an int[], so that
+ * these operators loop over primitive values without a Field object per value;
+ * the values of the other columns are kept as Fields.
+ *
+ * @see simpledb.execution.BatchIterator
+ */
+public class TupleBatch implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The number of rows of a batch unless specified otherwise */
+    public static final int MAX_ROWS = 1024;
+
+    private final TupleDesc td;
+    // an int[] or a Field[] of capacity elements per column
+    private final Object[] columns;
+    private final int capacity;
+    private int numRows = 0;
+
+    /**
+     * Create an empty batch of MAX_ROWS rows.
+     *
+     * @param td the schema of the rows of the batch
+     */
+    public TupleBatch(TupleDesc td) {
+        this(td, MAX_ROWS);
+    }
+
+    /**
+     * Create an empty batch.
+     *
+     * @param td the schema of the rows of the batch
+     * @param capacity the maximum number of rows of the batch
+     */
+    public TupleBatch(TupleDesc td, int capacity) {
+        this.td = td;
+        this.capacity = capacity;
+        this.columns = new Object[td.numFields()];
+        for (int i = 0; i < columns.length; i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE)
+                columns[i] = new int[capacity];
+            else
+                columns[i] = new Field[capacity];
+        }
+    }
+
+    private TupleBatch(TupleDesc td, Object[] columns, int capacity, int numRows) {
+        this.td = td;
+        this.columns = columns;
+        this.capacity = capacity;
+        this.numRows = numRows;
+    }
+
+    /**
+     * @return the schema of the rows of this batch
+     */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * @return the number of rows in this batch
+     */
+    public int numRows() {
+        return numRows;
+    }
+
+    /**
+     * Set the number of rows of this batch, after its column vectors were
+     * filled directly.
+     *
+     * @throws IllegalArgumentException if n exceeds the capacity of the batch
+     */
+    public void setNumRows(int n) {
+        if (n < 0 || n > capacity)
+            throw new IllegalArgumentException("batch holds at most " + capacity + " rows");
+        numRows = n;
+    }
+
+    /**
+     * @return true if no more rows can be added to this batch
+     */
+    public boolean isFull() {
+        return numRows == capacity;
+    }
+
+    /**
+     * Remove all rows from this batch, keeping its column vectors.
+     */
+    public void clear() {
+        numRows = 0;
+    }
+
+    /**
+     * @param i the index of an INT_TYPE column
+     * @return the values of the column; only the first numRows are rows of the batch
+     * @throws IllegalArgumentException if the column is not an INT_TYPE column
+     */
+    public int[] getIntColumn(int i) {
+        if (!(columns[i] instanceof int[]))
+            throw new IllegalArgumentException("column " + i + " is not an INT_TYPE column");
+        return (int[]) columns[i];
+    }
+
+    /**
+     * @param i the index of a column other than an INT_TYPE column
+     * @return the values of the column; only the first numRows are rows of the batch
+     * @throws IllegalArgumentException if the column is an INT_TYPE column
+     */
+    public Field[] getFieldColumn(int i) {
+        if (!(columns[i] instanceof Field[]))
+            throw new IllegalArgumentException("column " + i + " is an INT_TYPE column");
+        return (Field[]) columns[i];
+    }
+
+    /**
+     * @return the value of a column of a row as a Field
+     */
+    public Field getField(int row, int col) {
+        if (columns[col] instanceof int[])
+            return new IntField(((int[]) columns[col])[row]);
+        return ((Field[]) columns[col])[row];
+    }
+
+    /**
+     * @return a row of this batch as a Tuple
+     */
+    public Tuple getTuple(int row) {
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < columns.length; i++)
+            t.setField(i, getField(row, i));
+        return t;
+    }
+
+    /**
+     * Append a tuple to this batch.
+     *
+     * @throws IllegalStateException if the batch is full
+     */
+    public void addTuple(Tuple t) {
+        if (isFull())
+            throw new IllegalStateException("batch is full");
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i] instanceof int[])
+                ((int[]) columns[i])[numRows] = ((IntField) t.getField(i)).getValue();
+            else
+                ((Field[]) columns[i])[numRows] = t.getField(i);
+        }
+        numRows++;
+    }
+
+    /**
+     * Append a row of another batch with the same column types to this batch.
+     *
+     * @throws IllegalStateException if the batch is full
+     */
+    public void addRow(TupleBatch from, int row) {
+        addRow(from, row, 0);
+        numRows++;
+    }
+
+    /**
+     * Append the concatenation of a row of the batch left and a row of the
+     * batch right to this batch, whose columns are those of left followed by
+     * those of right.
+     *
+     * @throws IllegalStateException if the batch is full
+     */
+    public void addJoinedRow(TupleBatch left, int leftRow, TupleBatch right, int rightRow) {
+        addRow(left, leftRow, 0);
+        addRow(right, rightRow, left.columns.length);
+        numRows++;
+    }
+
+    private void addRow(TupleBatch from, int row, int offset) {
+        if (isFull())
+            throw new IllegalStateException("batch is full");
+        for (int i = 0; i < from.columns.length; i++) {
+            if (columns[offset + i] instanceof int[])
+                ((int[]) columns[offset + i])[numRows] = ((int[]) from.columns[i])[row];
+            else
+                ((Field[]) columns[offset + i])[numRows] = ((Field[]) from.columns[i])[row];
+        }
+    }
+
+    /**
+     * Keep only the selected rows of this batch, in place.
+     *
+     * @param selected the indexes of the rows to keep, in increasing order
+     * @param n the number of rows to keep
+     */
+    public void select(int[] selected, int n) {
+        for (Object column : columns) {
+            if (column instanceof int[]) {
+                int[] values = (int[]) column;
+                for (int j = 0; j < n; j++)
+                    values[j] = values[selected[j]];
+            } else {
+                Field[] values = (Field[]) column;
+                for (int j = 0; j < n; j++)
+                    values[j] = values[selected[j]];
+            }
+        }
+        numRows = n;
+    }
+
+    /**
+     * Returns a batch of some of the columns of this batch, which shares the
+     * column vectors with this batch instead of copying them.
+     *
+     * @param fields the indexes of the columns of this batch to keep
+     * @param td the schema of the returned batch
+     */
+    public TupleBatch project(int[] fields, TupleDesc td) {
+        Object[] projected = new Object[fields.length];
+        for (int i = 0; i < fields.length; i++)
+            projected[i] = columns[fields[i]];
+        return new TupleBatch(td, projected, capacity, numRows);
+    }
+}
@@ -251,13 +251,13 @@ public class TupleDesc implements Serializable {
             return true;
         }
         if (o instanceof TupleDesc) {
-            //当且仅当field数量相同且每个的field的名字和类型都相同时返回true
+            //当且仅当field数量相同且每个的field的类型都相同时返回true，名字可以不同(例如加上了表的别名)
             TupleDesc another = (TupleDesc) o;
             if (!(another.numFields() == this.numFields())) {
                 return false;
             }
             for (int i = 0; i < numFields(); i++) {
-                if (!tdAr[i].equals(another.tdAr[i])) {
+                if (!tdAr[i].fieldType.equals(another.tdAr[i].fieldType)) {
                     return false;
                 }
             }
@@ -4,8 +4,10 @@ import simpledb.common.Permissions;
 import simpledb.storage.PageId;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class LockManager {
@@ -217,10 +219,11 @@ public class LockManager {
         if(holders==null||holders.size()==0)
             return false;
         List<PageId> pids=getAllLocksByTid(tid);//找出T1拥有的所有资源
+        Set<TransactionId> visited=new HashSet<>();
         for(LockState ls:holders){
             TransactionId holder=ls.getTid();
             if(!holder.equals(tid)){
-                boolean isWaiting=isWaitingResources(holder,pids,tid);
+                boolean isWaiting=isWaitingResources(holder,pids,tid,visited);
                 if(isWaiting)
                     return true;
             }
@@ -234,9 +237,13 @@ public class LockManager {
      * @param pids
      * @param toRemove 需要排除toRemove来判断，具体原因见方法内部注释；
      *                 事实上，toRemove就是leadToDeadLock()的参数tid，也就是要排除它自己对判断过程的影响
+     * @param visited 已经检查过的事务；其他事务之间的等待也可能成环，不记录的话会无限递归
      * @return
      */
-    private synchronized boolean isWaitingResources(TransactionId tid,List<PageId> pids,TransactionId toRemove){
+    private synchronized boolean isWaitingResources(TransactionId tid,List<PageId> pids,TransactionId toRemove,
+                                                    Set<TransactionId> visited){
+        if(!visited.add(tid))
+            return false;
         PageId waitingPage=waitingInfo.get(tid);
         if (waitingPage==null)
             return false;
@@ -252,7 +259,7 @@ public class LockManager {
             TransactionId holder=ls.getTid();
             if(!holder.equals(toRemove)){
                 //去掉toRemove，在toRemove刚好拥有waitingResource的读锁时就需要
-                boolean isWaiting=isWaitingResources(holder,pids,toRemove);
+                boolean isWaiting=isWaitingResources(holder,pids,toRemove,visited);
                 if(isWaiting) return true;
             }
         }
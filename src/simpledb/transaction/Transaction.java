@@ -12,6 +12,7 @@ import java.io.*;
 public class Transaction {
     private final TransactionId tid;
     volatile boolean started = false;
+    volatile boolean asyncCommit = false;
 
     public Transaction() {
         tid = new TransactionId();
@@ -31,6 +32,20 @@ public class Transaction {
         return tid;
     }
 
+    /** Let commit() return once the commit record is in the log buffer,
+     instead of waiting for the log to be forced.  The buffer pool's async
+     flusher makes the commit durable within its async commit interval;
+     a crash before that loses the commit, but nothing older.
+     @see simpledb.storage.BufferPool#transactionCompleteAsync
+     */
+    public void setAsyncCommit(boolean asyncCommit) {
+        this.asyncCommit = asyncCommit;
+    }
+
+    public boolean isAsyncCommit() {
+        return asyncCommit;
+    }
+
     /** Finish the transaction */
     public void commit() throws IOException {
         transactionComplete(false);
@@ -45,6 +60,13 @@ public class Transaction {
     public void transactionComplete(boolean abort) throws IOException {
 
         if (started) {
+            if (!abort && asyncCommit) {
+                //commit record only goes to the log buffer, locks are released right away
+                Database.getBufferPool().transactionCompleteAsync(tid);
+                started = false;
+                return;
+            }
+
             //write abort log record and rollback transaction
             if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
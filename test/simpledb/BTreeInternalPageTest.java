@@ -124,6 +124,32 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeInternalPage.setRightSiblingId() and setHighKey(), the right
+	 * sibling and the high key are written out with the page
+	 */
+	@Test public void setRightSiblingId() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		assertEquals(null, page.getRightSiblingId());
+		assertEquals(null, page.getHighKey());
+		BTreePageId id = new BTreePageId(pid.getTableId(), 1, BTreePageId.INTERNAL);
+		page.setRightSiblingId(id);
+		page.setHighKey(new IntField(70000));
+
+		BTreeInternalPage read = new BTreeInternalPage(pid, page.getPageData(), 0);
+		assertEquals(id, read.getRightSiblingId());
+		assertEquals(new IntField(70000), read.getHighKey());
+		assertEquals(page.getNumEmptySlots(), read.getNumEmptySlots());
+
+		id = new BTreePageId(pid.getTableId(), 1, BTreePageId.LEAF);
+		try {
+			page.setRightSiblingId(id);
+			throw new Exception("should not be able to set rightSiblingId to leaf node; expected DbException");
+		} catch (DbException e) {
+			// explicitly ignored
+		}
+	}
+
 	/**
 	 * Unit test for BTreeInternalPage.iterator()
 	 */
@@ -179,7 +205,7 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 	 */
 	@Test public void getNumEmptySlots() throws Exception {
 		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
-		assertEquals(483, page.getNumEmptySlots());
+		assertEquals(481, page.getNumEmptySlots());
 	}
 
 	/**
@@ -192,7 +218,7 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		for (int i = 0; i < 21; ++i)
 			assertTrue(page.isSlotUsed(i));
 
-		for (int i = 21; i < 504; ++i)
+		for (int i = 21; i < 502; ++i)
 			assertFalse(page.isSlotUsed(i));
 	}
 
@@ -246,7 +272,7 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		int free = page.getNumEmptySlots();
 
 		// NOTE(ghuo): this nested loop existence check is slow, but it
-		// shouldn't make a difference for n = 503 slots.
+		// shouldn't make a difference for n = 501 slots.
 
 		for (int i = 0; i < free; ++i) {
 			BTreeEntry addition = BTreeUtility.getBTreeEntry(i+21, 70000+i, pid.getTableId());
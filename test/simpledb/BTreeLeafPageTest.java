@@ -169,6 +169,21 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeLeafPage.setHighKey(), the high key is written out with the page
+	 */
+	@Test public void setHighKey() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, EXAMPLE_DATA, 0);
+		assertNull(page.getHighKey());
+		page.setHighKey(new IntField(62778));
+		page.setRightSiblingId(new BTreePageId(pid.getTableId(), 1, BTreePageId.LEAF));
+
+		BTreeLeafPage read = new BTreeLeafPage(pid, page.getPageData(), 0);
+		assertEquals(new IntField(62778), read.getHighKey());
+		assertEquals(page.getRightSiblingId(), read.getRightSiblingId());
+		assertEquals(page.getNumEmptySlots(), read.getNumEmptySlots());
+	}
+
 	/**
 	 * Unit test for BTreeLeafPage.iterator()
 	 */
@@ -3,6 +3,7 @@ package simpledb;
 import simpledb.TestUtil.SkeletonFile;
 import simpledb.common.Database;
 import simpledb.common.DbException;
+import simpledb.common.Type;
 import simpledb.common.Utility;
 import simpledb.index.BTreeFileEncoder;
 import simpledb.index.BTreePageId;
@@ -139,6 +140,24 @@ public class BTreeRootPtrPageTest extends SimpleDbTestBase {
         assertFalse(dirtier != null);
 	}
 
+	/**
+	 * Unit test for BTreeRootPtrPage(), which rejects the root pointer of a file
+	 * written before the pages stored their high keys
+	 */
+	@Test public void rejectOldFormat() throws Exception {
+		assertNull(new BTreeRootPtrPage(pid, BTreeRootPtrPage.createEmptyPageData()).getRootId());
+
+		byte[] data = EXAMPLE_DATA.clone();
+		// the root page category follows the root pointer
+		data[Type.INT_TYPE.getLen()] = (byte) BTreePageId.LEAF;
+		try {
+			new BTreeRootPtrPage(pid, data);
+			throw new Exception("should not be able to read a root pointer without the mark; expected IOException");
+		} catch (IOException e) {
+			// explicitly ignored
+		}
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -0,0 +1,176 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.execution.Filter;
+import simpledb.execution.OpIterator;
+import simpledb.execution.OrderBy;
+import simpledb.execution.Predicate;
+import simpledb.execution.Project;
+import simpledb.execution.SeqScan;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeFileEncoder;
+import simpledb.index.BTreeScan;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.QueryPlanVisualizer;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Tests that LogicalPlan reads a BTreeFile table with a range scan when a
+ * selective filter is on its key field, and in key order instead of sorting
+ * it when the query is ordered on the key field
+ */
+public class AccessPathTest extends SimpleDbTestBase {
+
+	private List<List<Integer>> tuples;
+	private BTreeFile bf;
+	private Map<String, TableStats> stats;
+
+	@Before public void setUp() throws Exception {
+		tuples = new ArrayList<>();
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 20000, null, tuples, "c");
+		File f = File.createTempFile("accesspath", ".dat");
+		f.deleteOnExit();
+		TransactionId tid = new TransactionId();
+		bf = BTreeFileEncoder.bulkLoad(tid, hf, f, 0, 1.0, 50);
+		Database.getBufferPool().transactionComplete(tid);
+		stats = new HashMap<>();
+		stats.put(Database.getCatalog().getTableName(bf.getId()), new TableStats(bf.getId(), 1000));
+	}
+
+	private OpIterator plan(TransactionId tid, String field, Predicate.Op op, int value, boolean explain)
+			throws Exception {
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(bf.getId(), "t");
+		lp.addFilter("t." + field, op, Integer.toString(value));
+		lp.addProjectField("t.c0", null);
+		lp.addProjectField("t.c1", null);
+		return lp.physicalPlan(tid, stats, explain);
+	}
+
+	private static OpIterator scanOf(OpIterator plan) {
+		OpIterator child = ((Project) plan).getChildren()[0];
+		while (child instanceof Filter)
+			child = ((Filter) child).getChildren()[0];
+		return child;
+	}
+
+	private List<List<Integer>> matching(int field, Predicate.Op op, int value) {
+		List<List<Integer>> result = new ArrayList<>();
+		for (List<Integer> t : tuples) {
+			if (new IntField(t.get(field)).compare(op, new IntField(value)))
+				result.add(t);
+		}
+		return result;
+	}
+
+	@Test public void testKeyFilter() throws Exception {
+		TransactionId tid = new TransactionId();
+		int value = tuples.get(0).get(0);
+		OpIterator plan = plan(tid, "c0", Predicate.Op.EQUALS, value, false);
+		assertTrue(scanOf(plan) instanceof BTreeScan);
+		SystemTestUtil.matchTuples(plan, matching(0, Predicate.Op.EQUALS, value));
+
+		plan = plan(tid, "c0", Predicate.Op.LESS_THAN, 100, false);
+		assertTrue(scanOf(plan) instanceof BTreeScan);
+		SystemTestUtil.matchTuples(plan, matching(0, Predicate.Op.LESS_THAN, 100));
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	@Test public void testFullScan() throws Exception {
+		TransactionId tid = new TransactionId();
+		// most tuples match, reading them through the index does not pay off
+		OpIterator plan = plan(tid, "c0", Predicate.Op.GREATER_THAN, 100, false);
+		assertTrue(scanOf(plan) instanceof SeqScan);
+		SystemTestUtil.matchTuples(plan, matching(0, Predicate.Op.GREATER_THAN, 100));
+
+		// not the key field
+		int value = tuples.get(0).get(1);
+		plan = plan(tid, "c1", Predicate.Op.EQUALS, value, false);
+		assertTrue(scanOf(plan) instanceof SeqScan);
+		SystemTestUtil.matchTuples(plan, matching(1, Predicate.Op.EQUALS, value));
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	private OpIterator orderedPlan(TransactionId tid, String field, boolean asc, boolean filter)
+			throws Exception {
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(bf.getId(), "t");
+		if (filter)
+			lp.addFilter("t.c0", Predicate.Op.LESS_THAN, "100");
+		lp.addOrderBy("t." + field, asc);
+		lp.addProjectField("t.c0", null);
+		lp.addProjectField("t.c1", null);
+		return lp.physicalPlan(tid, stats, false);
+	}
+
+	private static void checkOrder(OpIterator plan, int field, boolean asc) throws Exception {
+		plan.open();
+		Integer prev = null;
+		while (plan.hasNext()) {
+			int v = ((IntField) plan.next().getField(field)).getValue();
+			assertTrue(prev == null || (asc ? prev <= v : prev >= v));
+			prev = v;
+		}
+		plan.close();
+	}
+
+	@Test public void testOrderBy() throws Exception {
+		TransactionId tid = new TransactionId();
+		// ordered on the key, the scan returns the order and the sort goes away
+		for (boolean asc : new boolean[]{true, false}) {
+			OpIterator plan = orderedPlan(tid, "c0", asc, false);
+			assertTrue(scanOf(plan) instanceof BTreeScan);
+			assertEquals(!asc, ((BTreeScan) scanOf(plan)).isDescending());
+			SystemTestUtil.matchTuples(plan, tuples);
+			checkOrder(plan, 0, asc);
+
+			plan = orderedPlan(tid, "c0", asc, true);
+			assertTrue(scanOf(plan) instanceof BTreeScan);
+			SystemTestUtil.matchTuples(plan, matching(0, Predicate.Op.LESS_THAN, 100));
+			checkOrder(plan, 0, asc);
+		}
+
+		// not the key field
+		OpIterator plan = orderedPlan(tid, "c1", false, false);
+		assertTrue(((Project) plan).getChildren()[0] instanceof OrderBy);
+		checkOrder(plan, 1, false);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	@Test public void testExplain() throws Exception {
+		TransactionId tid = new TransactionId();
+		PrintStream out = System.out;
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		OpIterator plan;
+		System.setOut(new PrintStream(buf, true));
+		try {
+			plan = plan(tid, "c0", Predicate.Op.EQUALS, tuples.get(0).get(0), true);
+		} finally {
+			System.setOut(out);
+		}
+		assertTrue(buf.toString().contains("Access path for t: B+tree range scan on c0 = "));
+		assertTrue(new QueryPlanVisualizer().getQueryPlanTree(plan).contains("btree("));
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(AccessPathTest.class);
+	}
+}
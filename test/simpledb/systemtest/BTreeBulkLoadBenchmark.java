@@ -0,0 +1,113 @@
+package simpledb.systemtest;
+
+import java.io.*;
+import java.util.Random;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Utility;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeFileEncoder;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapFileEncoder;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Measures the time to build a B+ tree index over a heap file.
+ * <p>
+ * Writes a heap file of random two-column int tuples without holding them in
+ * memory, bulk loads a BTreeFile keyed on the first column from it and scans
+ * the result to check that no tuple got lost.  For comparison, it then builds
+ * an index over the first insertRows tuples through insertTuple, committing
+ * every 1000 tuples.
+ * <p>
+ * Usage: BTreeBulkLoadBenchmark [rows] [fill factor] [sort pages] [insert rows]
+ */
+public class BTreeBulkLoadBenchmark {
+
+    static HeapFile createHeapFile(int rows, long seed) throws IOException {
+        File text = File.createTempFile("bulkload", ".txt");
+        text.deleteOnExit();
+        Random rand = new Random(seed);
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(text), 1 << 16)) {
+            for (int i = 0; i < rows; i++) {
+                bw.write(Integer.toString(rand.nextInt(BTreeUtility.MAX_RAND_VALUE)));
+                bw.write(',');
+                bw.write(Integer.toString(rand.nextInt(BTreeUtility.MAX_RAND_VALUE)));
+                bw.write('\n');
+            }
+        }
+        File heap = File.createTempFile("bulkload", ".dat");
+        heap.deleteOnExit();
+        HeapFileEncoder.convert(text, heap, BufferPool.getPageSize(), 2);
+        text.delete();
+        return Utility.openHeapFile(2, heap);
+    }
+
+    static long count(DbFileIterator it) throws DbException, TransactionAbortedException {
+        it.open();
+        long n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        double fillFactor = args.length > 1 ? Double.parseDouble(args[1]) : 1.0;
+        int sortPages = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        int insertRows = args.length > 3 ? Integer.parseInt(args[3]) : Math.min(rows, 100000);
+
+        long start = System.nanoTime();
+        HeapFile hf = createHeapFile(rows, 42);
+        System.out.println("heap file: " + hf.numPages() + " pages in "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+
+        File bFile = File.createTempFile("bulkload", ".btree");
+        bFile.deleteOnExit();
+        TransactionId tid = new TransactionId();
+        start = System.nanoTime();
+        BTreeFile bf = BTreeFileEncoder.bulkLoad(tid, hf, bFile, 0, fillFactor, sortPages);
+        long millis = Math.max(1, (System.nanoTime() - start) / 1000000);
+        System.out.println("bulk load: " + rows + " rows, " + bf.numPages() + " pages in " + millis + " ms ("
+                + rows * 1000L / millis + " rows/s)");
+        long scanned = count(bf.iterator(tid));
+        if (scanned != rows)
+            throw new AssertionError("scanned " + scanned + " tuples, expected " + rows);
+        Database.getBufferPool().transactionComplete(tid);
+
+        // room for the pages a transaction of 1000 random inserts dirties
+        Database.resetBufferPool(2000);
+        BTreeFile insertFile = BTreeUtility.createEmptyBTreeFile(
+                File.createTempFile("insert", ".btree").getAbsolutePath(), 2, 0);
+        TransactionId scan = new TransactionId();
+        DbFileIterator it = hf.iterator(scan);
+        it.open();
+        start = System.nanoTime();
+        TransactionId txn = new TransactionId();
+        for (int i = 0; i < insertRows && it.hasNext(); i++) {
+            Tuple t = it.next();
+            int[] tupdata = {((IntField) t.getField(0)).getValue(), ((IntField) t.getField(1)).getValue()};
+            Database.getBufferPool().insertTuple(txn, insertFile.getId(), BTreeUtility.getBTreeTuple(tupdata));
+            if (i % 1000 == 999) {
+                Database.getBufferPool().transactionComplete(txn);
+                txn = new TransactionId();
+            }
+        }
+        Database.getBufferPool().transactionComplete(txn);
+        it.close();
+        Database.getBufferPool().transactionComplete(scan);
+        millis = Math.max(1, (System.nanoTime() - start) / 1000000);
+        System.out.println("insertTuple: " + insertRows + " rows, " + insertFile.numPages() + " pages in "
+                + millis + " ms (" + insertRows * 1000L / millis + " rows/s)");
+    }
+}
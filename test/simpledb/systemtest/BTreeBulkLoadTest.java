@@ -0,0 +1,95 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.index.BTreeChecker;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeFileEncoder;
+import simpledb.index.BTreeScan;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+public class BTreeBulkLoadTest extends SimpleDbTestBase {
+
+	private static BTreeFile bulkLoad(HeapFile hf, TransactionId tid, double fillFactor, int sortPages)
+			throws IOException, DbException, TransactionAbortedException {
+		File bFile = File.createTempFile("bulkload", ".dat");
+		bFile.deleteOnExit();
+		return BTreeFileEncoder.bulkLoad(tid, hf, bFile, 0, fillFactor, sortPages);
+	}
+
+	/**
+	 * Bulk load with so little sort memory that the runs are merged in several passes
+	 */
+	@Test public void testBulkLoad() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 20000, null, tuples);
+		TransactionId tid = new TransactionId();
+		BTreeFile bf = bulkLoad(hf, tid, 1.0, 3);
+
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		SystemTestUtil.matchTuples(new BTreeScan(tid, bf.getId(), "table", null), tuples);
+
+		// the scan comes back sorted on the key
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		int prev = Integer.MIN_VALUE;
+		while(it.hasNext()) {
+			int key = ((IntField) it.next().getField(0)).getValue();
+			assertTrue(prev <= key);
+			prev = key;
+		}
+		it.close();
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * A lower fill factor leaves room on the pages, but keeps them at least half full
+	 */
+	@Test public void testFillFactor() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 60000, null, tuples);
+		TransactionId tid = new TransactionId();
+		BTreeFile full = bulkLoad(hf, tid, 1.0, 50);
+		BTreeFile sparse = bulkLoad(hf, tid, 0.6, 50);
+
+		BTreeChecker.checkRep(sparse, tid, new HashMap<>(), true);
+		SystemTestUtil.matchTuples(new BTreeScan(tid, sparse.getId(), "table", null), tuples);
+		assertTrue(sparse.numPages() > full.numPages() * 3 / 2);
+		assertTrue(sparse.numPages() <= full.numPages() * 2);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	@Test public void testEmptyFile() throws Exception {
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+		TransactionId tid = new TransactionId();
+		BTreeFile bf = bulkLoad(hf, tid, 1.0, 50);
+		SystemTestUtil.matchTuples(new BTreeScan(tid, bf.getId(), "table", null), new ArrayList<>());
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidFillFactor() throws Exception {
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+		bulkLoad(hf, new TransactionId(), 0.3, 50);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeBulkLoadTest.class);
+	}
+}
@@ -39,6 +39,14 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 
 	}
 
+	/**
+	 * Fetch the current version of an internal page: deletes replace the
+	 * internal pages they change with new objects in the buffer pool
+	 */
+	private BTreeInternalPage getInternalPage(BTreePageId pid) throws Exception {
+		return (BTreeInternalPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+	}
+
 	@Test
 	public void testRedistributeLeafPages() throws Exception {
 		// This should create a B+ tree with two partially full leaf pages
@@ -109,7 +117,7 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 				tid, rootPtrId, Permissions.READ_ONLY);
 		BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getPage(
 				tid, rootPtr.getRootId(), Permissions.READ_ONLY);
-		assertEquals(502, root.getNumEmptySlots());
+		assertEquals(500, root.getNumEmptySlots());
 		BTreeEntry e = root.iterator().next();
 		BTreeLeafPage leftChild = (BTreeLeafPage) Database.getBufferPool().getPage(
 				tid, e.getLeftChild(), Permissions.READ_ONLY);
@@ -200,41 +208,42 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 				tid, BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
 		BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getPage(
 				tid, rootPtr.getRootId(), Permissions.READ_ONLY);
-		assertEquals(502, root.getNumEmptySlots());
+		assertEquals(500, root.getNumEmptySlots());
 
 		BTreeEntry rootEntry = root.iterator().next();
-		BTreeInternalPage leftChild = (BTreeInternalPage) Database.getBufferPool().getPage(
-				tid, rootEntry.getLeftChild(), Permissions.READ_ONLY);
-		BTreeInternalPage rightChild = (BTreeInternalPage) Database.getBufferPool().getPage(
-				tid, rootEntry.getRightChild(), Permissions.READ_ONLY);
+		BTreePageId leftChildId = rootEntry.getLeftChild();
+		BTreePageId rightChildId = rootEntry.getRightChild();
+		BTreeInternalPage rightChild = getInternalPage(rightChildId);
 
 		// delete from the right child to test redistribution from the left
 		Iterator<BTreeEntry> it = rightChild.iterator();
 		int count = 0;
 		// bring the right internal page to minimum occupancy
-		while(it.hasNext() && count < 49 * 502 + 1) {
+		while(it.hasNext() && count < 50 * 502 + 1) {
 			BTreeLeafPage leaf = (BTreeLeafPage) Database.getBufferPool().getPage(tid, 
 					it.next().getLeftChild(), Permissions.READ_ONLY);
 			Tuple t = leaf.iterator().next();
 			Database.getBufferPool().deleteTuple(tid, t);
-			it = rightChild.iterator();
+			it = getInternalPage(rightChildId).iterator();
 			count++;
 		}
 
 		// deleting a page of tuples should bring the internal page below minimum 
 		// occupancy and cause the entries to be redistributed
-		assertEquals(252, rightChild.getNumEmptySlots());
+		assertEquals(251, getInternalPage(rightChildId).getNumEmptySlots());
 		count = 0;
 		while(it.hasNext() && count < 502) {
 			BTreeLeafPage leaf = (BTreeLeafPage) Database.getBufferPool().getPage(tid, 
 					it.next().getLeftChild(), Permissions.READ_ONLY);
 			Tuple t = leaf.iterator().next();
 			Database.getBufferPool().deleteTuple(tid, t);
-			it = rightChild.iterator();
+			it = getInternalPage(rightChildId).iterator();
 			count++;
 		}
-		assertTrue(leftChild.getNumEmptySlots() > 203);
-		assertTrue(rightChild.getNumEmptySlots() <= 252);
+		BTreeInternalPage leftChild = getInternalPage(leftChildId);
+		rightChild = getInternalPage(rightChildId);
+		assertTrue(leftChild.getNumEmptySlots() > 201);
+		assertTrue(rightChild.getNumEmptySlots() <= 251);
 		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
 
 		// sanity check that the entries make sense
@@ -243,7 +252,7 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 		while(it.hasNext()) {
 			lastLeftEntry = it.next();
 		}
-		rootEntry = root.iterator().next();
+		rootEntry = getInternalPage(root.getId()).iterator().next();
 		BTreeEntry firstRightEntry = rightChild.iterator().next();
 		assertTrue(lastLeftEntry.getKey().compare(Op.LESS_THAN_OR_EQ, rootEntry.getKey()));
 		assertTrue(rootEntry.getKey().compare(Op.LESS_THAN_OR_EQ, firstRightEntry.getKey()));
@@ -256,9 +265,9 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 		
 		// This should create a B+ tree with three nodes in the second tier
 		// and 252 nodes in the third tier
-    	// (124 entries per internal/leaf page, 125 children per internal page ->
-    	// 251*124 + 1 = 31125)
-		BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 31125,
+    	// (123 entries per internal/leaf page, 124 children per internal page ->
+    	// 251*123 + 1 = 30874)
+		BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 30874,
 				null, null, 0);
 
 		BTreeChecker.checkRep(bigFile, tid, new HashMap<>(), true);
@@ -269,24 +278,24 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 				tid, BTreeRootPtrPage.getId(bigFile.getId()), Permissions.READ_ONLY);
 		BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getPage(
 				tid, rootPtr.getRootId(), Permissions.READ_ONLY);
-		assertEquals(122, root.getNumEmptySlots());
+		assertEquals(121, root.getNumEmptySlots());
 
 		BTreeEntry e = root.iterator().next();
-		BTreeInternalPage leftChild = (BTreeInternalPage) Database.getBufferPool().getPage(
-				tid, e.getLeftChild(), Permissions.READ_ONLY);
-		BTreeInternalPage rightChild = (BTreeInternalPage) Database.getBufferPool().getPage(
-				tid, e.getRightChild(), Permissions.READ_ONLY);
+		BTreePageId leftChildId = e.getLeftChild();
+		BTreePageId rightChildId = e.getRightChild();
 
 		// Delete tuples causing leaf pages to merge until the first internal page 
 		// gets to minimum occupancy
 		DbFileIterator it = bigFile.iterator(tid);
 		it.open();
 		int count = 0;
-		Database.getBufferPool().deleteTuple(tid, it.next());
-		it.rewind();
+		for(int i = 0; i < 2; ++i) {
+			Database.getBufferPool().deleteTuple(tid, it.next());
+			it.rewind();
+		}
 		while(count < 62) {
-			assertEquals(count, leftChild.getNumEmptySlots());
-			for(int i = 0; i < 124; ++i) {
+			assertEquals(count, getInternalPage(leftChildId).getNumEmptySlots());
+			for(int i = 0; i < 123; ++i) {
 				Database.getBufferPool().deleteTuple(tid, it.next());
 				it.rewind();
 			}
@@ -297,40 +306,39 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 
 		// deleting a page of tuples should bring the internal page below minimum 
 		// occupancy and cause the entries to be redistributed
-		assertEquals(62, leftChild.getNumEmptySlots());
-		for(int i = 0; i < 124; ++i) {
+		assertEquals(62, getInternalPage(leftChildId).getNumEmptySlots());
+		for(int i = 0; i < 123; ++i) {
 			Database.getBufferPool().deleteTuple(tid, it.next());
 			it.rewind();
 		}
 
 		BTreeChecker.checkRep(bigFile, tid, new HashMap<>(), true);
 
-		assertEquals(62, leftChild.getNumEmptySlots());
-		assertEquals(62, rightChild.getNumEmptySlots());
+		assertEquals(62, getInternalPage(leftChildId).getNumEmptySlots());
+		assertEquals(62, getInternalPage(rightChildId).getNumEmptySlots());
 
 		// deleting another page of tuples should bring the page below minimum occupancy 
 		// again but this time cause it to merge with its right sibling 
-		for(int i = 0; i < 124; ++i) {
+		for(int i = 0; i < 123; ++i) {
 			Database.getBufferPool().deleteTuple(tid, it.next());
 			it.rewind();
 		}
 
 		// confirm that the pages have merged
-		assertEquals(123, root.getNumEmptySlots());
+		root = getInternalPage(root.getId());
+		assertEquals(122, root.getNumEmptySlots());
 		e = root.iterator().next();
-		leftChild = (BTreeInternalPage) Database.getBufferPool().getPage(
-				tid, e.getLeftChild(), Permissions.READ_ONLY);
-		rightChild = (BTreeInternalPage) Database.getBufferPool().getPage(
-				tid, e.getRightChild(), Permissions.READ_ONLY);
-		assertEquals(0, leftChild.getNumEmptySlots());
+		leftChildId = e.getLeftChild();
+		BTreeInternalPage rightChild = getInternalPage(e.getRightChild());
+		assertEquals(0, getInternalPage(leftChildId).getNumEmptySlots());
 		assertTrue(e.getKey().compare(Op.LESS_THAN_OR_EQ, rightChild.iterator().next().getKey()));
 
 		// Delete tuples causing leaf pages to merge until the first internal page 
 		// gets below minimum occupancy and causes the entries to be redistributed
 		count = 0;
 		while(count < 62) {
-			assertEquals(count, leftChild.getNumEmptySlots());
-			for(int i = 0; i < 124; ++i) {
+			assertEquals(count, getInternalPage(leftChildId).getNumEmptySlots());
+			for(int i = 0; i < 123; ++i) {
 				Database.getBufferPool().deleteTuple(tid, it.next());
 				it.rewind();
 			}
@@ -339,7 +347,7 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 
 		// deleting another page of tuples should bring the page below minimum occupancy 
 		// and cause it to merge with the right sibling to replace the root
-		for(int i = 0; i < 124; ++i) {
+		for(int i = 0; i < 123; ++i) {
 			Database.getBufferPool().deleteTuple(tid, it.next());
 			it.rewind();
 		}
@@ -358,6 +366,86 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 		it.close();
 	}    
 
+	@Test
+	public void testDeferredMerges() throws Exception {
+		// This should create a B+ tree with one full page and two half-full leaf pages
+		BTreeFile threeLeafPageFile = BTreeUtility.createRandomBTreeFile(2, 1005,
+				null, null, 0);
+		threeLeafPageFile.setDeferredMerges(0, 10);
+
+		// delete two tuples from the middle page, which leaves it below minimum occupancy
+		DbFileIterator it = threeLeafPageFile.iterator(tid);
+		it.open();
+		List<Tuple> middle = new ArrayList<>();
+		BTreePageId firstId = null;
+		while(it.hasNext()) {
+			Tuple t = it.next();
+			BTreePageId pid = (BTreePageId) t.getRecordId().getPageId();
+			if(firstId == null) {
+				firstId = pid;
+			}
+			else if(!pid.equals(firstId) && (middle.isEmpty()
+					|| middle.get(0).getRecordId().getPageId().equals(pid))) {
+				middle.add(t);
+			}
+		}
+		it.close();
+		BTreePageId middleId = (BTreePageId) middle.get(0).getRecordId().getPageId();
+		Database.getBufferPool().deleteTuple(tid, middle.get(0));
+		Database.getBufferPool().deleteTuple(tid, middle.get(1));
+		assertTrue(threeLeafPageFile.isPendingMerge(middleId));
+		assertEquals(1, threeLeafPageFile.numPendingMerges());
+		BTreeChecker.checkRep(threeLeafPageFile, tid, new HashMap<>(), true);
+
+		// the page gets tuples from its full left sibling only at the compaction
+		BTreeLeafPage middlePage = (BTreeLeafPage) Database.getBufferPool().getPage(
+				tid, middleId, Permissions.READ_ONLY);
+		assertTrue(middlePage.getNumEmptySlots() > 251);
+		Database.getBufferPool().transactionComplete(tid);
+
+		assertEquals(1, threeLeafPageFile.compact(10));
+		assertEquals(0, threeLeafPageFile.numPendingMerges());
+		tid = new TransactionId();
+		middlePage = (BTreeLeafPage) Database.getBufferPool().getPage(
+				tid, middleId, Permissions.READ_ONLY);
+		assertTrue(middlePage.getNumEmptySlots() <= 251);
+		BTreeChecker.checkRep(threeLeafPageFile, tid, new HashMap<>(), true);
+		it = threeLeafPageFile.iterator(tid);
+		it.open();
+		List<Tuple> tuples = new ArrayList<>();
+		while(it.hasNext()) {
+			tuples.add(it.next());
+		}
+		it.close();
+		Database.getBufferPool().transactionComplete(tid);
+
+		// the background compaction merges the leaves a mass delete empties
+		threeLeafPageFile.setDeferredMerges(1, 10);
+		tid = new TransactionId();
+		for(int i = 0; i < 400; i++) {
+			Database.getBufferPool().deleteTuple(tid, tuples.get(i));
+		}
+		Database.getBufferPool().transactionComplete(tid);
+		long deadline = System.currentTimeMillis() + 10000;
+		while(threeLeafPageFile.numPendingMerges() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		threeLeafPageFile.setDeferredMerges(0, 0);
+		assertEquals(0, threeLeafPageFile.numPendingMerges());
+
+		tid = new TransactionId();
+		BTreeChecker.checkRep(threeLeafPageFile, tid, new HashMap<>(), true);
+		it = threeLeafPageFile.iterator(tid);
+		it.open();
+		int count = 0;
+		while(it.hasNext()) {
+			it.next();
+			count++;
+		}
+		it.close();
+		assertEquals(1005 - 402, count);
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -56,18 +56,19 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 			assertEquals(1, empty.numPages());
 		}
 
-		// the next 251 tuples should live on page 2 since they are greater than
-		// all existing tuples in the file
-		for (int i = 502; i < 753; ++i) {
+		// the tuples are greater than all existing tuples in the file, so the
+		// split leaves page 1 nearly full and the next 501 tuples live on page 2
+		for (int i = 502; i < 1003; ++i) {
 			tup = BTreeUtility.getBTreeTuple(i, 2);
 			empty.insertTuple(tid, tup);
 			assertEquals(3, empty.numPages());
 		}
 
-		// one more insert greater than 502 should cause page 2 to split
-		tup = BTreeUtility.getBTreeTuple(753, 2);
+		// one more insert greater than 1002 should cause page 2 to split
+		tup = BTreeUtility.getBTreeTuple(1003, 2);
 		empty.insertTuple(tid, tup);
 		assertEquals(4, empty.numPages());
+		BTreeChecker.checkRep(empty, tid, new HashMap<>(), true);
 
 		// now make sure the records are sorted on the key field
 		DbFileIterator it = empty.iterator(tid);
@@ -81,6 +82,36 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 		} 
 	}
 
+	@Test public void addIncreasingTuples() throws Exception {
+		// with increasing keys, every leaf but the right-most one stays nearly full
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		Database.reset();
+		BufferPool.setPageSize(1024);
+		BTreeFile empty = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0);
+		Database.resetBufferPool(1000);
+
+		// 123 tuples per leaf page and 123 entries per internal page
+		int n = 123 * 200;
+		for (int i = 0; i < n; ++i) {
+			empty.insertTuple(tid, BTreeUtility.getBTreeTuple(i, 2));
+		}
+		BTreeChecker.checkRep(empty, tid, new HashMap<>(), true);
+		// 122 tuples per leaf, plus the root pointer and the internal pages
+		assertTrue(empty.numPages() <= n / 122 + 1 + 4);
+
+		// the leaves are found and scanned in order
+		IndexPredicate ipred = new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(n - 1000));
+		DbFileIterator it = empty.indexIterator(tid, ipred);
+		it.open();
+		int expected = n - 1000;
+		while(it.hasNext()) {
+			assertEquals(expected++, ((IntField) it.next().getField(0)).getValue());
+		}
+		it.close();
+		assertEquals(n, expected);
+	}
+
 	@Test public void addDuplicateTuples() throws Exception {
 		// create an empty B+ tree file keyed on the second field of a 2-field tuple
 		File emptyFile = File.createTempFile("empty", ".dat");
@@ -156,7 +187,7 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 		BTreePageId rootId = rootPtr.getRootId();
 		assertEquals(rootId.pgcateg(), BTreePageId.INTERNAL);
 		BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getPage(tid, rootId, Permissions.READ_ONLY);
-		assertEquals(502, root.getNumEmptySlots());
+		assertEquals(500, root.getNumEmptySlots());
 
 		// each child should have half of the records
 		Iterator<BTreeEntry> it = root.iterator();
@@ -172,22 +203,22 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 	@Test
 	public void testSplitRootPage() throws Exception {
 		// This should create a packed B+ tree with no empty slots
-		// There are 503 keys per internal page (504 children) and 502 tuples per leaf page
-		// 504 * 502 = 253008
-		BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 253008,
+		// There are 501 keys per internal page (502 children) and 502 tuples per leaf page
+		// 502 * 502 = 252004
+		BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 252004,
 				null, null, 0);
 
 		// we will need more room in the buffer pool for this test
 		Database.resetBufferPool(500);		
 
-		// there should be 504 leaf pages + 1 internal node
-		assertEquals(505, bigFile.numPages());
+		// there should be 502 leaf pages + 1 internal node
+		assertEquals(503, bigFile.numPages());
 
 		// now insert a tuple
 		Database.getBufferPool().insertTuple(tid, bigFile.getId(), BTreeUtility.getBTreeTuple(10, 2));
 
-		// there should now be 505 leaf pages + 3 internal nodes
-		assertEquals(508, bigFile.numPages());
+		// there should now be 503 leaf pages + 3 internal nodes
+		assertEquals(506, bigFile.numPages());
 
 		// the root node should be an internal node and have 2 children (1 entry)
 		BTreePageId rootPtrPid = new BTreePageId(bigFile.getId(), 0, BTreePageId.ROOT_PTR);
@@ -195,7 +226,7 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 		BTreePageId rootId = rootPtr.getRootId();
 		assertEquals(rootId.pgcateg(), BTreePageId.INTERNAL);
 		BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getPage(tid, rootId, Permissions.READ_ONLY);
-		assertEquals(502, root.getNumEmptySlots());
+		assertEquals(500, root.getNumEmptySlots());
 
 		// each child should have half of the entries
 		Iterator<BTreeEntry> it = root.iterator();
@@ -203,8 +234,8 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 		BTreeEntry e = it.next();
 		BTreeInternalPage leftChild = (BTreeInternalPage) Database.getBufferPool().getPage(tid, e.getLeftChild(), Permissions.READ_ONLY);
 		BTreeInternalPage rightChild = (BTreeInternalPage) Database.getBufferPool().getPage(tid, e.getRightChild(), Permissions.READ_ONLY);
-		assertTrue(leftChild.getNumEmptySlots() <= 252);
-		assertTrue(rightChild.getNumEmptySlots() <= 252);
+		assertTrue(leftChild.getNumEmptySlots() <= 251);
+		assertTrue(rightChild.getNumEmptySlots() <= 251);
 
 		// now insert some random tuples and make sure we can find them
 		Random rand = new Random();
@@ -235,16 +266,16 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 
 		// This should create a B+ tree with a packed second tier of internal pages
 		// and packed third tier of leaf pages
-    	// (124 entries per internal/leaf page, 125 children per internal page ->
-    	// 125*2*124 = 31000)
-		BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 31000,
+    	// (123 entries per internal/leaf page, 124 children per internal page ->
+    	// 124*2*123 = 30504)
+		BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 30504,
 				null, null, 0);
 		
 		// we will need more room in the buffer pool for this test
 		Database.resetBufferPool(1000);
 
-		// there should be 250 leaf pages + 3 internal nodes
-		assertEquals(253, bigFile.numPages());
+		// there should be 248 leaf pages + 3 internal nodes
+		assertEquals(251, bigFile.numPages());
 
 		// now insert some random tuples and make sure we can find them
 		Random rand = new Random();
@@ -267,7 +298,7 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 			assertTrue(found);
 		}
 
-		// now make sure we have 31100 records and they are all in sorted order
+		// now make sure we have 30604 records and they are all in sorted order
 		DbFileIterator fit = bigFile.iterator(tid);
 		int count = 0;
 		Tuple prev = null;
@@ -280,7 +311,7 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 			count++;
 		}
 		fit.close();
-		assertEquals(31100, count);	
+		assertEquals(30604, count);	
 		
 	}
 
@@ -0,0 +1,73 @@
+package simpledb.systemtest;
+
+import java.io.IOException;
+import java.util.*;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.IntField;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Measures the latency of point lookups on a BTreeFile.
+ * <p>
+ * Builds a B+ tree with random int keys, warms up the buffer pool and then
+ * runs a number of rounds of equality lookups for random existing keys,
+ * printing the average time per lookup of each round.  With every page in
+ * the buffer pool this mostly measures the search on the internal and leaf
+ * pages.
+ * <p>
+ * Usage: BTreeLookupBenchmark [rows] [lookups] [rounds]
+ */
+public class BTreeLookupBenchmark {
+
+    static int lookup(BTreeFile bf, TransactionId tid, int key)
+            throws DbException, TransactionAbortedException {
+        DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key)));
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        return count;
+    }
+
+    public static void main(String[] args) throws IOException, DbException, TransactionAbortedException {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        List<List<Integer>> tuples = new ArrayList<>();
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, rows, null, tuples, 0);
+        Database.resetBufferPool(bf.numPages() + 16);
+
+        Random rand = new Random(42);
+        int[] keys = new int[lookups];
+        for (int i = 0; i < lookups; i++)
+            keys[i] = tuples.get(rand.nextInt(tuples.size())).get(0);
+
+        TransactionId tid = new TransactionId();
+        // warm up: load every page and let the JIT compile the search path
+        long found = 0;
+        for (int key : keys)
+            found += lookup(bf, tid, key);
+        System.out.println(rows + " rows in " + bf.numPages() + " pages, " + found + " tuples per warm-up round");
+
+        for (int r = 0; r < rounds; r++) {
+            long start = System.nanoTime();
+            for (int key : keys)
+                lookup(bf, tid, key);
+            long nanos = System.nanoTime() - start;
+            System.out.println("round " + r + ": " + (nanos / lookups) + " ns/lookup");
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+}
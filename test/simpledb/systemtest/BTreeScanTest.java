@@ -207,6 +207,108 @@ public class BTreeScanTest extends SimpleDbTestBase {
         Database.getBufferPool().transactionComplete(tid);
     }
     
+    /** Test that a descending BTreeScan returns the matching tuples from the largest key down */
+    @Test public void testDescending() throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> tuples = new ArrayList<>();
+        int keyField = r.nextInt(2);
+        // few distinct keys, so tuples with equal keys span several leaves
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 5000, 200, null, tuples, keyField);
+
+        TransactionId tid = new TransactionId();
+        Op[] ops = {Op.EQUALS, Op.LESS_THAN, Op.LESS_THAN_OR_EQ, Op.GREATER_THAN,
+                Op.GREATER_THAN_OR_EQ, Op.NOT_EQUALS};
+        List<IndexPredicate> preds = new ArrayList<>();
+        preds.add(null);
+        for (Op op : ops)
+            preds.add(new IndexPredicate(op, new IntField(tuples.get(r.nextInt(tuples.size())).get(keyField))));
+        for (IndexPredicate ipred : preds) {
+            List<List<Integer>> tuplesFiltered = new ArrayList<>();
+            for (List<Integer> tup : tuples) {
+                if (ipred == null || new IntField(tup.get(keyField)).compare(ipred.getOp(), ipred.getField()))
+                    tuplesFiltered.add(tup);
+            }
+            BTreeScan scan = new BTreeScan(tid, f.getId(), "table", ipred, true);
+            SystemTestUtil.matchTuples(scan, tuplesFiltered);
+
+            scan.open();
+            int prev = Integer.MAX_VALUE;
+            while (scan.hasNext()) {
+                int key = ((IntField) scan.next().getField(keyField)).getValue();
+                assertTrue(key <= prev);
+                prev = key;
+            }
+            scan.close();
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Test that a batched probe of many keys returns their tuples in key order */
+    @Test public void testMultiKeyProbe() throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> tuples = new ArrayList<>();
+        int keyField = r.nextInt(2);
+        // few distinct keys, so tuples with equal keys span several leaves
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 5000, 500, null, tuples, keyField);
+
+        TransactionId tid = new TransactionId();
+        for (int n : new int[]{0, 1, 20, 400}) {
+            // in any order and possibly repeated, some of them not in the file
+            List<Field> keys = new ArrayList<>();
+            Set<Integer> keySet = new HashSet<>();
+            for (int i = 0; i < n; i++) {
+                int key = r.nextInt(600);
+                keys.add(new IntField(key));
+                keySet.add(key);
+            }
+            List<List<Integer>> tuplesFiltered = new ArrayList<>();
+            for (List<Integer> tup : tuples) {
+                if (keySet.contains(tup.get(keyField)))
+                    tuplesFiltered.add(tup);
+            }
+
+            DbFileIterator it = f.indexIterator(tid, keys);
+            it.open();
+            List<List<Integer>> found = new ArrayList<>();
+            int prev = Integer.MIN_VALUE;
+            while (it.hasNext()) {
+                List<Integer> tup = SystemTestUtil.tupleToList(it.next());
+                assertTrue(prev <= tup.get(keyField));
+                prev = tup.get(keyField);
+                found.add(tup);
+            }
+            it.close();
+            tuplesFiltered.sort(new TupleComparator(keyField));
+            assertEquals(tuplesFiltered.size(), found.size());
+            assertTrue(found.containsAll(tuplesFiltered));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Test that a batched probe of many keys reads every page at most once */
+    @Test public void testMultiKeyReadPage() throws Exception {
+        final int LEAF_PAGES = 30;
+        List<List<Integer>> tuples = new ArrayList<>();
+        int keyField = 0;
+        BTreeFile f = BTreeUtility.createBTreeFile(2, LEAF_PAGES*502, null, tuples, keyField);
+        TupleDesc td = Utility.getTupleDesc(2);
+        InstrumentedBTreeFile table = new InstrumentedBTreeFile(f.getFile(), keyField, td);
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+
+        TransactionId tid = new TransactionId();
+        List<Field> keys = new ArrayList<>();
+        for (int i = 0; i < 1000; i++)
+            keys.add(new IntField(r.nextInt(LEAF_PAGES*502)));
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        table.readCount = 0;
+        DbFileIterator it = f.indexIterator(tid, keys);
+        it.open();
+        while (it.hasNext())
+            it.next();
+        it.close();
+        // root pointer page + root + leaf pages
+        assertTrue(table.readCount <= LEAF_PAGES + 2);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
     /** Test that scanning the BTree for predicates does not read all the pages */
     @Test public void testReadPage() throws Exception {
     	// Create the table
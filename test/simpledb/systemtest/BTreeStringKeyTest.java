@@ -0,0 +1,195 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate;
+import simpledb.index.BTreeChecker;
+import simpledb.index.BTreeEntry;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeFileEncoder;
+import simpledb.index.BTreeInternalPage;
+import simpledb.index.BTreePageId;
+import simpledb.index.BTreeRootPtrPage;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Tests B+ trees keyed on a string field, whose internal pages hold
+ * truncated separator keys with their common prefixes compressed
+ */
+public class BTreeStringKeyTest extends SimpleDbTestBase {
+
+	private static final TupleDesc TD = new TupleDesc(new Type[]{Type.STRING_TYPE, Type.INT_TYPE},
+			new String[]{"name", "id"});
+
+	private BTreeFile bf;
+	private Set<String> keys;
+
+	private static String key(int i) {
+		return String.format("customer-%08d-account", i);
+	}
+
+	private static Tuple tuple(String key, int id) {
+		Tuple t = new Tuple(TD);
+		t.setField(0, new StringField(key, Type.STRING_LEN));
+		t.setField(1, new IntField(id));
+		return t;
+	}
+
+	private static BTreeFile emptyFile() throws Exception {
+		File f = File.createTempFile("stringkey", ".dat");
+		f.deleteOnExit();
+		BTreeFile bf = new BTreeFile(f, 0, TD);
+		Database.getCatalog().addTable(bf, SystemTestUtil.getUUID());
+		return bf;
+	}
+
+	@Before public void setUp() throws Exception {
+		bf = emptyFile();
+		keys = new TreeSet<>();
+		Random r = new Random(6830);
+		TransactionId tid = new TransactionId();
+		while (keys.size() < 5000) {
+			String key = key(r.nextInt(1000000));
+			if (keys.add(key))
+				Database.getBufferPool().insertTuple(tid, bf.getId(), tuple(key, keys.size()));
+			// the dirty pages of a transaction have to fit in the buffer pool
+			if (keys.size() % 10 == 0) {
+				Database.getBufferPool().transactionComplete(tid);
+				tid = new TransactionId();
+			}
+		}
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	private void checkKeys(BTreeFile f, TransactionId tid, Set<String> expected) throws Exception {
+		BTreeChecker.checkRep(f, tid, new HashMap<>(), false);
+		List<String> found = new ArrayList<>();
+		DbFileIterator it = f.iterator(tid);
+		it.open();
+		while (it.hasNext())
+			found.add(((StringField) it.next().getField(0)).getValue());
+		it.close();
+		assertEquals(new ArrayList<>(expected), found);
+	}
+
+	private static BTreeInternalPage root(BTreeFile f, TransactionId tid) throws Exception {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+				BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
+		assertEquals(BTreePageId.INTERNAL, rootPtr.getRootId().pgcateg());
+		return (BTreeInternalPage) Database.getBufferPool().getPage(tid, rootPtr.getRootId(),
+				Permissions.READ_ONLY);
+	}
+
+	@Test public void testInsertDelete() throws Exception {
+		TransactionId tid = new TransactionId();
+		checkKeys(bf, tid, keys);
+
+		// delete most of the keys, merging and redistributing the internal pages
+		Set<String> remaining = new TreeSet<>(keys);
+		int i = 0;
+		for (String key : keys) {
+			if (i++ % 5 != 0) {
+				DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS,
+						new StringField(key, Type.STRING_LEN)));
+				it.open();
+				Tuple t = it.next();
+				it.close();
+				Database.getBufferPool().deleteTuple(tid, t);
+				remaining.remove(key);
+			}
+			if (i % 10 == 0) {
+				Database.getBufferPool().transactionComplete(tid);
+				tid = new TransactionId();
+			}
+		}
+		checkKeys(bf, tid, remaining);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	@Test public void testFanout() throws Exception {
+		TransactionId tid = new TransactionId();
+		File f = File.createTempFile("stringkey", ".dat");
+		f.deleteOnExit();
+		BTreeFile loaded = BTreeFileEncoder.bulkLoad(tid, bf, f, 0, 1.0, 50);
+		checkKeys(loaded, tid, keys);
+
+		// uncompressed, an internal page holds fewer entries than there are leaves
+		BTreeInternalPage root = root(loaded, tid);
+		assertTrue(root.hasCompressedKeys());
+		// child pointers take as many bytes as an int; the pointers, the child page
+		// category and the high key take the same room on both formats
+		int entryBytes = Type.STRING_TYPE.getLen() + Type.INT_TYPE.getLen();
+		int pointerBytes = 3 * Type.INT_TYPE.getLen() + 1 + 1 + Type.STRING_TYPE.getLen();
+		int maxUncompressed = (BufferPool.getPageSize() * 8 - pointerBytes * 8 - 1)
+				/ (entryBytes * 8 + 1);
+		assertTrue(root.getNumEntries() > maxUncompressed);
+		Iterator<BTreeEntry> it = root.iterator();
+		while (it.hasNext())
+			assertEquals(BTreePageId.LEAF, it.next().getLeftChild().pgcateg());
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	@Test public void testSeparator() {
+		Field left = new StringField("customer-00012345-account", Type.STRING_LEN);
+		Field right = new StringField("customer-00012399-account", Type.STRING_LEN);
+		Field sep = BTreeInternalPage.separator(left, right);
+		assertEquals("customer-000123" + "9", ((StringField) sep).getValue());
+
+		Field prefix = new StringField("customer", Type.STRING_LEN);
+		assertEquals("customer-", ((StringField) BTreeInternalPage.separator(prefix, left)).getValue());
+		assertEquals(left, BTreeInternalPage.separator(left, left));
+		assertEquals(new IntField(7), BTreeInternalPage.separator(new IntField(3), new IntField(7)));
+	}
+
+	/**
+	 * Internal pages with compressed keys are marked, and pages of the old
+	 * fixed-width format are rejected instead of misread
+	 */
+	@Test public void testFormatMarker() throws Exception {
+		TransactionId tid = new TransactionId();
+		BTreeInternalPage root = root(bf, tid);
+		byte[] data = root.getPageData();
+		// the child page category follows the parent pointer
+		int category = Type.INT_TYPE.getLen();
+		assertTrue((data[category] & 0x80) != 0);
+		assertEquals(root.getNumEntries(), new BTreeInternalPage(root.getId(), data, 0).getNumEntries());
+
+		data[category] &= 0x7f;
+		try {
+			new BTreeInternalPage(root.getId(), data, 0);
+			fail("read a page without the compressed keys mark");
+		} catch (IOException e) {
+			// expected
+		}
+		// a new page is all zeros
+		assertEquals(0, new BTreeInternalPage(root.getId(), BTreeInternalPage.createEmptyPageData(), 0)
+				.getNumEntries());
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeStringKeyTest.class);
+	}
+}
@@ -0,0 +1,80 @@
+package simpledb.systemtest;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Measures the throughput of concurrent inserts and lookups on a BTreeFile
+ * for different numbers of threads.
+ * <p>
+ * Every thread runs small transactions which look up a random existing key
+ * and insert a random tuple, which now and then splits a leaf.  Aborted
+ * transactions (deadlocks) are counted and not retried.
+ * <p>
+ * Usage: BTreeThroughputBenchmark [rows] [transactions per thread] [threads...]
+ */
+public class BTreeThroughputBenchmark {
+
+    static void run(BTreeFile bf, List<List<Integer>> tuples, int transactions, long seed,
+                    AtomicInteger committed, AtomicInteger aborted) {
+        Random rand = new Random(seed);
+        for (int i = 0; i < transactions; i++) {
+            TransactionId tid = new TransactionId();
+            try {
+                int key = tuples.get(rand.nextInt(tuples.size())).get(0);
+                BTreeLookupBenchmark.lookup(bf, tid, key);
+                int[] tupdata = {rand.nextInt(BTreeUtility.MAX_RAND_VALUE), rand.nextInt(BTreeUtility.MAX_RAND_VALUE)};
+                Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(tupdata));
+                Database.getBufferPool().transactionComplete(tid);
+                committed.incrementAndGet();
+            } catch (TransactionAbortedException e) {
+                Database.getBufferPool().transactionComplete(tid, false);
+                aborted.incrementAndGet();
+            } catch (DbException | IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+        int transactions = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        int[] threadCounts = {1, 2, 4, 8};
+        if (args.length > 2) {
+            threadCounts = new int[args.length - 2];
+            for (int i = 2; i < args.length; i++)
+                threadCounts[i - 2] = Integer.parseInt(args[i]);
+        }
+
+        for (int threads : threadCounts) {
+            Database.reset();
+            List<List<Integer>> tuples = new ArrayList<>();
+            BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, rows, null, tuples, 0);
+            Database.resetBufferPool(bf.numPages() * 2 + 100);
+
+            AtomicInteger committed = new AtomicInteger();
+            AtomicInteger aborted = new AtomicInteger();
+            List<Thread> workers = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                long seed = i;
+                workers.add(new Thread(() -> run(bf, tuples, transactions, seed, committed, aborted)));
+            }
+            long start = System.nanoTime();
+            for (Thread t : workers)
+                t.start();
+            for (Thread t : workers)
+                t.join();
+            long millis = Math.max(1, (System.nanoTime() - start) / 1000000);
+            System.out.println(threads + " thread(s): " + (committed.get() * 1000L / millis) + " txn/s, "
+                    + aborted.get() + " aborted");
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.HashEquiJoin;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.storage.TupleIterator;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Tests that HashEquiJoin returns the same rows whichever side it builds on
+ * and however much of it fits in memory, and reads each side once
+ */
+public class HashEquiJoinTest extends SimpleDbTestBase {
+
+	private HeapFile small;
+	private HeapFile large;
+	private List<List<Integer>> smallTuples;
+	private List<List<Integer>> largeTuples;
+	private TransactionId tid;
+
+	/**
+	 * A SeqScan which counts how often it was opened or rewound
+	 */
+	private static class CountingScan extends SeqScan {
+		private static final long serialVersionUID = 1L;
+		int scans = 0;
+
+		CountingScan(TransactionId tid, int tableid, String alias) {
+			super(tid, tableid, alias);
+		}
+
+		@Override
+		public void open() throws DbException, TransactionAbortedException {
+			scans++;
+			super.open();
+		}
+
+		@Override
+		public void rewind() throws DbException, TransactionAbortedException {
+			scans++;
+			super.rewind();
+		}
+	}
+
+	@Before public void setUp() throws Exception {
+		smallTuples = new ArrayList<>();
+		small = SystemTestUtil.createRandomHeapFile(2, 500, 300, null, smallTuples, "s");
+		largeTuples = new ArrayList<>();
+		large = SystemTestUtil.createRandomHeapFile(3, 5000, 300, null, largeTuples, "l");
+		tid = new TransactionId();
+	}
+
+	private static List<List<Integer>> expectedJoin(List<List<Integer>> t1Tuples, int f1,
+			List<List<Integer>> t2Tuples, int f2) {
+		List<List<Integer>> expected = new ArrayList<>();
+		for (List<Integer> t1 : t1Tuples) {
+			for (List<Integer> t2 : t2Tuples) {
+				if (t1.get(f1).equals(t2.get(f2))) {
+					List<Integer> out = new ArrayList<>(t1);
+					out.addAll(t2);
+					expected.add(out);
+				}
+			}
+		}
+		return expected;
+	}
+
+	private void validateJoin(int card1, int card2, boolean buildsOnLeft) throws Exception {
+		CountingScan ss1 = new CountingScan(tid, large.getId(), "l");
+		CountingScan ss2 = new CountingScan(tid, small.getId(), "s");
+		HashEquiJoin join = new HashEquiJoin(new JoinPredicate(1, Predicate.Op.EQUALS, 0), ss1, ss2);
+		join.setInputCardinalities(card1, card2);
+		assertEquals(buildsOnLeft, join.buildsOnLeft());
+
+		// the output has the columns of child1 first either way
+		SystemTestUtil.matchTuples(join, expectedJoin(largeTuples, 1, smallTuples, 0));
+		assertEquals(1, ss1.scans);
+		assertEquals(1, ss2.scans);
+	}
+
+	@Test public void testBuildOnLeft() throws Exception {
+		validateJoin(0, 0, true);
+		validateJoin(100, 5000, true);
+	}
+
+	@Test public void testBuildOnRight() throws Exception {
+		validateJoin(5000, 500, false);
+	}
+
+	@Test public void testRewind() throws Exception {
+		CountingScan ss1 = new CountingScan(tid, small.getId(), "s");
+		CountingScan ss2 = new CountingScan(tid, large.getId(), "l");
+		HashEquiJoin join = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 1), ss1, ss2);
+		join.setInputCardinalities(500, 5000);
+		List<List<Integer>> expected = expectedJoin(smallTuples, 0, largeTuples, 1);
+
+		join.open();
+		int n = 0;
+		while (join.hasNext()) {
+			join.next();
+			n++;
+		}
+		assertEquals(expected.size(), n);
+
+		// the build side stays in memory, only the probe side is read again
+		join.rewind();
+		while (join.hasNext()) {
+			join.next();
+			n--;
+		}
+		join.close();
+		assertEquals(0, n);
+		assertEquals(1, ss1.scans);
+		assertEquals(2, ss2.scans);
+	}
+
+	@Test public void testSpill() throws Exception {
+		// the large table is the build side, which needs about five times the memory
+		CountingScan ss1 = new CountingScan(tid, large.getId(), "l");
+		CountingScan ss2 = new CountingScan(tid, small.getId(), "s");
+		HashEquiJoin join = new HashEquiJoin(new JoinPredicate(1, Predicate.Op.EQUALS, 0), ss1, ss2);
+		join.setMemoryPages(3);
+		List<List<Integer>> expected = expectedJoin(largeTuples, 1, smallTuples, 0);
+		SystemTestUtil.matchTuples(join, expected);
+		assertTrue(join.numSpilledPartitions() > 0);
+		assertEquals(1, ss1.scans);
+		assertEquals(1, ss2.scans);
+
+		// a rewind joins the partitions again
+		join.open();
+		join.rewind();
+		int n = 0;
+		while (join.hasNext()) {
+			join.next();
+			n++;
+		}
+		join.close();
+		assertEquals(expected.size(), n);
+	}
+
+	@Test public void testSkew() throws Exception {
+		// every row has the same key, which no partitioning splits
+		Map<Integer, Integer> columnSpecification = new HashMap<>();
+		columnSpecification.put(0, 7);
+		List<List<Integer>> buildTuples = new ArrayList<>();
+		HeapFile build = SystemTestUtil.createRandomHeapFile(2, 3000, columnSpecification, buildTuples);
+		List<List<Integer>> probeTuples = new ArrayList<>();
+		HeapFile probe = SystemTestUtil.createRandomHeapFile(2, 20, columnSpecification, probeTuples);
+
+		HashEquiJoin join = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+				new SeqScan(tid, build.getId(), "b"), new SeqScan(tid, probe.getId(), "p"));
+		join.setMemoryPages(3);
+		SystemTestUtil.matchTuples(join, expectedJoin(buildTuples, 0, probeTuples, 0));
+		assertTrue(join.numSpilledPartitions() > 0);
+	}
+
+	@Test public void testStringKeys() throws Exception {
+		// the rows of the small table with the first column as a string key
+		TupleDesc td = new TupleDesc(new Type[]{Type.STRING_TYPE, Type.INT_TYPE});
+		List<Tuple> rows = new ArrayList<>();
+		Map<Integer, Integer> counts = new HashMap<>();
+		for (List<Integer> t : smallTuples) {
+			Tuple row = new Tuple(td);
+			row.setField(0, new StringField("k" + t.get(0), Type.STRING_LEN));
+			row.setField(1, new IntField(t.get(1)));
+			rows.add(row);
+			counts.merge(t.get(0), 1, Integer::sum);
+		}
+		// joined with themselves, every row matches every row with the same key
+		HashEquiJoin self = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+				new TupleIterator(td, rows), new TupleIterator(td, rows));
+		self.setInputCardinalities(rows.size(), rows.size());
+		int expected = 0;
+		for (int c : counts.values())
+			expected += c * c;
+		self.open();
+		int n = 0;
+		while (self.hasNext()) {
+			Tuple t = self.next();
+			assertEquals(t.getField(0), t.getField(2));
+			n++;
+		}
+		self.close();
+		assertEquals(expected, n);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(HashEquiJoinTest.class);
+	}
+}
@@ -0,0 +1,219 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.execution.Filter;
+import simpledb.execution.IndexNestedLoopJoin;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate;
+import simpledb.execution.Project;
+import simpledb.index.HashFile;
+import simpledb.index.HashScan;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Tests HashFile lookups, bucket splits and overflow pages, and that
+ * LogicalPlan looks equality filters and join keys up in a HashFile
+ */
+public class HashFileTest extends SimpleDbTestBase {
+
+	private static final TupleDesc TD = new TupleDesc(new Type[]{Type.INT_TYPE, Type.INT_TYPE},
+			new String[]{"c0", "c1"});
+
+	private HashFile hf;
+	private List<List<Integer>> tuples;
+
+	private static Tuple tuple(int c0, int c1) {
+		Tuple t = new Tuple(TD);
+		t.setField(0, new IntField(c0));
+		t.setField(1, new IntField(c1));
+		return t;
+	}
+
+	private static HashFile emptyFile() throws Exception {
+		File f = File.createTempFile("hash", ".dat");
+		f.deleteOnExit();
+		HashFile hf = new HashFile(f, 0, TD);
+		Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+		return hf;
+	}
+
+	private static void insert(HashFile hf, List<List<Integer>> rows) throws Exception {
+		TransactionId tid = new TransactionId();
+		for (int i = 0; i < rows.size(); i++) {
+			Database.getBufferPool().insertTuple(tid, hf.getId(), tuple(rows.get(i).get(0), rows.get(i).get(1)));
+			// the dirty pages of a transaction have to fit in the buffer pool
+			if (i % 10 == 9) {
+				Database.getBufferPool().transactionComplete(tid);
+				tid = new TransactionId();
+			}
+		}
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	@Before public void setUp() throws Exception {
+		hf = emptyFile();
+		tuples = new ArrayList<>();
+		Random r = new Random(6830);
+		for (int i = 0; i < 20000; i++)
+			tuples.add(Arrays.asList(r.nextInt(5000), i));
+		insert(hf, tuples);
+	}
+
+	private List<List<Integer>> withKey(List<List<Integer>> rows, int key) {
+		List<List<Integer>> result = new ArrayList<>();
+		for (List<Integer> t : rows) {
+			if (t.get(0) == key)
+				result.add(t);
+		}
+		return result;
+	}
+
+	private static void matchLookup(HashFile f, TransactionId tid, int key, List<List<Integer>> expected)
+			throws Exception {
+		SystemTestUtil.matchTuples(new HashScan(tid, f.getId(), "t",
+				new IndexPredicate(Predicate.Op.EQUALS, new IntField(key))), expected);
+	}
+
+	@Test public void testLookup() throws Exception {
+		TransactionId tid = new TransactionId();
+		SystemTestUtil.matchTuples(hf, tid, tuples);
+		for (int key = -1; key < 5000; key += 97)
+			matchLookup(hf, tid, key, withKey(tuples, key));
+
+		// a batch of keys comes back grouped by key in key order
+		DbFileIterator it = hf.indexIterator(tid, Arrays.asList(new IntField(300), new IntField(7),
+				new IntField(300), new IntField(-1)));
+		it.open();
+		List<List<Integer>> found = new ArrayList<>();
+		while (it.hasNext())
+			found.add(SystemTestUtil.tupleToList(it.next()));
+		it.close();
+		List<List<Integer>> expected = withKey(tuples, 7);
+		expected.addAll(withKey(tuples, 300));
+		assertEquals(expected.size(), found.size());
+		for (int i = 0; i < found.size(); i++)
+			assertEquals(expected.get(i).get(0), found.get(i).get(0));
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	@Test(expected = IllegalArgumentException.class) public void testNotEquals() {
+		hf.indexIterator(new TransactionId(), new IndexPredicate(Predicate.Op.LESS_THAN, new IntField(7)));
+	}
+
+	/**
+	 * Deleted tuples are gone, and an abort rolls back the inserts of a
+	 * transaction
+	 */
+	@Test public void testDeleteAbort() throws Exception {
+		TransactionId tid = new TransactionId();
+		int key = tuples.get(0).get(0);
+		HashScan scan = new HashScan(tid, hf.getId(), "t", new IndexPredicate(Predicate.Op.EQUALS, new IntField(key)));
+		scan.open();
+		Tuple t = scan.next();
+		scan.close();
+		Database.getBufferPool().deleteTuple(tid, t);
+		Database.getBufferPool().transactionComplete(tid);
+		List<List<Integer>> remaining = new ArrayList<>(tuples);
+		remaining.remove(SystemTestUtil.tupleToList(t));
+
+		tid = new TransactionId();
+		matchLookup(hf, tid, key, withKey(remaining, key));
+		for (int i = 0; i < 20; i++)
+			Database.getBufferPool().insertTuple(tid, hf.getId(), tuple(5000 + i, i));
+		matchLookup(hf, tid, 5010, Collections.singletonList(Arrays.asList(5010, 10)));
+		Database.getBufferPool().transactionComplete(tid, false);
+
+		tid = new TransactionId();
+		matchLookup(hf, tid, 5010, new ArrayList<>());
+		SystemTestUtil.matchTuples(hf, tid, remaining);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * More tuples with one key than a bucket holds go to overflow pages once
+	 * the directory stops growing
+	 */
+	@Test public void testOverflow() throws Exception {
+		HashFile f = emptyFile();
+		List<List<Integer>> rows = new ArrayList<>();
+		for (int i = 0; i < 2000; i++)
+			rows.add(Arrays.asList(i % 2 == 0 ? 42 : i, i));
+		insert(f, rows);
+		TransactionId tid = new TransactionId();
+		matchLookup(f, tid, 42, withKey(rows, 42));
+		matchLookup(f, tid, 43, withKey(rows, 43));
+		SystemTestUtil.matchTuples(f, tid, rows);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	private OpIterator plan(TransactionId tid, Map<String, TableStats> stats, LogicalPlan lp) throws Exception {
+		lp.addProjectField("t.c0", null);
+		lp.addProjectField("t.c1", null);
+		return lp.physicalPlan(tid, stats, false);
+	}
+
+	@Test public void testPlanner() throws Exception {
+		Map<String, TableStats> stats = new HashMap<>();
+		stats.put(Database.getCatalog().getTableName(hf.getId()), new TableStats(hf.getId(), 1000));
+		int key = tuples.get(0).get(0);
+		TransactionId tid = new TransactionId();
+
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(hf.getId(), "t");
+		lp.addFilter("t.c0", Predicate.Op.EQUALS, Integer.toString(key));
+		OpIterator plan = plan(tid, stats, lp);
+		OpIterator child = ((Project) plan).getChildren()[0];
+		while (child instanceof Filter)
+			child = ((Filter) child).getChildren()[0];
+		assertTrue(child instanceof HashScan);
+		SystemTestUtil.matchTuples(plan, withKey(tuples, key));
+
+		// a small outer relation is joined by looking its keys up in the hash table
+		List<List<Integer>> outerTuples = new ArrayList<>();
+		HeapFile outer = SystemTestUtil.createRandomHeapFile(2, 100, 5000, null, outerTuples, "d");
+		stats.put(Database.getCatalog().getTableName(outer.getId()), new TableStats(outer.getId(), 1000));
+		lp = new LogicalPlan();
+		lp.addScan(outer.getId(), "o");
+		lp.addScan(hf.getId(), "t");
+		lp.addJoin("o.d1", "t.c0", Predicate.Op.EQUALS);
+		lp.addProjectField("o.d0", null);
+		lp.addProjectField("o.d1", null);
+		plan = plan(tid, stats, lp);
+		assertTrue(((Project) plan).getChildren()[0] instanceof IndexNestedLoopJoin);
+		List<List<Integer>> expected = new ArrayList<>();
+		for (List<Integer> o : outerTuples) {
+			for (List<Integer> t : withKey(tuples, o.get(1))) {
+				List<Integer> row = new ArrayList<>(o);
+				row.addAll(t);
+				expected.add(row);
+			}
+		}
+		SystemTestUtil.matchTuples(plan, expected);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(HashFileTest.class);
+	}
+}
@@ -0,0 +1,193 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.Filter;
+import simpledb.execution.HashEquiJoin;
+import simpledb.execution.IndexNestedLoopJoin;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate;
+import simpledb.execution.Project;
+import simpledb.execution.SeqScan;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeFileEncoder;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.QueryPlanVisualizer;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapFileEncoder;
+import simpledb.storage.IntField;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Tests IndexNestedLoopJoin, and that LogicalPlan probes a BTreeFile on its
+ * key field when the outer relation of a join is small
+ */
+public class IndexJoinTest extends SimpleDbTestBase {
+
+	private List<List<Integer>> innerTuples;
+	private BTreeFile bf;
+
+	@Before public void setUp() throws Exception {
+		innerTuples = new ArrayList<>();
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 20000, 5000, null, innerTuples, "c");
+		File f = File.createTempFile("indexjoin", ".dat");
+		f.deleteOnExit();
+		TransactionId tid = new TransactionId();
+		bf = BTreeFileEncoder.bulkLoad(tid, hf, f, 0, 1.0, 50);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * The tuples of outer joined with the inner tuples on outer.field1 =
+	 * inner.c0, keeping the inner tuples with c1 &lt; innerMax
+	 */
+	private List<List<Integer>> join(List<List<Integer>> outer, int field1, int innerMax) {
+		List<List<Integer>> result = new ArrayList<>();
+		for (List<Integer> t1 : outer) {
+			for (List<Integer> t2 : innerTuples) {
+				if (t1.get(field1).equals(t2.get(0)) && t2.get(1) < innerMax) {
+					List<Integer> t = new ArrayList<>(t1);
+					t.addAll(t2);
+					result.add(t);
+				}
+			}
+		}
+		return result;
+	}
+
+	@Test public void testJoin() throws Exception {
+		List<List<Integer>> outerTuples = new ArrayList<>();
+		// more outer tuples than a batch, with repeated keys
+		HeapFile outer = SystemTestUtil.createRandomHeapFile(2,
+				IndexNestedLoopJoin.BATCH_SIZE + 500, 5000, null, outerTuples, "d");
+		TransactionId tid = new TransactionId();
+		JoinPredicate p = new JoinPredicate(1, Predicate.Op.EQUALS, 0);
+
+		OpIterator join = new IndexNestedLoopJoin(tid, p, new SeqScan(tid, outer.getId(), "o"),
+				new SeqScan(tid, bf.getId(), "i"));
+		List<List<Integer>> expected = join(outerTuples, 1, Integer.MAX_VALUE);
+		SystemTestUtil.matchTuples(join, expected);
+		SystemTestUtil.matchTuples(new HashEquiJoin(p, new SeqScan(tid, outer.getId(), "o"),
+				new SeqScan(tid, bf.getId(), "i")), expected);
+
+		// the probes apply the filters of the inner plan
+		OpIterator inner = new Filter(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(2500)),
+				new SeqScan(tid, bf.getId(), "i"));
+		join = new IndexNestedLoopJoin(tid, p, new SeqScan(tid, outer.getId(), "o"), inner);
+		SystemTestUtil.matchTuples(join, join(outerTuples, 1, 2500));
+
+		join.open();
+		int count = 0;
+		while (join.hasNext()) {
+			join.next();
+			count++;
+		}
+		join.rewind();
+		while (join.hasNext()) {
+			join.next();
+			count--;
+		}
+		join.close();
+		assertEquals(0, count);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	private static HeapFile heapFile(List<List<Integer>> tuples, String colPrefix) throws Exception {
+		File f = File.createTempFile("indexjoin", ".dat");
+		f.deleteOnExit();
+		HeapFileEncoder.convert(tuples, f, BufferPool.getPageSize(), 2);
+		return Utility.openHeapFile(2, colPrefix, f);
+	}
+
+	/**
+	 * An outer relation sorted on the join field, whose duplicates of a key
+	 * are split between two batches, probes the key again in the second one
+	 */
+	@Test public void testDuplicatesAcrossBatches() throws Exception {
+		List<List<Integer>> innerList = new ArrayList<>();
+		for (int k = 0; k < 600; k++)
+			innerList.add(Arrays.asList(k, k));
+		File f = File.createTempFile("indexjoin", ".dat");
+		f.deleteOnExit();
+		TransactionId tid = new TransactionId();
+		BTreeFile inner = BTreeFileEncoder.bulkLoad(tid, heapFile(innerList, "c"), f, 0, 1.0, 50);
+
+		// every key three times, so that a key straddles the end of the first batch
+		List<List<Integer>> outerTuples = new ArrayList<>();
+		for (int k = 0; k < 500; k++) {
+			for (int i = 0; i < 3; i++)
+				outerTuples.add(Arrays.asList(outerTuples.size(), k));
+		}
+		assertNotEquals(0, IndexNestedLoopJoin.BATCH_SIZE % 3);
+		HeapFile outer = heapFile(outerTuples, "d");
+
+		List<List<Integer>> expected = new ArrayList<>();
+		for (List<Integer> t1 : outerTuples) {
+			List<Integer> t = new ArrayList<>(t1);
+			t.addAll(innerList.get(t1.get(1)));
+			expected.add(t);
+		}
+		SystemTestUtil.matchTuples(new IndexNestedLoopJoin(tid, new JoinPredicate(1, Predicate.Op.EQUALS, 0),
+				new SeqScan(tid, outer.getId(), "o"), new SeqScan(tid, inner.getId(), "i")), expected);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	@Test(expected = IllegalArgumentException.class) public void testNotKeyField() {
+		TransactionId tid = new TransactionId();
+		new IndexNestedLoopJoin(tid, new JoinPredicate(0, Predicate.Op.EQUALS, 1),
+				new SeqScan(tid, bf.getId(), "o"), new SeqScan(tid, bf.getId(), "i"));
+	}
+
+	private OpIterator plan(TransactionId tid, HeapFile outer, Map<String, TableStats> stats)
+			throws Exception {
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(outer.getId(), "o");
+		lp.addScan(bf.getId(), "i");
+		lp.addJoin("o.d1", "i.c0", Predicate.Op.EQUALS);
+		lp.addProjectField("o.d0", null);
+		lp.addProjectField("o.d1", null);
+		lp.addProjectField("i.c0", null);
+		lp.addProjectField("i.c1", null);
+		return lp.physicalPlan(tid, stats, false);
+	}
+
+	@Test public void testPlanner() throws Exception {
+		Map<String, TableStats> stats = new HashMap<>();
+		stats.put(Database.getCatalog().getTableName(bf.getId()), new TableStats(bf.getId(), 1000));
+
+		List<List<Integer>> outerTuples = new ArrayList<>();
+		HeapFile small = SystemTestUtil.createRandomHeapFile(2, 100, 5000, null, outerTuples, "d");
+		stats.put(Database.getCatalog().getTableName(small.getId()), new TableStats(small.getId(), 1000));
+		TransactionId tid = new TransactionId();
+		OpIterator plan = plan(tid, small, stats);
+		assertTrue(((Project) plan).getChildren()[0] instanceof IndexNestedLoopJoin);
+		assertTrue(new QueryPlanVisualizer().getQueryPlanTree(plan).contains("⨝(index)"));
+		SystemTestUtil.matchTuples(plan, join(outerTuples, 1, Integer.MAX_VALUE));
+
+		// probing the tree for every tuple of a large outer relation does not pay off
+		HeapFile large = SystemTestUtil.createRandomHeapFile(2, 20000, 5000, null, null, "d");
+		stats.put(Database.getCatalog().getTableName(large.getId()), new TableStats(large.getId(), 1000));
+		plan = plan(tid, large, stats);
+		assertFalse(((Project) plan).getChildren()[0] instanceof IndexNestedLoopJoin);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(IndexJoinTest.class);
+	}
+}
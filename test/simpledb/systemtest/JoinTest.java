@@ -5,9 +5,12 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 
 import org.junit.Test;
 
+import static org.junit.Assert.*;
+
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.execution.Join;
@@ -15,6 +18,8 @@ import simpledb.execution.JoinPredicate;
 import simpledb.execution.Predicate;
 import simpledb.execution.SeqScan;
 import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
@@ -79,6 +84,83 @@ public class JoinTest extends SimpleDbTestBase {
         validateJoin(1, 3, 1, 3);
     }
 
+    /**
+     * A SeqScan which counts the tuples read from it
+     */
+    private static class CountingScan extends SeqScan {
+        private static final long serialVersionUID = 1L;
+        int read = 0;
+
+        CountingScan(TransactionId tid, int tableid, String alias) {
+            super(tid, tableid, alias);
+        }
+
+        @Override
+        public Tuple next() throws NoSuchElementException, TransactionAbortedException, DbException {
+            read++;
+            return super.next();
+        }
+    }
+
+    @Test public void testBlocks()
+            throws IOException, DbException, TransactionAbortedException {
+        // child1 takes three blocks; compare the number and sum of the joined tuples
+        List<List<Integer>> t1Tuples = new ArrayList<>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, 40000, 200, null, t1Tuples);
+        List<List<Integer>> t2Tuples = new ArrayList<>();
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(COLUMNS, 4, 200, null, t2Tuples);
+        TransactionId tid = new TransactionId();
+        for (Predicate.Op op : Predicate.Op.values()) {
+            if (op == Predicate.Op.LIKE)
+                continue;
+            long expectedCount = 0, expectedSum = 0;
+            for (List<Integer> t1 : t1Tuples) {
+                for (List<Integer> t2 : t2Tuples) {
+                    if (new IntField(t1.get(0)).compare(op, new IntField(t2.get(0)))) {
+                        expectedCount++;
+                        expectedSum += t1.get(0) + t1.get(1) + t2.get(0) + t2.get(1);
+                    }
+                }
+            }
+            Join joinOp = new Join(new JoinPredicate(0, op, 0),
+                    new SeqScan(tid, table1.getId(), ""), new SeqScan(tid, table2.getId(), ""));
+            long count = 0, sum = 0;
+            joinOp.open();
+            while (joinOp.hasNext()) {
+                Tuple t = joinOp.next();
+                count++;
+                for (int i = 0; i < 2 * COLUMNS; i++)
+                    sum += ((IntField) t.getField(i)).getValue();
+            }
+            joinOp.close();
+            assertEquals(op.toString(), expectedCount, count);
+            assertEquals(op.toString(), expectedSum, sum);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testStreaming()
+            throws IOException, DbException, TransactionAbortedException {
+        // every tuple matches, so the first block already produces tuples
+        Map<Integer, Integer> columnSpecification = new HashMap<>();
+        columnSpecification.put(0, 1);
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 40000, columnSpecification, new ArrayList<>());
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 10, columnSpecification, new ArrayList<>());
+        TransactionId tid = new TransactionId();
+        CountingScan ss1 = new CountingScan(tid, table1.getId(), "");
+        Join joinOp = new Join(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                ss1, new SeqScan(tid, table2.getId(), ""));
+        joinOp.open();
+        assertTrue(joinOp.hasNext());
+        joinOp.next();
+        // the first tuple is returned after reading a single block of child1
+        assertEquals(Join.blockMemory / table1.getTupleDesc().getSize(), ss1.read);
+        joinOp.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(JoinTest.class);
@@ -439,6 +439,126 @@ public class LogTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    // insert a row in an asynchronously committed transaction
+    void doAsyncInsert(HeapFile hf, int t1)
+        throws DbException, TransactionAbortedException, IOException {
+        Transaction t = new Transaction();
+        t.setAsyncCommit(true);
+        t.start();
+        insertRow(hf, t, t1);
+        t.commit();
+    }
+
+    @Test public void TestAsyncCommitCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+        // keep the flusher from running during the test
+        Database.getBufferPool().setAsyncCommitInterval(60 * 60 * 1000);
+
+        // *** Test:
+        // T1 commits asynchronously
+        // crash before the flusher ran: T1 is lost, older commits are not
+        doAsyncInsert(hf1, 3);
+
+        // a synchronous commit would force the log, so read asynchronously too
+        Transaction t = new Transaction();
+        t.setAsyncCommit(true);
+        t.start();
+        look(hf1, t, 3, true);
+        t.commit();
+
+        crash();
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, false);
+        t.commit();
+    }
+
+    @Test public void TestAsyncCommitFlushed()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+        Database.getBufferPool().setAsyncCommitInterval(60 * 60 * 1000);
+
+        // *** Test:
+        // T1 commits asynchronously, the flusher makes it durable
+        // T2 commits asynchronously on the same page, before its page is written
+        // T3 aborts on that page: T2's data must survive the abort
+        // T4 commits asynchronously and is lost in the crash
+        doAsyncInsert(hf1, 3);
+        Database.getBufferPool().flushAsyncCommits();
+        doAsyncInsert(hf1, 4);
+
+        Transaction t3 = new Transaction();
+        t3.start();
+        insertRow(hf1, t3, 5);
+        t3.abort(); // forces the log, so T2 is durable now
+
+        doAsyncInsert(hf1, 6);
+
+        Transaction t = new Transaction();
+        t.setAsyncCommit(true);
+        t.start();
+        look(hf1, t, 4, true);
+        look(hf1, t, 5, false);
+        look(hf1, t, 6, true);
+        t.commit();
+
+        crash();
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 3, true);
+        look(hf1, t, 4, true);
+        look(hf1, t, 5, false);
+        look(hf1, t, 6, false);
+        t.commit();
+    }
+
+    // count the log segments that are in use (not recycled)
+    int countLogSegments() {
+        File[] files = new File(".").listFiles((dir, name) -> name.matches("log\\.\\d+"));
+        return files == null ? 0 : files.length;
+    }
+
+    @Test public void TestSegmentRecycling()
+            throws IOException, DbException, TransactionAbortedException {
+        LogFile.setSegmentSize(32 * 1024);
+        try {
+            setup();
+
+            // *** Test:
+            // many committed transactions spill over several segments;
+            // a checkpoint recycles the segments below it
+            // and recovery still sees all committed data
+            for (int i = 0; i < 20; i++)
+                doInsert(hf1, 100 + 2 * i, 101 + 2 * i);
+            assertTrue(countLogSegments() > 2);
+
+            Database.getLogFile().logCheckpoint();
+            assertTrue(countLogSegments() <= 2);
+
+            doInsert(hf2, 30, 31);
+
+            crash();
+
+            Transaction t = new Transaction();
+            t.start();
+            look(hf1, t, 100, true);
+            look(hf1, t, 139, true);
+            look(hf2, t, 30, true);
+            look(hf2, t, 31, true);
+            t.commit();
+        } finally {
+            LogFile.resetSegmentSize();
+        }
+    }
+
 
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
@@ -0,0 +1,144 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.execution.OpIterator;
+import simpledb.execution.OrderBy;
+import simpledb.execution.Project;
+import simpledb.execution.SeqScan;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Tests that OrderBy sorts on several fields, in memory or with sorted runs
+ * on disk, and returns the same order after a rewind without reading its
+ * child again
+ */
+public class OrderByTest extends SimpleDbTestBase {
+
+	private HeapFile hf;
+	private List<List<Integer>> tuples;
+	private TransactionId tid;
+
+	/**
+	 * A SeqScan which counts how often it was opened or rewound
+	 */
+	private static class CountingScan extends SeqScan {
+		private static final long serialVersionUID = 1L;
+		int scans = 0;
+
+		CountingScan(TransactionId tid, int tableid, String alias) {
+			super(tid, tableid, alias);
+		}
+
+		@Override
+		public void open() throws DbException, TransactionAbortedException {
+			scans++;
+			super.open();
+		}
+
+		@Override
+		public void rewind() throws DbException, TransactionAbortedException {
+			scans++;
+			super.rewind();
+		}
+	}
+
+	@Before public void setUp() throws Exception {
+		// few distinct values, so that the second field decides between many tuples
+		tuples = new ArrayList<>();
+		hf = SystemTestUtil.createRandomHeapFile(3, 30000, 50, null, tuples, "c");
+		tid = new TransactionId();
+	}
+
+	/**
+	 * @return the tuples of the table in the order of the fields, keeping
+	 *         the order of the table between equal tuples like the sort does
+	 */
+	private List<List<Integer>> sorted(int[] fields, boolean[] asc) {
+		List<List<Integer>> expected = new ArrayList<>(tuples);
+		expected.sort((a, b) -> {
+			for (int i = 0; i < fields.length; i++) {
+				int cmp = a.get(fields[i]).compareTo(b.get(fields[i]));
+				if (cmp != 0)
+					return asc[i] ? cmp : -cmp;
+			}
+			return 0;
+		});
+		return expected;
+	}
+
+	private static List<List<Integer>> readAll(OpIterator it) throws Exception {
+		List<List<Integer>> out = new ArrayList<>();
+		while (it.hasNext())
+			out.add(SystemTestUtil.tupleToList(it.next()));
+		return out;
+	}
+
+	@Test public void testInMemory() throws Exception {
+		OrderBy ob = new OrderBy(1, false, new SeqScan(tid, hf.getId(), "t"));
+		ob.open();
+		assertEquals(0, ob.numRuns());
+		assertEquals(sorted(new int[]{1}, new boolean[]{false}), readAll(ob));
+		ob.close();
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	@Test public void testExternalSort() throws Exception {
+		int[] fields = {0, 1};
+		boolean[] asc = {true, false};
+		CountingScan scan = new CountingScan(tid, hf.getId(), "t");
+		OrderBy ob = new OrderBy(fields, asc, scan);
+		ob.setMemoryPages(3);
+		ob.open();
+		// the table does not fit in memory, and its runs are merged in several passes
+		assertTrue(ob.numRuns() > 0);
+		List<List<Integer>> expected = sorted(fields, asc);
+		assertEquals(expected, readAll(ob));
+
+		// a rewind reads the sorted runs again
+		ob.rewind();
+		assertEquals(expected, readAll(ob));
+		ob.close();
+		assertEquals(1, scan.scans);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	@Test public void testLogicalPlan() throws Exception {
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(hf.getId(), "t");
+		lp.addOrderBy("t.c2", true);
+		lp.addOrderBy("t.c0", false);
+		lp.addProjectField("t.c0", null);
+		lp.addProjectField("t.c1", null);
+		lp.addProjectField("t.c2", null);
+		Map<String, TableStats> stats = new HashMap<>();
+		stats.put(Database.getCatalog().getTableName(hf.getId()), new TableStats(hf.getId(), 1000));
+		OpIterator plan = lp.physicalPlan(tid, stats, false);
+
+		OrderBy ob = (OrderBy) ((Project) plan).getChildren()[0];
+		assertArrayEquals(new int[]{2, 0}, ob.getOrderByFields());
+		plan.open();
+		assertEquals(sorted(new int[]{2, 0}, new boolean[]{true, false}), readAll(plan));
+		plan.close();
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(OrderByTest.class);
+	}
+}
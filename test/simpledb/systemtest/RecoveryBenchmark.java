@@ -0,0 +1,96 @@
+package simpledb.systemtest;
+
+import java.io.*;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Measures how long LogFile.recover() takes to restart after a crash,
+ * for different numbers of recovery threads.
+ * <p>
+ * Builds a large synthetic log in the style of LogTest: many transactions
+ * each write UPDATE records for a few pages of a heap file; most of them
+ * commit, some abort and the last ones are still running when the
+ * database "crashes".  The same log is then recovered once per thread
+ * count.
+ * <p>
+ * Usage: RecoveryBenchmark [pages] [transactions] [threads...]
+ */
+public class RecoveryBenchmark {
+    static final int PAGES_PER_TRANSACTION = 4;
+
+    static HeapPage makePage(HeapFile hf, int pageNo, int value) throws IOException, DbException {
+        HeapPage page = new HeapPage(new HeapPageId(hf.getId(), pageNo), HeapPage.createEmptyPageData());
+        Tuple t = new Tuple(hf.getTupleDesc());
+        t.setField(0, new IntField(value));
+        t.setField(1, new IntField(pageNo));
+        page.insertTuple(t);
+        return page;
+    }
+
+    // write the synthetic log, leaving the log file as a crash would
+    static void buildLog(File file, int pages, int transactions) throws IOException, DbException {
+        Database.reset();
+        HeapFile hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        LogFile log = Database.getLogFile();
+        int[] version = new int[pages];
+        for (int i = 0; i < transactions; i++) {
+            TransactionId tid = new TransactionId();
+            log.logXactionBegin(tid);
+            for (int j = 0; j < PAGES_PER_TRANSACTION; j++) {
+                int pageNo = (i * PAGES_PER_TRANSACTION + j) % pages;
+                HeapPage before = makePage(hf, pageNo, version[pageNo]);
+                HeapPage after = makePage(hf, pageNo, version[pageNo] + 1);
+                log.logWrite(tid, before, after);
+                version[pageNo]++;
+            }
+            if (i >= transactions - 8) {
+                // still running at the crash
+                continue;
+            }
+            if (i % 10 == 9) {
+                log.logAbort(tid);
+            } else {
+                log.logCommit(tid);
+            }
+        }
+        log.force();
+    }
+
+    // simulate crash, restart Database, time log recovery
+    static long recover(File file, int threads) throws IOException {
+        Database.reset();
+        Utility.openHeapFile(2, file);
+        Database.getLogFile().setRecoveryThreads(threads);
+        long start = System.nanoTime();
+        Database.getLogFile().recover();
+        return System.nanoTime() - start;
+    }
+
+    public static void main(String[] args) throws IOException, DbException {
+        int pages = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int transactions = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+        int[] threadCounts = {1, 2, 4, 8};
+        if (args.length > 2) {
+            threadCounts = new int[args.length - 2];
+            for (int i = 2; i < args.length; i++)
+                threadCounts[i - 2] = Integer.parseInt(args[i]);
+        }
+
+        File file = File.createTempFile("recovery", ".dat");
+        file.deleteOnExit();
+        buildLog(file, pages, transactions);
+        System.out.println("log of " + transactions + " transactions over " + pages + " pages");
+
+        // warm up once so that class loading and the page cache do not count
+        recover(file, 1);
+        for (int threads : threadCounts) {
+            long nanos = recover(file, threads);
+            System.out.println(threads + " thread(s): " + (nanos / 1000000) + " ms");
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.execution.Filter;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate;
+import simpledb.execution.Project;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.index.IndexOnlyScan;
+import simpledb.index.IndexScan;
+import simpledb.index.SecondaryIndex;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionId;
+
+public class SecondaryIndexTest extends SimpleDbTestBase {
+
+	private List<List<Integer>> tuples;
+	private HeapFile hf;
+	private SecondaryIndex index;
+
+	@Before public void setUp() throws Exception {
+		tuples = new ArrayList<>();
+		hf = SystemTestUtil.createRandomHeapFile(2, 20000, null, tuples, "c");
+		File f = File.createTempFile("index", ".dat");
+		f.deleteOnExit();
+		TransactionId tid = new TransactionId();
+		index = SecondaryIndex.create(tid, hf.getId(), 1, f, 50);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	private List<List<Integer>> matching(Predicate.Op op, int value) {
+		List<List<Integer>> result = new ArrayList<>();
+		for (List<Integer> t : tuples) {
+			if (new IntField(t.get(1)).compare(op, new IntField(value)))
+				result.add(t);
+		}
+		return result;
+	}
+
+	private Tuple tuple(int c0, int c1) {
+		Tuple t = new Tuple(hf.getTupleDesc());
+		t.setField(0, new IntField(c0));
+		t.setField(1, new IntField(c1));
+		return t;
+	}
+
+	@Test public void testIndexScan() throws Exception {
+		TransactionId tid = new TransactionId();
+		int value = tuples.get(tuples.size() / 2).get(1);
+		SystemTestUtil.matchTuples(new IndexScan(tid, index, "t",
+				new IndexPredicate(Predicate.Op.EQUALS, new IntField(value))), matching(Predicate.Op.EQUALS, value));
+		SystemTestUtil.matchTuples(new IndexScan(tid, index, "t",
+				new IndexPredicate(Predicate.Op.LESS_THAN, new IntField(value))), matching(Predicate.Op.LESS_THAN, value));
+		SystemTestUtil.matchTuples(new IndexScan(tid, index, "t", null), tuples);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * Inserts and deletes through the BufferPool update the index, and an abort rolls them back
+	 */
+	@Test public void testMaintenance() throws Exception {
+		int value = -1; // not among the random values
+		IndexPredicate ipred = new IndexPredicate(Predicate.Op.EQUALS, new IntField(value));
+
+		TransactionId tid = new TransactionId();
+		Database.getBufferPool().insertTuple(tid, hf.getId(), tuple(1, value));
+		Database.getBufferPool().insertTuple(tid, hf.getId(), tuple(2, value));
+		Database.getBufferPool().transactionComplete(tid);
+
+		tid = new TransactionId();
+		List<List<Integer>> expected = new ArrayList<>();
+		expected.add(Arrays.asList(1, value));
+		expected.add(Arrays.asList(2, value));
+		SystemTestUtil.matchTuples(new IndexScan(tid, index, "t", ipred), expected);
+
+		IndexScan scan = new IndexScan(tid, index, "t", ipred);
+		scan.open();
+		Tuple t = scan.next();
+		scan.close();
+		Database.getBufferPool().deleteTuple(tid, t);
+		expected.remove(SystemTestUtil.tupleToList(t));
+		SystemTestUtil.matchTuples(new IndexScan(tid, index, "t", ipred), expected);
+		Database.getBufferPool().transactionComplete(tid, false);
+
+		tid = new TransactionId();
+		expected.add(SystemTestUtil.tupleToList(t));
+		SystemTestUtil.matchTuples(new IndexScan(tid, index, "t", ipred), expected);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	private OpIterator scanOf(OpIterator plan) {
+		OpIterator child = ((Project) plan).getChildren()[0];
+		while (child instanceof Filter)
+			child = ((Filter) child).getChildren()[0];
+		return child;
+	}
+
+	/**
+	 * The planner uses the index for a selective filter and scans the table otherwise
+	 */
+	@Test public void testPlanner() throws Exception {
+		Map<String, TableStats> stats = new HashMap<>();
+		String name = Database.getCatalog().getTableName(hf.getId());
+		stats.put(name, new TableStats(hf.getId(), 1000));
+		int value = tuples.get(0).get(1);
+
+		TransactionId tid = new TransactionId();
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(hf.getId(), "t");
+		lp.addFilter("t.c1", Predicate.Op.EQUALS, Integer.toString(value));
+		lp.addProjectField("t.c0", null);
+		lp.addProjectField("t.c1", null);
+		OpIterator plan = lp.physicalPlan(tid, stats, false);
+		assertTrue(scanOf(plan) instanceof IndexScan);
+		SystemTestUtil.matchTuples(plan, matching(Predicate.Op.EQUALS, value));
+
+		lp = new LogicalPlan();
+		lp.addScan(hf.getId(), "t");
+		lp.addFilter("t.c1", Predicate.Op.GREATER_THAN, "0");
+		lp.addProjectField("t.c0", null);
+		lp.addProjectField("t.c1", null);
+		plan = lp.physicalPlan(tid, stats, false);
+		assertFalse(scanOf(plan) instanceof IndexScan);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * The rows of matching(op, value) as returned by an index-only scan of an
+	 * index on c1 which includes c0
+	 */
+	private List<List<Integer>> covered(Predicate.Op op, int value) {
+		List<List<Integer>> result = new ArrayList<>();
+		for (List<Integer> t : matching(op, value))
+			result.add(Arrays.asList(t.get(1), t.get(0)));
+		return result;
+	}
+
+	private SecondaryIndex coveringIndex(TransactionId tid) throws Exception {
+		File f = File.createTempFile("covering", ".dat");
+		f.deleteOnExit();
+		return SecondaryIndex.create(tid, hf.getId(), 1, new int[]{0}, f, 50);
+	}
+
+	@Test public void testIndexOnlyScan() throws Exception {
+		TransactionId tid = new TransactionId();
+		SecondaryIndex covering = coveringIndex(tid);
+		assertTrue(covering.covers(Arrays.asList(0, 1)));
+		assertFalse(index.covers(Arrays.asList(0, 1)));
+		int value = tuples.get(tuples.size() / 2).get(1);
+		SystemTestUtil.matchTuples(new IndexOnlyScan(tid, covering, "t",
+				new IndexPredicate(Predicate.Op.EQUALS, new IntField(value))), covered(Predicate.Op.EQUALS, value));
+		SystemTestUtil.matchTuples(new IndexOnlyScan(tid, covering, "t", null), covered(Predicate.Op.GREATER_THAN_OR_EQ,
+				Integer.MIN_VALUE));
+
+		// inserts through the BufferPool fill in the included columns
+		Database.getBufferPool().insertTuple(tid, hf.getId(), tuple(7, -1));
+		List<List<Integer>> expected = new ArrayList<>();
+		expected.add(Arrays.asList(-1, 7));
+		SystemTestUtil.matchTuples(new IndexOnlyScan(tid, covering, "t",
+				new IndexPredicate(Predicate.Op.EQUALS, new IntField(-1))), expected);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * The planner answers a query from an index alone when the index holds
+	 * every column the query references
+	 */
+	@Test public void testCoveringPlanner() throws Exception {
+		Map<String, TableStats> stats = new HashMap<>();
+		String name = Database.getCatalog().getTableName(hf.getId());
+		stats.put(name, new TableStats(hf.getId(), 1000));
+		int value = tuples.get(0).get(1);
+		TransactionId tid = new TransactionId();
+
+		// only the key of the index is referenced
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(hf.getId(), "t");
+		lp.addFilter("t.c1", Predicate.Op.EQUALS, Integer.toString(value));
+		lp.addProjectField("t.c1", null);
+		OpIterator plan = lp.physicalPlan(tid, stats, false);
+		assertTrue(scanOf(plan) instanceof IndexOnlyScan);
+		List<List<Integer>> expected = new ArrayList<>();
+		for (List<Integer> t : matching(Predicate.Op.EQUALS, value))
+			expected.add(Collections.singletonList(t.get(1)));
+		SystemTestUtil.matchTuples(plan, expected);
+
+		// c0 is only in the entries of the covering index
+		lp = new LogicalPlan();
+		lp.addScan(hf.getId(), "t");
+		lp.addFilter("t.c1", Predicate.Op.EQUALS, Integer.toString(value));
+		lp.addProjectField("t.c0", null);
+		lp.addProjectField("t.c1", null);
+		plan = lp.physicalPlan(tid, stats, false);
+		assertTrue(scanOf(plan) instanceof IndexScan);
+
+		coveringIndex(tid);
+		plan = lp.physicalPlan(tid, stats, false);
+		assertTrue(scanOf(plan) instanceof IndexOnlyScan);
+		SystemTestUtil.matchTuples(plan, matching(Predicate.Op.EQUALS, value));
+
+		// all columns of the table are referenced
+		lp = new LogicalPlan();
+		lp.addScan(hf.getId(), "t");
+		lp.addFilter("t.c1", Predicate.Op.EQUALS, Integer.toString(value));
+		lp.addProjectField("*", null);
+		plan = lp.physicalPlan(tid, stats, false);
+		assertFalse(scanOf(plan) instanceof IndexOnlyScan);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * The columns of an index-only scan are in a different order from the
+	 * table's, but the filter selectivity is looked up by column of the table
+	 */
+	@Test public void testIndexOnlyColumnOrder() throws Exception {
+		TupleDesc td = new TupleDesc(new Type[]{Type.INT_TYPE, Type.STRING_TYPE}, new String[]{"id", "name"});
+		File tf = File.createTempFile("strings", ".dat");
+		tf.deleteOnExit();
+		HeapFile strings = new HeapFile(tf, td);
+		Database.getCatalog().addTable(strings, SystemTestUtil.getUUID());
+		TransactionId tid = new TransactionId();
+		for (int i = 0; i < 200; i++) {
+			Tuple t = new Tuple(td);
+			t.setField(0, new IntField(i));
+			t.setField(1, new StringField("n" + i % 20, Type.STRING_LEN));
+			Database.getBufferPool().insertTuple(tid, strings.getId(), t);
+		}
+		Database.getBufferPool().transactionComplete(tid);
+
+		tid = new TransactionId();
+		File f = File.createTempFile("index", ".dat");
+		f.deleteOnExit();
+		SecondaryIndex.create(tid, strings.getId(), 1, f, 50);
+		Map<String, TableStats> stats = new HashMap<>();
+		stats.put(Database.getCatalog().getTableName(strings.getId()), new TableStats(strings.getId(), 1000));
+
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(strings.getId(), "t");
+		lp.addFilter("t.name", Predicate.Op.EQUALS, "n7");
+		lp.addProjectField("t.name", null);
+		OpIterator plan = lp.physicalPlan(tid, stats, false);
+		assertTrue(scanOf(plan) instanceof IndexOnlyScan);
+		plan.open();
+		int count = 0;
+		while (plan.hasNext()) {
+			assertEquals("n7", ((StringField) plan.next().getField(0)).getValue());
+			count++;
+		}
+		plan.close();
+		assertEquals(10, count);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * The RecordIds of the entries only point into a HeapFile
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testNotHeapFile() throws Exception {
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 100, null, null, 0);
+		File f = File.createTempFile("index", ".dat");
+		f.deleteOnExit();
+		TransactionId tid = new TransactionId();
+		try {
+			SecondaryIndex.create(tid, bf.getId(), 1, f, 50);
+		} finally {
+			Database.getBufferPool().transactionComplete(tid);
+		}
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(SecondaryIndexTest.class);
+	}
+}
@@ -0,0 +1,162 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.execution.SortMergeJoin;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.HeapFile;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Tests that SortMergeJoin returns the same rows as a nested loops join for
+ * every comparison it merges on, with sorted and unsorted children
+ */
+public class SortMergeJoinTest extends SimpleDbTestBase {
+
+	private HeapFile t1;
+	private HeapFile t2;
+	private List<List<Integer>> t1Tuples;
+	private List<List<Integer>> t2Tuples;
+	private TransactionId tid;
+
+	@Before public void setUp() throws Exception {
+		// few distinct keys, so that both sides have long runs of duplicates
+		t1Tuples = new ArrayList<>();
+		t1 = SystemTestUtil.createRandomHeapFile(2, 150, 40, null, t1Tuples, "a");
+		t2Tuples = new ArrayList<>();
+		t2 = SystemTestUtil.createRandomHeapFile(3, 120, 40, null, t2Tuples, "b");
+		tid = new TransactionId();
+	}
+
+	private static List<List<Integer>> expectedJoin(List<List<Integer>> t1Tuples, int f1, Predicate.Op op,
+			List<List<Integer>> t2Tuples, int f2) {
+		List<List<Integer>> expected = new ArrayList<>();
+		for (List<Integer> l : t1Tuples) {
+			for (List<Integer> r : t2Tuples) {
+				int cmp = l.get(f1).compareTo(r.get(f2));
+				boolean match;
+				switch (op) {
+				case EQUALS: match = cmp == 0; break;
+				case LESS_THAN: match = cmp < 0; break;
+				case LESS_THAN_OR_EQ: match = cmp <= 0; break;
+				case GREATER_THAN: match = cmp > 0; break;
+				default: match = cmp >= 0; break;
+				}
+				if (match) {
+					List<Integer> out = new ArrayList<>(l);
+					out.addAll(r);
+					expected.add(out);
+				}
+			}
+		}
+		return expected;
+	}
+
+	private void validateJoin(Predicate.Op op, int memoryPages) throws Exception {
+		SortMergeJoin join = new SortMergeJoin(new JoinPredicate(1, op, 0),
+				new SeqScan(tid, t1.getId(), "a"), new SeqScan(tid, t2.getId(), "b"));
+		join.setMemoryPages(memoryPages);
+		assertEquals(op == Predicate.Op.EQUALS, join.sortsChild1());
+		assertTrue(join.sortsChild2());
+		SystemTestUtil.matchTuples(join, expectedJoin(t1Tuples, 1, op, t2Tuples, 0));
+	}
+
+	@Test public void testEquals() throws Exception {
+		validateJoin(Predicate.Op.EQUALS, SortMergeJoin.DEFAULT_MEMORY_PAGES);
+	}
+
+	@Test public void testInequalities() throws Exception {
+		validateJoin(Predicate.Op.LESS_THAN, SortMergeJoin.DEFAULT_MEMORY_PAGES);
+		validateJoin(Predicate.Op.LESS_THAN_OR_EQ, SortMergeJoin.DEFAULT_MEMORY_PAGES);
+		validateJoin(Predicate.Op.GREATER_THAN, SortMergeJoin.DEFAULT_MEMORY_PAGES);
+		validateJoin(Predicate.Op.GREATER_THAN_OR_EQ, SortMergeJoin.DEFAULT_MEMORY_PAGES);
+	}
+
+	@Test public void testExternalSort() throws Exception {
+		// large enough tables that the sorts write runs and child1 is read in several blocks
+		t1Tuples = new ArrayList<>();
+		t1 = SystemTestUtil.createRandomHeapFile(2, 4000, 2000, null, t1Tuples, "a");
+		t2Tuples = new ArrayList<>();
+		t2 = SystemTestUtil.createRandomHeapFile(3, 3000, 2000, null, t2Tuples, "b");
+		validateJoin(Predicate.Op.EQUALS, 6);
+
+		t2Tuples = new ArrayList<>();
+		t2 = SystemTestUtil.createRandomHeapFile(3, 4, 2000, null, t2Tuples, "b");
+		validateJoin(Predicate.Op.GREATER_THAN, 6);
+		validateJoin(Predicate.Op.LESS_THAN_OR_EQ, 6);
+	}
+
+	@Test public void testSortedInputs() throws Exception {
+		List<List<Integer>> bt1Tuples = new ArrayList<>();
+		BTreeFile bt1 = BTreeUtility.createRandomBTreeFile(2, 120, 60, null, bt1Tuples, 1);
+		List<List<Integer>> bt2Tuples = new ArrayList<>();
+		BTreeFile bt2 = BTreeUtility.createRandomBTreeFile(2, 80, 60, null, bt2Tuples, 0);
+
+		// B+ tree scans on the join fields are merged without sorting
+		SortMergeJoin join = new SortMergeJoin(new JoinPredicate(1, Predicate.Op.EQUALS, 0),
+				new BTreeScan(tid, bt1.getId(), "a", null), new BTreeScan(tid, bt2.getId(), "b", null));
+		assertFalse(join.sortsChild1());
+		assertFalse(join.sortsChild2());
+		SystemTestUtil.matchTuples(join, expectedJoin(bt1Tuples, 1, Predicate.Op.EQUALS, bt2Tuples, 0));
+
+		// LESS_THAN reads child2 from the largest key down
+		join = new SortMergeJoin(new JoinPredicate(0, Predicate.Op.LESS_THAN, 0),
+				new BTreeScan(tid, bt1.getId(), "a", null), new BTreeScan(tid, bt2.getId(), "b", null, true));
+		assertFalse(join.sortsChild2());
+		SystemTestUtil.matchTuples(join, expectedJoin(bt1Tuples, 0, Predicate.Op.LESS_THAN, bt2Tuples, 0));
+
+		// but an ascending scan has to be sorted again
+		join = new SortMergeJoin(new JoinPredicate(0, Predicate.Op.LESS_THAN, 0),
+				new BTreeScan(tid, bt1.getId(), "a", null), new BTreeScan(tid, bt2.getId(), "b", null));
+		assertTrue(join.sortsChild2());
+		SystemTestUtil.matchTuples(join, expectedJoin(bt1Tuples, 0, Predicate.Op.LESS_THAN, bt2Tuples, 0));
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	@Test public void testRewind() throws Exception {
+		for (Predicate.Op op : new Predicate.Op[]{Predicate.Op.EQUALS, Predicate.Op.GREATER_THAN}) {
+			SortMergeJoin join = new SortMergeJoin(new JoinPredicate(1, op, 0),
+					new SeqScan(tid, t1.getId(), "a"), new SeqScan(tid, t2.getId(), "b"));
+			join.setMemoryPages(6);
+			int expected = expectedJoin(t1Tuples, 1, op, t2Tuples, 0).size();
+			join.open();
+			// stop half way, and start again
+			for (int i = 0; i < expected / 2; i++)
+				join.next();
+			join.rewind();
+			int n = 0;
+			while (join.hasNext()) {
+				join.next();
+				n++;
+			}
+			join.close();
+			assertEquals(expected, n);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNotEquals() {
+		new SortMergeJoin(new JoinPredicate(1, Predicate.Op.NOT_EQUALS, 0),
+				new SeqScan(tid, t1.getId(), "a"), new SeqScan(tid, t2.getId(), "b"));
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(SortMergeJoinTest.class);
+	}
+}
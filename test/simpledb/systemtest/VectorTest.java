@@ -0,0 +1,130 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Type;
+import simpledb.execution.*;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.TupleBatch;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Tests that the batch-at-a-time operators return the rows of their
+ * tuple-at-a-time versions, alone and mixed with these through the adapters
+ */
+public class VectorTest extends SimpleDbTestBase {
+
+	private HeapFile f1;
+	private HeapFile f2;
+	private TransactionId tid;
+
+	@Before public void setUp() throws Exception {
+		// more rows than a batch holds, with repeated values to group and join on
+		f1 = SystemTestUtil.createRandomHeapFile(3, 3000, 100, null, new ArrayList<>(), "a");
+		f2 = SystemTestUtil.createRandomHeapFile(2, 2500, 1000, null, new ArrayList<>(), "b");
+		tid = new TransactionId();
+	}
+
+	private static List<List<Integer>> rows(OpIterator it) throws Exception {
+		List<List<Integer>> rows = new ArrayList<>();
+		it.open();
+		while (it.hasNext())
+			rows.add(SystemTestUtil.tupleToList(it.next()));
+		it.close();
+		return rows;
+	}
+
+	@Test public void testScanFilterProject() throws Exception {
+		for (Predicate.Op op : new Predicate.Op[]{Predicate.Op.EQUALS, Predicate.Op.NOT_EQUALS,
+				Predicate.Op.LESS_THAN, Predicate.Op.GREATER_THAN_OR_EQ}) {
+			Predicate p = new Predicate(1, op, new IntField(50));
+			List<List<Integer>> expected = rows(new Project(Arrays.asList(2, 1),
+					new Type[]{Type.INT_TYPE, Type.INT_TYPE}, new Filter(p, new SeqScan(tid, f1.getId(), "a"))));
+			VectorProject plan = new VectorProject(Arrays.asList(2, 1), new Type[]{Type.INT_TYPE, Type.INT_TYPE},
+					new VectorFilter(p, new VectorSeqScan(tid, f1.getId(), "a")));
+			assertEquals("a.a2", plan.getTupleDesc().getFieldName(0));
+			SystemTestUtil.matchTuples(new TupleAdapter(plan), expected);
+		}
+	}
+
+	@Test public void testAggregate() throws Exception {
+		for (Aggregator.Op op : new Aggregator.Op[]{Aggregator.Op.MIN, Aggregator.Op.MAX, Aggregator.Op.SUM,
+				Aggregator.Op.AVG, Aggregator.Op.COUNT}) {
+			for (int gfield : new int[]{Aggregator.NO_GROUPING, 0}) {
+				List<List<Integer>> expected;
+				if (op == Aggregator.Op.AVG && gfield == Aggregator.NO_GROUPING) {
+					int sum = rows(new Aggregate(new SeqScan(tid, f1.getId(), "a"), 1, gfield, Aggregator.Op.SUM)).get(0).get(0);
+					int count = rows(new Aggregate(new SeqScan(tid, f1.getId(), "a"), 1, gfield, Aggregator.Op.COUNT)).get(0).get(0);
+					expected = Collections.singletonList(Collections.singletonList(sum / count));
+				} else {
+					expected = rows(new Aggregate(new SeqScan(tid, f1.getId(), "a"), 1, gfield, op));
+				}
+				SystemTestUtil.matchTuples(new TupleAdapter(new VectorAggregate(
+						new VectorSeqScan(tid, f1.getId(), "a"), 1, gfield, op)), expected);
+			}
+		}
+
+		// no input rows, no groups
+		Predicate none = new Predicate(0, Predicate.Op.LESS_THAN, new IntField(-1));
+		SystemTestUtil.matchTuples(new TupleAdapter(new VectorAggregate(
+				new VectorFilter(none, new VectorSeqScan(tid, f1.getId(), "a")), 1,
+				Aggregator.NO_GROUPING, Aggregator.Op.SUM)), new ArrayList<>());
+	}
+
+	@Test public void testHashJoin() throws Exception {
+		JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 1);
+		List<List<Integer>> expected = rows(new HashEquiJoin(p,
+				new SeqScan(tid, f1.getId(), "a"), new SeqScan(tid, f2.getId(), "b")));
+		assertTrue(expected.size() > TupleBatch.MAX_ROWS);
+		VectorHashEquiJoin join = new VectorHashEquiJoin(p,
+				new VectorSeqScan(tid, f1.getId(), "a"), new VectorSeqScan(tid, f2.getId(), "b"));
+		TupleAdapter plan = new TupleAdapter(join);
+		SystemTestUtil.matchTuples(plan, expected);
+
+		// a rewind only probes the table again
+		plan.open();
+		int n = 0;
+		while (plan.hasNext()) {
+			plan.next();
+			n++;
+		}
+		plan.rewind();
+		while (plan.hasNext()) {
+			plan.next();
+			n--;
+		}
+		plan.close();
+		assertEquals(0, n);
+	}
+
+	/**
+	 * A plan may switch between the two kinds of operators any number of times
+	 */
+	@Test public void testMixedPlan() throws Exception {
+		Predicate p = new Predicate(2, Predicate.Op.GREATER_THAN, new IntField(20));
+		JoinPredicate jp = new JoinPredicate(0, Predicate.Op.EQUALS, 1);
+		List<List<Integer>> expected = rows(new Aggregate(new HashEquiJoin(jp,
+				new Filter(p, new SeqScan(tid, f1.getId(), "a")), new SeqScan(tid, f2.getId(), "b")),
+				4, 0, Aggregator.Op.COUNT));
+
+		OpIterator filter = new Filter(p, new TupleAdapter(new VectorSeqScan(tid, f1.getId(), "a")));
+		BatchIterator join = new VectorHashEquiJoin(jp, new BatchAdapter(filter),
+				new BatchAdapter(new SeqScan(tid, f2.getId(), "b")));
+		OpIterator plan = new Aggregate(new TupleAdapter(join), 4, 0, Aggregator.Op.COUNT);
+		SystemTestUtil.matchTuples(plan, expected);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(VectorTest.class);
+	}
+}